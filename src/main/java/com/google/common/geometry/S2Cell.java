@@ -62,6 +62,21 @@ public final strictfp class S2Cell implements S2Region {
   }
 
 
+  /**
+   * Makes this cell a copy of "other". Used internally to recycle S2Cell
+   * objects.
+   */
+  void set(S2Cell other) {
+    face = other.face;
+    level = other.level;
+    orientation = other.orientation;
+    cellId = other.cellId;
+    uv[0][0] = other.uv[0][0];
+    uv[0][1] = other.uv[0][1];
+    uv[1][0] = other.uv[1][0];
+    uv[1][1] = other.uv[1][1];
+  }
+
   public S2CellId id() {
     return cellId;
   }
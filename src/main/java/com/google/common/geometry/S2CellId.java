@@ -15,9 +15,12 @@
  */
 package com.google.common.geometry;
 
+import com.google.common.base.Preconditions;
+
 import java.io.Serializable;
 import java.util.List;
-import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * An S2CellId is a 64-bit unsigned integer that uniquely identifies a cell in
@@ -92,12 +95,6 @@ public final strictfp class S2CellId implements Comparable<S2CellId>, Serializab
   private static final int[] LOOKUP_POS = new int[1 << (2 * LOOKUP_BITS + 2)];
   private static final int[] LOOKUP_IJ = new int[1 << (2 * LOOKUP_BITS + 2)];
 
-  /**
-   * This is the offset required to wrap around from the beginning of the
-   * Hilbert curve to the end or vice versa; see next_wrap() and prev_wrap().
-   */
-  private static final long WRAP_OFFSET = (long) (NUM_FACES) << POS_BITS;
-
   static {
     initLookupCell(0, 0, 0, 0, 0, 0);
     initLookupCell(0, 0, 0, SWAP_MASK, 0, SWAP_MASK);
@@ -147,11 +144,7 @@ public final strictfp class S2CellId implements Comparable<S2CellId>, Serializab
    * necessarily unit length).
    */
   public static S2CellId fromPoint(S2Point p) {
-    int face = S2Projections.xyzToFace(p);
-    R2Vector uv = S2Projections.validFaceXyzToUv(face, p);
-    int i = stToIJ(S2Projections.uvToST(uv.x()));
-    int j = stToIJ(S2Projections.uvToST(uv.y()));
-    return fromFaceIJ(face, i, j);
+    return new S2CellId(fromXyzRaw(p.x, p.y, p.z));
   }
 
 
@@ -160,6 +153,106 @@ public final strictfp class S2CellId implements Comparable<S2CellId>, Serializab
     return fromPoint(ll.toPoint());
   }
 
+  /**
+   * Converts the points given by the parallel arrays "lat" and "lng" (in
+   * degrees) to the ids of the cells at the given level that contain them, and
+   * stores them in the corresponding entries of "out". The result for each
+   * point is identical to
+   * {@code fromLatLng(S2LatLng.fromDegrees(lat[i], lng[i])).parent(level).id()},
+   * but no intermediate objects are created.
+   */
+  public static void fromDegrees(double[] lat, double[] lng, int level, long[] out) {
+    checkBatchArguments(lat, lng, level, out);
+    fromDegrees(lat, lng, level, out, 0, lat.length);
+  }
+
+  /**
+   * As {@link #fromDegrees(double[], double[], int, long[])}, but splits large
+   * arrays into chunks that are converted concurrently on the common fork/join
+   * pool.
+   */
+  public static void fromDegreesParallel(double[] lat, double[] lng, int level, long[] out) {
+    fromDegreesParallel(lat, lng, level, out, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * As {@link #fromDegreesParallel(double[], double[], int, long[])}, using
+   * the given pool.
+   */
+  public static void fromDegreesParallel(
+      double[] lat, double[] lng, int level, long[] out, ForkJoinPool pool) {
+    checkBatchArguments(lat, lng, level, out);
+    pool.invoke(new FromDegreesTask(lat, lng, level, out, 0, lat.length));
+  }
+
+  private static void checkBatchArguments(double[] lat, double[] lng, int level, long[] out) {
+    Preconditions.checkArgument(lat.length == lng.length,
+        "lat and lng must have the same length");
+    Preconditions.checkArgument(out.length >= lat.length,
+        "out is too short to hold the result");
+    Preconditions.checkArgument(level >= 0 && level <= MAX_LEVEL, "invalid level: %s", level);
+  }
+
+  private static void fromDegrees(
+      double[] lat, double[] lng, int level, long[] out, int begin, int end) {
+    final double toRadians = Math.PI / 180;
+    long newLsb = S2CellIds.lowestOnBitForLevel(level);
+    for (int k = begin; k < end; ++k) {
+      // The same arithmetic as S2LatLng.fromDegrees(lat, lng).toPoint().
+      double phi = lat[k] * toRadians;
+      double theta = lng[k] * toRadians;
+      double cosphi = Math.cos(phi);
+      long leaf = fromXyzRaw(Math.cos(theta) * cosphi, Math.sin(theta) * cosphi, Math.sin(phi));
+      out[k] = (leaf & -newLsb) | newLsb;
+    }
+  }
+
+  /**
+   * Converts a slice of the input arrays, splitting it in half until it is
+   * small enough to be worth converting on a single thread.
+   */
+  private static final class FromDegreesTask extends RecursiveAction {
+    private static final int MIN_CHUNK = 1 << 13;
+
+    private final double[] lat;
+    private final double[] lng;
+    private final int level;
+    private final long[] out;
+    private final int begin;
+    private final int end;
+
+    FromDegreesTask(double[] lat, double[] lng, int level, long[] out, int begin, int end) {
+      this.lat = lat;
+      this.lng = lng;
+      this.level = level;
+      this.out = out;
+      this.begin = begin;
+      this.end = end;
+    }
+
+    @Override
+    protected void compute() {
+      if (end - begin <= MIN_CHUNK) {
+        fromDegrees(lat, lng, level, out, begin, end);
+        return;
+      }
+      int mid = (begin + end) >>> 1;
+      invokeAll(new FromDegreesTask(lat, lng, level, out, begin, mid),
+          new FromDegreesTask(lat, lng, level, out, mid, end));
+    }
+  }
+
+  /**
+   * Return the id of the leaf cell containing the direction vector (x, y, z),
+   * which need not be unit length.
+   */
+  private static long fromXyzRaw(double x, double y, double z) {
+    int face = S2Projections.xyzToFace(x, y, z);
+    int i = stToIJ(S2Projections.uvToST(S2Projections.validFaceXyzToU(face, x, y, z)));
+    int j = stToIJ(S2Projections.uvToST(S2Projections.validFaceXyzToV(face, x, y, z)));
+    return fromFaceIJRaw(face, i, j);
+  }
+
   public S2Point toPoint() {
     return S2Point.normalize(toPointRaw());
   }
@@ -212,12 +305,12 @@ public final strictfp class S2CellId implements Comparable<S2CellId>, Serializab
 
   /** Return true if id() represents a valid cell. */
   public boolean isValid() {
-    return face() < NUM_FACES && ((lowestOnBit() & (0x1555555555555555L)) != 0);
+    return S2CellIds.isValid(id);
   }
 
   /** Which cube face this cell belongs to, in the range 0..5. */
   public int face() {
-    return (int) (id >>> POS_BITS);
+    return S2CellIds.face(id);
   }
 
   /**
@@ -225,39 +318,12 @@ public final strictfp class S2CellId implements Comparable<S2CellId>, Serializab
    * the range 0..(2**kPosBits-1).
    */
   public long pos() {
-    return (id & (-1L >>> FACE_BITS));
+    return S2CellIds.pos(id);
   }
 
   /** Return the subdivision level of the cell (range 0..MAX_LEVEL). */
   public int level() {
-    // Fast path for leaf cells.
-    if (isLeaf()) {
-      return MAX_LEVEL;
-    }
-    int x = ((int) id);
-    int level = -1;
-    if (x != 0) {
-      level += 16;
-    } else {
-      x = (int) (id >>> 32);
-    }
-    // We only need to look at even-numbered bits to determine the
-    // level of a valid cell id.
-    x &= -x; // Get lowest bit.
-    if ((x & 0x00005555) != 0) {
-      level += 8;
-    }
-    if ((x & 0x00550055) != 0) {
-      level += 4;
-    }
-    if ((x & 0x05050505) != 0) {
-      level += 2;
-    }
-    if ((x & 0x11111111) != 0) {
-      level += 1;
-    }
-    // assert (level >= 0 && level <= MAX_LEVEL);
-    return level;
+    return S2CellIds.level(id);
   }
 
 
@@ -267,7 +333,7 @@ public final strictfp class S2CellId implements Comparable<S2CellId>, Serializab
    * level() == MAX_LEVEL).
    */
   public boolean isLeaf() {
-    return ((int) id & 1) != 0;
+    return S2CellIds.isLeaf(id);
   }
 
   /**
@@ -275,7 +341,7 @@ public final strictfp class S2CellId implements Comparable<S2CellId>, Serializab
    * whether level() == 0).
    */
   public boolean isFace() {
-    return (id & (lowestOnBitForLevel(0) - 1)) == 0;
+    return S2CellIds.isFace(id);
   }
 
   /**
@@ -285,7 +351,7 @@ public final strictfp class S2CellId implements Comparable<S2CellId>, Serializab
    * cell's level-1 ancestor within its top-level face cell.
    */
   public int childPosition(int level) {
-    return (int) (id >>> (2 * (MAX_LEVEL - level) + 1)) & 3;
+    return S2CellIds.childPosition(id, level);
   }
 
   // Methods that return the range of cell ids that are contained
@@ -301,31 +367,29 @@ public final strictfp class S2CellId implements Comparable<S2CellId>, Serializab
   // because (range_max().id() + 1) is not always a valid cell id, and the
   // iterator would need to be tested using "<" rather that the usual "!=".
   public S2CellId rangeMin() {
-    return new S2CellId(id - (lowestOnBit() - 1));
+    return new S2CellId(S2CellIds.rangeMin(id));
   }
 
   public S2CellId rangeMax() {
-    return new S2CellId(id + (lowestOnBit() - 1));
+    return new S2CellId(S2CellIds.rangeMax(id));
   }
 
 
   /** Return true if the given cell is contained within this one. */
   public boolean contains(S2CellId other) {
     // assert (isValid() && other.isValid());
-    return other.greaterOrEquals(rangeMin()) && other.lessOrEquals(rangeMax());
+    return S2CellIds.contains(id, other.id);
   }
 
   /** Return true if the given cell intersects this one. */
   public boolean intersects(S2CellId other) {
     // assert (isValid() && other.isValid());
-    return other.rangeMin().lessOrEquals(rangeMax())
-      && other.rangeMax().greaterOrEquals(rangeMin());
+    return S2CellIds.intersects(id, other.id);
   }
 
   public S2CellId parent() {
     // assert (isValid() && level() > 0);
-    long newLsb = lowestOnBit() << 2;
-    return new S2CellId((id & -newLsb) | newLsb);
+    return new S2CellId(S2CellIds.parent(id));
   }
 
   /**
@@ -334,30 +398,27 @@ public final strictfp class S2CellId implements Comparable<S2CellId>, Serializab
    */
   public S2CellId parent(int level) {
     // assert (isValid() && level >= 0 && level <= this.level());
-    long newLsb = lowestOnBitForLevel(level);
-    return new S2CellId((id & -newLsb) | newLsb);
+    return new S2CellId(S2CellIds.parent(id, level));
   }
 
   public S2CellId childBegin() {
     // assert (isValid() && level() < MAX_LEVEL);
-    long oldLsb = lowestOnBit();
-    return new S2CellId(id - oldLsb + (oldLsb >>> 2));
+    return new S2CellId(S2CellIds.childBegin(id));
   }
 
   public S2CellId childBegin(int level) {
     // assert (isValid() && level >= this.level() && level <= MAX_LEVEL);
-    return new S2CellId(id - lowestOnBit() + lowestOnBitForLevel(level));
+    return new S2CellId(S2CellIds.childBegin(id, level));
   }
 
   public S2CellId childEnd() {
     // assert (isValid() && level() < MAX_LEVEL);
-    long oldLsb = lowestOnBit();
-    return new S2CellId(id + oldLsb + (oldLsb >>> 2));
+    return new S2CellId(S2CellIds.childEnd(id));
   }
 
   public S2CellId childEnd(int level) {
     // assert (isValid() && level >= this.level() && level <= MAX_LEVEL);
-    return new S2CellId(id + lowestOnBit() + lowestOnBitForLevel(level));
+    return new S2CellId(S2CellIds.childEnd(id, level));
   }
 
   // Iterator-style methods for traversing the immediate children of a cell or
@@ -379,7 +440,7 @@ public final strictfp class S2CellId implements Comparable<S2CellId>, Serializab
    * around from the last face to the first or vice versa.
    */
   public S2CellId next() {
-    return new S2CellId(id + (lowestOnBit() << 1));
+    return new S2CellId(S2CellIds.next(id));
   }
 
   /**
@@ -388,7 +449,7 @@ public final strictfp class S2CellId implements Comparable<S2CellId>, Serializab
    * around from the last face to the first or vice versa.
    */
   public S2CellId prev() {
-    return new S2CellId(id - (lowestOnBit() << 1));
+    return new S2CellId(S2CellIds.prev(id));
   }
 
 
@@ -398,11 +459,7 @@ public final strictfp class S2CellId implements Comparable<S2CellId>, Serializab
    * child_begin(), child_end(), Begin(), or End().
    */
   public S2CellId nextWrap() {
-    S2CellId n = next();
-    if (unsignedLongLessThan(n.id, WRAP_OFFSET)) {
-      return n;
-    }
-    return new S2CellId(n.id - WRAP_OFFSET);
+    return new S2CellId(S2CellIds.nextWrap(id));
   }
 
   /**
@@ -411,11 +468,7 @@ public final strictfp class S2CellId implements Comparable<S2CellId>, Serializab
    * child_begin(), child_end(), Begin(), or End().
    */
   public S2CellId prevWrap() {
-    S2CellId p = prev();
-    if (p.id < WRAP_OFFSET) {
-      return p;
-    }
-    return new S2CellId(p.id + WRAP_OFFSET);
+    return new S2CellId(S2CellIds.prevWrap(id));
   }
 
 
@@ -441,29 +494,7 @@ public final strictfp class S2CellId implements Comparable<S2CellId>, Serializab
     if (token == null) {
       throw new NumberFormatException("Null string in S2CellId.fromToken");
     }
-    if (token.length() == 0) {
-      throw new NumberFormatException("Empty string in S2CellId.fromToken");
-    }
-    if (token.length() > 16 || "X".equals(token)) {
-      return none();
-    }
-
-    long value = 0;
-    for (int pos = 0; pos < 16; pos++) {
-      int digit = 0;
-      if (pos < token.length()) {
-        digit = Character.digit(token.charAt(pos), 16);
-        if (digit == -1) {
-          throw new NumberFormatException(token);
-        }
-        if (overflowInParse(value, digit)) {
-          throw new NumberFormatException("Too large for unsigned long: " + token);
-        }
-      }
-      value = (value * 16) + digit;
-    }
-
-    return new S2CellId(value);
+    return new S2CellId(S2CellIdTokens.decode(token, 0, token.length()));
   }
 
   /**
@@ -476,80 +507,15 @@ public final strictfp class S2CellId implements Comparable<S2CellId>, Serializab
    * regions are at least 100 meters across (level 16 or less), the savings
    * would be at most 3 bytes (9 bytes hex vs. 6 bytes base-64).
    *
+   * See {@link S2CellIdTokens} for versions that write into existing buffers.
+   *
    * @return the encoded cell id
    */
   public String toToken() {
-    if (id == 0) {
-      return "X";
-    }
-
-    String hex = Long.toHexString(id).toLowerCase(Locale.ENGLISH);
-    StringBuilder sb = new StringBuilder(16);
-    for (int i = hex.length(); i < 16; i++) {
-      sb.append('0');
-    }
-    sb.append(hex);
-    for (int len = 16; len > 0; len--) {
-      if (sb.charAt(len - 1) != '0') {
-        return sb.substring(0, len);
-      }
-    }
-
-    throw new RuntimeException("Shouldn't make it here");
-  }
-
-  /**
-   * Returns true if (current * 10) + digit is a number too large to be
-   * represented by an unsigned long.  This is useful for detecting overflow
-   * while parsing a string representation of a number.
-   */
-  private static boolean overflowInParse(long current, int digit) {
-    return overflowInParse(current, digit, 10);
-  }
-
-  /**
-   * Returns true if (current * radix) + digit is a number too large to be
-   * represented by an unsigned long.  This is useful for detecting overflow
-   * while parsing a string representation of a number.
-   * Does not verify whether supplied radix is valid, passing an invalid radix
-   * will give undefined results or an ArrayIndexOutOfBoundsException.
-   */
-  private static boolean overflowInParse(long current, int digit, int radix) {
-    if (current >= 0) {
-      if (current < maxValueDivs[radix]) {
-        return false;
-      }
-      if (current > maxValueDivs[radix]) {
-        return true;
-      }
-      // current == maxValueDivs[radix]
-      return (digit > maxValueMods[radix]);
-    }
-
-    // current < 0: high bit is set
-    return true;
+    char[] token = new char[S2CellIdTokens.MAX_TOKEN_LENGTH];
+    return new String(token, 0, S2CellIdTokens.encode(id, token, 0));
   }
 
-  // calculated as 0xffffffffffffffff / radix
-  private static final long maxValueDivs[] = {0, 0, // 0 and 1 are invalid
-      9223372036854775807L, 6148914691236517205L, 4611686018427387903L, // 2-4
-      3689348814741910323L, 3074457345618258602L, 2635249153387078802L, // 5-7
-      2305843009213693951L, 2049638230412172401L, 1844674407370955161L, // 8-10
-      1676976733973595601L, 1537228672809129301L, 1418980313362273201L, // 11-13
-      1317624576693539401L, 1229782938247303441L, 1152921504606846975L, // 14-16
-      1085102592571150095L, 1024819115206086200L, 970881267037344821L, // 17-19
-      922337203685477580L, 878416384462359600L, 838488366986797800L, // 20-22
-      802032351030850070L, 768614336404564650L, 737869762948382064L, // 23-25
-      709490156681136600L, 683212743470724133L, 658812288346769700L, // 26-28
-      636094623231363848L, 614891469123651720L, 595056260442243600L, // 29-31
-      576460752303423487L, 558992244657865200L, 542551296285575047L, // 32-34
-      527049830677415760L, 512409557603043100L }; // 35-36
-
-  // calculated as 0xffffffffffffffff % radix
-  private static final int maxValueMods[] = {0, 0, // 0 and 1 are invalid
-      1, 0, 3, 0, 3, 1, 7, 6, 5, 4, 3, 2, 1, 0, 15, 0, 15, 16, 15, 15, // 2-21
-      15, 5, 15, 15, 15, 24, 15, 23, 15, 15, 31, 15, 17, 15, 15 }; // 22-36
-
   /**
    * Return the four cells that are adjacent across the cell's four edges.
    * Neighbors are returned in the order defined by S2Cell::GetEdge. All
@@ -690,17 +656,20 @@ public final strictfp class S2CellId implements Comparable<S2CellId>, Serializab
    * j-coordinates (see s2.h).
    */
   public static S2CellId fromFaceIJ(int face, int i, int j) {
+    return new S2CellId(fromFaceIJRaw(face, i, j));
+  }
+
+  /** As fromFaceIJ(), but returns the raw 64-bit id. */
+  private static long fromFaceIJRaw(int face, int i, int j) {
     // Optimization notes:
     // - Non-overlapping bit fields can be combined with either "+" or "|".
     // Generally "+" seems to produce better code, but not always.
 
-    // gcc doesn't have very good code generation for 64-bit operations.
-    // We optimize this by computing the result as two 32-bit integers
-    // and combining them at the end. Declaring the result as an array
-    // rather than local variables helps the compiler to do a better job
-    // of register allocation as well. Note that the two 32-bits halves
-    // get shifted one bit to the left when they are combined.
-    long n[] = {0, face << (POS_BITS - 33)};
+    // We compute the result as two 32-bit halves and combine them at the end.
+    // Note that the two 32-bits halves get shifted one bit to the left when
+    // they are combined.
+    long n0 = 0;
+    long n1 = face << (POS_BITS - 33);
 
     // Alternating faces have opposite Hilbert curve orientations; this
     // is necessary in order for all faces to have a right-handed
@@ -712,23 +681,21 @@ public final strictfp class S2CellId implements Comparable<S2CellId>, Serializab
     // "iiiijjjjoo" to a 10-bit value of the form "ppppppppoo", where the
     // letters [ijpo] denote bits of "i", "j", Hilbert curve position, and
     // Hilbert curve orientation respectively.
-
+    final int mask = (1 << LOOKUP_BITS) - 1;
     for (int k = 7; k >= 0; --k) {
-      bits = getBits(n, i, j, k, bits);
+      bits += (((i >> (k * LOOKUP_BITS)) & mask) << (LOOKUP_BITS + 2));
+      bits += (((j >> (k * LOOKUP_BITS)) & mask) << 2);
+      bits = LOOKUP_POS[bits];
+      long chunk = (((long) bits) >> 2) << ((k & 3) * 2 * LOOKUP_BITS);
+      if (k >= 4) {
+        n1 |= chunk;
+      } else {
+        n0 |= chunk;
+      }
+      bits &= (SWAP_MASK | INVERT_MASK);
     }
 
-    S2CellId s = new S2CellId((((n[1] << 32) + n[0]) << 1) + 1);
-    return s;
-  }
-
-  private static int getBits(long[] n, int i, int j, int k, int bits) {
-    final int mask = (1 << LOOKUP_BITS) - 1;
-    bits += (((i >> (k * LOOKUP_BITS)) & mask) << (LOOKUP_BITS + 2));
-    bits += (((j >> (k * LOOKUP_BITS)) & mask) << 2);
-    bits = LOOKUP_POS[bits];
-    n[k >> 2] |= ((((long) bits) >> 2) << ((k & 3) * 2 * LOOKUP_BITS));
-    bits &= (SWAP_MASK | INVERT_MASK);
-    return bits;
+    return (((n1 << 32) + n0) << 1) + 1;
   }
 
 
@@ -805,7 +772,7 @@ public final strictfp class S2CellId implements Comparable<S2CellId>, Serializab
 
   /** Return the lowest-numbered bit that is on for cells at the given level. */
   public long lowestOnBit() {
-    return id & -id;
+    return S2CellIds.lowestOnBit(id);
   }
 
   /**
@@ -815,7 +782,7 @@ public final strictfp class S2CellId implements Comparable<S2CellId>, Serializab
    * efficient.
    */
   public static long lowestOnBitForLevel(int level) {
-    return 1L << (2 * (MAX_LEVEL - level));
+    return S2CellIds.lowestOnBitForLevel(level);
   }
 
 
@@ -896,14 +863,14 @@ public final strictfp class S2CellId implements Comparable<S2CellId>, Serializab
    * Returns true if x1 < x2, when both values are treated as unsigned.
    */
   public static boolean unsignedLongLessThan(long x1, long x2) {
-    return (x1 + Long.MIN_VALUE) < (x2 + Long.MIN_VALUE);
+    return S2CellIds.lessThan(x1, x2);
   }
 
   /**
    * Returns true if x1 > x2, when both values are treated as unsigned.
    */
   public static boolean unsignedLongGreaterThan(long x1, long x2) {
-    return (x1 + Long.MIN_VALUE) > (x2 + Long.MIN_VALUE);
+    return S2CellIds.greaterThan(x1, x2);
   }
 
   public boolean lessThan(S2CellId x) {
@@ -915,11 +882,11 @@ public final strictfp class S2CellId implements Comparable<S2CellId>, Serializab
   }
 
   public boolean lessOrEquals(S2CellId x) {
-    return unsignedLongLessThan(id, x.id) || id == x.id;
+    return S2CellIds.lessOrEquals(id, x.id);
   }
 
   public boolean greaterOrEquals(S2CellId x) {
-    return unsignedLongGreaterThan(id, x.id) || id == x.id;
+    return S2CellIds.greaterOrEquals(id, x.id);
   }
 
   @Override
@@ -957,7 +924,6 @@ public final strictfp class S2CellId implements Comparable<S2CellId>, Serializab
 
   @Override
   public int compareTo(S2CellId that) {
-    return unsignedLongLessThan(this.id, that.id) ? -1 :
-        unsignedLongGreaterThan(this.id, that.id) ? 1 : 0;
+    return S2CellIds.compare(this.id, that.id);
   }
 }
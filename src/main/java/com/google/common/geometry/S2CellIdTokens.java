@@ -0,0 +1,295 @@
+/*
+ * Copyright 2005 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.common.geometry;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes the compact text tokens produced by
+ * {@link S2CellId#toToken()} using caller-supplied buffers, so that large
+ * numbers of cell ids can be serialized without creating a String per cell.
+ *
+ * A token is the id in lower-case hex with trailing zeros stripped, or "X" for
+ * the invalid id 0. Tokens are at most {@link #MAX_TOKEN_LENGTH} characters.
+ * Byte-oriented methods use the ASCII encoding of the same characters.
+ *
+ * The batch methods pack a sequence of tokens into one buffer, separated by a
+ * single caller-chosen separator byte (e.g. ',' or '\n').
+ *
+ */
+public final strictfp class S2CellIdTokens {
+
+  /** The maximum number of characters in a token. */
+  public static final int MAX_TOKEN_LENGTH = 16;
+
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  /** Return the number of characters in the token for the given id. */
+  public static int tokenLength(long id) {
+    if (id == 0) {
+      return 1;
+    }
+    return MAX_TOKEN_LENGTH - (Long.numberOfTrailingZeros(id) >>> 2);
+  }
+
+  /**
+   * Return the number of bytes needed to pack "count" tokens with separators
+   * in the worst case.
+   */
+  public static int maxPackedLength(int count) {
+    return count * (MAX_TOKEN_LENGTH + 1);
+  }
+
+  /**
+   * Writes the token for "id" into "dst" starting at "offset", and returns the
+   * number of characters written.
+   */
+  public static int encode(long id, char[] dst, int offset) {
+    if (id == 0) {
+      dst[offset] = 'X';
+      return 1;
+    }
+    int len = tokenLength(id);
+    for (int k = 0; k < len; ++k) {
+      dst[offset + k] = HEX_DIGITS[(int) (id >>> (60 - 4 * k)) & 0xf];
+    }
+    return len;
+  }
+
+  /**
+   * Writes the ASCII token for "id" into "dst" starting at "offset", and
+   * returns the number of bytes written.
+   */
+  public static int encode(long id, byte[] dst, int offset) {
+    if (id == 0) {
+      dst[offset] = 'X';
+      return 1;
+    }
+    int len = tokenLength(id);
+    for (int k = 0; k < len; ++k) {
+      dst[offset + k] = (byte) HEX_DIGITS[(int) (id >>> (60 - 4 * k)) & 0xf];
+    }
+    return len;
+  }
+
+  /**
+   * Writes the ASCII token for "id" at the current position of "dst", advancing
+   * the position, and returns the number of bytes written.
+   */
+  public static int encode(long id, ByteBuffer dst) {
+    if (id == 0) {
+      dst.put((byte) 'X');
+      return 1;
+    }
+    int len = tokenLength(id);
+    for (int k = 0; k < len; ++k) {
+      dst.put((byte) HEX_DIGITS[(int) (id >>> (60 - 4 * k)) & 0xf]);
+    }
+    return len;
+  }
+
+  /**
+   * Decodes the token in {@code token[start, end)}. Follows the rules of
+   * {@link S2CellId#fromToken(String)}: "X" and tokens longer than
+   * MAX_TOKEN_LENGTH decode to 0.
+   *
+   * @throws NumberFormatException if the token is empty or not valid hex
+   */
+  public static long decode(CharSequence token, int start, int end) {
+    int length = end - start;
+    if (isNoneToken(length, length == 1 ? token.charAt(start) : 0)) {
+      return 0;
+    }
+    long value = 0;
+    for (int pos = start; pos < end; ++pos) {
+      int digit = Character.digit(token.charAt(pos), 16);
+      if (digit == -1) {
+        throw new NumberFormatException(token.subSequence(start, end).toString());
+      }
+      value = (value << 4) | digit;
+    }
+    return value << (4 * (MAX_TOKEN_LENGTH - length));
+  }
+
+  /** As {@link #decode(CharSequence, int, int)}, for {@code src[offset, offset + length)}. */
+  public static long decode(char[] src, int offset, int length) {
+    if (isNoneToken(length, length == 1 ? src[offset] : 0)) {
+      return 0;
+    }
+    long value = 0;
+    for (int pos = offset; pos < offset + length; ++pos) {
+      int digit = Character.digit(src[pos], 16);
+      if (digit == -1) {
+        throw new NumberFormatException(new String(src, offset, length));
+      }
+      value = (value << 4) | digit;
+    }
+    return value << (4 * (MAX_TOKEN_LENGTH - length));
+  }
+
+  /** As {@link #decode(CharSequence, int, int)}, for ASCII {@code src[offset, offset + length)}. */
+  public static long decode(byte[] src, int offset, int length) {
+    if (isNoneToken(length, length == 1 ? (char) (src[offset] & 0xff) : 0)) {
+      return 0;
+    }
+    long value = 0;
+    for (int pos = offset; pos < offset + length; ++pos) {
+      int digit = Character.digit((char) (src[pos] & 0xff), 16);
+      if (digit == -1) {
+        throw new NumberFormatException(asciiString(src, offset, length));
+      }
+      value = (value << 4) | digit;
+    }
+    return value << (4 * (MAX_TOKEN_LENGTH - length));
+  }
+
+  /**
+   * As {@link #decode(CharSequence, int, int)}, for the ASCII bytes of "src" at
+   * absolute indices [offset, offset + length). The position of "src" is not
+   * changed.
+   */
+  public static long decode(ByteBuffer src, int offset, int length) {
+    if (isNoneToken(length, length == 1 ? (char) (src.get(offset) & 0xff) : 0)) {
+      return 0;
+    }
+    long value = 0;
+    for (int pos = offset; pos < offset + length; ++pos) {
+      int digit = Character.digit((char) (src.get(pos) & 0xff), 16);
+      if (digit == -1) {
+        byte[] token = new byte[length];
+        for (int k = 0; k < length; ++k) {
+          token[k] = src.get(offset + k);
+        }
+        throw new NumberFormatException(asciiString(token, 0, length));
+      }
+      value = (value << 4) | digit;
+    }
+    return value << (4 * (MAX_TOKEN_LENGTH - length));
+  }
+
+  /**
+   * Packs the tokens for {@code ids[from, to)} into "dst" starting at "offset",
+   * separated by "separator", and returns the number of bytes written. No
+   * separator is written after the last token. "dst" must have room for
+   * {@code maxPackedLength(to - from)} bytes.
+   */
+  public static int encodeAll(long[] ids, int from, int to, byte[] dst, int offset,
+      byte separator) {
+    int pos = offset;
+    for (int i = from; i < to; ++i) {
+      if (i != from) {
+        dst[pos++] = separator;
+      }
+      pos += encode(ids[i], dst, pos);
+    }
+    return pos - offset;
+  }
+
+  /**
+   * Packs the tokens for {@code ids[from, to)} at the current position of
+   * "dst", separated by "separator", and returns the number of bytes written.
+   */
+  public static int encodeAll(long[] ids, int from, int to, ByteBuffer dst, byte separator) {
+    int start = dst.position();
+    for (int i = from; i < to; ++i) {
+      if (i != from) {
+        dst.put(separator);
+      }
+      encode(ids[i], dst);
+    }
+    return dst.position() - start;
+  }
+
+  /**
+   * Return the number of tokens packed in {@code src[offset, offset + length)},
+   * i.e. the size of the array needed by
+   * {@link #decodeAll(byte[], int, int, byte, long[], int)}.
+   */
+  public static int countTokens(byte[] src, int offset, int length, byte separator) {
+    if (length == 0) {
+      return 0;
+    }
+    int count = 1;
+    for (int pos = offset; pos < offset + length; ++pos) {
+      if (src[pos] == separator) {
+        ++count;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Decodes the packed tokens in {@code src[offset, offset + length)} into
+   * "out" starting at "outOffset", and returns the number of ids decoded.
+   */
+  public static int decodeAll(byte[] src, int offset, int length, byte separator,
+      long[] out, int outOffset) {
+    if (length == 0) {
+      return 0;
+    }
+    int count = 0;
+    int end = offset + length;
+    int start = offset;
+    for (int pos = offset; pos <= end; ++pos) {
+      if (pos == end || src[pos] == separator) {
+        out[outOffset + count++] = decode(src, start, pos - start);
+        start = pos + 1;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Decodes the packed tokens between the position and the limit of "src" into
+   * "out" starting at "outOffset", and returns the number of ids decoded. The
+   * position of "src" is advanced to its limit.
+   */
+  public static int decodeAll(ByteBuffer src, byte separator, long[] out, int outOffset) {
+    int end = src.limit();
+    int start = src.position();
+    if (start == end) {
+      return 0;
+    }
+    int count = 0;
+    for (int pos = start; pos <= end; ++pos) {
+      if (pos == end || src.get(pos) == separator) {
+        out[outOffset + count++] = decode(src, start, pos - start);
+        start = pos + 1;
+      }
+    }
+    src.position(end);
+    return count;
+  }
+
+  private static boolean isNoneToken(int length, char first) {
+    if (length == 0) {
+      throw new NumberFormatException("Empty string in S2CellId.fromToken");
+    }
+    return length > MAX_TOKEN_LENGTH || (length == 1 && first == 'X');
+  }
+
+  private static String asciiString(byte[] src, int offset, int length) {
+    char[] chars = new char[length];
+    for (int k = 0; k < length; ++k) {
+      chars[k] = (char) (src[offset + k] & 0xff);
+    }
+    return new String(chars);
+  }
+
+  // Don't instantiate
+  private S2CellIdTokens() {
+  }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2005 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.common.geometry;
+
+import static com.google.common.geometry.S2CellId.FACE_BITS;
+import static com.google.common.geometry.S2CellId.MAX_LEVEL;
+import static com.google.common.geometry.S2CellId.NUM_FACES;
+import static com.google.common.geometry.S2CellId.POS_BITS;
+
+/**
+ * Static versions of the {@link S2CellId} hierarchy operations that work
+ * directly on raw 64-bit cell ids. {@link S2CellId} delegates to these
+ * methods, so the results are always identical, but callers that walk large
+ * numbers of cells (e.g. denormalizing a cell union) can use them to avoid
+ * allocating an {@link S2CellId} for every intermediate value.
+ *
+ * All ids are treated as unsigned 64-bit values; use {@link #lessThan} and
+ * friends rather than the built-in comparison operators when ordering them.
+ *
+ */
+public final strictfp class S2CellIds {
+
+  /**
+   * This is the offset required to wrap around from the beginning of the
+   * Hilbert curve to the end or vice versa; see nextWrap() and prevWrap().
+   */
+  private static final long WRAP_OFFSET = (long) (NUM_FACES) << POS_BITS;
+
+  /** Return true if id represents a valid cell. */
+  public static boolean isValid(long id) {
+    return face(id) < NUM_FACES && ((lowestOnBit(id) & (0x1555555555555555L)) != 0);
+  }
+
+  /** Which cube face this cell belongs to, in the range 0..5. */
+  public static int face(long id) {
+    return (int) (id >>> POS_BITS);
+  }
+
+  /**
+   * The position of the cell center along the Hilbert curve over this face, in
+   * the range 0..(2**kPosBits-1).
+   */
+  public static long pos(long id) {
+    return (id & (-1L >>> FACE_BITS));
+  }
+
+  /** Return the subdivision level of the cell (range 0..MAX_LEVEL). */
+  public static int level(long id) {
+    // Fast path for leaf cells.
+    if (isLeaf(id)) {
+      return MAX_LEVEL;
+    }
+    int x = ((int) id);
+    int level = -1;
+    if (x != 0) {
+      level += 16;
+    } else {
+      x = (int) (id >>> 32);
+    }
+    // We only need to look at even-numbered bits to determine the
+    // level of a valid cell id.
+    x &= -x; // Get lowest bit.
+    if ((x & 0x00005555) != 0) {
+      level += 8;
+    }
+    if ((x & 0x00550055) != 0) {
+      level += 4;
+    }
+    if ((x & 0x05050505) != 0) {
+      level += 2;
+    }
+    if ((x & 0x11111111) != 0) {
+      level += 1;
+    }
+    // assert (level >= 0 && level <= MAX_LEVEL);
+    return level;
+  }
+
+  /**
+   * Return true if this is a leaf cell (more efficient than checking whether
+   * level() == MAX_LEVEL).
+   */
+  public static boolean isLeaf(long id) {
+    return ((int) id & 1) != 0;
+  }
+
+  /**
+   * Return true if this is a top-level face cell (more efficient than checking
+   * whether level() == 0).
+   */
+  public static boolean isFace(long id) {
+    return (id & (lowestOnBitForLevel(0) - 1)) == 0;
+  }
+
+  /**
+   * Return the child position (0..3) of the cell's ancestor at the given
+   * level, relative to its parent. The argument should be in the range
+   * 1..MAX_LEVEL.
+   */
+  public static int childPosition(long id, int level) {
+    return (int) (id >>> (2 * (MAX_LEVEL - level) + 1)) & 3;
+  }
+
+  /** Return the lowest-numbered bit that is on for this cell id. */
+  public static long lowestOnBit(long id) {
+    return id & -id;
+  }
+
+  /**
+   * Return the lowest-numbered bit that is on for cells at the given level,
+   * which is equal to (uint64(1) << (2 * (MAX_LEVEL - level))).
+   */
+  public static long lowestOnBitForLevel(int level) {
+    return 1L << (2 * (MAX_LEVEL - level));
+  }
+
+  /**
+   * Return the first leaf cell id contained within the cell. The range
+   * [rangeMin(id), rangeMax(id)] is inclusive.
+   */
+  public static long rangeMin(long id) {
+    return id - (lowestOnBit(id) - 1);
+  }
+
+  /** Return the last leaf cell id contained within the cell. */
+  public static long rangeMax(long id) {
+    return id + (lowestOnBit(id) - 1);
+  }
+
+  /** Return true if the cell "other" is contained within the cell "id". */
+  public static boolean contains(long id, long other) {
+    // assert (isValid(id) && isValid(other));
+    return lessOrEquals(rangeMin(id), other) && lessOrEquals(other, rangeMax(id));
+  }
+
+  /** Return true if the cell "other" intersects the cell "id". */
+  public static boolean intersects(long id, long other) {
+    // assert (isValid(id) && isValid(other));
+    return lessOrEquals(rangeMin(other), rangeMax(id))
+        && greaterOrEquals(rangeMax(other), rangeMin(id));
+  }
+
+  /** Return the immediate parent of the cell. */
+  public static long parent(long id) {
+    // assert (isValid(id) && level(id) > 0);
+    long newLsb = lowestOnBit(id) << 2;
+    return (id & -newLsb) | newLsb;
+  }
+
+  /**
+   * Return the ancestor of the cell at the given level (which must be less than
+   * or equal to the cell's level).
+   */
+  public static long parent(long id, int level) {
+    // assert (isValid(id) && level >= 0 && level <= level(id));
+    long newLsb = lowestOnBitForLevel(level);
+    return (id & -newLsb) | newLsb;
+  }
+
+  public static long childBegin(long id) {
+    // assert (isValid(id) && level(id) < MAX_LEVEL);
+    long oldLsb = lowestOnBit(id);
+    return id - oldLsb + (oldLsb >>> 2);
+  }
+
+  public static long childBegin(long id, int level) {
+    // assert (isValid(id) && level >= level(id) && level <= MAX_LEVEL);
+    return id - lowestOnBit(id) + lowestOnBitForLevel(level);
+  }
+
+  public static long childEnd(long id) {
+    // assert (isValid(id) && level(id) < MAX_LEVEL);
+    long oldLsb = lowestOnBit(id);
+    return id + oldLsb + (oldLsb >>> 2);
+  }
+
+  public static long childEnd(long id, int level) {
+    // assert (isValid(id) && level >= level(id) && level <= MAX_LEVEL);
+    return id + lowestOnBit(id) + lowestOnBitForLevel(level);
+  }
+
+  /**
+   * Return the next cell at the same level along the Hilbert curve. Works
+   * correctly when advancing from one face to the next, but does *not* wrap
+   * around from the last face to the first or vice versa.
+   */
+  public static long next(long id) {
+    return id + (lowestOnBit(id) << 1);
+  }
+
+  /**
+   * Return the previous cell at the same level along the Hilbert curve. Works
+   * correctly when advancing from one face to the next, but does *not* wrap
+   * around from the last face to the first or vice versa.
+   */
+  public static long prev(long id) {
+    return id - (lowestOnBit(id) << 1);
+  }
+
+  /**
+   * Like next(), but wraps around from the last face to the first and vice
+   * versa.
+   */
+  public static long nextWrap(long id) {
+    long n = next(id);
+    if (lessThan(n, WRAP_OFFSET)) {
+      return n;
+    }
+    return n - WRAP_OFFSET;
+  }
+
+  /**
+   * Like prev(), but wraps around from the last face to the first and vice
+   * versa.
+   */
+  public static long prevWrap(long id) {
+    long p = prev(id);
+    if (p < WRAP_OFFSET) {
+      return p;
+    }
+    return p + WRAP_OFFSET;
+  }
+
+  /** Returns true if x1 < x2, when both values are treated as unsigned. */
+  public static boolean lessThan(long x1, long x2) {
+    return (x1 + Long.MIN_VALUE) < (x2 + Long.MIN_VALUE);
+  }
+
+  /** Returns true if x1 > x2, when both values are treated as unsigned. */
+  public static boolean greaterThan(long x1, long x2) {
+    return (x1 + Long.MIN_VALUE) > (x2 + Long.MIN_VALUE);
+  }
+
+  /** Returns true if x1 <= x2, when both values are treated as unsigned. */
+  public static boolean lessOrEquals(long x1, long x2) {
+    return (x1 + Long.MIN_VALUE) <= (x2 + Long.MIN_VALUE);
+  }
+
+  /** Returns true if x1 >= x2, when both values are treated as unsigned. */
+  public static boolean greaterOrEquals(long x1, long x2) {
+    return (x1 + Long.MIN_VALUE) >= (x2 + Long.MIN_VALUE);
+  }
+
+  /** Compares two cell ids as unsigned values, in S2CellId order. */
+  public static int compare(long x1, long x2) {
+    return lessThan(x1, x2) ? -1 : greaterThan(x1, x2) ? 1 : 0;
+  }
+
+  // Don't instantiate
+  private S2CellIds() {
+  }
+}
@@ -124,24 +124,56 @@ public strictfp class S2CellUnion implements S2Region, Iterable<S2CellId> {
     output.ensureCapacity(size());
     for (S2CellId id : this) {
       int level = id.level();
-      int newLevel = Math.max(minLevel, level);
-      if (levelMod > 1) {
-        // Round up so that (new_level - min_level) is a multiple of level_mod.
-        // (Note that S2CellId::kMaxLevel is a multiple of 1, 2, and 3.)
-        newLevel += (S2CellId.MAX_LEVEL - (newLevel - minLevel)) % levelMod;
-        newLevel = Math.min(S2CellId.MAX_LEVEL, newLevel);
+      int newLevel = denormalizedLevel(level, minLevel, levelMod);
+      if (newLevel == level) {
+        output.add(id);
+      } else {
+        long end = S2CellIds.childEnd(id.id(), newLevel);
+        for (long child = S2CellIds.childBegin(id.id(), newLevel); child != end;
+            child = S2CellIds.next(child)) {
+          output.add(new S2CellId(child));
+        }
       }
+    }
+  }
+
+  /**
+   * As {@link #denormalize(int, int, ArrayList)}, but appends the raw 64-bit
+   * ids to "output" so that no intermediate S2CellId objects are created.
+   */
+  public void denormalizeIds(int minLevel, int levelMod, ArrayList<Long> output) {
+    output.clear();
+    output.ensureCapacity(size());
+    for (S2CellId cellId : this) {
+      long id = cellId.id();
+      int level = S2CellIds.level(id);
+      int newLevel = denormalizedLevel(level, minLevel, levelMod);
       if (newLevel == level) {
         output.add(id);
       } else {
-        S2CellId end = id.childEnd(newLevel);
-        for (id = id.childBegin(newLevel); !id.equals(end); id = id.next()) {
-          output.add(id);
+        long end = S2CellIds.childEnd(id, newLevel);
+        for (long child = S2CellIds.childBegin(id, newLevel); child != end;
+            child = S2CellIds.next(child)) {
+          output.add(child);
         }
       }
     }
   }
 
+  /**
+   * Returns the level that a cell at "level" is expanded to by denormalize().
+   */
+  static int denormalizedLevel(int level, int minLevel, int levelMod) {
+    int newLevel = Math.max(minLevel, level);
+    if (levelMod > 1) {
+      // Round up so that (new_level - min_level) is a multiple of level_mod.
+      // (Note that S2CellId::kMaxLevel is a multiple of 1, 2, and 3.)
+      newLevel += (S2CellId.MAX_LEVEL - (newLevel - minLevel)) % levelMod;
+      newLevel = Math.min(S2CellId.MAX_LEVEL, newLevel);
+    }
+    return newLevel;
+  }
+
   /**
    * If there are more than "excess" elements of the cell_ids() vector that are
    * allocated but unused, reallocate the array to eliminate the excess space.
@@ -321,6 +353,106 @@ public strictfp class S2CellUnion implements S2Region, Iterable<S2CellId> {
     // assert (!normalize());
   }
 
+  /**
+   * Initialize this cell union to the difference of the two given cell unions,
+   * i.e. the region covered by "x" but not by "y". Both inputs must be
+   * normalized, and the output is normalized. Requires: x != this and y != this.
+   */
+  public void getDifference(S2CellUnion x, S2CellUnion y) {
+    // assert (x != this && y != this);
+
+    // Both inputs are sorted along the Hilbert curve, so this is a single merge
+    // pass over the two vectors. Because the inputs are normalized, each cell of
+    // "x" is either disjoint from "y", contained by one cell of "y", or contains
+    // a run of cells of "y". Only in the last case do we split the cell of "x",
+    // emitting the fewest cells that cover the gaps between that run.
+
+    cellIds.clear();
+    int j = 0;
+    int ySize = y.cellIds.size();
+    for (S2CellId cell : x) {
+      long min = S2CellIds.rangeMin(cell.id());
+      long max = S2CellIds.rangeMax(cell.id());
+
+      // Skip the cells of "y" that end before this cell begins.
+      while (j < ySize && S2CellIds.lessThan(S2CellIds.rangeMax(y.cellId(j).id()), min)) {
+        ++j;
+      }
+
+      // "start" is the first leaf of this cell not yet known to be covered.
+      long start = min;
+      boolean covered = false;
+      while (j < ySize) {
+        long yId = y.cellId(j).id();
+        long yMin = S2CellIds.rangeMin(yId);
+        if (S2CellIds.greaterThan(yMin, max)) {
+          break;
+        }
+        long yMax = S2CellIds.rangeMax(yId);
+        if (S2CellIds.lessOrEquals(yMin, min) && S2CellIds.greaterOrEquals(yMax, max)) {
+          // This cell of "y" contains the whole cell, and may contain the next
+          // cells of "x" too, so we don't advance past it.
+          covered = true;
+          break;
+        }
+        if (S2CellIds.lessThan(start, yMin)) {
+          addLeafRange(start, yMin - 2, cellIds);
+        }
+        start = yMax + 2;
+        ++j;
+      }
+      if (covered) {
+        continue;
+      }
+      if (start == min) {
+        cellIds.add(cell);
+      } else if (S2CellIds.lessOrEquals(start, max)) {
+        addLeafRange(start, max, cellIds);
+      }
+    }
+    // The output is generated in sorted order, and there should not be any
+    // cells that can be merged (provided that both inputs were normalized).
+    // assert (!normalize());
+  }
+
+  /**
+   * Initialize this cell union to the symmetric difference of the two given
+   * cell unions, i.e. the region covered by exactly one of "x" and "y". Both
+   * inputs must be normalized. Requires: x != this and y != this.
+   */
+  public void getSymmetricDifference(S2CellUnion x, S2CellUnion y) {
+    // assert (x != this && y != this);
+    S2CellUnion xMinusY = new S2CellUnion();
+    S2CellUnion yMinusX = new S2CellUnion();
+    xMinusY.getDifference(x, y);
+    yMinusX.getDifference(y, x);
+    // The two differences are disjoint and sorted, so the sort inside
+    // normalize() only has to merge two runs.
+    getUnion(xMinusY, yMinusX);
+  }
+
+  /**
+   * Appends the fewest cells that exactly cover the leaf cells from "first" to
+   * "last" inclusive, in increasing order. Both must be leaf cell ids within the
+   * same face.
+   */
+  private static void addLeafRange(long first, long last, List<S2CellId> output) {
+    while (S2CellIds.lessOrEquals(first, last)) {
+      // Grow the cell starting at "first" for as long as it still fits.
+      long id = first;
+      while (!S2CellIds.isFace(id)) {
+        long parent = S2CellIds.parent(id);
+        if (S2CellIds.rangeMin(parent) != first
+            || S2CellIds.greaterThan(S2CellIds.rangeMax(parent), last)) {
+          break;
+        }
+        id = parent;
+      }
+      output.add(new S2CellId(id));
+      first = S2CellIds.rangeMax(id) + 2;
+    }
+  }
+
   /**
    * Just as normal binary search, except that it allows specifying the starting
    * value for the lower bound.
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2005 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.common.geometry;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+
+/**
+ * A compact binary encoding for normalized cell unions.
+ *
+ * The cells of a normalized union are disjoint and sorted in Hilbert curve
+ * order, and the cells of a covering are mostly adjacent to each other. Each
+ * cell is therefore stored as its level (one byte) followed by the gap between
+ * its range_min() and the leaf cell just after the previous cell's range_max(),
+ * as an unsigned varint. Leaf ids are odd, so the gap is even and is stored
+ * halved; for adjacent cells it is zero and costs a single byte.
+ *
+ * The encoding is:
+ *
+ * <pre>
+ *   byte    VERSION
+ *   varint  number of cells
+ *   for each cell:
+ *     byte    level
+ *     varint  (rangeMin - next) / 2, where next is the leaf after the previous
+ *             cell's rangeMax, or the first leaf id (1) for the first cell
+ * </pre>
+ *
+ * Decoding reads straight from a {@link ByteBuffer}, which may be a heap,
+ * direct or memory-mapped buffer; the bytes are never copied. Use
+ * {@link #iterator(ByteBuffer, int)} to walk the cells without materializing
+ * the union at all.
+ *
+ */
+public final strictfp class S2CellUnionCodec {
+
+  /** The format version written as the first byte of every encoding. */
+  public static final byte VERSION = 1;
+
+  /** The maximum number of bytes in an encoded varint. */
+  private static final int MAX_VARINT_LENGTH = 10;
+
+  /** The leaf id just past the end of the last face. */
+  private static final long END_LEAF = (long) S2CellId.NUM_FACES << S2CellId.POS_BITS;
+
+  /**
+   * Return an upper bound on the number of bytes needed to encode a union with
+   * "size" cells.
+   */
+  public static int maxEncodedLength(int size) {
+    return 1 + MAX_VARINT_LENGTH + size * (1 + MAX_VARINT_LENGTH);
+  }
+
+  /** Return the exact number of bytes needed to encode the given ids. */
+  public static int encodedLength(long[] ids, int size) {
+    int length = 1 + varintLength(size);
+    long next = 1;
+    for (int i = 0; i < size; ++i) {
+      long min = S2CellIds.rangeMin(ids[i]);
+      length += 1 + varintLength((min - next) >>> 1);
+      next = S2CellIds.rangeMax(ids[i]) + 2;
+    }
+    return length;
+  }
+
+  /**
+   * Encodes the first "size" entries of "ids", which must be normalized, at the
+   * current position of "dst" and advances the position. Returns the number of
+   * bytes written.
+   *
+   * @throws java.nio.BufferOverflowException if "dst" does not have room
+   */
+  public static int encode(long[] ids, int size, ByteBuffer dst) {
+    int start = dst.position();
+    dst.put(VERSION);
+    putVarint(dst, size);
+    long next = 1;
+    for (int i = 0; i < size; ++i) {
+      long id = ids[i];
+      long min = S2CellIds.rangeMin(id);
+      // assert (S2CellIds.greaterOrEquals(min, next));
+      dst.put((byte) S2CellIds.level(id));
+      putVarint(dst, (min - next) >>> 1);
+      next = S2CellIds.rangeMax(id) + 2;
+    }
+    return dst.position() - start;
+  }
+
+  public static int encode(S2CompactCellUnion union, ByteBuffer dst) {
+    return encode(union.toArray(), union.size(), dst);
+  }
+
+  public static int encode(S2CellUnion union, ByteBuffer dst) {
+    return encode(toIds(union), union.size(), dst);
+  }
+
+  /** Return the encoding of the given normalized union. */
+  public static byte[] encode(S2CompactCellUnion union) {
+    long[] ids = union.toArray();
+    byte[] bytes = new byte[encodedLength(ids, ids.length)];
+    encode(ids, ids.length, ByteBuffer.wrap(bytes));
+    return bytes;
+  }
+
+  /** Return the encoding of the given normalized union. */
+  public static byte[] encode(S2CellUnion union) {
+    long[] ids = toIds(union);
+    byte[] bytes = new byte[encodedLength(ids, ids.length)];
+    encode(ids, ids.length, ByteBuffer.wrap(bytes));
+    return bytes;
+  }
+
+  /**
+   * Decodes a union from the current position of "src" and advances the
+   * position past it.
+   *
+   * @throws IllegalArgumentException if the data is not a valid encoding
+   */
+  public static S2CompactCellUnion decode(ByteBuffer src) {
+    IdIterator it = new IdIterator(src, src.position());
+    long[] ids = new long[it.size()];
+    for (int i = 0; i < ids.length; ++i) {
+      ids[i] = it.next();
+    }
+    src.position(it.position());
+    S2CompactCellUnion union = new S2CompactCellUnion();
+    union.initRawIds(ids, ids.length);
+    return union;
+  }
+
+  /** Decodes a union from the given bytes. */
+  public static S2CompactCellUnion decode(byte[] bytes) {
+    return decode(ByteBuffer.wrap(bytes));
+  }
+
+  /** As decode(), but returns an {@link S2CellUnion}. */
+  public static S2CellUnion decodeCellUnion(ByteBuffer src) {
+    IdIterator it = new IdIterator(src, src.position());
+    ArrayList<S2CellId> cellIds = new ArrayList<S2CellId>(it.size());
+    while (it.hasNext()) {
+      cellIds.add(new S2CellId(it.next()));
+    }
+    src.position(it.position());
+    S2CellUnion union = new S2CellUnion();
+    union.initRawCellIds(cellIds);
+    return union;
+  }
+
+  /**
+   * Return an iterator over the cell ids of the union encoded in "src" at the
+   * absolute index "offset". The cells are decoded one at a time as the
+   * iterator advances; the position of "src" is not changed.
+   *
+   * @throws IllegalArgumentException if the header is not valid
+   */
+  public static IdIterator iterator(ByteBuffer src, int offset) {
+    return new IdIterator(src, offset);
+  }
+
+  /**
+   * Walks the cell ids of an encoded union without allocating. Unlike
+   * {@link java.util.Iterator}, next() returns a primitive long.
+   */
+  public static final class IdIterator {
+    private final ByteBuffer src;
+    private final int limit;
+    private final int size;
+    private int pos;
+    private int index;
+    private long nextMin = 1;
+
+    private IdIterator(ByteBuffer src, int offset) {
+      this.src = src;
+      this.limit = src.limit();
+      this.pos = offset;
+      byte version = readByte();
+      if (version != VERSION) {
+        throw new IllegalArgumentException("Unknown S2CellUnion encoding version: " + version);
+      }
+      long size = readVarint();
+      // Every cell takes at least two bytes, so a larger count cannot be
+      // genuine; rejecting it here keeps decode() from allocating for it.
+      if (size < 0 || size > (limit - pos) / 2) {
+        throw new IllegalArgumentException("Invalid size in S2CellUnion encoding: " + size
+            + " cells cannot fit in the remaining " + (limit - pos) + " bytes");
+      }
+      this.size = (int) size;
+    }
+
+    /** The number of cells in the union. */
+    public int size() {
+      return size;
+    }
+
+    public boolean hasNext() {
+      return index < size;
+    }
+
+    /**
+     * Return the next cell id of the union.
+     *
+     * @throws NoSuchElementException if there are no more cells
+     * @throws IllegalArgumentException if the data is not a valid encoding
+     */
+    public long next() {
+      if (index >= size) {
+        throw new NoSuchElementException();
+      }
+      int level = readByte();
+      if (level < 0 || level > S2CellId.MAX_LEVEL) {
+        throw new IllegalArgumentException("Invalid level in S2CellUnion encoding: " + level);
+      }
+      long lsb = S2CellIds.lowestOnBitForLevel(level);
+      long gap = readVarint();
+      // The cell must start at or after nextMin (so the ids increase) and end
+      // before END_LEAF (so it lies on one of the six faces), and its range
+      // must start on a boundary of its level. All comparisons are unsigned.
+      if (!S2CellIds.lessThan(nextMin, END_LEAF)
+          || S2CellIds.greaterThan(gap, (END_LEAF - nextMin) >>> 1)) {
+        throw new IllegalArgumentException("Cell out of range in S2CellUnion encoding");
+      }
+      long min = nextMin + (gap << 1);
+      if (((min - 1) & ((lsb << 1) - 1)) != 0) {
+        throw new IllegalArgumentException("Misaligned cell in S2CellUnion encoding");
+      }
+      long id = min - 1 + lsb;
+      nextMin = id + lsb + 1;
+      ++index;
+      return id;
+    }
+
+    /** The absolute index just past the last byte consumed so far. */
+    public int position() {
+      return pos;
+    }
+
+    private byte readByte() {
+      if (pos >= limit) {
+        throw new IllegalArgumentException("Truncated S2CellUnion encoding");
+      }
+      return src.get(pos++);
+    }
+
+    private long readVarint() {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        byte b = readByte();
+        value |= (long) (b & 0x7f) << shift;
+        if (b >= 0) {
+          return value;
+        }
+      }
+      throw new IllegalArgumentException("Malformed varint in S2CellUnion encoding");
+    }
+  }
+
+  private static long[] toIds(S2CellUnion union) {
+    long[] ids = new long[union.size()];
+    for (int i = 0; i < ids.length; ++i) {
+      ids[i] = union.cellId(i).id();
+    }
+    return ids;
+  }
+
+  private static void putVarint(ByteBuffer dst, long value) {
+    while ((value & ~0x7fL) != 0) {
+      dst.put((byte) ((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    dst.put((byte) value);
+  }
+
+  private static int varintLength(long value) {
+    int length = 1;
+    while ((value & ~0x7fL) != 0) {
+      value >>>= 7;
+      ++length;
+    }
+    return length;
+  }
+
+  // Don't instantiate
+  private S2CellUnionCodec() {
+  }
+}
@@ -0,0 +1,489 @@
+/*
+ * Copyright 2005 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.common.geometry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * An S2CompactCellUnion holds the same cells as an {@link S2CellUnion}, but
+ * stores their ids in a single sorted {@code long[]} rather than a list of
+ * {@link S2CellId} objects.
+ * This uses about a fifth of the memory per cell and keeps the ids contiguous,
+ * which makes it the better choice when many large unions are held in memory at
+ * once. All the operations below work on raw ids and do not box them.
+ *
+ *  As with S2CellUnion, the union must be normalized before doing any
+ * calculations with it; the initFrom*() methods do this automatically.
+ *
+ */
+public strictfp class S2CompactCellUnion implements S2Region {
+
+  private static final long[] EMPTY = new long[0];
+
+  /** The sorted cell ids that form the union; only the first "size" are used. */
+  private long[] ids = EMPTY;
+  private int size;
+
+  public S2CompactCellUnion() {
+  }
+
+  /**
+   * Populates the union with a copy of the first "size" entries of the given
+   * ids, and then calls normalize(). May be called multiple times.
+   */
+  public void initFromIds(long[] ids, int size) {
+    this.ids = Arrays.copyOf(ids, size);
+    this.size = size;
+    normalize();
+  }
+
+  public void initFromIds(long[] ids) {
+    initFromIds(ids, ids.length);
+  }
+
+  /**
+   * Like initFromIds(), but takes ownership of the array without copying it and
+   * does not call normalize(). The union reads and writes the array from then
+   * on, so the caller must not use it again. The first "size" ids are expected
+   * to be normalized already (sorted, with no cell contained by another and no
+   * four siblings that could be replaced by their parent); if they are not,
+   * the caller must call normalize() before doing anything else with the union.
+   */
+  public void initRawIds(long[] ids, int size) {
+    this.ids = ids;
+    this.size = size;
+  }
+
+  /** Populates the union with the ids of the given normalized cell union. */
+  public void initFromCellUnion(S2CellUnion union) {
+    ids = new long[union.size()];
+    size = ids.length;
+    for (int i = 0; i < size; ++i) {
+      ids[i] = union.cellId(i).id();
+    }
+  }
+
+  /** Return an S2CellUnion with the same cells as this union. */
+  public S2CellUnion toCellUnion() {
+    ArrayList<S2CellId> cellIds = new ArrayList<S2CellId>(size);
+    for (int i = 0; i < size; ++i) {
+      cellIds.add(new S2CellId(ids[i]));
+    }
+    S2CellUnion union = new S2CellUnion();
+    union.initRawCellIds(cellIds);
+    return union;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /** Return the i-th cell id of the union. */
+  public long id(int i) {
+    // assert (i < size);
+    return ids[i];
+  }
+
+  /** Return a copy of the cell ids of the union. */
+  public long[] toArray() {
+    return Arrays.copyOf(ids, size);
+  }
+
+  /**
+   * If the backing array has unused capacity, reallocate it to eliminate the
+   * excess space.
+   */
+  public void pack() {
+    if (ids.length > size) {
+      ids = Arrays.copyOf(ids, size);
+    }
+  }
+
+  /**
+   * Normalizes the union by discarding cells that are contained by other cells,
+   * replacing groups of 4 child cells by their parent cell whenever possible,
+   * and sorting all the cell ids in increasing order. Returns true if the number
+   * of cells was reduced. See {@link S2CellUnion#normalize()}.
+   */
+  public boolean normalize() {
+    sortUnsigned(ids, size);
+    return normalizeSorted();
+  }
+
+  /** As normalize(), for ids that are already sorted. */
+  private boolean normalizeSorted() {
+    // The output is written in place; "out" never overtakes the input index.
+    int out = 0;
+    for (int k = 0; k < size; ++k) {
+      long id = ids[k];
+      // Check whether this cell is contained by the previous cell.
+      if (out > 0 && S2CellIds.contains(ids[out - 1], id)) {
+        continue;
+      }
+
+      // Discard any previous cells contained by this cell.
+      while (out > 0 && S2CellIds.contains(id, ids[out - 1])) {
+        --out;
+      }
+
+      // Check whether the last 3 elements of the output plus "id" can be
+      // collapsed into a single parent cell.
+      while (out >= 3) {
+        // A necessary (but not sufficient) condition is that the XOR of the
+        // four cells must be zero. This is also very fast to test.
+        if ((ids[out - 3] ^ ids[out - 2] ^ ids[out - 1]) != id) {
+          break;
+        }
+
+        // Now we do a slightly more expensive but exact test. First, compute a
+        // mask that blocks out the two bits that encode the child position of
+        // "id" with respect to its parent, then check that the other three
+        // children all agree with "mask".
+        long mask = S2CellIds.lowestOnBit(id) << 1;
+        mask = ~(mask + (mask << 1));
+        long idMasked = (id & mask);
+        if ((ids[out - 3] & mask) != idMasked
+            || (ids[out - 2] & mask) != idMasked
+            || (ids[out - 1] & mask) != idMasked || S2CellIds.isFace(id)) {
+          break;
+        }
+
+        // Replace four children by their parent cell.
+        out -= 3;
+        id = S2CellIds.parent(id);
+      }
+      ids[out++] = id;
+    }
+    boolean changed = out < size;
+    size = out;
+    return changed;
+  }
+
+  /**
+   * Return true if the union contains the given cell id. This is a fast
+   * operation (logarithmic in the size of the cell union).
+   */
+  public boolean contains(long id) {
+    // This is an exact test; see S2CellUnion.contains(S2CellId).
+    int pos = lowerBound(ids, 0, size, id);
+    if (pos < size && S2CellIds.lessOrEquals(S2CellIds.rangeMin(ids[pos]), id)) {
+      return true;
+    }
+    return pos != 0 && S2CellIds.greaterOrEquals(S2CellIds.rangeMax(ids[pos - 1]), id);
+  }
+
+  /**
+   * Return true if the union intersects the given cell id. This is a fast
+   * operation (logarithmic in the size of the cell union).
+   */
+  public boolean intersects(long id) {
+    int pos = lowerBound(ids, 0, size, id);
+    if (pos < size
+        && S2CellIds.lessOrEquals(S2CellIds.rangeMin(ids[pos]), S2CellIds.rangeMax(id))) {
+      return true;
+    }
+    return pos != 0
+        && S2CellIds.greaterOrEquals(S2CellIds.rangeMax(ids[pos - 1]), S2CellIds.rangeMin(id));
+  }
+
+  public boolean contains(S2CellId id) {
+    return contains(id.id());
+  }
+
+  public boolean intersects(S2CellId id) {
+    return intersects(id.id());
+  }
+
+  /**
+   * The point 'p' does not need to be normalized. This is a fast operation
+   * (logarithmic in the size of the cell union).
+   */
+  public boolean contains(S2Point p) {
+    return contains(S2CellId.fromPoint(p).id());
+  }
+
+  /** Return true if this union contains every cell of the given union. */
+  public boolean contains(S2CompactCellUnion that) {
+    for (int i = 0; i < that.size; ++i) {
+      if (!contains(that.ids[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Return true if this union intersects any cell of the given union. */
+  public boolean intersects(S2CompactCellUnion that) {
+    for (int i = 0; i < that.size; ++i) {
+      if (intersects(that.ids[i])) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Initialize this union to the union of the two given unions. Requires: x !=
+   * this and y != this.
+   */
+  public void getUnion(S2CompactCellUnion x, S2CompactCellUnion y) {
+    // assert (x != this && y != this);
+    // Both inputs are sorted, so merge them rather than sorting again.
+    long[] output = new long[x.size + y.size];
+    int i = 0;
+    int j = 0;
+    int k = 0;
+    while (i < x.size && j < y.size) {
+      output[k++] = S2CellIds.lessThan(y.ids[j], x.ids[i]) ? y.ids[j++] : x.ids[i++];
+    }
+    while (i < x.size) {
+      output[k++] = x.ids[i++];
+    }
+    while (j < y.size) {
+      output[k++] = y.ids[j++];
+    }
+    ids = output;
+    size = k;
+    normalizeSorted();
+  }
+
+  /**
+   * Initialize this union to the intersection of the two given unions. See
+   * {@link S2CellUnion#getIntersection(S2CellUnion, S2CellUnion)}. Requires: x
+   * != this and y != this.
+   */
+  public void getIntersection(S2CompactCellUnion x, S2CompactCellUnion y) {
+    // assert (x != this && y != this);
+    long[] output = new long[Math.max(x.size, y.size)];
+    int k = 0;
+    int i = 0;
+    int j = 0;
+    while (i < x.size && j < y.size) {
+      long imin = S2CellIds.rangeMin(x.ids[i]);
+      long jmin = S2CellIds.rangeMin(y.ids[j]);
+      if (S2CellIds.greaterThan(imin, jmin)) {
+        // Either j->contains(*i) or the two cells are disjoint.
+        if (S2CellIds.lessOrEquals(x.ids[i], S2CellIds.rangeMax(y.ids[j]))) {
+          output = append(output, k++, x.ids[i++]);
+        } else {
+          // Advance "j" to the first cell possibly contained by *i.
+          j = lowerBound(y.ids, j + 1, y.size, imin);
+          // The previous cell *(j-1) may now contain *i.
+          if (S2CellIds.lessOrEquals(x.ids[i], S2CellIds.rangeMax(y.ids[j - 1]))) {
+            --j;
+          }
+        }
+      } else if (S2CellIds.greaterThan(jmin, imin)) {
+        // Identical to the code above with "i" and "j" reversed.
+        if (S2CellIds.lessOrEquals(y.ids[j], S2CellIds.rangeMax(x.ids[i]))) {
+          output = append(output, k++, y.ids[j++]);
+        } else {
+          i = lowerBound(x.ids, i + 1, x.size, jmin);
+          if (S2CellIds.lessOrEquals(y.ids[j], S2CellIds.rangeMax(x.ids[i - 1]))) {
+            --i;
+          }
+        }
+      } else {
+        // "i" and "j" have the same range_min(), so one contains the other.
+        if (S2CellIds.lessThan(x.ids[i], y.ids[j])) {
+          output = append(output, k++, x.ids[i++]);
+        } else {
+          output = append(output, k++, y.ids[j++]);
+        }
+      }
+    }
+    ids = output;
+    size = k;
+    // The output is generated in sorted order, and there should not be any
+    // cells that can be merged (provided that both inputs were normalized).
+    // assert (!normalize());
+  }
+
+  /**
+   * Return an expanded version of the union where any cells whose level is less
+   * than "minLevel" or where (level - minLevel) is not a multiple of "levelMod"
+   * are replaced by their children. See
+   * {@link S2CellUnion#denormalize(int, int, ArrayList)}.
+   *
+   * @throws IllegalArgumentException if the result has too many cells to fit
+   *     in an array
+   */
+  public long[] denormalize(int minLevel, int levelMod) {
+    // assert (minLevel >= 0 && minLevel <= S2CellId.MAX_LEVEL);
+    long count = 0;
+    for (int i = 0; i < size; ++i) {
+      int level = S2CellIds.level(ids[i]);
+      count += 1L << (2 * (S2CellUnion.denormalizedLevel(level, minLevel, levelMod) - level));
+    }
+    if (count > Integer.MAX_VALUE - 8) {
+      throw new IllegalArgumentException("Too many cells to denormalize: " + count);
+    }
+    long[] output = new long[(int) count];
+    int k = 0;
+    for (int i = 0; i < size; ++i) {
+      long id = ids[i];
+      int level = S2CellIds.level(id);
+      int newLevel = S2CellUnion.denormalizedLevel(level, minLevel, levelMod);
+      if (newLevel == level) {
+        output[k++] = id;
+      } else {
+        long end = S2CellIds.childEnd(id, newLevel);
+        for (long child = S2CellIds.childBegin(id, newLevel); child != end;
+            child = S2CellIds.next(child)) {
+          output[k++] = child;
+        }
+      }
+    }
+    return output;
+  }
+
+  /** The number of leaf cells covered by the union. */
+  public long leafCellsCovered() {
+    long numLeaves = 0;
+    for (int i = 0; i < size; ++i) {
+      int invertedLevel = S2CellId.MAX_LEVEL - S2CellIds.level(ids[i]);
+      numLeaves += (1L << (invertedLevel << 1));
+    }
+    return numLeaves;
+  }
+
+  /** Calculates the union's area by summing the exact area of each cell. */
+  public double exactArea() {
+    double area = 0;
+    for (int i = 0; i < size; ++i) {
+      area += new S2Cell(new S2CellId(ids[i])).exactArea();
+    }
+    return area;
+  }
+
+  @Override
+  public S2Region clone() {
+    S2CompactCellUnion copy = new S2CompactCellUnion();
+    copy.initRawIds(toArray(), size);
+    return copy;
+  }
+
+  @Override
+  public S2Cap getCapBound() {
+    // Use the centroid as the cap axis, and expand the cap angle so that it
+    // contains the bounding caps of all the individual cells. See
+    // S2CellUnion.getCapBound().
+    if (size == 0) {
+      return S2Cap.empty();
+    }
+    S2Point centroid = new S2Point(0, 0, 0);
+    for (int i = 0; i < size; ++i) {
+      double area = S2Cell.averageArea(S2CellIds.level(ids[i]));
+      centroid = S2Point.add(centroid, S2Point.mul(new S2CellId(ids[i]).toPoint(), area));
+    }
+    if (centroid.equals(new S2Point(0, 0, 0))) {
+      centroid = new S2Point(1, 0, 0);
+    } else {
+      centroid = S2Point.normalize(centroid);
+    }
+    S2Cap cap = S2Cap.fromAxisHeight(centroid, 0);
+    for (int i = 0; i < size; ++i) {
+      cap = cap.addCap(new S2Cell(new S2CellId(ids[i])).getCapBound());
+    }
+    return cap;
+  }
+
+  @Override
+  public S2LatLngRect getRectBound() {
+    S2LatLngRect bound = S2LatLngRect.empty();
+    for (int i = 0; i < size; ++i) {
+      bound = bound.union(new S2Cell(new S2CellId(ids[i])).getRectBound());
+    }
+    return bound;
+  }
+
+  /** This is a fast operation (logarithmic in the size of the cell union). */
+  @Override
+  public boolean contains(S2Cell cell) {
+    return contains(cell.id().id());
+  }
+
+  /** This is a fast operation (logarithmic in the size of the cell union). */
+  @Override
+  public boolean mayIntersect(S2Cell cell) {
+    return intersects(cell.id().id());
+  }
+
+  /** Return true if two unions contain the same cells. */
+  @Override
+  public boolean equals(Object that) {
+    if (!(that instanceof S2CompactCellUnion)) {
+      return false;
+    }
+    S2CompactCellUnion union = (S2CompactCellUnion) that;
+    if (size != union.size) {
+      return false;
+    }
+    for (int i = 0; i < size; ++i) {
+      if (ids[i] != union.ids[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public int hashCode() {
+    // Matches S2CellUnion.hashCode() for the same cells.
+    int value = 17;
+    for (int i = 0; i < size; ++i) {
+      value = 37 * value + (int) ((ids[i] >>> 32) + ids[i]);
+    }
+    return value;
+  }
+
+  /**
+   * Return the first index in [low, high) whose id is not less than "key" in
+   * unsigned order, or "high" if there is none.
+   */
+  static int lowerBound(long[] ids, int low, int high, long key) {
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (S2CellIds.lessThan(ids[mid], key)) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /** Sorts the first "size" ids in unsigned (i.e. S2CellId) order. */
+  static void sortUnsigned(long[] ids, int size) {
+    // Flipping the sign bit maps unsigned order onto signed order.
+    for (int i = 0; i < size; ++i) {
+      ids[i] ^= Long.MIN_VALUE;
+    }
+    Arrays.sort(ids, 0, size);
+    for (int i = 0; i < size; ++i) {
+      ids[i] ^= Long.MIN_VALUE;
+    }
+  }
+
+  private static long[] append(long[] array, int index, long value) {
+    if (index == array.length) {
+      array = Arrays.copyOf(array, Math.max(4, index * 2));
+    }
+    array[index] = value;
+    return array;
+  }
+}
@@ -16,17 +16,31 @@
 
 package com.google.common.geometry;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An index of the cells covering a set of edges, for quickly finding the edges
+ * that may cross a query edge. The index is built on demand, once enough
+ * queries have been made to pay for it.
+ *
+ *  Queries may be made from several threads at once: the index is built at
+ * most once and published safely to every thread, and all the state of a query
+ * is held by its DataEdgeIterator, which must not be shared. reset() must not
+ * be called while queries are running.
+ */
 public abstract strictfp class S2EdgeIndex {
   /**
    * Thicken the edge in all directions by roughly 1% of the edge length when
@@ -40,17 +54,27 @@ public abstract strictfp class S2EdgeIndex {
    */
   private static final double MAX_DET_ERROR = 1e-14;
 
+  /**
+   * computeIndex(ForkJoinPool) only uses the pool for at least this many edges.
+   */
+  public static final int PARALLEL_THRESHOLD = 20000;
+
+  /** The number of edges or index entries handled by one parallel task. */
+  private static final int PARALLEL_GRAIN = 8192;
+
   /**
    * The cell containing each edge, as given in the parallel array
    * <code>edges</code>.
    */
-  private long[] cells;
+  @VisibleForTesting
+  long[] cells;
 
   /**
    * The edge contained by each cell, as given in the parallel array
    * <code>cells</code>.
    */
-  private int[] edges;
+  @VisibleForTesting
+  int[] edges;
 
   /**
    * No cell strictly below this level appears in mapping. Initially leaf level,
@@ -59,22 +83,23 @@ public abstract strictfp class S2EdgeIndex {
   private int minimumS2LevelUsed;
 
   /**
-   * Has the index been computed already?
+   * Has the index been computed already? Written after the fields above, so a
+   * thread that sees it set also sees the index.
    */
-  private boolean indexComputed;
+  private volatile boolean indexComputed;
 
   /**
-   * Number of queries so far
+   * Number of brute force queries so far, over all threads.
    */
-  private int queryCount;
+  private final AtomicInteger queryCount = new AtomicInteger();
 
   /**
    * Empties the index in case it already contained something.
    */
-  public void reset() {
+  public synchronized void reset() {
     minimumS2LevelUsed = S2CellId.MAX_LEVEL;
     indexComputed = false;
-    queryCount = 0;
+    queryCount.set(0);
     cells = null;
     edges = null;
   }
@@ -85,7 +110,8 @@ public abstract strictfp class S2EdgeIndex {
    * @return -1 if [cell1, edge1] is less than [cell2, edge2], 1 if [cell1,
    *         edge1] is greater than [cell2, edge2], 0 otherwise.
    */
-  private static final int compare(long cell1, int edge1, long cell2, int edge2) {
+  @VisibleForTesting
+  static final int compare(long cell1, int edge1, long cell2, int edge2) {
     if (cell1 < cell2) {
       return -1;
     } else if (cell1 > cell2) {
@@ -101,56 +127,239 @@ public abstract strictfp class S2EdgeIndex {
 
   /** Computes the index (if it has not been previously done). */
   public final void computeIndex() {
+    computeIndex(null);
+  }
+
+  /**
+   * Computes the index (if it has not been previously done), covering the edges
+   * and sorting the index in the given pool if it is not null and there are at
+   * least PARALLEL_THRESHOLD edges. edgeFrom() and edgeTo() are then called
+   * from the pool's threads, so they must be safe to call concurrently. The
+   * resulting index is the same either way.
+   */
+  public final synchronized void computeIndex(ForkJoinPool pool) {
     if (indexComputed) {
       return;
     }
-    List<Long> cellList = Lists.newArrayList();
-    List<Integer> edgeList = Lists.newArrayList();
-    for (int i = 0; i < getNumEdges(); ++i) {
-      S2Point from = edgeFrom(i);
-      S2Point to = edgeTo(i);
-      ArrayList<S2CellId> cover = Lists.newArrayList();
-      int level = getCovering(from, to, true, cover);
-      minimumS2LevelUsed = Math.min(minimumS2LevelUsed, level);
-      for (S2CellId cellId : cover) {
-        cellList.add(cellId.id());
-        edgeList.add(i);
+    int numEdges = getNumEdges();
+    CellEdges entries;
+    if (pool == null || numEdges < PARALLEL_THRESHOLD) {
+      entries = coverEdges(0, numEdges);
+      sortByCell(entries.cells, entries.edges, 0, entries.size,
+          new long[entries.size], new int[entries.size]);
+    } else {
+      entries = pool.invoke(new CoverTask(0, numEdges));
+      pool.invoke(new SortTask(entries.cells, entries.edges, 0, entries.size,
+          new long[entries.size], new int[entries.size]));
+    }
+    cells = entries.size == entries.cells.length
+        ? entries.cells : Arrays.copyOf(entries.cells, entries.size);
+    edges = entries.size == entries.edges.length
+        ? entries.edges : Arrays.copyOf(entries.edges, entries.size);
+    minimumS2LevelUsed = Math.min(minimumS2LevelUsed, entries.minLevel);
+    // Publishes the fields above.
+    indexComputed = true;
+  }
+
+  /** The index entries for a range of edges, in the order they were added. */
+  private static final class CellEdges {
+    long[] cells;
+    int[] edges;
+    int size;
+    int minLevel = S2CellId.MAX_LEVEL;
+
+    CellEdges(int capacity) {
+      cells = new long[Math.max(capacity, 4)];
+      edges = new int[cells.length];
+    }
+
+    void add(long cell, int edge) {
+      if (size == cells.length) {
+        int capacity = size + (size >> 1);
+        cells = Arrays.copyOf(cells, capacity);
+        edges = Arrays.copyOf(edges, capacity);
       }
+      cells[size] = cell;
+      edges[size] = edge;
+      ++size;
     }
-    cells = new long[cellList.size()];
-    edges = new int[edgeList.size()];
-    for (int i = 0; i < cells.length; i++) {
-      cells[i] = cellList.get(i);
-      edges[i] = edgeList.get(i);
+
+    void addAll(CellEdges other) {
+      if (size + other.size > cells.length) {
+        cells = Arrays.copyOf(cells, size + other.size);
+        edges = Arrays.copyOf(edges, size + other.size);
+      }
+      System.arraycopy(other.cells, 0, cells, size, other.size);
+      System.arraycopy(other.edges, 0, edges, size, other.size);
+      size += other.size;
+      minLevel = Math.min(minLevel, other.minLevel);
+    }
+  }
+
+  /** Covers the edges begin .. end - 1, in increasing edge order. */
+  private CellEdges coverEdges(int begin, int end) {
+    // Most edges are covered by a single cell.
+    CellEdges entries = new CellEdges(end - begin + (end - begin) / 4);
+    ArrayList<S2CellId> cover = Lists.newArrayList();
+    for (int i = begin; i < end; ++i) {
+      int level = getCovering(edgeFrom(i), edgeTo(i), true, cover);
+      entries.minLevel = Math.min(entries.minLevel, level);
+      for (int j = 0; j < cover.size(); ++j) {
+        entries.add(cover.get(j).id(), i);
+      }
+    }
+    return entries;
+  }
+
+  /** Covers a range of edges by splitting it in halves. */
+  private final class CoverTask extends RecursiveTask<CellEdges> {
+    private final int begin;
+    private final int end;
+
+    CoverTask(int begin, int end) {
+      this.begin = begin;
+      this.end = end;
+    }
+
+    @Override
+    protected CellEdges compute() {
+      if (end - begin <= PARALLEL_GRAIN) {
+        return coverEdges(begin, end);
+      }
+      int mid = (begin + end) >>> 1;
+      CoverTask right = new CoverTask(mid, end);
+      right.fork();
+      CellEdges entries = new CoverTask(begin, mid).compute();
+      entries.addAll(right.join());
+      return entries;
     }
-    sortIndex();
-    indexComputed = true;
   }
 
-  /** Sorts the parallel <code>cells</code> and <code>edges</code> arrays. */
-  private void sortIndex() {
-    // create an array of indices and sort based on the values in the parallel
-    // arrays at each index
-    Integer[] indices = new Integer[cells.length];
-    for (int i = 0; i < indices.length; i++) {
-      indices[i] = i;
-    }
-    Arrays.sort(indices, new Comparator<Integer>() {
-      @Override
-      public int compare(Integer index1, Integer index2) {
-        return S2EdgeIndex.compare(cells[index1], edges[index1], cells[index2], edges[index2]);
+  /**
+   * Sorts entries from .. to - 1 of the parallel <code>cells</code> and
+   * <code>edges</code> arrays by cell. The sort is stable, so entries that were
+   * added in increasing edge order end up in the order given by compare(). The
+   * scratch arrays must have room for the range. S2Polygon also uses this to
+   * sort the cells bounding its loops.
+   */
+  static void sortByCell(
+      long[] cells, int[] edges, int from, int to, long[] scratchCells, int[] scratchEdges) {
+    int n = to - from;
+    if (n < 32) {
+      for (int i = from + 1; i < to; ++i) {
+        long cell = cells[i];
+        int edge = edges[i];
+        int j = i - 1;
+        for (; j >= from && cells[j] > cell; --j) {
+          cells[j + 1] = cells[j];
+          edges[j + 1] = edges[j];
+        }
+        cells[j + 1] = cell;
+        edges[j + 1] = edge;
+      }
+      return;
+    }
+
+    // Least significant digit radix sort on bytes. Flipping the sign bit makes
+    // the unsigned order of the keys their signed order. Passes in which every
+    // key has the same digit are skipped; for cells at the usual levels that
+    // includes the low order bytes.
+    int[][] counts = new int[8][256];
+    for (int i = from; i < to; ++i) {
+      long key = cells[i] ^ Long.MIN_VALUE;
+      for (int pass = 0; pass < 8; ++pass) {
+        ++counts[pass][(int) (key >>> (pass * 8)) & 0xFF];
+      }
+    }
+    long[] srcCells = cells;
+    int[] srcEdges = edges;
+    int srcFrom = from;
+    long[] dstCells = scratchCells;
+    int[] dstEdges = scratchEdges;
+    int dstFrom = from;
+    for (int pass = 0; pass < 8; ++pass) {
+      int[] count = counts[pass];
+      int shift = pass * 8;
+      if (count[(int) ((srcCells[srcFrom] ^ Long.MIN_VALUE) >>> shift) & 0xFF] == n) {
+        continue;
+      }
+      int offset = dstFrom;
+      for (int digit = 0; digit < 256; ++digit) {
+        int c = count[digit];
+        count[digit] = offset;
+        offset += c;
+      }
+      for (int i = srcFrom; i < srcFrom + n; ++i) {
+        int pos = count[(int) ((srcCells[i] ^ Long.MIN_VALUE) >>> shift) & 0xFF]++;
+        dstCells[pos] = srcCells[i];
+        dstEdges[pos] = srcEdges[i];
+      }
+      long[] tempCells = srcCells;
+      int[] tempEdges = srcEdges;
+      int tempFrom = srcFrom;
+      srcCells = dstCells;
+      srcEdges = dstEdges;
+      srcFrom = dstFrom;
+      dstCells = tempCells;
+      dstEdges = tempEdges;
+      dstFrom = tempFrom;
+    }
+    if (srcCells != cells) {
+      System.arraycopy(srcCells, srcFrom, cells, from, n);
+      System.arraycopy(srcEdges, srcFrom, edges, from, n);
+    }
+  }
+
+  /**
+   * Sorts a range like sortByCell(), by sorting its halves in parallel and
+   * merging them. Ties are taken from the left half first, so the sort is
+   * stable too.
+   */
+  private static final class SortTask extends RecursiveAction {
+    private final long[] cells;
+    private final int[] edges;
+    private final int from;
+    private final int to;
+    private final long[] scratchCells;
+    private final int[] scratchEdges;
+
+    SortTask(long[] cells, int[] edges, int from, int to, long[] scratchCells,
+        int[] scratchEdges) {
+      this.cells = cells;
+      this.edges = edges;
+      this.from = from;
+      this.to = to;
+      this.scratchCells = scratchCells;
+      this.scratchEdges = scratchEdges;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= PARALLEL_GRAIN) {
+        sortByCell(cells, edges, from, to, scratchCells, scratchEdges);
+        return;
+      }
+      int mid = (from + to) >>> 1;
+      invokeAll(new SortTask(cells, edges, from, mid, scratchCells, scratchEdges),
+          new SortTask(cells, edges, mid, to, scratchCells, scratchEdges));
+      int i = from;
+      int j = mid;
+      int k = from;
+      while (i < mid && j < to) {
+        if (cells[j] < cells[i]) {
+          scratchCells[k] = cells[j];
+          scratchEdges[k++] = edges[j++];
+        } else {
+          scratchCells[k] = cells[i];
+          scratchEdges[k++] = edges[i++];
+        }
       }
-    });
-    // copy the cells and edges in the order given by the sorted list of indices
-    long[] newCells = new long[cells.length];
-    int[] newEdges = new int[edges.length];
-    for (int i = 0; i < indices.length; i++) {
-      newCells[i] = cells[indices[i]];
-      newEdges[i] = edges[indices[i]];
-    }
-    // replace the cells and edges with the sorted arrays
-    cells = newCells;
-    edges = newEdges;
+      System.arraycopy(cells, i, scratchCells, k, mid - i);
+      System.arraycopy(edges, i, scratchEdges, k, mid - i);
+      // Whatever is left of the right half is already in place.
+      System.arraycopy(scratchCells, from, cells, from, j - from);
+      System.arraycopy(scratchEdges, from, edges, from, j - from);
+    }
   }
 
   public final boolean isIndexComputed() {
@@ -162,7 +371,7 @@ public abstract strictfp class S2EdgeIndex {
    * to compute when to switch to quad tree.
    */
   protected final void incrementQueryCount() {
-    ++queryCount;
+    queryCount.incrementAndGet();
   }
 
   /**
@@ -205,7 +414,7 @@ public abstract strictfp class S2EdgeIndex {
     if (indexComputed) {
       return;
     }
-    if (getNumEdges() > 100 && (queryCount + n) > 30) {
+    if (getNumEdges() > 100 && (queryCount.get() + n) > 30) {
       computeIndex();
     }
   }
@@ -255,21 +464,10 @@ public abstract strictfp class S2EdgeIndex {
    */
   private static S2CellId containingCell(S2Point pa, S2Point pb, S2Point pc, S2Point pd) {
     S2CellId a = S2CellId.fromPoint(pa);
-    S2CellId b = S2CellId.fromPoint(pb);
-    S2CellId c = S2CellId.fromPoint(pc);
-    S2CellId d = S2CellId.fromPoint(pd);
-
-    if (a.face() != b.face() || a.face() != c.face() || a.face() != d.face()) {
-      return S2CellId.sentinel();
-    }
-
-    while (!a.equals(b) || !a.equals(c) || !a.equals(d)) {
-      a = a.parent();
-      b = b.parent();
-      c = c.parent();
-      d = d.parent();
-    }
-    return a;
+    long b = S2CellId.fromPoint(pb).id();
+    long c = S2CellId.fromPoint(pc).id();
+    long d = S2CellId.fromPoint(pd).id();
+    return commonAncestor(a, (a.id() ^ b) | (a.id() ^ c) | (a.id() ^ d));
   }
 
   /**
@@ -278,17 +476,26 @@ public abstract strictfp class S2EdgeIndex {
    */
   private static S2CellId containingCell(S2Point pa, S2Point pb) {
     S2CellId a = S2CellId.fromPoint(pa);
-    S2CellId b = S2CellId.fromPoint(pb);
+    return commonAncestor(a, a.id() ^ S2CellId.fromPoint(pb).id());
+  }
 
-    if (a.face() != b.face()) {
-      return S2CellId.sentinel();
+  /**
+   * Returns the smallest ancestor of the leaf cell "a" shared with the leaf
+   * cells whose ids differ from a's in the bits set in "diff", or Sentinel if
+   * they are not all on the same face.
+   */
+  private static S2CellId commonAncestor(S2CellId a, long diff) {
+    if (diff == 0) {
+      return a;
     }
-
-    while (!a.equals(b)) {
-      a = a.parent();
-      b = b.parent();
+    // The bits that differ must all be at or below the lowest set bit of the
+    // ancestor, which is bit 2 * (MAX_LEVEL - level).
+    int highestBit = 63 - Long.numberOfLeadingZeros(diff);
+    int level = S2CellId.MAX_LEVEL - (highestBit + 1) / 2;
+    if (level < 0) {
+      return S2CellId.sentinel();
     }
-    return a;
+    return a.parent(level);
   }
 
   /**
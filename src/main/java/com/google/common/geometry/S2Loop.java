@@ -24,6 +24,7 @@ import com.google.common.geometry.S2EdgeUtil.EdgeCrosser;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Logger;
 
 /**
@@ -46,6 +47,11 @@ import java.util.logging.Logger;
  * S2LatLngRect represents a latitude-longitude rectangle. It is capable of
  * representing the empty and full rectangles as well as single points.
  *
+ *  Once a loop is built and safely published, its query methods may be called
+ * from several threads at once; the edge index and vertex map they build on
+ * demand are built safely. Methods that modify the loop, such as invert() and
+ * setDepth(), must not run concurrently with anything else.
+ *
  */
 
 public final strictfp class S2Loop implements S2Region, Comparable<S2Loop> {
@@ -61,12 +67,15 @@ public final strictfp class S2Loop implements S2Region, Comparable<S2Loop> {
    * Edge index used for performance-critical operations. For example,
    * contains() can determine whether a point is inside a loop in nearly
    * constant time, whereas without an edge index it is forced to compare the
-   * query point against every edge in the loop.
+   * query point against every edge in the loop. Created on first use.
    */
-  private S2EdgeIndex index;
+  private volatile S2EdgeIndex index;
 
-  /** Maps each S2Point to its order in the loop, from 1 to numVertices. */
-  private Map<S2Point, Integer> vertexToIndex;
+  /**
+   * Maps each S2Point to its order in the loop, from 1 to numVertices. Built on
+   * first use and never modified after it is published.
+   */
+  private volatile Map<S2Point, Integer> vertexToIndex;
 
   private final S2Point[] vertices;
   private final int numVertices;
@@ -588,16 +597,28 @@ public final strictfp class S2Loop implements S2Region, Comparable<S2Loop> {
    */
   @Override
   public boolean contains(S2Cell cell) {
-    // It is faster to construct a bounding rectangle for an S2Cell than for
-    // a general polygon. A future optimization could also take advantage of
-    // the fact than an S2Cell is convex.
-
+    // This is contains(new S2Loop(cell)) without building a loop for the cell:
+    // the cell's vertices stand in for the other loop. See contains(S2Loop).
     S2LatLngRect cellBound = cell.getRectBound();
     if (!bound.contains(cellBound)) {
       return false;
     }
-    S2Loop cellLoop = new S2Loop(cell, cellBound);
-    return contains(cellLoop);
+    S2Point[] cellBoundary = getCellBoundary(cell);
+
+    // The cells tested by S2RegionCoverer mostly straddle the boundary, so the
+    // crossing test comes first here; it usually finds a crossing quickly.
+    if (checkCellCrossings(cellBoundary, WEDGE_CONTAINS) <= 0) {
+      return false;
+    }
+    if (!contains(cellBoundary[0]) && findVertex(cellBoundary[0]) < 0) {
+      return false;
+    }
+    if (bound.union(cellBound).isFull()) {
+      if (cell.contains(vertex(0)) && !isCellVertex(vertex(0), cellBoundary)) {
+        return false;
+      }
+    }
+    return true;
   }
 
   /**
@@ -607,15 +628,49 @@ public final strictfp class S2Loop implements S2Region, Comparable<S2Loop> {
    */
   @Override
   public boolean mayIntersect(S2Cell cell) {
-    // It is faster to construct a bounding rectangle for an S2Cell than for
-    // a general polygon. A future optimization could also take advantage of
-    // the fact than an S2Cell is convex.
-
+    // As contains(S2Cell), this is intersects(new S2Loop(cell)) without the
+    // loop. See intersects(S2Loop).
     S2LatLngRect cellBound = cell.getRectBound();
     if (!bound.intersects(cellBound)) {
       return false;
     }
-    return new S2Loop(cell, cellBound).intersects(this);
+    S2Point[] cellBoundary = getCellBoundary(cell);
+    if (checkCellCrossings(cellBoundary, WEDGE_INTERSECTS) < 0) {
+      return true;
+    }
+    if (contains(cellBoundary[0]) && findVertex(cellBoundary[0]) < 0) {
+      return true;
+    }
+    // There are no crossings and the loop does not contain the cell, so they
+    // only intersect if the cell contains the whole loop.
+    return cell.contains(vertex(0)) && !isCellVertex(vertex(0), cellBoundary);
+  }
+
+  /**
+   * Returns the points that checkCellCrossings() needs to know about a cell,
+   * computed once so that they can be shared by all the loops of a polygon.
+   * Entries 0 to 5 are the vertices of the cell, repeating the first two at the
+   * end so that edge j goes from entry j to entry j + 1, like vertex(j). Entry
+   * CELL_NORMALS + k is the inward unit normal of edge k.
+   */
+  static S2Point[] getCellBoundary(S2Cell cell) {
+    S2Point[] cellBoundary = new S2Point[CELL_NORMALS + 4];
+    for (int k = 0; k < 4; ++k) {
+      cellBoundary[k] = cell.getVertex(k);
+      cellBoundary[CELL_NORMALS + k] = cell.getEdge(k);
+    }
+    cellBoundary[4] = cellBoundary[0];
+    cellBoundary[5] = cellBoundary[1];
+    return cellBoundary;
+  }
+
+  private static boolean isCellVertex(S2Point p, S2Point[] cellBoundary) {
+    for (int k = 0; k < 4; ++k) {
+      if (p.equals(cellBoundary[k])) {
+        return true;
+      }
+    }
+    return false;
   }
 
   /**
@@ -679,26 +734,51 @@ public final strictfp class S2Loop implements S2Region, Comparable<S2Loop> {
    * edge lookups.
    */
   private final DataEdgeIterator getEdgeIterator(int expectedQueries) {
-    if (index == null) {
-      index = new S2EdgeIndex() {
-        @Override
-        protected int getNumEdges() {
-          return numVertices;
-        }
+    S2EdgeIndex edgeIndex = edgeIndex();
+    edgeIndex.predictAdditionalCalls(expectedQueries);
+    return new S2EdgeIndex.DataEdgeIterator(edgeIndex);
+  }
 
-        @Override
-        protected S2Point edgeFrom(int index) {
-          return vertex(index);
-        }
+  /**
+   * Builds the edge index now rather than on demand, in the given pool (which
+   * may be null) if the loop has at least S2EdgeIndex.PARALLEL_THRESHOLD
+   * vertices. Worthwhile for loops with many vertices that are about to be
+   * tested against many other loops or cells.
+   */
+  public void computeEdgeIndex(ForkJoinPool pool) {
+    edgeIndex().computeIndex(pool);
+  }
 
-        @Override
-        protected S2Point edgeTo(int index) {
-          return vertex(index + 1);
-        }
-      };
+  private S2EdgeIndex edgeIndex() {
+    S2EdgeIndex result = index;
+    if (result != null) {
+      return result;
+    }
+    synchronized (this) {
+      if (index == null) {
+        index = newEdgeIndex();
+      }
+      return index;
     }
-    index.predictAdditionalCalls(expectedQueries);
-    return new S2EdgeIndex.DataEdgeIterator(index);
+  }
+
+  private S2EdgeIndex newEdgeIndex() {
+    return new S2EdgeIndex() {
+      @Override
+      protected int getNumEdges() {
+        return numVertices;
+      }
+
+      @Override
+      protected S2Point edgeFrom(int index) {
+        return vertex(index);
+      }
+
+      @Override
+      protected S2Point edgeTo(int index) {
+        return vertex(index + 1);
+      }
+    };
   }
 
   /** Return true if this loop is valid. */
@@ -869,13 +949,16 @@ public final strictfp class S2Loop implements S2Region, Comparable<S2Loop> {
    * value is in the range 1..num_vertices_ if found.
    */
   private int findVertex(S2Point p) {
-    if (vertexToIndex == null) {
-      vertexToIndex = new HashMap<S2Point, Integer>();
+    Map<S2Point, Integer> map = vertexToIndex;
+    if (map == null) {
+      // Threads racing to get here build equal maps, so any of them will do.
+      map = new HashMap<S2Point, Integer>();
       for (int i = 1; i <= numVertices; i++) {
-        vertexToIndex.put(vertex(i), i);
+        map.put(vertex(i), i);
       }
+      vertexToIndex = map;
     }
-    Integer index = vertexToIndex.get(p);
+    Integer index = map.get(p);
     if (index == null) {
       return -1;
     } else {
@@ -883,6 +966,109 @@ public final strictfp class S2Loop implements S2Region, Comparable<S2Loop> {
     }
   }
 
+  /**
+   * A loop edge whose endpoints are both further than this outside the great
+   * circle through one of the edges of a cell cannot touch the cell.
+   */
+  private static final double CELL_EDGE_MARGIN = 1e-14;
+
+  /** The index of the first edge normal in the array from getCellBoundary(). */
+  private static final int CELL_NORMALS = 6;
+
+  // The relations used by contains(S2Cell) and mayIntersect(S2Cell). They have
+  // no state, so one instance of each serves every call.
+  private static final S2EdgeUtil.WedgeRelation WEDGE_CONTAINS = new S2EdgeUtil.WedgeContains();
+  private static final S2EdgeUtil.WedgeRelation WEDGE_INTERSECTS =
+      new S2EdgeUtil.WedgeIntersects();
+
+  /**
+   * Returns a bit mask with bit k set if the point is strictly outside the
+   * great circle through edge k of a cell, given the cell's points from
+   * getCellBoundary().
+   */
+  private static int cellOutcode(S2Point p, S2Point[] cellBoundary) {
+    int code = 0;
+    for (int k = 0; k < 4; ++k) {
+      if (cellBoundary[CELL_NORMALS + k].dotProd(p) < -CELL_EDGE_MARGIN) {
+        code |= 1 << k;
+      }
+    }
+    return code;
+  }
+
+  /**
+   * The equivalent of checkEdgeCrossings() where the other loop is a cell,
+   * given by its points from getCellBoundary(). If relation is null,
+   * returns 0 as soon as a shared vertex is found.
+   *
+   *  A cell is the intersection of the four hemispheres bounded by the great
+   * circles through its edges. An edge of this loop whose endpoints are both
+   * outside the same one of those great circles lies entirely outside it (loop
+   * edges are shorter than 180 degrees), so it can neither cross the cell's
+   * edges nor share a vertex with the cell and needs no crossing test. For small
+   * loops all edges are filtered this way; large loops use the edge index to
+   * find the edges near each edge of the cell.
+   */
+  int checkCellCrossings(S2Point[] cellBoundary, S2EdgeUtil.WedgeRelation relation) {
+    int result = 1;
+    // As in contains(S2Point), only large loops are worth indexing.
+    if (numVertices < 2000) {
+      int code = cellOutcode(vertices[0], cellBoundary);
+      for (int i = 0; i < numVertices; ++i) {
+        int nextCode = cellOutcode(vertex(i + 1), cellBoundary);
+        if ((code & nextCode) == 0) {
+          for (int j = 0; j < 4; ++j) {
+            result = checkCellEdgeCrossing(i, cellBoundary, j, relation, result);
+            if (result < 0 || (result == 0 && relation == null)) {
+              return result;
+            }
+          }
+        }
+        code = nextCode;
+      }
+    } else {
+      DataEdgeIterator it = getEdgeIterator(4);
+      for (int j = 0; j < 4; ++j) {
+        for (it.getCandidates(cellBoundary[j], cellBoundary[j + 1]); it.hasNext(); it.next()) {
+          int i = it.index();
+          if ((cellOutcode(vertex(i), cellBoundary) & cellOutcode(vertex(i + 1), cellBoundary))
+              != 0) {
+            continue;
+          }
+          result = checkCellEdgeCrossing(i, cellBoundary, j, relation, result);
+          if (result < 0 || (result == 0 && relation == null)) {
+            return result;
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Tests edge i of this loop against edge j of a cell, in the same way as the
+   * inner loop of checkEdgeCrossings(), and returns the updated result.
+   */
+  private int checkCellEdgeCrossing(int i, S2Point[] cellBoundary, int j,
+      S2EdgeUtil.WedgeRelation relation, int result) {
+    int crossing = S2EdgeUtil.robustCrossing(
+        cellBoundary[j], cellBoundary[j + 1], vertex(i), vertex(i + 1));
+    if (crossing < 0) {
+      return result;
+    }
+    if (crossing > 0) {
+      return -1; // There is a proper edge crossing.
+    }
+    if (relation == null) {
+      return 0;
+    }
+    if (vertex(i + 1).equals(cellBoundary[j + 1])) {
+      return Math.min(result, relation.test(
+          vertex(i), vertex(i + 1), vertex(i + 2), cellBoundary[j], cellBoundary[j + 2]));
+    }
+    return result;
+  }
+
   /**
    * This method encapsulates the wallys2 code for loop containment and
    * intersection tests. It is used in three slightly different variations to
@@ -16,6 +16,7 @@
 
 package com.google.common.geometry;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.HashMultiset;
 import com.google.common.collect.Lists;
@@ -23,11 +24,14 @@ import com.google.common.collect.Maps;
 import com.google.common.collect.Multiset;
 import com.google.common.collect.TreeMultimap;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.logging.Logger;
 
 /**
@@ -54,10 +58,29 @@ import java.util.logging.Logger;
  *  Loops may share vertices, however no vertex may appear twice in a single
  * loop.
  *
+ *  Once a polygon is initialized and safely published (for example through a
+ * final field or a concurrent collection), it may be queried from several
+ * threads at once without copying it, as its loops may. Calling
+ * computeEdgeIndex() first avoids having the first queries build the loops'
+ * edge indexes.
+ *
  */
 public final strictfp class S2Polygon implements S2Region, Comparable<S2Polygon> {
   private static final Logger log = Logger.getLogger(S2Polygon.class.getCanonicalName());
 
+  /**
+   * destructiveUnionSloppyParallel() unions runs of at most this many polygons
+   * on a single thread.
+   */
+  public static final int PARALLEL_UNION_GRAIN = 8;
+
+  /**
+   * init() finds the nesting of this many loops or more through an index of
+   * the cells bounding them, rather than by testing each loop against the
+   * children of every loop that contains it.
+   */
+  public static final int NESTING_INDEX_THRESHOLD = 16;
+
   private List<S2Loop> loops;
 
   private S2LatLngRect bound;
@@ -141,6 +164,16 @@ public final strictfp class S2Polygon implements S2Region, Comparable<S2Polygon>
    * hierarchy. (See also getParent and getLastDescendant.)
    */
   public void init(List<S2Loop> loops) {
+    init(loops, loops.size() >= NESTING_INDEX_THRESHOLD);
+  }
+
+  /**
+   * Like init(), finding the nesting of the loops through an index of the
+   * cells bounding them if indexNesting is true, or else by inserting them one
+   * at a time.
+   */
+  @VisibleForTesting
+  void init(List<S2Loop> loops, boolean indexNesting) {
     // assert isValid(loops);
     // assert (this.loops.isEmpty());
 
@@ -149,8 +182,14 @@ public final strictfp class S2Polygon implements S2Region, Comparable<S2Polygon>
     // loopMap
     loopMap.put(null, Lists.<S2Loop>newArrayList());
 
+    if (indexNesting) {
+      insertLoopsIndexed(loops, loopMap);
+    } else {
+      for (S2Loop loop : loops) {
+        insertLoop(loop, null, loopMap);
+      }
+    }
     for (S2Loop loop : loops) {
-      insertLoop(loop, null, loopMap);
       this.numVertices += loop.numVertices();
     }
     loops.clear();
@@ -252,6 +291,17 @@ public final strictfp class S2Polygon implements S2Region, Comparable<S2Polygon>
     return loops.get(k);
   }
 
+  /**
+   * Builds the edge index of every loop now rather than on demand, using the
+   * given pool (which may be null) for loops with many vertices. See
+   * S2Loop.computeEdgeIndex().
+   */
+  public void computeEdgeIndex(ForkJoinPool pool) {
+    for (S2Loop loop : loops) {
+      loop.computeEdgeIndex(pool);
+    }
+  }
+
   /**
    * Return the index of the parent of loop k, or -1 if it has no parent.
    */
@@ -575,8 +625,8 @@ public final strictfp class S2Polygon implements S2Region, Comparable<S2Polygon>
       // duplicate edges are encountered, both are included in the output. The
       // "addSharedEdges" flag allows one of these two copies to be removed by
       // changing its intersection parameter from 0 to 1.
-      double t = (a0 == b0 || a0 == b1) ? 0 : 1;
-      if (!addSharedEdges && a1 == b1) {
+      double t = (a0.equals(b0) || a0.equals(b1)) ? 0 : 1;
+      if (!addSharedEdges && a1.equals(b1)) {
         t = 1;
       }
       intersections.add(new ParametrizedS2Point(t, t == 0 ? a0 : a1));
@@ -696,9 +746,8 @@ public final strictfp class S2Polygon implements S2Region, Comparable<S2Polygon>
     // plus the boundary of B clipped to the interior of A,
     // plus one copy of any directed edges that are in both boundaries.
 
-    S2PolygonBuilder.Options options = S2PolygonBuilder.Options.DIRECTED_XOR;
-    options.setMergeDistance(vertexMergeRadius);
-    S2PolygonBuilder builder = new S2PolygonBuilder(options);
+    S2PolygonBuilder builder =
+        new S2PolygonBuilder(S2PolygonBuilder.Options.DIRECTED_XOR, vertexMergeRadius);
     clipBoundary(a, false, b, false, false, true, builder);
     clipBoundary(b, false, a, false, false, false, builder);
     if (!builder.assemblePolygon(this, null)) {
@@ -718,9 +767,8 @@ public final strictfp class S2Polygon implements S2Region, Comparable<S2Polygon>
     // plus the boundary of B clipped to the exterior of A,
     // plus one copy of any directed edges that are in both boundaries.
 
-    S2PolygonBuilder.Options options = S2PolygonBuilder.Options.DIRECTED_XOR;
-    options.setMergeDistance(vertexMergeRadius);
-    S2PolygonBuilder builder = new S2PolygonBuilder(options);
+    S2PolygonBuilder builder =
+        new S2PolygonBuilder(S2PolygonBuilder.Options.DIRECTED_XOR, vertexMergeRadius);
     clipBoundary(a, false, b, false, true, true, builder);
     clipBoundary(b, false, a, false, true, false, builder);
     if (!builder.assemblePolygon(this, null)) {
@@ -729,6 +777,114 @@ public final strictfp class S2Polygon implements S2Region, Comparable<S2Polygon>
     }
   }
 
+  public void initToDifference(final S2Polygon a, final S2Polygon b) {
+    initToDifferenceSloppy(a, b, S2EdgeUtil.DEFAULT_INTERSECTION_TOLERANCE);
+  }
+
+  public void initToDifferenceSloppy(
+      final S2Polygon a, final S2Polygon b, S1Angle vertexMergeRadius) {
+    Preconditions.checkState(numLoops() == 0);
+    if (!a.bound.intersects(b.bound)) {
+      List<S2Loop> loops = Lists.newArrayList();
+      for (S2Loop loop : a.loops) {
+        loops.add(new S2Loop(loop));
+      }
+      init(loops);
+      return;
+    }
+
+    // We want the boundary of A clipped to the exterior of B,
+    // plus the reversed boundary of B clipped to the interior of A,
+    // plus one copy of any edge in A that is also a reverse edge in B.
+
+    S2PolygonBuilder builder =
+        new S2PolygonBuilder(S2PolygonBuilder.Options.DIRECTED_XOR, vertexMergeRadius);
+    clipBoundary(a, false, b, true, true, true, builder);
+    clipBoundary(b, true, a, false, false, false, builder);
+    S2Polygon difference = new S2Polygon();
+    if (!builder.assemblePolygon(difference, null)) {
+      log.severe("Bad directed edges");
+    }
+
+    // Where an edge of A runs along part of an edge of B, the two pieces of
+    // the edge are not spliced together and leave a loop with no width. Drop
+    // loops that are everywhere narrower than the merge radius.
+    List<S2Loop> loops = Lists.newArrayList();
+    for (S2Loop loop : difference.loops) {
+      double perimeter = 0;
+      for (int i = 0; i < loop.numVertices(); ++i) {
+        perimeter += loop.vertex(i).angle(loop.vertex(i + 1));
+      }
+      double area = loop.getArea();
+      if (Math.min(area, 4 * S2.M_PI - area) > perimeter * vertexMergeRadius.radians()) {
+        loops.add(loop);
+      }
+    }
+    init(loops);
+  }
+
+  /**
+   * Initialize this polygon to the points that are in exactly one of A and B,
+   * as the union of the differences A - B and B - A.
+   */
+  public void initToSymmetricDifference(final S2Polygon a, final S2Polygon b) {
+    initToSymmetricDifferenceSloppy(a, b, S2EdgeUtil.DEFAULT_INTERSECTION_TOLERANCE);
+  }
+
+  public void initToSymmetricDifferenceSloppy(
+      final S2Polygon a, final S2Polygon b, S1Angle vertexMergeRadius) {
+    Preconditions.checkState(numLoops() == 0);
+    S2Polygon aMinusB = new S2Polygon();
+    aMinusB.initToDifferenceSloppy(a, b, vertexMergeRadius);
+    S2Polygon bMinusA = new S2Polygon();
+    bMinusA.initToDifferenceSloppy(b, a, vertexMergeRadius);
+    initToUnionSloppy(aMinusB, bMinusA, vertexMergeRadius);
+  }
+
+  /**
+   * Initialize this polygon to a simplified version of A, in which every
+   * vertex of A is within "tolerance" of the boundary and every loop keeps at
+   * least three vertices. The loops are simplified on the sphere without
+   * crossing each other or themselves, so the result is always valid and has
+   * the same nesting as A. Vertices near other loops may be kept in order to
+   * guarantee this.
+   */
+  public void initToSimplified(S2Polygon a, S1Angle tolerance) {
+    Preconditions.checkState(numLoops() == 0);
+    S2Point[][] chains = new S2Point[a.numLoops()][];
+    for (int k = 0; k < a.numLoops(); ++k) {
+      S2Loop loop = a.loop(k);
+      chains[k] = new S2Point[loop.numVertices()];
+      for (int i = 0; i < loop.numVertices(); ++i) {
+        chains[k][i] = loop.vertex(i);
+      }
+    }
+
+    S2Simplifier simplifier = new S2Simplifier(chains, true);
+    List<S2Loop> loops = Lists.newArrayList();
+    for (int k = 0; k < a.numLoops(); ++k) {
+      int[] kept = simplifier.simplify(k, tolerance.radians());
+      List<S2Point> vertices = Lists.newArrayListWithCapacity(kept.length);
+      for (int i : kept) {
+        vertices.add(chains[k][i]);
+      }
+      S2Loop loop = new S2Loop(vertices);
+      // A loop that is narrower than the tolerance could turn inside out.
+      if (loop.isNormalized() != a.loop(k).isNormalized()) {
+        loop = new S2Loop(a.loop(k));
+      }
+      loops.add(loop);
+    }
+    if (!isValid(loops)) {
+      log.severe("Simplified loops are not valid, keeping the original loops");
+      loops.clear();
+      for (S2Loop loop : a.loops) {
+        loops.add(new S2Loop(loop));
+      }
+    }
+    init(loops);
+  }
+
   /**
    * Return a polygon which is the union of the given polygons. Note: clears the
    * List!
@@ -790,6 +946,91 @@ public final strictfp class S2Polygon implements S2Region, Comparable<S2Polygon>
     }
   }
 
+  /**
+   * As destructiveUnion(), but unions independent pairs of polygons
+   * concurrently in the common fork/join pool. Note: clears the List!
+   */
+  public static S2Polygon destructiveUnionParallel(List<S2Polygon> polygons) {
+    return destructiveUnionSloppyParallel(
+        polygons, S2EdgeUtil.DEFAULT_INTERSECTION_TOLERANCE, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * As destructiveUnionSloppy(), but unions independent pairs of polygons
+   * concurrently in the given pool. Note: clears the List!
+   *
+   *  The polygons are sorted along the Hilbert curve by the centers of their
+   * bounds, so that neighbors are unioned first, and the sorted list is reduced
+   * as a tree: the two halves are unioned in parallel and their results
+   * unioned, down to runs of PARALLEL_UNION_GRAIN polygons, which are left to
+   * destructiveUnionSloppy(). The tree depends only on the order of the list,
+   * not on the pool, so the result is always the same for the same list.
+   *
+   *  The result has the same loops as that of destructiveUnionSloppy().
+   * S2PolygonBuilder keeps the least vertex of each group it merges, so
+   * vertices within vertexMergeRadius of each other are merged into the same
+   * one whichever pairs are unioned first, as long as no group of them is more
+   * than vertexMergeRadius across. Vertices where input edges cross are
+   * computed from different pieces of those edges, so they may differ by
+   * rounding error, which is largest for the short pieces between vertices
+   * that are about to be merged.
+   */
+  public static S2Polygon destructiveUnionSloppyParallel(
+      List<S2Polygon> polygons, S1Angle vertexMergeRadius, ForkJoinPool pool) {
+    S2Polygon[] unsorted = polygons.toArray(new S2Polygon[polygons.size()]);
+    polygons.clear();
+    // Each key is the cell id of a polygon's center, with the sign bit flipped
+    // so that signed order is cell id order, and its index in the low order
+    // bits, which the Hilbert order does not need to be this fine.
+    int indexBits = 32 - Integer.numberOfLeadingZeros(unsorted.length);
+    long indexMask = (1L << indexBits) - 1;
+    long[] keys = new long[unsorted.length];
+    for (int i = 0; i < unsorted.length; ++i) {
+      long id = S2CellId.fromPoint(unsorted[i].getRectBound().getCenter().toPoint()).id();
+      keys[i] = ((id ^ Long.MIN_VALUE) & ~indexMask) | i;
+    }
+    Arrays.sort(keys);
+    S2Polygon[] byCurve = new S2Polygon[unsorted.length];
+    for (int i = 0; i < unsorted.length; ++i) {
+      byCurve[i] = unsorted[(int) (keys[i] & indexMask)];
+    }
+    return pool.invoke(new UnionTask(byCurve, 0, byCurve.length, vertexMergeRadius));
+  }
+
+  /** Unions polygons begin .. end - 1 by unioning the two halves. */
+  private static final class UnionTask extends RecursiveTask<S2Polygon> {
+    private final S2Polygon[] polygons;
+    private final int begin;
+    private final int end;
+    private final S1Angle vertexMergeRadius;
+
+    UnionTask(S2Polygon[] polygons, int begin, int end, S1Angle vertexMergeRadius) {
+      this.polygons = polygons;
+      this.begin = begin;
+      this.end = end;
+      this.vertexMergeRadius = vertexMergeRadius;
+    }
+
+    @Override
+    protected S2Polygon compute() {
+      if (end - begin <= PARALLEL_UNION_GRAIN) {
+        List<S2Polygon> run = Lists.newArrayList();
+        for (int i = begin; i < end; ++i) {
+          run.add(polygons[i]);
+        }
+        return destructiveUnionSloppy(run, vertexMergeRadius);
+      }
+      int mid = (begin + end) >>> 1;
+      UnionTask left = new UnionTask(polygons, begin, mid, vertexMergeRadius);
+      left.fork();
+      S2Polygon b = new UnionTask(polygons, mid, end, vertexMergeRadius).compute();
+      S2Polygon a = left.join();
+      S2Polygon union = new S2Polygon();
+      union.initToUnionSloppy(a, b, vertexMergeRadius);
+      return union;
+    }
+  }
+
   public boolean isNormalized() {
     Multiset<S2Point> vertices = HashMultiset.<S2Point>create();
     S2Loop lastParent = null;
@@ -883,6 +1124,23 @@ public final strictfp class S2Polygon implements S2Region, Comparable<S2Polygon>
       return false;
     }
 
+    // If no loop boundary meets the cell boundary, each loop either lies
+    // inside the cell or contains or excludes the whole cell.
+    int crossing = checkCellCrossings(cell);
+    if (crossing < 0) {
+      return false;
+    }
+    if (crossing > 0) {
+      for (int i = 0; i < numLoops(); ++i) {
+        if (cell.contains(loop(i).vertex(0))) {
+          return false;
+        }
+      }
+      return contains(cell.getCenter());
+    }
+
+    // A loop shares a vertex with the cell; the exact test needs the cell as
+    // a polygon.
     S2Loop cellLoop = new S2Loop(cell, cellBound);
     S2Polygon cellPoly = new S2Polygon(cellLoop);
     return contains(cellPoly);
@@ -903,11 +1161,46 @@ public final strictfp class S2Polygon implements S2Region, Comparable<S2Polygon>
       return false;
     }
 
+    // See contains(S2Cell).
+    int crossing = checkCellCrossings(cell);
+    if (crossing < 0) {
+      return true;
+    }
+    if (crossing > 0) {
+      for (int i = 0; i < numLoops(); ++i) {
+        if (cell.contains(loop(i).vertex(0))) {
+          return true;
+        }
+      }
+      return contains(cell.getCenter());
+    }
+
     S2Loop cellLoop = new S2Loop(cell, cellBound);
     S2Polygon cellPoly = new S2Polygon(cellLoop);
     return intersects(cellPoly);
   }
 
+  /**
+   * Returns -1 if the boundary of some loop crosses the boundary of the cell,
+   * 0 if some loop shares a vertex with the cell, and +1 otherwise.
+   */
+  private int checkCellCrossings(S2Cell cell) {
+    S2Point[] cellBoundary = S2Loop.getCellBoundary(cell);
+    S2LatLngRect cellBound = cell.getRectBound();
+    int result = 1;
+    for (int i = 0; i < numLoops(); ++i) {
+      S2Loop loop = loop(i);
+      if (!loop.getRectBound().intersects(cellBound)) {
+        continue;
+      }
+      result = Math.min(result, loop.checkCellCrossings(cellBoundary, null));
+      if (result < 0) {
+        return result;
+      }
+    }
+    return result;
+  }
+
   /**
    * The point 'p' does not need to be normalized.
    */
@@ -973,6 +1266,141 @@ public final strictfp class S2Polygon implements S2Region, Comparable<S2Polygon>
     children.add(newLoop);
   }
 
+  /**
+   * Builds the same hierarchy as calling insertLoop() for each loop, in time
+   * that grows with the number of loops whose bounds overlap rather than with
+   * the number of siblings. The parent of each loop is the most deeply nested
+   * loop that contains it, and the only loops that may contain it are those
+   * with a covering cell that contains its first vertex.
+   */
+  private static void insertLoopsIndexed(
+      List<S2Loop> loops, Map<S2Loop, List<S2Loop>> loopMap) {
+    int n = loops.size();
+    long[] cells = new long[n];
+    int[] owners = new int[n];
+    int numCells = 0;
+    List<S2CellId> covering = Lists.newArrayList();
+    for (int k = 0; k < n; ++k) {
+      getCovering(loops.get(k), covering);
+      if (numCells + covering.size() > cells.length) {
+        cells = Arrays.copyOf(cells, 2 * (numCells + covering.size()));
+        owners = Arrays.copyOf(owners, cells.length);
+      }
+      for (S2CellId id : covering) {
+        cells[numCells] = id.id();
+        owners[numCells++] = k;
+      }
+    }
+    // Sort the (cell, owner) pairs by cell. Flipping the sign bit maps the
+    // unsigned order of cell ids onto the signed order sortByCell() gives.
+    for (int i = 0; i < numCells; ++i) {
+      cells[i] ^= Long.MIN_VALUE;
+    }
+    S2EdgeIndex.sortByCell(cells, owners, 0, numCells, new long[numCells], new int[numCells]);
+    for (int i = 0; i < numCells; ++i) {
+      cells[i] ^= Long.MIN_VALUE;
+    }
+
+    // The loops containing each loop. The cells covering a loop are disjoint,
+    // so each loop is found at most once.
+    int[][] containers = new int[n][];
+    int[] candidates = new int[n];
+    for (int k = 0; k < n; ++k) {
+      S2Loop loop = loops.get(k);
+      S2CellId leaf = S2CellId.fromPoint(loop.vertex(0));
+      int numContainers = 0;
+      for (int level = 0; level <= S2CellId.MAX_LEVEL; ++level) {
+        long id = leaf.parent(level).id();
+        for (int i = S2CompactCellUnion.lowerBound(cells, 0, numCells, id);
+            i < numCells && cells[i] == id; ++i) {
+          int j = owners[i];
+          if (j != k && loops.get(j).containsNested(loop)) {
+            candidates[numContainers++] = j;
+          }
+        }
+      }
+      containers[k] = Arrays.copyOf(candidates, numContainers);
+    }
+
+    for (int k = 0; k < n; ++k) {
+      // The containers of a loop are nested in each other, so the deepest one
+      // is the one with the most containers of its own.
+      S2Loop parent = null;
+      int parentDepth = -1;
+      for (int j : containers[k]) {
+        if (containers[j].length > parentDepth) {
+          parent = loops.get(j);
+          parentDepth = containers[j].length;
+        }
+      }
+      List<S2Loop> children = loopMap.get(parent);
+      if (children == null) {
+        children = Lists.newArrayList();
+        loopMap.put(parent, children);
+      }
+      children.add(loops.get(k));
+    }
+  }
+
+  /**
+   * Sets "covering" to disjoint cells whose union contains the loop, in the
+   * same way as S2EdgeIndex covers an edge: the smallest cell that contains
+   * every vertex, if that is not much wider than the loop, or else the cell
+   * that contains the first vertex at the level whose cells are at least as
+   * wide as the loop, together with its neighbors.
+   */
+  private static void getCovering(S2Loop loop, List<S2CellId> covering) {
+    covering.clear();
+    S2Point first = loop.vertex(0);
+    S2CellId min = S2CellId.fromPoint(first);
+    S2CellId max = min;
+    boolean oneFace = true;
+    double radius = 0;
+    for (int i = 1; i < loop.numVertices(); ++i) {
+      S2CellId id = S2CellId.fromPoint(loop.vertex(i));
+      oneFace &= id.face() == min.face();
+      if (id.lessThan(min)) {
+        min = id;
+      } else if (max.lessThan(id)) {
+        max = id;
+      }
+      radius = Math.max(radius, first.angle(loop.vertex(i)));
+    }
+    int idealLevel = S2Projections.MIN_WIDTH.getMaxLevel(radius);
+
+    // Cells are convex, and a loop may not cover more than half the sphere, so
+    // a cell that contains the vertices contains the loop. Every cell between
+    // min and max in S2CellId order is a descendant of their common ancestor.
+    if (oneFace) {
+      S2CellId cell = min;
+      while (!cell.contains(max)) {
+        cell = cell.parent();
+      }
+      if (cell.level() >= idealLevel - 2) {
+        covering.add(cell);
+        return;
+      }
+    }
+    if (idealLevel == 0) {
+      for (int face = 0; face < 6; ++face) {
+        covering.add(S2CellId.fromFacePosLevel(face, 0, 0));
+      }
+      return;
+    }
+    // The loop lies within "radius" of its first vertex, and so within the
+    // cells next to the one that contains it.
+    S2CellId cell = S2CellId.fromPoint(first).parent(idealLevel);
+    List<S2CellId> neighbors = Lists.newArrayList();
+    cell.getAllNeighbors(idealLevel, neighbors);
+    covering.add(cell);
+    for (S2CellId neighbor : neighbors) {
+      // Neighbors may repeat near the corners of a face.
+      if (!covering.contains(neighbor)) {
+        covering.add(neighbor);
+      }
+    }
+  }
+
   private void initLoop(S2Loop loop, int depth, Map<S2Loop, List<S2Loop>> loopMap) {
     if (loop != null) {
       loop.setDepth(depth);
@@ -16,18 +16,10 @@
 
 package com.google.common.geometry;
 
-import com.google.common.collect.ForwardingMultimap;
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.HashMultiset;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
-import com.google.common.collect.Multimap;
-import com.google.common.collect.Multiset;
 
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.Stack;
 import java.util.logging.Logger;
 
 /**
@@ -59,13 +51,40 @@ import java.util.logging.Logger;
 public strictfp class S2PolygonBuilder {
   private static final Logger log = Logger.getLogger(S2PolygonBuilder.class.getCanonicalName());
 
-  private Options options;
+  private final Options options;
+
+  // The settings of "options" when this builder was created. Options are shared
+  // constants, so they are copied rather than read while building.
+  private final boolean undirectedEdges;
+  private final boolean xorEdges;
+  private final boolean validate;
+  private final S1Angle mergeDistance;
 
   /**
-   * The current set of edges, grouped by origin. The set of destination
-   * vertices is a multiset so that the same edge can be present more than once.
+   * The current set of edges, grouped by origin. Each vertex is numbered the
+   * first time it is seen, vertex i being vertices[i], and the destinations
+   * of its edges are out[i][0 .. outSize[i] - 1], a multiset so that the same
+   * edge can be present more than once. numEdges is the total of outSize.
    */
-  private Map<S2Point, Multiset<S2Point>> edges;
+  private S2Point[] vertices;
+  private int[][] out;
+  private int[] outSize;
+  private int numVertices;
+  private int numEdges;
+
+  /**
+   * An open-addressing hash table from vertex to number: slot s holds vertex
+   * slots[s] - 1, or nothing if slots[s] is 0.
+   */
+  private int[] slots;
+
+  // The path assembleLoop() follows, path[0 .. pathSize - 1], and the
+  // position in it of each vertex, or -1. The loop it returns is the end of
+  // the path from loopStart.
+  private int[] path;
+  private int pathSize;
+  private int loopStart;
+  private int[] pathIndex;
 
   /**
    * Default constructor for well-behaved polygons. Uses the DIRECTED_XOR
@@ -77,8 +96,21 @@ public strictfp class S2PolygonBuilder {
   }
 
   public S2PolygonBuilder(Options options) {
+    this(options, options.getMergeDistance());
+  }
+
+  /**
+   * Uses the given options, but with the given merge distance, without
+   * changing the options. The options are shared by every thread, so this is
+   * the way to use a merge distance of one's own.
+   */
+  S2PolygonBuilder(Options options, S1Angle mergeDistance) {
     this.options = options;
-    this.edges = Maps.newHashMap();
+    this.undirectedEdges = options.getUndirectedEdges();
+    this.xorEdges = options.getXorEdges();
+    this.validate = options.getValidate();
+    this.mergeDistance = mergeDistance;
+    clearVertices();
   }
 
   public enum Options {
@@ -223,32 +255,101 @@ public strictfp class S2PolygonBuilder {
    * where v0 == v1 are ignored.
    */
   public void addEdge(S2Point v0, S2Point v1) {
+    if (v0.equals(v1)) {
+      return;
+    }
+    addEdge(vertexId(v0), vertexId(v1));
+  }
+
+  private void addEdge(int v0, int v1) {
     // If xor_edges is true, we look for an existing edge in the opposite
     // direction. We either delete that edge or insert a new one.
 
-    if (v0.equals(v1)) {
+    if (v0 == v1) {
+      return;
+    }
+
+    if (xorEdges && indexOf(v1, v0) >= 0) {
+      eraseEdge(v1, v0);
       return;
     }
 
-    if (options.getXorEdges()) {
-      Multiset<S2Point> candidates = edges.get(v1);
-      if (candidates != null && candidates.count(v0) > 0) {
-        eraseEdge(v1, v0);
-        return;
+    addOut(v0, v1);
+    if (undirectedEdges) {
+      addOut(v1, v0);
+    }
+  }
+
+  private void addOut(int v0, int v1) {
+    int[] dests = out[v0];
+    if (dests == null) {
+      dests = out[v0] = new int[2];
+    } else if (outSize[v0] == dests.length) {
+      dests = out[v0] = Arrays.copyOf(dests, 2 * dests.length);
+    }
+    dests[outSize[v0]++] = v1;
+    ++numEdges;
+  }
+
+  /** The position of v1 among the destinations of v0, or -1. */
+  private int indexOf(int v0, int v1) {
+    int[] dests = out[v0];
+    for (int k = outSize[v0] - 1; k >= 0; --k) {
+      if (dests[k] == v1) {
+        return k;
       }
     }
+    return -1;
+  }
 
-    if (edges.get(v0) == null) {
-      edges.put(v0, HashMultiset.<S2Point>create());
+  /** Forgets all vertices. There must be no edges left. */
+  private void clearVertices() {
+    vertices = new S2Point[16];
+    out = new int[vertices.length][];
+    outSize = new int[vertices.length];
+    numVertices = 0;
+    numEdges = 0;
+    slots = new int[2 * vertices.length];
+  }
+
+  /** The slot of the given vertex, or of the empty slot where it belongs. */
+  private int slot(S2Point v) {
+    int mask = slots.length - 1;
+    int h = v.hashCode() * 0x9E3779B9;
+    int s = (h ^ (h >>> 16)) & mask;
+    while (slots[s] != 0 && !vertices[slots[s] - 1].equals(v)) {
+      s = (s + 1) & mask;
     }
+    return s;
+  }
 
-    edges.get(v0).add(v1);
-    if (options.getUndirectedEdges()) {
-      if (edges.get(v1) == null) {
-        edges.put(v1, HashMultiset.<S2Point>create());
+  /** The number of the given vertex, or -1 if it has not been seen. */
+  private int findVertex(S2Point v) {
+    return slots[slot(v)] - 1;
+  }
+
+  /** The number of the given vertex, numbering it if it has not been seen. */
+  private int vertexId(S2Point v) {
+    int s = slot(v);
+    if (slots[s] != 0) {
+      return slots[s] - 1;
+    }
+    if (numVertices == vertices.length) {
+      int capacity = 2 * numVertices;
+      vertices = Arrays.copyOf(vertices, capacity);
+      out = Arrays.copyOf(out, capacity);
+      outSize = Arrays.copyOf(outSize, capacity);
+    }
+    int id = numVertices++;
+    vertices[id] = v;
+    slots[s] = id + 1;
+    if (2 * numVertices > slots.length) {
+      slots = new int[2 * slots.length];
+      for (int i = 0; i < numVertices; ++i) {
+        slots[slot(vertices[i])] = i + 1;
       }
-      edges.get(v1).add(v0);
     }
+    return id;
   }
 
   /**
@@ -293,7 +394,7 @@ public strictfp class S2PolygonBuilder {
    * This method resets the S2PolygonBuilder state so that it can be reused.
    */
   public boolean assembleLoops(List<S2Loop> loops, List<S2Edge> unusedEdges) {
-    if (options.getMergeDistance().radians() > 0) {
+    if (mergeDistance.radians() > 0) {
       mergeVertices();
     }
 
@@ -307,13 +408,15 @@ public strictfp class S2PolygonBuilder {
     // includes extra edges that are not part of any loop.)
 
     unusedEdges.clear();
-    while (!edges.isEmpty()) {
-      Map.Entry<S2Point, Multiset<S2Point>> edge = edges.entrySet().iterator().next();
-
-      S2Point v0 = edge.getKey();
-      S2Point v1 = edge.getValue().iterator().next();
-
-      S2Loop loop = assembleLoop(v0, v1, unusedEdges);
+    path = new int[16];
+    pathIndex = new int[numVertices];
+    Arrays.fill(pathIndex, -1);
+    for (int v0 = 0; numEdges > 0;) {
+      if (outSize[v0] == 0) {
+        ++v0;
+        continue;
+      }
+      S2Loop loop = assembleLoop(v0, out[v0][0], unusedEdges);
       if (loop == null) {
         continue;
       }
@@ -324,12 +427,15 @@ public strictfp class S2PolygonBuilder {
       // This is guaranteed to assemble a loop that is interior to the previous
       // one and will therefore eventually terminate.
 
-      while (options.getUndirectedEdges() && !loop.isNormalized()) {
-        loop = assembleLoop(loop.vertex(1), loop.vertex(0), unusedEdges);
+      while (undirectedEdges && !loop.isNormalized()) {
+        loop = assembleLoop(path[loopStart + 1], path[loopStart], unusedEdges);
       }
       loops.add(loop);
-      eraseLoop(loop, loop.numVertices());
+      eraseLoop(loopStart, pathSize);
     }
+    path = null;
+    pathIndex = null;
+    clearVertices();
     return unusedEdges.isEmpty();
   }
 
@@ -355,12 +461,12 @@ public strictfp class S2PolygonBuilder {
 
     // If edges are undirected, then all loops are already CCW. Otherwise we
     // need to make sure the loops are normalized.
-    if (!options.getUndirectedEdges()) {
+    if (!undirectedEdges) {
       for (int i = 0; i < loops.size(); ++i) {
         loops.get(i).normalize();
       }
     }
-    if (options.getValidate() && !S2Polygon.isValid(loops)) {
+    if (validate && !S2Polygon.isValid(loops)) {
       if (unusedEdges != null) {
         for (S2Loop loop : loops) {
           rejectLoop(loop, loop.numVertices(), unusedEdges);
@@ -388,117 +494,116 @@ public strictfp class S2PolygonBuilder {
 
   protected void dumpEdges(S2Point v0) {
     log.info(v0.toString());
-    Multiset<S2Point> vset = edges.get(v0);
-    if (vset != null) {
-      for (S2Point v : vset) {
-        log.info("    " + v.toString());
+    int id = findVertex(v0);
+    if (id >= 0) {
+      for (int k = 0; k < outSize[id]; ++k) {
+        log.info("    " + vertices[out[id][k]].toString());
       }
     }
   }
 
   protected void dump() {
-    for (S2Point v : edges.keySet()) {
-      dumpEdges(v);
+    for (int i = 0; i < numVertices; ++i) {
+      if (outSize[i] > 0) {
+        dumpEdges(vertices[i]);
+      }
     }
   }
 
-  private void eraseEdge(S2Point v0, S2Point v1) {
+  private void eraseEdge(int v0, int v1) {
     // Note that there may be more than one copy of an edge if we are not XORing
-    // them, so a VertexSet is a multiset.
-
-    Multiset<S2Point> vset = edges.get(v0);
-    // assert (vset.count(v1) > 0);
-    vset.remove(v1);
-    if (vset.isEmpty()) {
-      edges.remove(v0);
+    // them, so the destinations are a multiset.
+    removeOut(v0, v1);
+    if (undirectedEdges) {
+      removeOut(v1, v0);
     }
+  }
 
-    if (options.getUndirectedEdges()) {
-      vset = edges.get(v1);
-      // assert (vset.count(v0) > 0);
-      vset.remove(v0);
-      if (vset.isEmpty()) {
-        edges.remove(v1);
-      }
-    }
+  private void removeOut(int v0, int v1) {
+    int k = indexOf(v0, v1);
+    // assert (k >= 0);
+    out[v0][k] = out[v0][--outSize[v0]];
+    --numEdges;
   }
 
-  private void eraseLoop(List<S2Point> v, int n) {
-    for (int i = n - 1, j = 0; j < n; i = j++) {
-      eraseEdge(v.get(i), v.get(j));
+  /** Erases the edges of the loop through path[from .. to - 1]. */
+  private void eraseLoop(int from, int to) {
+    for (int i = to - 1, j = from; j < to; i = j++) {
+      eraseEdge(path[i], path[j]);
     }
   }
 
-  private void eraseLoop(S2Loop v, int n) {
-    for (int i = n - 1, j = 0; j < n; i = j++) {
-      eraseEdge(v.vertex(i), v.vertex(j));
+  private void push(int v) {
+    if (pathSize == path.length) {
+      path = Arrays.copyOf(path, 2 * pathSize);
     }
+    path[pathSize++] = v;
   }
 
   /**
    * We start at the given edge and assemble a loop taking left turns whenever
    * possible. We stop the loop as soon as we encounter any vertex that we have
    * seen before *except* for the first vertex (v0). This ensures that only CCW
-   * loops are constructed when possible.
+   * loops are constructed when possible. The loop is also left in the path
+   * from loopStart.
    */
-  private S2Loop assembleLoop(S2Point v0, S2Point v1, List<S2Edge> unusedEdges) {
-
-    // The path so far.
-    List<S2Point> path = Lists.newArrayList();
-
-    // Maps a vertex to its index in "path".
-    Map<S2Point, Integer> index = Maps.newHashMap();
-    path.add(v0);
-    path.add(v1);
-
-    index.put(v1, 1);
-
-    while (path.size() >= 2) {
-      // Note that "v0" and "v1" become invalid if "path" is modified.
-      v0 = path.get(path.size() - 2);
-      v1 = path.get(path.size() - 1);
-
-      S2Point v2 = null;
-      boolean v2Found = false;
-      Multiset<S2Point> vset = edges.get(v1);
-      if (vset != null) {
-        for (S2Point v : vset) {
-          // We prefer the leftmost outgoing edge, ignoring any reverse edges.
-          if (v.equals(v0)) {
-            continue;
-          }
-          if (!v2Found || S2.orderedCCW(v0, v2, v, v1)) {
-            v2 = v;
-          }
-          v2Found = true;
+  private S2Loop assembleLoop(int v0, int v1, List<S2Edge> unusedEdges) {
+    pathSize = 0;
+    push(v0);
+    push(v1);
+    pathIndex[v1] = 1;
+
+    S2Loop loop = null;
+    while (pathSize >= 2) {
+      v0 = path[pathSize - 2];
+      v1 = path[pathSize - 1];
+
+      // We prefer the leftmost outgoing edge, ignoring any reverse edges.
+      int v2 = -1;
+      int[] dests = out[v1];
+      for (int k = 0; k < outSize[v1]; ++k) {
+        int v = dests[k];
+        if (v == v0) {
+          continue;
+        }
+        if (v2 < 0 || S2.orderedCCW(vertices[v0], vertices[v2], vertices[v], vertices[v1])) {
+          v2 = v;
         }
       }
-      if (!v2Found) {
+      if (v2 < 0) {
         // We've hit a dead end. Remove this edge and backtrack.
-        unusedEdges.add(new S2Edge(v0, v1));
+        unusedEdges.add(new S2Edge(vertices[v0], vertices[v1]));
         eraseEdge(v0, v1);
-        index.remove(v1);
-        path.remove(path.size() - 1);
-      } else if (index.get(v2) == null) {
+        pathIndex[v1] = -1;
+        --pathSize;
+      } else if (pathIndex[v2] < 0) {
         // This is the first time we've visited this vertex.
-        index.put(v2, path.size());
-        path.add(v2);
+        pathIndex[v2] = pathSize;
+        push(v2);
       } else {
         // We've completed a loop. Throw away any initial vertices that
         // are not part of the loop.
-        path = path.subList(index.get(v2), path.size());
+        loopStart = pathIndex[v2];
+        List<S2Point> points = Lists.newArrayListWithCapacity(pathSize - loopStart);
+        for (int i = loopStart; i < pathSize; ++i) {
+          points.add(vertices[path[i]]);
+        }
 
-        if (options.getValidate() && !S2Loop.isValid(path)) {
+        if (validate && !S2Loop.isValid(points)) {
           // We've constructed a loop that crosses itself, which can only happen
           // if there is bad input data. Throw away the whole loop.
-          rejectLoop(path, path.size(), unusedEdges);
-          eraseLoop(path, path.size());
-          return null;
+          rejectLoop(points, points.size(), unusedEdges);
+          eraseLoop(loopStart, pathSize);
+        } else {
+          loop = new S2Loop(points);
         }
-        return new S2Loop(path);
+        break;
       }
     }
-    return null;
+    for (int i = 0; i < pathSize; ++i) {
+      pathIndex[path[i]] = -1;
+    }
+    return loop;
   }
 
   /** Erases all edges of the given loop and marks them as unused. */
@@ -515,43 +620,24 @@ public strictfp class S2PolygonBuilder {
     }
   }
 
-  /** Moves a set of vertices from old to new positions. */
-  private void moveVertices(Map<S2Point, S2Point> mergeMap) {
-    if (mergeMap.isEmpty()) {
-      return;
-    }
-
-    // We need to copy the set of edges affected by the move, since
-    // this.edges_could be reallocated when we start modifying it.
-    List<S2Edge> edgesCopy = Lists.newArrayList();
-    for (Map.Entry<S2Point, Multiset<S2Point>> edge : this.edges.entrySet()) {
-      S2Point v0 = edge.getKey();
-      Multiset<S2Point> vset = edge.getValue();
-      for (S2Point v1 : vset) {
-        if (mergeMap.get(v0) != null || mergeMap.get(v1) != null) {
-
-          // We only need to modify one copy of each undirected edge.
-          if (!options.getUndirectedEdges() || v0.lessThan(v1)) {
-            edgesCopy.add(new S2Edge(v0, v1));
-          }
-        }
-      }
-    }
-
-    // Now erase all the old edges, and add all the new edges. This will
-    // automatically take care of any XORing that needs to be done, because
-    // EraseEdge also erases the sibiling of undirected edges.
-    for (int i = 0; i < edgesCopy.size(); ++i) {
-      S2Point v0 = edgesCopy.get(i).getStart();
-      S2Point v1 = edgesCopy.get(i).getEnd();
-      eraseEdge(v0, v1);
-      if (mergeMap.get(v0) != null) {
-        v0 = mergeMap.get(v0);
-      }
-      if (mergeMap.get(v1) != null) {
-        v1 = mergeMap.get(v1);
+  /**
+   * Moves vertices to new positions. The edges are given by the indices in
+   * "index" of their end points, point i being vertex vertexOf[i], and point i
+   * moves to point target[i] unless that is negative.
+   */
+  private void moveVertices(int[] vertexOf, int[] target, int[] edgeEnds, int numEdgeEnds) {
+    // The edges affected by the move were copied out of the edge lists before
+    // we start modifying them. Erase all the old edges, and add all the new
+    // edges. This will automatically take care of any XORing that needs to be
+    // done, because EraseEdge also erases the sibiling of undirected edges.
+    for (int e = 0; e < numEdgeEnds; e += 2) {
+      int i = edgeEnds[e];
+      int j = edgeEnds[e + 1];
+      if (target[i] < 0 && target[j] < 0) {
+        continue;
       }
-      addEdge(v0, v1);
+      eraseEdge(vertexOf[i], vertexOf[j]);
+      addEdge(vertexOf[target[i] < 0 ? i : target[i]], vertexOf[target[j] < 0 ? j : target[j]]);
     }
   }
 
@@ -566,73 +652,133 @@ public strictfp class S2PolygonBuilder {
     // vertices that are separated by at most merge_distance.
     //
     // We then choose a single representative vertex for each cluster, and
-    // update all the edges appropriately. We choose an arbitrary existing
-    // vertex rather than computing the centroid of all the vertices to avoid
-    // creating new vertex pairs that need to be merged. (We guarantee that all
-    // vertex pairs are separated by at least merge_distance in the output.)
-
-    PointIndex index = new PointIndex(options.getMergeDistance().radians());
-
-    for (Map.Entry<S2Point, Multiset<S2Point>> edge : edges.entrySet()) {
-      index.add(edge.getKey());
-      Multiset<S2Point> vset = edge.getValue();
-      for (S2Point v : vset) {
-        index.add(v);
+    // update all the edges appropriately. We choose an existing vertex rather
+    // than computing the centroid of all the vertices to avoid creating new
+    // vertex pairs that need to be merged. (We guarantee that all vertex pairs
+    // are separated by at least merge_distance in the output.) The vertex
+    // chosen is the least one in S2Point order, so it does not depend on the
+    // order in which edges were added, and a union of several polygons keeps
+    // the same vertices whichever order they are unioned in as long as each
+    // cluster is less than merge_distance across.
+
+    PointIndex index = new PointIndex(mergeDistance.radians(), numVertices);
+
+    // Index the vertices that are the end points of edges, and record each
+    // edge by the indices of its end points. We only need one copy of each
+    // undirected edge.
+    int[] pointOf = new int[numVertices];
+    Arrays.fill(pointOf, -1);
+    int[] vertexOf = new int[numVertices];
+    int[] edgeEnds = new int[2 * numEdges];
+    int numEdgeEnds = 0;
+    for (int v0 = 0; v0 < numVertices; ++v0) {
+      if (outSize[v0] == 0) {
+        continue;
+      }
+      int i = addPoint(index, v0, pointOf, vertexOf);
+      for (int k = 0; k < outSize[v0]; ++k) {
+        int v1 = out[v0][k];
+        int j = addPoint(index, v1, pointOf, vertexOf);
+        if (!undirectedEdges || vertices[v0].lessThan(vertices[v1])) {
+          edgeEnds[numEdgeEnds++] = i;
+          edgeEnds[numEdgeEnds++] = j;
+        }
       }
     }
 
     // Next, we loop through all the vertices and attempt to grow a maximial
-    // mergeable group starting from each vertex.
-
-    Map<S2Point, S2Point> mergeMap = Maps.newHashMap();
-    Stack<S2Point> frontier = new Stack<S2Point>();
-    List<S2Point> mergeable = Lists.newArrayList();
-
-    for (Map.Entry<S2CellId, MarkedS2Point> entry : index.entries()) {
-      MarkedS2Point point = entry.getValue();
-      if (point.isMarked()) {
+    // mergeable group starting from each vertex. Each vertex is marked, and so
+    // pushed onto the frontier, only once.
+    int numPoints = index.size();
+    int[] target = new int[numPoints];
+    Arrays.fill(target, -1);
+    int[] frontier = new int[numPoints];
+    int[] cluster = new int[numPoints];
+    boolean moved = false;
+    for (int start = 0; start < numPoints; ++start) {
+      if (index.isMarked(start)) {
         continue; // Already processed.
       }
-
-      point.mark();
-
-      // Grow a maximal mergeable component starting from "vstart", the
-      // canonical representative of the mergeable group.
-      S2Point vstart = point.getPoint();
-      frontier.push(vstart);
-      while (!frontier.isEmpty()) {
-        S2Point v0 = frontier.pop();
-
-        index.query(v0, mergeable);
-        for (S2Point v1 : mergeable) {
-          frontier.push(v1);
-          mergeMap.put(v1, vstart);
+      index.mark(start);
+
+      // Grow a maximal mergeable component starting from "start", keeping
+      // track of its least vertex, the canonical representative of the
+      // mergeable group.
+      int size = 0;
+      int least = start;
+      int top = 0;
+      frontier[top++] = start;
+      while (top > 0) {
+        int v0 = frontier[--top];
+        int end = index.query(v0, frontier, top);
+        for (int k = top; k < end; ++k) {
+          int v = frontier[k];
+          cluster[size++] = v;
+          if (index.point(v).lessThan(index.point(least))) {
+            least = v;
+          }
+        }
+        top = end;
+      }
+      if (size > 0) {
+        moved = true;
+        target[start] = least;
+        for (int k = 0; k < size; ++k) {
+          target[cluster[k]] = least;
         }
+        target[least] = -1;
       }
     }
 
-    // Finally, we need to replace vertices according to the merge_map.
-    moveVertices(mergeMap);
+    // Finally, we need to replace vertices according to the merge map.
+    if (moved) {
+      moveVertices(vertexOf, target, edgeEnds, numEdgeEnds);
+    }
+  }
+
+  /** Adds vertex v to the index if it is not there yet, and returns its index. */
+  private int addPoint(PointIndex index, int v, int[] pointOf, int[] vertexOf) {
+    if (pointOf[v] < 0) {
+      pointOf[v] = index.add(vertices[v]);
+      vertexOf[pointOf[v]] = v;
+    }
+    return pointOf[v];
   }
 
   /**
    * A PointIndex is a cheap spatial index to help us find mergeable vertices.
    * Given a set of points, it can efficiently find all of the points within a
    * given search radius of an arbitrary query location. It is essentially just
-   * a hash map from cell ids at a given fixed level to the set of points
-   * contained by that cell id.
+   * an open-addressing hash table from cell ids at a given fixed level to the
+   * indices of the points contained by that cell id. The coordinates of the
+   * points are kept in a flat array, so queries allocate nothing.
    *
    *  This class is not suitable for general use because it only supports
    * fixed-radius queries and has various special-purpose operations to avoid
    * the need for additional data structures.
    */
-  private class PointIndex extends ForwardingMultimap<S2CellId, MarkedS2Point> {
-    private double searchRadius;
-    private int level;
-    private final Multimap<S2CellId, MarkedS2Point> delegate = HashMultimap.create();
-
-    public PointIndex(double searchRadius) {
-
+  private static final class PointIndex {
+    private final double searchRadius;
+    private final int level;
+
+    // The points, their coordinates (x, y and z of point i at 3 * i), and
+    // whether they have been marked.
+    private S2Point[] points;
+    private double[] coords;
+    private boolean[] marked;
+    private int size;
+
+    // The hash table. Slot s holds the cell id keys[s], which is 0 for an
+    // empty slot as no valid cell id is 0, and the indices of the points in
+    // that cell, cellPoints[s][0 .. cellSizes[s] - 1].
+    private long[] keys;
+    private int[][] cellPoints;
+    private int[] cellSizes;
+    private int numCells;
+
+    private final List<S2CellId> neighbors = Lists.newArrayListWithCapacity(4);
+
+    public PointIndex(double searchRadius, int expectedPoints) {
       this.searchRadius = searchRadius;
 
       // We choose a cell level such that if dist(A,B) <= search_radius, the
@@ -642,75 +788,142 @@ public strictfp class S2PolygonBuilder {
       // fits completely inside all cells at that level.
       this.level =
           Math.min(S2Projections.MIN_WIDTH.getMaxLevel(2 * searchRadius), S2CellId.MAX_LEVEL - 1);
+
+      int capacity = Math.max(expectedPoints, 4);
+      points = new S2Point[capacity];
+      coords = new double[3 * capacity];
+      marked = new boolean[capacity];
+      int slots = Integer.highestOneBit(2 * capacity - 1) << 1;
+      keys = new long[slots];
+      cellPoints = new int[slots][];
+      cellSizes = new int[slots];
     }
 
-    @Override
-    protected Multimap<S2CellId, MarkedS2Point> delegate() {
-      return delegate;
+    public int size() {
+      return size;
     }
 
-    /** Add a point to the index if it does not already exist. */
-    public void add(S2Point p) {
-      S2CellId id = S2CellId.fromPoint(p).parent(level);
-      Collection<MarkedS2Point> pointSet = get(id);
-      for (MarkedS2Point point : pointSet) {
-        if (point.getPoint().equals(p)) {
-          return;
-        }
+    public S2Point point(int i) {
+      return points[i];
+    }
+
+    public boolean isMarked(int i) {
+      return marked[i];
+    }
+
+    public void mark(int i) {
+      // assert (!isMarked(i));
+      marked[i] = true;
+    }
+
+    /** The slot of the given cell, or of the empty slot where it belongs. */
+    private int slot(long key) {
+      int mask = keys.length - 1;
+      long h = key * 0x9E3779B97F4A7C15L;
+      int s = (int) (h ^ (h >>> 32)) & mask;
+      while (keys[s] != 0 && keys[s] != key) {
+        s = (s + 1) & mask;
       }
-      put(id, new MarkedS2Point(p));
+      return s;
     }
 
     /**
-     * Return the set the unmarked points whose distance to "center" is less
-     * than search_radius_, and mark these points. By construction, these points
-     * will be contained by one of the vertex neighbors of "center".
+     * Add a point to the index if it does not already exist, and return its
+     * index.
      */
-    public void query(S2Point center, List<S2Point> output) {
-      output.clear();
+    public int add(S2Point p) {
+      long key = S2CellId.fromPoint(p).parent(level).id();
+      int s = slot(key);
+      int[] cell = cellPoints[s];
+      if (keys[s] == 0) {
+        keys[s] = key;
+        cell = cellPoints[s] = new int[2];
+        if (++numCells > keys.length / 2) {
+          grow();
+          s = slot(key);
+        }
+      } else {
+        for (int k = 0; k < cellSizes[s]; ++k) {
+          if (points[cell[k]].equals(p)) {
+            return cell[k];
+          }
+        }
+      }
+
+      if (size == points.length) {
+        points = Arrays.copyOf(points, 2 * size);
+        coords = Arrays.copyOf(coords, 6 * size);
+        marked = Arrays.copyOf(marked, 2 * size);
+      }
+      int i = size++;
+      points[i] = p;
+      coords[3 * i] = p.x;
+      coords[3 * i + 1] = p.y;
+      coords[3 * i + 2] = p.z;
+      if (cellSizes[s] == cell.length) {
+        cell = cellPoints[s] = Arrays.copyOf(cell, 2 * cell.length);
+      }
+      cell[cellSizes[s]++] = i;
+      return i;
+    }
+
+    private void grow() {
+      long[] oldKeys = keys;
+      int[][] oldCellPoints = cellPoints;
+      int[] oldCellSizes = cellSizes;
+      keys = new long[2 * oldKeys.length];
+      cellPoints = new int[keys.length][];
+      cellSizes = new int[keys.length];
+      for (int t = 0; t < oldKeys.length; ++t) {
+        if (oldKeys[t] != 0) {
+          int s = slot(oldKeys[t]);
+          keys[s] = oldKeys[t];
+          cellPoints[s] = oldCellPoints[t];
+          cellSizes[s] = oldCellSizes[t];
+        }
+      }
+    }
 
-      List<S2CellId> neighbors = Lists.newArrayList();
-      S2CellId.fromPoint(center).getVertexNeighbors(level, neighbors);
+    /**
+     * Find the unmarked points whose distance to point "center" is at most
+     * search_radius, mark them, and push their indices onto "stack" starting at
+     * position "top". Returns the new top of the stack. By construction, these
+     * points will be contained by one of the vertex neighbors of "center".
+     */
+    public int query(int center, int[] stack, int top) {
+      double cx = coords[3 * center];
+      double cy = coords[3 * center + 1];
+      double cz = coords[3 * center + 2];
+      neighbors.clear();
+      S2CellId.fromPoint(points[center]).getVertexNeighbors(level, neighbors);
       for (S2CellId id : neighbors) {
+        int s = slot(id.id());
+        if (keys[s] == 0) {
+          continue;
+        }
         // Iterate over the points contained by each vertex neighbor.
-        for (MarkedS2Point mp : get(id)) {
-          if (mp.isMarked()) {
+        int[] cell = cellPoints[s];
+        for (int k = 0; k < cellSizes[s]; ++k) {
+          int i = cell[k];
+          if (marked[i]) {
             continue;
           }
-          S2Point p = mp.getPoint();
-
-          if (center.angle(p) <= searchRadius) {
-            output.add(p);
-            mp.mark();
+          // The angle between the points, as computed by S2Point.angle().
+          double x = coords[3 * i];
+          double y = coords[3 * i + 1];
+          double z = coords[3 * i + 2];
+          double crossX = cy * z - cz * y;
+          double crossY = cz * x - cx * z;
+          double crossZ = cx * y - cy * x;
+          double angle = Math.atan2(Math.sqrt(crossX * crossX + crossY * crossY + crossZ * crossZ),
+              cx * x + cy * y + cz * z);
+          if (angle <= searchRadius) {
+            marked[i] = true;
+            stack[top++] = i;
           }
         }
       }
-    }
-  }
-
-  /**
-   * An S2Point that can be marked. Used in PointIndex.
-   */
-  private class MarkedS2Point {
-    private S2Point point;
-    private boolean mark;
-
-    public MarkedS2Point(S2Point point) {
-      this.point = point;
-      this.mark = false;
-    }
-
-    public boolean isMarked() {
-      return mark;
-    }
-
-    public S2Point getPoint() {
-      return point;
-    }
-
-    public void mark() {
-      // assert (!isMarked());
-      this.mark = true;
+      return top;
     }
   }
 }
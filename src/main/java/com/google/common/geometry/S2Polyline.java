@@ -18,6 +18,7 @@ package com.google.common.geometry;
 
 import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
 
 import java.util.Arrays;
 import java.util.List;
@@ -247,6 +248,22 @@ public final strictfp class S2Polyline implements S2Region {
     return S2EdgeUtil.getClosestPoint(point, vertex(index), vertex(index + 1));
   }
 
+  /**
+   * Return a simplified copy of this polyline that keeps its end points, and
+   * in which every vertex is within "tolerance" of the simplified polyline.
+   * Vertices are only removed where this does not make the polyline touch
+   * itself, so a polyline that does not cross itself still does not afterwards.
+   */
+  public S2Polyline simplify(S1Angle tolerance) {
+    S2Simplifier simplifier = new S2Simplifier(new S2Point[][] {vertices}, false);
+    int[] kept = simplifier.simplify(0, tolerance.radians());
+    List<S2Point> simplified = Lists.newArrayListWithCapacity(kept.length);
+    for (int i : kept) {
+      simplified.add(vertices[i]);
+    }
+    return new S2Polyline(simplified);
+  }
+
   @Override
   public boolean equals(Object that) {
     if (!(that instanceof S2Polyline)) {
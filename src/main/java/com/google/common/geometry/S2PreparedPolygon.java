@@ -0,0 +1,249 @@
+/*
+ * Copyright 2005 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.common.geometry;
+
+import java.util.ArrayList;
+
+/**
+ * An S2PreparedPolygon answers point containment queries against a fixed
+ * polygon in roughly constant time, for testing many points against the same
+ * polygon.
+ *
+ *  On construction, the sphere is subdivided into cells until each cell meets
+ * at most MAX_EDGES_PER_CELL edges of the polygon. For every such cell the
+ * index keeps the edges that meet it and whether the cell's center is inside
+ * the polygon; cells that meet no edges and lie outside the polygon are
+ * dropped. A point is then located by a binary search over the cells, and its
+ * containment follows from the center's by counting the crossings of the
+ * segment from the center to the point with the cell's edges.
+ *
+ *  contains(S2Point) gives the same results as S2Polygon.contains(S2Point),
+ * including at the polygon's vertices. Points within rounding error of the
+ * interior of an edge may come out either way, since the crossings are counted
+ * from a different reference point. An S2PreparedPolygon is immutable and may
+ * be shared between threads.
+ *
+ */
+public final strictfp class S2PreparedPolygon {
+
+  /** Cells are subdivided until they meet at most this many edges. */
+  public static final int MAX_EDGES_PER_CELL = 10;
+
+  /**
+   * An edge whose endpoints are further than this outside the same edge of a
+   * cell, or a cell whose vertices are all further than this from an edge's
+   * great circle, do not intersect.
+   */
+  private static final double MARGIN = 1e-14;
+
+  private final S2Polygon polygon;
+
+  // The indexed cells in increasing order. Cell i has center cellCenters[i]
+  // and meets the edges edgeStarts[i] .. edgeStarts[i + 1] - 1.
+  private final long[] cellIds;
+  private final S2Point[] cellCenters;
+  private final boolean[] centerInside;
+  private final int[] edgeStarts;
+  private final S2Point[] edgeFrom;
+  private final S2Point[] edgeTo;
+
+  /** Builds the index for the given polygon, which must not be modified later. */
+  public S2PreparedPolygon(S2Polygon polygon) {
+    this.polygon = polygon;
+
+    int numEdges = 0;
+    for (int k = 0; k < polygon.numLoops(); ++k) {
+      numEdges += polygon.loop(k).numVertices();
+    }
+    S2Point[] from = new S2Point[numEdges];
+    S2Point[] to = new S2Point[numEdges];
+    int e = 0;
+    for (int k = 0; k < polygon.numLoops(); ++k) {
+      S2Loop loop = polygon.loop(k);
+      for (int i = 0; i < loop.numVertices(); ++i, ++e) {
+        from[e] = loop.vertex(i);
+        to[e] = loop.vertex(i + 1);
+      }
+    }
+
+    Builder builder = new Builder(from, to);
+    int[] all = new int[numEdges];
+    for (int i = 0; i < numEdges; ++i) {
+      all[i] = i;
+    }
+    for (int face = 0; face < 6; ++face) {
+      S2Cell cell = S2Cell.fromFacePosLevel(face, (byte) 0, 0);
+      S2Point center = cell.getCenter();
+      builder.build(cell, center, polygon.contains(center), all, numEdges);
+    }
+
+    int numCells = builder.cellIds.size();
+    cellIds = new long[numCells];
+    cellCenters = new S2Point[numCells];
+    centerInside = new boolean[numCells];
+    edgeStarts = new int[numCells + 1];
+    for (int i = 0; i < numCells; ++i) {
+      cellIds[i] = builder.cellIds.get(i);
+      cellCenters[i] = builder.cellCenters.get(i);
+      centerInside[i] = builder.centerInside.get(i);
+      edgeStarts[i + 1] = builder.edgeStarts.get(i + 1);
+    }
+    edgeFrom = builder.edgeFrom.toArray(new S2Point[builder.edgeFrom.size()]);
+    edgeTo = builder.edgeTo.toArray(new S2Point[builder.edgeTo.size()]);
+  }
+
+  public S2Polygon polygon() {
+    return polygon;
+  }
+
+  /** The number of cells in the index. */
+  public int numCells() {
+    return cellIds.length;
+  }
+
+  /**
+   * Return true if the polygon contains the point. The point does not need to
+   * be normalized.
+   */
+  public boolean contains(S2Point p) {
+    long id = S2CellId.fromPoint(p).id();
+    int pos = S2CompactCellUnion.lowerBound(cellIds, 0, cellIds.length, id);
+    if (pos == cellIds.length || S2CellIds.greaterThan(S2CellIds.rangeMin(cellIds[pos]), id)) {
+      if (pos == 0 || S2CellIds.lessThan(S2CellIds.rangeMax(cellIds[pos - 1]), id)) {
+        return false; // Not in any indexed cell, so outside the polygon.
+      }
+      --pos;
+    }
+
+    boolean inside = centerInside[pos];
+    int start = edgeStarts[pos];
+    int end = edgeStarts[pos + 1];
+    if (start == end) {
+      return inside;
+    }
+    // The segment from the center to p lies within the cell, so only the
+    // cell's edges can cross it.
+    S2EdgeUtil.EdgeCrosser crosser =
+        new S2EdgeUtil.EdgeCrosser(cellCenters[pos], p, edgeFrom[start]);
+    for (int i = start; i < end; ++i) {
+      if (i > start) {
+        crosser.restartAt(edgeFrom[i]);
+      }
+      inside ^= crosser.edgeOrVertexCrossing(edgeTo[i]);
+    }
+    return inside;
+  }
+
+  /** Accumulates the index cells during construction. */
+  private static final class Builder {
+    private final S2Point[] from;
+    private final S2Point[] to;
+
+    final ArrayList<Long> cellIds = new ArrayList<Long>();
+    final ArrayList<S2Point> cellCenters = new ArrayList<S2Point>();
+    final ArrayList<Boolean> centerInside = new ArrayList<Boolean>();
+    final ArrayList<Integer> edgeStarts = new ArrayList<Integer>();
+    final ArrayList<S2Point> edgeFrom = new ArrayList<S2Point>();
+    final ArrayList<S2Point> edgeTo = new ArrayList<S2Point>();
+
+    Builder(S2Point[] from, S2Point[] to) {
+      this.from = from;
+      this.to = to;
+      edgeStarts.add(0);
+    }
+
+    /**
+     * Indexes the cell, given its center, whether the center is inside the
+     * polygon, and the first "count" entries of "edges", which include every
+     * edge that meets the cell. Cells are visited in increasing order.
+     */
+    void build(S2Cell cell, S2Point center, boolean inside, int[] edges, int count) {
+      S2Point[] vertices = new S2Point[4];
+      S2Point[] normals = new S2Point[4];
+      for (int k = 0; k < 4; ++k) {
+        vertices[k] = cell.getVertex(k);
+        normals[k] = cell.getEdge(k);
+      }
+      int[] cellEdges = new int[count];
+      int numCellEdges = 0;
+      for (int i = 0; i < count; ++i) {
+        if (mayIntersect(from[edges[i]], to[edges[i]], vertices, normals)) {
+          cellEdges[numCellEdges++] = edges[i];
+        }
+      }
+
+      if (numCellEdges <= MAX_EDGES_PER_CELL || cell.isLeaf()) {
+        if (numCellEdges == 0 && !inside) {
+          return;
+        }
+        cellIds.add(cell.id().id());
+        cellCenters.add(center);
+        centerInside.add(inside);
+        for (int i = 0; i < numCellEdges; ++i) {
+          edgeFrom.add(from[cellEdges[i]]);
+          edgeTo.add(to[cellEdges[i]]);
+        }
+        edgeStarts.add(edgeFrom.size());
+        return;
+      }
+
+      S2Cell[] children = new S2Cell[4];
+      for (int i = 0; i < 4; ++i) {
+        children[i] = new S2Cell();
+      }
+      cell.subdivide(children);
+      for (S2Cell child : children) {
+        // The child's center lies in this cell, so only this cell's edges can
+        // cross the segment between the two centers.
+        S2Point childCenter = child.getCenter();
+        boolean childInside = inside;
+        for (int i = 0; i < numCellEdges; ++i) {
+          childInside ^= S2EdgeUtil.edgeOrVertexCrossing(
+              center, childCenter, from[cellEdges[i]], to[cellEdges[i]]);
+        }
+        build(child, childCenter, childInside, cellEdges, numCellEdges);
+      }
+    }
+
+    /**
+     * Returns false only if the edge ab certainly does not meet the cell with
+     * the given vertices and inward edge normals.
+     */
+    private static boolean mayIntersect(
+        S2Point a, S2Point b, S2Point[] vertices, S2Point[] normals) {
+      // Both endpoints outside the same edge of the cell.
+      for (int k = 0; k < 4; ++k) {
+        if (normals[k].dotProd(a) < -MARGIN && normals[k].dotProd(b) < -MARGIN) {
+          return false;
+        }
+      }
+      // All the cell's vertices on the same side of the edge's great circle.
+      S2Point n = S2Point.crossProd(a, b);
+      double margin = MARGIN * n.norm();
+      int above = 0;
+      int below = 0;
+      for (int k = 0; k < 4; ++k) {
+        double d = n.dotProd(vertices[k]);
+        if (d > margin) {
+          ++above;
+        } else if (d < -margin) {
+          ++below;
+        }
+      }
+      return above != 4 && below != 4;
+    }
+  }
+}
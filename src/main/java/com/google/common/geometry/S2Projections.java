@@ -287,43 +287,70 @@ public final strictfp class S2Projections {
 
   public static R2Vector validFaceXyzToUv(int face, S2Point p) {
     // assert (p.dotProd(faceUvToXyz(face, 0, 0)) > 0);
-    double pu;
-    double pv;
+    return new R2Vector(validFaceXyzToU(face, p.x, p.y, p.z), validFaceXyzToV(face, p.x, p.y, p.z));
+  }
+
+  /**
+   * Return the u-coordinate of the direction vector (x, y, z) on the given
+   * face. The vector must lie in the half-space of that face, as for
+   * validFaceXyzToUv().
+   */
+  public static double validFaceXyzToU(int face, double x, double y, double z) {
     switch (face) {
       case 0:
-        pu = p.y / p.x;
-        pv = p.z / p.x;
-        break;
+        return y / x;
       case 1:
-        pu = -p.x / p.y;
-        pv = p.z / p.y;
-        break;
+        return -x / y;
       case 2:
-        pu = -p.x / p.z;
-        pv = -p.y / p.z;
-        break;
+        return -x / z;
       case 3:
-        pu = p.z / p.x;
-        pv = p.y / p.x;
-        break;
+        return z / x;
       case 4:
-        pu = p.z / p.y;
-        pv = -p.x / p.y;
-        break;
+        return z / y;
       default:
-        pu = -p.y / p.z;
-        pv = -p.x / p.z;
-        break;
+        return -y / z;
+    }
+  }
+
+  /**
+   * Return the v-coordinate of the direction vector (x, y, z) on the given
+   * face. The vector must lie in the half-space of that face, as for
+   * validFaceXyzToUv().
+   */
+  public static double validFaceXyzToV(int face, double x, double y, double z) {
+    switch (face) {
+      case 0:
+        return z / x;
+      case 1:
+        return z / y;
+      case 2:
+        return -y / z;
+      case 3:
+        return y / x;
+      case 4:
+        return -x / y;
+      default:
+        return -x / z;
     }
-    return new R2Vector(pu, pv);
   }
 
   public static int xyzToFace(S2Point p) {
-    int face = p.largestAbsComponent();
-    if (p.get(face) < 0) {
-      face += 3;
+    return xyzToFace(p.x, p.y, p.z);
+  }
+
+  /** As xyzToFace(S2Point), for a direction vector given by its components. */
+  public static int xyzToFace(double x, double y, double z) {
+    double ax = Math.abs(x);
+    double ay = Math.abs(y);
+    double az = Math.abs(z);
+    if (ax > ay) {
+      if (ax > az) {
+        return x < 0 ? 3 : 0;
+      }
+    } else if (ay > az) {
+      return y < 0 ? 4 : 1;
     }
-    return face;
+    return z < 0 ? 5 : 2;
   }
 
   public static R2Vector faceXyzToUv(int face, S2Point p) {
@@ -18,9 +18,12 @@ package com.google.common.geometry;
 import com.google.common.base.Preconditions;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashSet;
 import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * An S2RegionCoverer is a class that allows arbitrary regions to be
@@ -49,8 +52,20 @@ import java.util.PriorityQueue;
  * lot of time subdividing cells all the way to leaf level to try to find
  * contained cells.
  *
- *  This class is thread-unsafe. Simultaneous calls to any of the getCovering
- * methods will conflict and produce unpredictable results.
+ *  The parameters of a coverer are held in an immutable {@link Options}
+ * object, and each call to one of the getCovering methods works on its own
+ * private state. A single coverer can therefore be shared by many threads. The
+ * setters replace the options atomically; a call that is already running keeps
+ * using the options it started with. The getCovering overloads that take an
+ * Options argument use those options for that call only.
+ *
+ *  When many regions are covered one after another, setRecycleCandidates(true)
+ * makes the coverer keep the candidates (and their cells) it creates and reuse
+ * them in later calls, which removes most of the per-cell allocation.
+ *
+ *  For very large coverings of expensive regions (e.g. polygons with many
+ * vertices), getCoveringParallel() spreads the region tests over a fork/join
+ * pool. The result is identical to getCovering().
  *
  */
 public final strictfp class S2RegionCoverer {
@@ -69,30 +84,109 @@ public final strictfp class S2RegionCoverer {
     }
   }
 
+  /**
+   * The immutable parameters of a covering. The with*() methods return a copy
+   * with one parameter changed, clamped to its valid range in the same way as
+   * the corresponding S2RegionCoverer setter.
+   */
+  public static final class Options {
 
-  private int minLevel;
-  private int maxLevel;
-  private int levelMod;
-  private int maxCells;
+    /** All cell levels, level_mod 1 and DEFAULT_MAX_CELLS cells. */
+    public static final Options DEFAULT =
+        new Options(0, S2CellId.MAX_LEVEL, 1, DEFAULT_MAX_CELLS);
 
-  // True if we're computing an interior covering.
-  private boolean interiorCovering;
+    private final int minLevel;
+    private final int maxLevel;
+    private final int levelMod;
+    private final int maxCells;
 
-  // Counter of number of candidates created, for performance evaluation.
-  private int candidatesCreatedCounter;
+    private Options(int minLevel, int maxLevel, int levelMod, int maxCells) {
+      this.minLevel = minLevel;
+      this.maxLevel = maxLevel;
+      this.levelMod = levelMod;
+      this.maxCells = maxCells;
+    }
 
-  /**
-   * We save a temporary copy of the pointer passed to GetCovering() in order to
-   * avoid passing this parameter around internally. It is only used (and only
-   * valid) for the duration of a single GetCovering() call.
-   */
-  S2Region region;
+    public int minLevel() {
+      return minLevel;
+    }
 
-  /**
-   * A temporary variable used by GetCovering() that holds the cell ids that
-   * have been added to the covering so far.
-   */
-  ArrayList<S2CellId> result;
+    public int maxLevel() {
+      return maxLevel;
+    }
+
+    public int levelMod() {
+      return levelMod;
+    }
+
+    public int maxCells() {
+      return maxCells;
+    }
+
+    /** See {@link S2RegionCoverer#setMinLevel(int)}. */
+    public Options withMinLevel(int minLevel) {
+      // assert (minLevel >= 0 && minLevel <= S2CellId.MAX_LEVEL);
+      return new Options(Math.max(0, Math.min(S2CellId.MAX_LEVEL, minLevel)), maxLevel,
+          levelMod, maxCells);
+    }
+
+    /** See {@link S2RegionCoverer#setMaxLevel(int)}. */
+    public Options withMaxLevel(int maxLevel) {
+      // assert (maxLevel >= 0 && maxLevel <= S2CellId.MAX_LEVEL);
+      return new Options(minLevel, Math.max(0, Math.min(S2CellId.MAX_LEVEL, maxLevel)),
+          levelMod, maxCells);
+    }
+
+    /** See {@link S2RegionCoverer#setLevelMod(int)}. */
+    public Options withLevelMod(int levelMod) {
+      // assert (levelMod >= 1 && levelMod <= 3);
+      return new Options(minLevel, maxLevel, Math.max(1, Math.min(3, levelMod)), maxCells);
+    }
+
+    /** See {@link S2RegionCoverer#setMaxCells(int)}. */
+    public Options withMaxCells(int maxCells) {
+      return new Options(minLevel, maxLevel, levelMod, maxCells);
+    }
+
+    @Override
+    public boolean equals(Object that) {
+      if (!(that instanceof Options)) {
+        return false;
+      }
+      Options other = (Options) that;
+      return minLevel == other.minLevel && maxLevel == other.maxLevel
+          && levelMod == other.levelMod && maxCells == other.maxCells;
+    }
+
+    @Override
+    public int hashCode() {
+      int value = 17;
+      value = 37 * value + minLevel;
+      value = 37 * value + maxLevel;
+      value = 37 * value + levelMod;
+      value = 37 * value + maxCells;
+      return value;
+    }
+
+    @Override
+    public String toString() {
+      return "[minLevel=" + minLevel + ", maxLevel=" + maxLevel + ", levelMod=" + levelMod
+          + ", maxCells=" + maxCells + "]";
+    }
+  }
+
+  private volatile Options options;
+
+  // True if candidates are recycled between calls; see setRecycleCandidates().
+  private volatile boolean recycleCandidates;
+
+  // The number of candidates created by the most recent call, for performance
+  // evaluation.
+  private volatile int candidatesCreatedCounter;
+
+  // Idle per-call states kept for reuse when recycleCandidates is true. Each
+  // running call takes its own state, so concurrent calls never share one.
+  private final ArrayList<Covering> idleCoverings = new ArrayList<Covering>();
 
 
   static class Candidate {
@@ -101,51 +195,44 @@ public final strictfp class S2RegionCoverer {
     private int numChildren; // Number of children that intersect the region.
     private Candidate[] children; // Actual size may be 0, 4, 16, or 64
     // elements.
-  }
-
-  static class QueueEntry {
-    private int id;
-    private Candidate candidate;
-
-    public QueueEntry(int id, Candidate candidate) {
-      this.id = id;
-      this.candidate = candidate;
-    }
+    private int priority; // Priority in the candidate queue.
+    private boolean isExpanded; // Children populated ahead of time (parallel mode).
+    private int numTerminals; // Number of terminal children, once expanded.
   }
 
   /**
-   * We define our own comparison function on QueueEntries in order to make the
-   * results deterministic. Using the default less<QueueEntry>, entries of equal
-   * priority would be sorted according to the memory address of the candidate.
+   * We define our own comparison function on queued candidates in order to
+   * make the results deterministic. Using the default less<QueueEntry>, entries
+   * of equal priority would be sorted according to the memory address of the
+   * candidate.
    */
-  static class QueueEntriesComparator implements Comparator<QueueEntry> {
+  static class CandidateComparator implements Comparator<Candidate> {
     @Override
-    public int compare(S2RegionCoverer.QueueEntry x, S2RegionCoverer.QueueEntry y) {
-      return x.id < y.id ? 1 : (x.id > y.id ? -1 : 0);
+    public int compare(Candidate x, Candidate y) {
+      return x.priority < y.priority ? 1 : (x.priority > y.priority ? -1 : 0);
     }
   }
 
-
-  /**
-   * We keep the candidates in a priority queue. We specify a vector to hold the
-   * queue entries since for some reason priority_queue<> uses a deque by
-   * default.
-   */
-  private PriorityQueue<QueueEntry> candidateQueue;
-
   /**
    * Default constructor, sets all fields to default values.
    */
   public S2RegionCoverer() {
-    minLevel = 0;
-    maxLevel = S2CellId.MAX_LEVEL;
-    levelMod = 1;
-    maxCells = DEFAULT_MAX_CELLS;
-    this.region = null;
-    result = new ArrayList<S2CellId>();
-    // TODO(kirilll?): 10 is a completely random number, work out a better
-    // estimate
-    candidateQueue = new PriorityQueue<QueueEntry>(10, new QueueEntriesComparator());
+    this(Options.DEFAULT);
+  }
+
+  /** Constructs a coverer with the given options. */
+  public S2RegionCoverer(Options options) {
+    this.options = Preconditions.checkNotNull(options);
+  }
+
+  /** Return the current options of this coverer. */
+  public Options options() {
+    return options;
+  }
+
+  /** Replaces all the options of this coverer at once. */
+  public void setOptions(Options options) {
+    this.options = Preconditions.checkNotNull(options);
   }
 
   // Set the minimum and maximum cell level to be used. The default is to use
@@ -165,29 +252,27 @@ public final strictfp class S2RegionCoverer {
   /**
    * Sets the minimum level to be used.
    */
-  public void setMinLevel(int minLevel) {
-    // assert (minLevel >= 0 && minLevel <= S2CellId.MAX_LEVEL);
-    this.minLevel = Math.max(0, Math.min(S2CellId.MAX_LEVEL, minLevel));
+  public synchronized void setMinLevel(int minLevel) {
+    options = options.withMinLevel(minLevel);
   }
 
   /**
    * Sets the maximum level to be used.
    */
-  public void setMaxLevel(int maxLevel) {
-    // assert (maxLevel >= 0 && maxLevel <= S2CellId.MAX_LEVEL);
-    this.maxLevel = Math.max(0, Math.min(S2CellId.MAX_LEVEL, maxLevel));
+  public synchronized void setMaxLevel(int maxLevel) {
+    options = options.withMaxLevel(maxLevel);
   }
 
   public int minLevel() {
-    return minLevel;
+    return options.minLevel();
   }
 
   public int maxLevel() {
-    return maxLevel;
+    return options.maxLevel();
   }
 
   public int maxCells() {
-    return maxCells;
+    return options.maxCells();
   }
 
   /**
@@ -197,13 +282,12 @@ public final strictfp class S2RegionCoverer {
    * parameter values allowed are 1, 2, or 3, corresponding to branching factors
    * of 4, 16, and 64 respectively.
    */
-  public void setLevelMod(int levelMod) {
-    // assert (levelMod >= 1 && levelMod <= 3);
-    this.levelMod = Math.max(1, Math.min(3, levelMod));
+  public synchronized void setLevelMod(int levelMod) {
+    options = options.withLevelMod(levelMod);
   }
 
   public int levelMod() {
-    return levelMod;
+    return options.levelMod();
   }
 
 
@@ -237,8 +321,38 @@ public final strictfp class S2RegionCoverer {
    * worst case: 215518 14.41 9.72 5.26 3.91 2.75 1.92 1.20 1.02
    * </pre>
    */
-  public void setMaxCells(int maxCells) {
-    this.maxCells = maxCells;
+  public synchronized void setMaxCells(int maxCells) {
+    options = options.withMaxCells(maxCells);
+  }
+
+  /**
+   * If true, the candidates created while computing a covering (together with
+   * their cells and child arrays) are kept when the call returns and reused by
+   * later calls, instead of being left for the garbage collector. This is
+   * worthwhile when covering many regions in a loop. The results are identical
+   * either way. Turning recycling off releases the pooled candidates.
+   */
+  public void setRecycleCandidates(boolean recycleCandidates) {
+    this.recycleCandidates = recycleCandidates;
+    if (!recycleCandidates) {
+      synchronized (idleCoverings) {
+        idleCoverings.clear();
+        idleCoverings.trimToSize();
+      }
+    }
+  }
+
+  public boolean recycleCandidates() {
+    return recycleCandidates;
+  }
+
+  /**
+   * Return the number of candidates created by the most recent getCovering()
+   * or getInteriorCovering() call (including recycled ones). When calls run
+   * concurrently, this is the count of whichever finished last.
+   */
+  public int candidatesCreatedCounter() {
+    return candidatesCreatedCounter;
   }
 
   /**
@@ -249,6 +363,11 @@ public final strictfp class S2RegionCoverer {
    * @param covering The list filled in by this method
    */
   public void getCovering(S2Region region, ArrayList<S2CellId> covering) {
+    getCovering(region, options, covering);
+  }
+
+  /** As above, but with the given options instead of the coverer's own. */
+  public void getCovering(S2Region region, Options options, ArrayList<S2CellId> covering) {
     // Rather than just returning the raw list of cell ids generated by
     // GetCoveringInternal(), we construct a cell union and then denormalize it.
     // This has the effect of replacing four child cells with their parent
@@ -257,8 +376,8 @@ public final strictfp class S2RegionCoverer {
     // number of cells returned in many cases, and it is cheap compared to
     // computing the covering in the first place.
 
-    S2CellUnion tmp = getCovering(region);
-    tmp.denormalize(minLevel(), levelMod(), covering);
+    S2CellUnion tmp = getCovering(region, options);
+    tmp.denormalize(options.minLevel(), options.levelMod(), covering);
   }
 
   /**
@@ -269,8 +388,14 @@ public final strictfp class S2RegionCoverer {
    * @param interior The list filled in by this method
    */
   public void getInteriorCovering(S2Region region, ArrayList<S2CellId> interior) {
-    S2CellUnion tmp = getInteriorCovering(region);
-    tmp.denormalize(minLevel(), levelMod(), interior);
+    getInteriorCovering(region, options, interior);
+  }
+
+  /** As above, but with the given options instead of the coverer's own. */
+  public void getInteriorCovering(S2Region region, Options options,
+      ArrayList<S2CellId> interior) {
+    S2CellUnion tmp = getInteriorCovering(region, options);
+    tmp.denormalize(options.minLevel(), options.levelMod(), interior);
   }
 
   /**
@@ -282,15 +407,22 @@ public final strictfp class S2RegionCoverer {
    * constructor does in fact satisfy all the given restrictions.)
    */
   public S2CellUnion getCovering(S2Region region) {
+    return getCovering(region, options);
+  }
+
+  /** As above, but with the given options instead of the coverer's own. */
+  public S2CellUnion getCovering(S2Region region, Options options) {
     S2CellUnion covering = new S2CellUnion();
-    getCovering(region, covering);
+    getCovering(region, options, covering);
     return covering;
   }
 
   public void getCovering(S2Region region, S2CellUnion covering) {
-    interiorCovering = false;
-    getCoveringInternal(region);
-    covering.initSwap(result);
+    getCovering(region, options, covering);
+  }
+
+  public void getCovering(S2Region region, Options options, S2CellUnion covering) {
+    covering.initSwap(getCoveringInternal(region, options, false));
   }
 
   /**
@@ -298,15 +430,55 @@ public final strictfp class S2RegionCoverer {
    * and satisfies the restrictions *EXCEPT* for min_level() and level_mod().
    */
   public S2CellUnion getInteriorCovering(S2Region region) {
+    return getInteriorCovering(region, options);
+  }
+
+  /** As above, but with the given options instead of the coverer's own. */
+  public S2CellUnion getInteriorCovering(S2Region region, Options options) {
     S2CellUnion covering = new S2CellUnion();
-    getInteriorCovering(region, covering);
+    getInteriorCovering(region, options, covering);
     return covering;
   }
 
   public void getInteriorCovering(S2Region region, S2CellUnion covering) {
-    interiorCovering = true;
-    getCoveringInternal(region);
-    covering.initSwap(result);
+    getInteriorCovering(region, options, covering);
+  }
+
+  public void getInteriorCovering(S2Region region, Options options, S2CellUnion covering) {
+    covering.initSwap(getCoveringInternal(region, options, true));
+  }
+
+  /**
+   * As getCovering(S2Region), but the work of testing cells against the region
+   * is spread over the common fork/join pool. The result is identical to
+   * getCovering(); only worthwhile when the region tests are expensive and the
+   * covering is large.
+   *
+   *  The region's mayIntersect() and contains() methods are called from several
+   * threads at once, so they must be safe for concurrent use.
+   */
+  public S2CellUnion getCoveringParallel(S2Region region) {
+    return getCoveringParallel(region, options, ForkJoinPool.commonPool());
+  }
+
+  /** As above, with the given options and pool. */
+  public S2CellUnion getCoveringParallel(S2Region region, Options options, ForkJoinPool pool) {
+    S2CellUnion covering = new S2CellUnion();
+    covering.initSwap(getCoveringInternalParallel(region, options, false, pool));
+    return covering;
+  }
+
+  /** The interior covering version of getCoveringParallel(S2Region). */
+  public S2CellUnion getInteriorCoveringParallel(S2Region region) {
+    return getInteriorCoveringParallel(region, options, ForkJoinPool.commonPool());
+  }
+
+  /** As above, with the given options and pool. */
+  public S2CellUnion getInteriorCoveringParallel(
+      S2Region region, Options options, ForkJoinPool pool) {
+    S2CellUnion covering = new S2CellUnion();
+    covering.initSwap(getCoveringInternalParallel(region, options, true, pool));
+    return covering;
   }
 
   /**
@@ -318,204 +490,571 @@ public final strictfp class S2RegionCoverer {
     floodFill(region, S2CellId.fromPoint(start).parent(level), output);
   }
 
-  /**
-   * If the cell intersects the given region, return a new candidate with no
-   * children, otherwise return null. Also marks the candidate as "terminal" if
-   * it should not be expanded further.
-   */
-  private Candidate newCandidate(S2Cell cell) {
-    if (!region.mayIntersect(cell)) {
-      return null;
-    }
-
-    boolean isTerminal = false;
-    if (cell.level() >= minLevel) {
-      if (interiorCovering) {
-        if (region.contains(cell)) {
-          isTerminal = true;
-        } else if (cell.level() + levelMod > maxLevel) {
-          return null;
-        }
-      } else {
-        if (cell.level() + levelMod > maxLevel || region.contains(cell)) {
-          isTerminal = true;
+  /** Generates a covering with the given options and returns its cell ids. */
+  private ArrayList<S2CellId> getCoveringInternal(
+      S2Region region, Options options, boolean interiorCovering) {
+    Preconditions.checkNotNull(options);
+    boolean recycle = recycleCandidates;
+    Covering covering = null;
+    if (recycle) {
+      synchronized (idleCoverings) {
+        if (!idleCoverings.isEmpty()) {
+          covering = idleCoverings.remove(idleCoverings.size() - 1);
         }
       }
     }
-    Candidate candidate = new Candidate();
-    candidate.cell = cell;
-    candidate.isTerminal = isTerminal;
-    if (!isTerminal) {
-      candidate.children = new Candidate[1 << maxChildrenShift()];
+    if (covering == null) {
+      covering = new Covering(recycle);
     }
-    candidatesCreatedCounter++;
-    return candidate;
+    ArrayList<S2CellId> result = covering.run(region, options, interiorCovering, null);
+    candidatesCreatedCounter = covering.candidatesCreatedCounter;
+    if (recycle && recycleCandidates) {
+      synchronized (idleCoverings) {
+        idleCoverings.add(covering);
+      }
+    }
+    return result;
   }
 
-  /** Return the log base 2 of the maximum number of children of a candidate. */
-  private int maxChildrenShift() {
-    return 2 * levelMod;
+  /** As getCoveringInternal(), expanding candidates in the given pool. */
+  private ArrayList<S2CellId> getCoveringInternalParallel(
+      S2Region region, Options options, boolean interiorCovering, ForkJoinPool pool) {
+    Preconditions.checkNotNull(options);
+    Preconditions.checkNotNull(pool);
+    // Recycled candidates are handed out from a single-threaded pool, so the
+    // parallel mode always creates fresh ones.
+    Covering covering = new Covering(false);
+    ArrayList<S2CellId> result = covering.run(region, options, interiorCovering, pool);
+    candidatesCreatedCounter = covering.candidatesCreatedCounter;
+    return result;
   }
 
   /**
-   * Process a candidate by either adding it to the result list or expanding its
-   * children and inserting it into the priority queue. Passing an argument of
-   * NULL does nothing.
+   * The state of a single getCovering() call. Each call works on its own
+   * Covering, so calls on the same coverer may run concurrently. A Covering
+   * may be reused for later calls, in which case it also recycles its
+   * candidates.
+   *
+   *  Processing a candidate has two parts: expanding it, which tests its
+   * children against the region and depends on nothing else, and then adding
+   * it to the result or the queue. In parallel mode, the expansions are done
+   * ahead of time in large batches: whenever a candidate whose children have
+   * not been expanded is taken from the queue, the children of that candidate
+   * and of the queued candidates that are likely to be subdivided next are
+   * expanded concurrently. The second part always runs serially in the original order,
+   * so the queue and the result see exactly the same sequence of operations as
+   * in serial mode. Expansions done for candidates that end up not being
+   * subdivided are wasted, which costs some extra region tests but never
+   * changes the output.
    */
-  private void addCandidate(Candidate candidate) {
-    if (candidate == null) {
-      return;
-    }
-
-    if (candidate.isTerminal) {
-      result.add(candidate.cell.id());
-      return;
-    }
-    // assert (candidate.numChildren == 0);
-
-    // Expand one level at a time until we hit min_level_ to ensure that
-    // we don't skip over it.
-    int numLevels = (candidate.cell.level() < minLevel) ? 1 : levelMod;
-    int numTerminals = expandChildren(candidate, candidate.cell, numLevels);
-
-    if (candidate.numChildren == 0) {
-      // Do nothing
-    } else if (!interiorCovering && numTerminals == 1 << maxChildrenShift()
-        && candidate.cell.level() >= minLevel) {
-      // Optimization: add the parent cell rather than all of its children.
-      // We can't do this for interior coverings, since the children just
-      // intersect the region, but may not be contained by it - we need to
-      // subdivide them further.
-      candidate.isTerminal = true;
-      addCandidate(candidate);
-
-    } else {
-      // We negate the priority so that smaller absolute priorities are returned
-      // first. The heuristic is designed to refine the largest cells first,
-      // since those are where we have the largest potential gain. Among cells
-      // at the same level, we prefer the cells with the smallest number of
-      // intersecting children. Finally, we prefer cells that have the smallest
-      // number of children that cannot be refined any further.
-      int priority = -((((candidate.cell.level() << maxChildrenShift()) + candidate.numChildren)
-          << maxChildrenShift()) + numTerminals);
-      candidateQueue.add(new QueueEntry(priority, candidate));
-      // logger.info("Push: " + candidate.cell.id() + " (" + priority + ") ");
+  private static final class Covering {
+    private final boolean recycle;
+
+    // The options of the current call.
+    private int minLevel;
+    private int maxLevel;
+    private int levelMod;
+    private int maxCells;
+
+    // True if we're computing an interior covering.
+    private boolean interiorCovering;
+
+    // Counter of number of candidates created, for performance evaluation.
+    private int candidatesCreatedCounter;
+
+    /**
+     * We save a temporary copy of the pointer passed to GetCovering() in order
+     * to avoid passing this parameter around internally. It is only used (and
+     * only valid) for the duration of a single GetCovering() call.
+     */
+    private S2Region region;
+
+    /**
+     * A temporary variable used by GetCovering() that holds the cell ids that
+     * have been added to the covering so far.
+     */
+    private ArrayList<S2CellId> result;
+
+    /**
+     * We keep the candidates in a priority queue. We specify a vector to hold
+     * the queue entries since for some reason priority_queue<> uses a deque by
+     * default.
+     */
+    // TODO(kirilll?): 10 is a completely random number, work out a better
+    // estimate
+    private final PriorityQueue<Candidate> candidateQueue =
+        new PriorityQueue<Candidate>(10, new CandidateComparator());
+
+    // Candidates available for reuse, and those handed out during the current
+    // call. Only used when recycling.
+    private final ArrayList<Candidate> candidatePool = new ArrayList<Candidate>();
+    private final ArrayList<Candidate> liveCandidates = new ArrayList<Candidate>();
+
+    // Scratch cells for expandChildren(), indexed by recursion depth. Only
+    // used when recycling.
+    private final S2Cell[][] childCellScratch = new S2Cell[3][];
+
+    // The pool used to expand candidates in parallel, or null.
+    private ForkJoinPool pool;
+
+    Covering(boolean recycle) {
+      this.recycle = recycle;
     }
-  }
 
-  /**
-   * Populate the children of "candidate" by expanding the given number of
-   * levels from the given cell. Returns the number of children that were marked
-   * "terminal".
-   */
-  private int expandChildren(Candidate candidate, S2Cell cell, int numLevels) {
-    numLevels--;
-    S2Cell[] childCells = new S2Cell[4];
-    for (int i = 0; i < 4; ++i) {
-      childCells[i] = new S2Cell();
-    }
-    cell.subdivide(childCells);
-    int numTerminals = 0;
-    for (int i = 0; i < 4; ++i) {
-      if (numLevels > 0) {
-        if (region.mayIntersect(childCells[i])) {
-          numTerminals += expandChildren(candidate, childCells[i], numLevels);
+    /**
+     * Generates a covering and returns its cell ids. If "pool" is not null,
+     * candidates are expanded in parallel.
+     */
+    ArrayList<S2CellId> run(
+        S2Region region, Options options, boolean interiorCovering, ForkJoinPool pool) {
+      this.minLevel = options.minLevel();
+      this.maxLevel = options.maxLevel();
+      this.levelMod = options.levelMod();
+      this.maxCells = options.maxCells();
+      this.interiorCovering = interiorCovering;
+      this.pool = pool;
+      this.result = new ArrayList<S2CellId>();
+      try {
+        getCoveringInternal(region);
+        return result;
+      } finally {
+        candidateQueue.clear();
+        if (recycle) {
+          recycleLiveCandidates();
         }
-        continue;
+        this.region = null;
+        this.result = null;
+        this.pool = null;
       }
-      Candidate child = newCandidate(childCells[i]);
-      if (child != null) {
-        candidate.children[candidate.numChildren++] = child;
-        if (child.isTerminal) {
-          ++numTerminals;
+    }
+
+    /**
+     * If the cell intersects the given region, return a new candidate with no
+     * children, otherwise return null. Also marks the candidate as "terminal"
+     * if it should not be expanded further.
+     */
+    private Candidate newCandidate(S2Cell cell) {
+      if (!region.mayIntersect(cell)) {
+        return null;
+      }
+
+      boolean isTerminal = false;
+      if (cell.level() >= minLevel) {
+        if (interiorCovering) {
+          if (region.contains(cell)) {
+            isTerminal = true;
+          } else if (cell.level() + levelMod > maxLevel) {
+            return null;
+          }
+        } else {
+          if (cell.level() + levelMod > maxLevel || region.contains(cell)) {
+            isTerminal = true;
+          }
+        }
+      }
+      Candidate candidate;
+      if (recycle) {
+        candidate = obtainCandidate(cell, isTerminal);
+      } else {
+        candidate = new Candidate();
+        candidate.cell = cell;
+        candidate.isTerminal = isTerminal;
+        if (!isTerminal) {
+          candidate.children = new Candidate[1 << maxChildrenShift()];
+        }
+      }
+      return candidate;
+    }
+
+    /**
+     * Return a candidate from the pool (or a new one if the pool is empty)
+     * that holds a copy of the given cell.
+     */
+    private Candidate obtainCandidate(S2Cell cell, boolean isTerminal) {
+      Candidate candidate;
+      if (candidatePool.isEmpty()) {
+        candidate = new Candidate();
+        candidate.cell = new S2Cell();
+      } else {
+        candidate = candidatePool.remove(candidatePool.size() - 1);
+      }
+      // Cells passed in may be scratch cells or shared face cells, so copy them.
+      candidate.cell.set(cell);
+      candidate.isTerminal = isTerminal;
+      candidate.numChildren = 0;
+      candidate.priority = 0;
+      candidate.isExpanded = false;
+      candidate.numTerminals = 0;
+      if (!isTerminal
+          && (candidate.children == null
+              || candidate.children.length < 1 << maxChildrenShift())) {
+        candidate.children = new Candidate[1 << maxChildrenShift()];
+      }
+      liveCandidates.add(candidate);
+      return candidate;
+    }
+
+    /** Returns all the candidates handed out during this call to the pool. */
+    private void recycleLiveCandidates() {
+      for (int i = 0; i < liveCandidates.size(); ++i) {
+        Candidate candidate = liveCandidates.get(i);
+        if (candidate.children != null) {
+          for (int j = 0; j < candidate.numChildren; ++j) {
+            candidate.children[j] = null;
+          }
         }
+        candidatePool.add(candidate);
       }
+      liveCandidates.clear();
     }
-    return numTerminals;
-  }
-
-  /** Computes a set of initial candidates that cover the given region. */
-  private void getInitialCandidates() {
-    // Optimization: if at least 4 cells are desired (the normal case),
-    // start with a 4-cell covering of the region's bounding cap. This
-    // lets us skip quite a few levels of refinement when the region to
-    // be covered is relatively small.
-    if (maxCells >= 4) {
-      // Find the maximum level such that the bounding cap contains at most one
-      // cell vertex at that level.
-      S2Cap cap = region.getCapBound();
-      int level = Math.min(S2Projections.MIN_WIDTH.getMaxLevel(2 * cap.angle().radians()),
-          Math.min(maxLevel(), S2CellId.MAX_LEVEL - 1));
-      if (levelMod() > 1 && level > minLevel()) {
-        level -= (level - minLevel()) % levelMod();
-      }
-      // We don't bother trying to optimize the level == 0 case, since more than
-      // four face cells may be required.
-      if (level > 0) {
-        // Find the leaf cell containing the cap axis, and determine which
-        // subcell of the parent cell contains it.
-        ArrayList<S2CellId> base = new ArrayList<S2CellId>(4);
-        S2CellId id = S2CellId.fromPoint(cap.axis());
-        id.getVertexNeighbors(level, base);
-        for (int i = 0; i < base.size(); ++i) {
-          addCandidate(newCandidate(new S2Cell(base.get(i))));
+
+    /** Return the log base 2 of the maximum number of children of a candidate. */
+    private int maxChildrenShift() {
+      return 2 * levelMod;
+    }
+
+    /**
+     * Process a candidate by either adding it to the result list or expanding
+     * its children and inserting it into the priority queue. Passing an
+     * argument of NULL does nothing.
+     */
+    private void addCandidate(Candidate candidate) {
+      if (candidate == null) {
+        return;
+      }
+
+      if (candidate.isTerminal) {
+        result.add(candidate.cell.id());
+        return;
+      }
+      addExpandedCandidate(candidate, expand(candidate));
+    }
+
+    /**
+     * Calls addCandidate() on the first "count" entries of "candidates", in
+     * order. In parallel mode the candidates must have been expanded already
+     * (see expandAhead()).
+     */
+    private void addCandidates(Candidate[] candidates, int count) {
+      if (pool == null) {
+        for (int i = 0; i < count; ++i) {
+          addCandidate(candidates[i]);
         }
         return;
       }
+      for (int i = 0; i < count; ++i) {
+        Candidate candidate = candidates[i];
+        if (candidate == null) {
+          continue;
+        }
+        if (candidate.isTerminal) {
+          result.add(candidate.cell.id());
+        } else {
+          // assert (candidate.isExpanded);
+          addExpandedCandidate(candidate, candidate.numTerminals);
+        }
+      }
     }
-    // Default: start with all six cube faces.
-    for (int face = 0; face < 6; ++face) {
-      addCandidate(newCandidate(FACE_CELLS[face]));
-    }
-  }
-
-  /** Generates a covering and stores it in result. */
-  private void getCoveringInternal(S2Region region) {
-    // Strategy: Start with the 6 faces of the cube. Discard any
-    // that do not intersect the shape. Then repeatedly choose the
-    // largest cell that intersects the shape and subdivide it.
-    //
-    // result contains the cells that will be part of the output, while the
-    // priority queue contains cells that we may still subdivide further. Cells
-    // that are entirely contained within the region are immediately added to
-    // the output, while cells that do not intersect the region are immediately
-    // discarded.
-    // Therefore pq_ only contains cells that partially intersect the region.
-    // Candidates are prioritized first according to cell size (larger cells
-    // first), then by the number of intersecting children they have (fewest
-    // children first), and then by the number of fully contained children
-    // (fewest children first).
-
-    Preconditions.checkState(candidateQueue.isEmpty() && result.isEmpty());
-
-    this.region = region;
-    candidatesCreatedCounter = 0;
-
-    getInitialCandidates();
-    while (!candidateQueue.isEmpty() &&                       //While the queue isn't empty AND
-            (!interiorCovering || result.size() < maxCells)   // (We aren't making an internal covering OR have reached max cells)
-    ) {
-      Candidate candidate = candidateQueue.poll().candidate;  //get a candidate
-      // logger.info("Pop: " + candidate.cell.id());
-      if (candidate.cell.level() < minLevel ||  // if cell level is below min level
-              candidate.numChildren == 1 ||     //or if the candidate only has one child
-              // or the length of the cell covering + candidate size if not interior + current candidate children is less than max cells
-              // note  (expression) ? value if true : value if false
-              result.size() + (interiorCovering ? 0 : candidateQueue.size()) + candidate.numChildren <= maxCells
-      ) { // Expand this candidate into its children.
-        for (int i = 0; i < candidate.numChildren; ++i) {
-          addCandidate(candidate.children[i]);
+
+    /**
+     * Adds the non-terminal candidates among the first "count" entries of
+     * "candidates" that have not been expanded yet to "batch".
+     */
+    private static void addUnexpanded(
+        Candidate[] candidates, int count, ArrayList<Candidate> batch) {
+      for (int i = 0; i < count; ++i) {
+        Candidate candidate = candidates[i];
+        if (candidate != null && !candidate.isTerminal && !candidate.isExpanded) {
+          batch.add(candidate);
         }
-      } else if (interiorCovering) {
+      }
+    }
+
+    /**
+     * Parallel mode only: makes sure the children of "candidate", which has
+     * just been taken from the queue to be subdivided, are expanded. If they
+     * are not, expands them in one batch together with the children of the
+     * queued candidates that are likely to be subdivided next.
+     *
+     *  Which candidates those are is predicted by replaying the test in
+     * getCoveringInternal() over the queue in priority order, assuming that
+     * every child of a subdivided candidate is added to the result or the
+     * queue. This ignores the children that will be queued in the meantime,
+     * so the prediction can be wrong either way; a wrong guess only costs some
+     * wasted region tests or another batch later, never a different output.
+     */
+    private void expandAhead(Candidate candidate) {
+      ArrayList<Candidate> batch = new ArrayList<Candidate>();
+      addUnexpanded(candidate.children, candidate.numChildren, batch);
+      if (batch.isEmpty()) {
+        return;
+      }
+      Candidate[] queued = candidateQueue.toArray(new Candidate[candidateQueue.size()]);
+      Arrays.sort(queued, new CandidateComparator());
+      // The number of cells that can still be added before the test fails.
+      int slack = maxCells - result.size() - (interiorCovering ? 0 : queued.length)
+          - growth(candidate);
+      for (int i = 0; i < queued.length && (!interiorCovering || slack > 0); ++i) {
+        Candidate next = queued[i];
+        if (!interiorCovering) {
+          // Taking it from the queue makes room for one cell.
+          ++slack;
+        }
+        if (next.cell.level() < minLevel || next.numChildren == 1
+            || next.numChildren <= slack) {
+          addUnexpanded(next.children, next.numChildren, batch);
+          slack -= growth(next);
+        } else if (!interiorCovering) {
+          // It is added to the result instead.
+          --slack;
+        }
+      }
+      expandAll(batch);
+    }
+
+    /**
+     * An upper bound on the number of cells that subdividing "candidate" adds
+     * to what the test in getCoveringInternal() counts: the result and, unless
+     * this is an interior covering, the queue.
+     */
+    private int growth(Candidate candidate) {
+      if (!interiorCovering) {
+        return candidate.numChildren;
+      }
+      int numTerminals = 0;
+      for (int i = 0; i < candidate.numChildren; ++i) {
+        if (candidate.children[i].isTerminal) {
+          ++numTerminals;
+        }
+      }
+      return numTerminals;
+    }
+
+    /** Expands all the candidates in "batch" concurrently. */
+    private void expandAll(ArrayList<Candidate> batch) {
+      if (batch.size() == 1) {
+        expandOne(batch.get(0));
+      } else if (!batch.isEmpty()) {
+        pool.invoke(new ExpandTask(batch, 0, batch.size()));
+      }
+    }
+
+    private void expandOne(Candidate candidate) {
+      candidate.numTerminals = expand(candidate);
+      candidate.isExpanded = true;
+    }
+
+    /** Expands batch[from, to) in parallel; see expandAhead(). */
+    private final class ExpandTask extends RecursiveAction {
+      private final ArrayList<Candidate> batch;
+      private final int from;
+      private final int to;
+
+      ExpandTask(ArrayList<Candidate> batch, int from, int to) {
+        this.batch = batch;
+        this.from = from;
+        this.to = to;
+      }
+
+      @Override
+      protected void compute() {
+        if (to - from == 1) {
+          expandOne(batch.get(from));
+          return;
+        }
+        int mid = (from + to) >>> 1;
+        invokeAll(new ExpandTask(batch, from, mid), new ExpandTask(batch, mid, to));
+      }
+    }
+
+    /**
+     * Populates the children of a non-terminal candidate and returns the number
+     * of them that are terminal. This only reads the region, so it may run
+     * concurrently for different candidates.
+     */
+    private int expand(Candidate candidate) {
+      // assert (candidate.numChildren == 0);
+
+      // Expand one level at a time until we hit min_level_ to ensure that
+      // we don't skip over it.
+      int numLevels = (candidate.cell.level() < minLevel) ? 1 : levelMod;
+      return expandChildren(candidate, candidate.cell, numLevels);
+    }
+
+    /**
+     * The second half of addCandidate(): adds an expanded candidate to the
+     * result or the queue.
+     */
+    private void addExpandedCandidate(Candidate candidate, int numTerminals) {
+      candidatesCreatedCounter += candidate.numChildren;
+      if (candidate.numChildren == 0) {
         // Do nothing
-      } else {
+      } else if (!interiorCovering && numTerminals == 1 << maxChildrenShift()
+          && candidate.cell.level() >= minLevel) {
+        // Optimization: add the parent cell rather than all of its children.
+        // We can't do this for interior coverings, since the children just
+        // intersect the region, but may not be contained by it - we need to
+        // subdivide them further.
         candidate.isTerminal = true;
         addCandidate(candidate);
+
+      } else {
+        // We negate the priority so that smaller absolute priorities are
+        // returned first. The heuristic is designed to refine the largest cells
+        // first, since those are where we have the largest potential gain.
+        // Among cells at the same level, we prefer the cells with the smallest
+        // number of intersecting children. Finally, we prefer cells that have
+        // the smallest number of children that cannot be refined any further.
+        int priority = -((((candidate.cell.level() << maxChildrenShift())
+            + candidate.numChildren) << maxChildrenShift()) + numTerminals);
+        candidate.priority = priority;
+        candidateQueue.add(candidate);
+        // logger.info("Push: " + candidate.cell.id() + " (" + priority + ") ");
       }
     }
 
-    candidateQueue.clear();
-    this.region = null;
+    /**
+     * Populate the children of "candidate" by expanding the given number of
+     * levels from the given cell. Returns the number of children that were
+     * marked "terminal".
+     */
+    private int expandChildren(Candidate candidate, S2Cell cell, int numLevels) {
+      numLevels--;
+      S2Cell[] childCells;
+      if (recycle) {
+        // Candidates copy their cells, so the children can go in scratch
+        // cells. There is one set of scratch cells per level of recursion.
+        childCells = childCellScratch[numLevels];
+        if (childCells == null) {
+          childCells = new S2Cell[4];
+          for (int i = 0; i < 4; ++i) {
+            childCells[i] = new S2Cell();
+          }
+          childCellScratch[numLevels] = childCells;
+        }
+      } else {
+        childCells = new S2Cell[4];
+        for (int i = 0; i < 4; ++i) {
+          childCells[i] = new S2Cell();
+        }
+      }
+      cell.subdivide(childCells);
+      int numTerminals = 0;
+      for (int i = 0; i < 4; ++i) {
+        if (numLevels > 0) {
+          if (region.mayIntersect(childCells[i])) {
+            numTerminals += expandChildren(candidate, childCells[i], numLevels);
+          }
+          continue;
+        }
+        Candidate child = newCandidate(childCells[i]);
+        if (child != null) {
+          candidate.children[candidate.numChildren++] = child;
+          if (child.isTerminal) {
+            ++numTerminals;
+          }
+        }
+      }
+      return numTerminals;
+    }
+
+    /** Computes a set of initial candidates that cover the given region. */
+    private void getInitialCandidates() {
+      // Optimization: if at least 4 cells are desired (the normal case),
+      // start with a 4-cell covering of the region's bounding cap. This
+      // lets us skip quite a few levels of refinement when the region to
+      // be covered is relatively small.
+      if (maxCells >= 4) {
+        // Find the maximum level such that the bounding cap contains at most
+        // one cell vertex at that level.
+        S2Cap cap = region.getCapBound();
+        int level = Math.min(S2Projections.MIN_WIDTH.getMaxLevel(2 * cap.angle().radians()),
+            Math.min(maxLevel, S2CellId.MAX_LEVEL - 1));
+        if (levelMod > 1 && level > minLevel) {
+          level -= (level - minLevel) % levelMod;
+        }
+        // We don't bother trying to optimize the level == 0 case, since more
+        // than four face cells may be required.
+        if (level > 0) {
+          // Find the leaf cell containing the cap axis, and determine which
+          // subcell of the parent cell contains it.
+          ArrayList<S2CellId> base = new ArrayList<S2CellId>(4);
+          S2CellId id = S2CellId.fromPoint(cap.axis());
+          id.getVertexNeighbors(level, base);
+          S2Cell[] cells = new S2Cell[base.size()];
+          for (int i = 0; i < base.size(); ++i) {
+            cells[i] = new S2Cell(base.get(i));
+          }
+          addInitialCandidates(cells);
+          return;
+        }
+      }
+      // Default: start with all six cube faces.
+      addInitialCandidates(FACE_CELLS);
+    }
+
+    private void addInitialCandidates(S2Cell[] cells) {
+      Candidate[] candidates = new Candidate[cells.length];
+      for (int i = 0; i < cells.length; ++i) {
+        candidates[i] = newCandidate(cells[i]);
+        if (candidates[i] != null) {
+          candidatesCreatedCounter++;
+        }
+      }
+      if (pool != null) {
+        ArrayList<Candidate> batch = new ArrayList<Candidate>();
+        addUnexpanded(candidates, candidates.length, batch);
+        expandAll(batch);
+      }
+      addCandidates(candidates, candidates.length);
+    }
+
+    /** Generates a covering and stores it in result. */
+    private void getCoveringInternal(S2Region region) {
+      // Strategy: Start with the 6 faces of the cube. Discard any
+      // that do not intersect the shape. Then repeatedly choose the
+      // largest cell that intersects the shape and subdivide it.
+      //
+      // result contains the cells that will be part of the output, while the
+      // priority queue contains cells that we may still subdivide further.
+      // Cells that are entirely contained within the region are immediately
+      // added to the output, while cells that do not intersect the region are
+      // immediately discarded.
+      // Therefore pq_ only contains cells that partially intersect the region.
+      // Candidates are prioritized first according to cell size (larger cells
+      // first), then by the number of intersecting children they have (fewest
+      // children first), and then by the number of fully contained children
+      // (fewest children first).
+
+      Preconditions.checkState(candidateQueue.isEmpty() && result.isEmpty());
+
+      this.region = region;
+      candidatesCreatedCounter = 0;
+
+      getInitialCandidates();
+      while (!candidateQueue.isEmpty() &&                       //While the queue isn't empty AND
+              (!interiorCovering || result.size() < maxCells)   // (We aren't making an internal covering OR have reached max cells)
+      ) {
+        Candidate candidate = candidateQueue.poll();  //get a candidate
+        // logger.info("Pop: " + candidate.cell.id());
+        if (candidate.cell.level() < minLevel ||  // if cell level is below min level
+                candidate.numChildren == 1 ||     //or if the candidate only has one child
+                // or the length of the cell covering + candidate size if not interior + current candidate children is less than max cells
+                // note  (expression) ? value if true : value if false
+                result.size() + (interiorCovering ? 0 : candidateQueue.size()) + candidate.numChildren <= maxCells
+        ) { // Expand this candidate into its children.
+          if (pool != null) {
+            expandAhead(candidate);
+          }
+          addCandidates(candidate.children, candidate.numChildren);
+        } else if (interiorCovering) {
+          // Do nothing
+        } else {
+          candidate.isTerminal = true;
+          addCandidate(candidate);
+        }
+      }
+    }
   }
 
   /**
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.geometry;
+
+/**
+ * Simplifies chains of vertices -- the loops of a polygon, or a polyline -- by
+ * the Douglas-Peucker algorithm on the sphere, without changing how the chains
+ * are arranged with respect to each other.
+ *
+ *  A run of vertices (the "section") is replaced by the edge between its end
+ * points (the "chord") only when every vertex of the section is within the
+ * tolerance of the chord, and the region between the section and the chord
+ * contains nothing but the section. The latter holds if no other edge of the
+ * input touches the chord, and no other chain has its first vertex in that
+ * region; any other edge reaching into the region would have to touch the
+ * chord. The chords are only tested against the input edges, not against each
+ * other: two chords that both pass these tests bound regions whose boundaries
+ * cannot cross an odd number of times, so they cannot cross either.
+ *
+ *  Each chain is simplified independently, and the input is not modified.
+ *
+ */
+final strictfp class S2Simplifier {
+
+  /**
+   * Slack added to the distance within which another chain counts as lying
+   * between a section and its chord.
+   */
+  private static final double MARGIN = 1e-14;
+
+  private final S2Point[][] chains;
+  private final boolean closed;
+
+  /** The chain that each indexed edge belongs to. */
+  private final int[] edgeChain;
+
+  /** The index of the first edge of each chain. */
+  private final int[] chainStart;
+
+  private final ChainIndex index;
+
+  /**
+   * Prepares to simplify the given chains, which are loops if "closed" is true
+   * and polylines otherwise. The chains must not be modified while the
+   * simplifier is in use.
+   */
+  S2Simplifier(S2Point[][] chains, boolean closed) {
+    this.chains = chains;
+    this.closed = closed;
+    chainStart = new int[chains.length];
+    int numEdges = 0;
+    for (int c = 0; c < chains.length; ++c) {
+      chainStart[c] = numEdges;
+      numEdges += numEdges(c);
+    }
+    edgeChain = new int[numEdges];
+    for (int c = 0; c < chains.length; ++c) {
+      for (int e = 0; e < numEdges(c); ++e) {
+        edgeChain[chainStart[c] + e] = c;
+      }
+    }
+    index = new ChainIndex();
+    index.predictAdditionalCalls(numEdges);
+  }
+
+  private int numEdges(int c) {
+    int n = chains[c].length;
+    return closed ? n : Math.max(n - 1, 0);
+  }
+
+  /**
+   * Returns the indices, in increasing order, of the vertices of chain "c" that
+   * are kept when simplifying it to within "tolerance" radians. Polylines keep
+   * their end points, and loops keep at least three vertices.
+   */
+  int[] simplify(int c, double tolerance) {
+    S2Point[] v = chains[c];
+    int n = v.length;
+    boolean[] keep = new boolean[n];
+    int[] anchors;
+    if (closed) {
+      if (n <= 3) {
+        return allVertices(n);
+      }
+      // Start from a triangle of vertices that are far apart, so that the loop
+      // never collapses below three vertices.
+      int far = 0;
+      for (int i = 1; i < n; ++i) {
+        if (v[0].angle(v[i]) > v[0].angle(v[far])) {
+          far = i;
+        }
+      }
+      S2Point aCrossB = S2.robustCrossProd(v[0], v[far]);
+      int third = -1;
+      double thirdDistance = -1;
+      for (int i = 1; i < n; ++i) {
+        double distance = S2EdgeUtil.getDistance(v[i], v[0], v[far], aCrossB).radians();
+        if (i != far && distance > thirdDistance) {
+          third = i;
+          thirdDistance = distance;
+        }
+      }
+      int[] sorted = {0, Math.min(far, third), Math.max(far, third)};
+      anchors = new int[] {sorted[0], sorted[1], sorted[2], n};
+    } else {
+      if (n <= 2) {
+        return allVertices(n);
+      }
+      anchors = new int[] {0, n - 1};
+    }
+
+    // Sections still to be examined, as pairs of end points. Indices of loop
+    // vertices may run up to n, and are taken modulo n. Each vertex is split
+    // off at most once, which bounds the size of the stack.
+    int[] stack = new int[4 * n + 8];
+    int top = 0;
+    for (int anchor : anchors) {
+      keep[anchor % n] = true;
+    }
+    for (int k = 0; k + 1 < anchors.length; ++k) {
+      stack[top++] = anchors[k];
+      stack[top++] = anchors[k + 1];
+    }
+    while (top > 0) {
+      int j = stack[--top];
+      int i = stack[--top];
+      if (j - i < 2) {
+        continue;
+      }
+      int m = farthest(v, i, j, n);
+      S2Point a = v[i % n];
+      S2Point b = v[j % n];
+      double maxDistance = S2EdgeUtil.getDistance(v[m % n], a, b).radians();
+      if (maxDistance <= tolerance && !a.equals(b) && isClean(c, i, j, maxDistance)) {
+        continue;
+      }
+      keep[m % n] = true;
+      stack[top++] = i;
+      stack[top++] = m;
+      stack[top++] = m;
+      stack[top++] = j;
+    }
+
+    int numKept = 0;
+    for (boolean k : keep) {
+      numKept += k ? 1 : 0;
+    }
+    int[] kept = new int[numKept];
+    for (int i = 0, k = 0; i < n; ++i) {
+      if (keep[i]) {
+        kept[k++] = i;
+      }
+    }
+    return kept;
+  }
+
+  private static int[] allVertices(int n) {
+    int[] all = new int[n];
+    for (int i = 0; i < n; ++i) {
+      all[i] = i;
+    }
+    return all;
+  }
+
+  /**
+   * Returns the vertex strictly between i and j that is farthest from the edge
+   * between them, or i if there is none.
+   */
+  private static int farthest(S2Point[] v, int i, int j, int n) {
+    S2Point a = v[i % n];
+    S2Point b = v[j % n];
+    S2Point aCrossB = S2.robustCrossProd(a, b);
+    int best = i;
+    double bestDistance = -1;
+    for (int k = i + 1; k < j; ++k) {
+      double distance = S2EdgeUtil.getDistance(v[k % n], a, b, aCrossB).radians();
+      if (distance > bestDistance) {
+        best = k;
+        bestDistance = distance;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Returns true if the section of chain "c" from vertex i to vertex j, whose
+   * vertices are all within "maxDistance" of the chord, may be replaced by the
+   * chord without touching anything else.
+   */
+  private boolean isClean(int c, int i, int j, double maxDistance) {
+    S2Point[] v = chains[c];
+    int n = v.length;
+    S2Point a = v[i % n];
+    S2Point b = v[j % n];
+
+    S2EdgeIndex.DataEdgeIterator it = new S2EdgeIndex.DataEdgeIterator(index);
+    it.getCandidates(a, b);
+    for (; it.hasNext(); it.next()) {
+      int e = it.index();
+      if (edgeChain[e] == c) {
+        // The edges of the section, and the two edges that meet it at its end
+        // points.
+        int local = e - chainStart[c];
+        int offset = closed ? (local - i + 1 + 2 * n) % n : local - i + 1;
+        if (offset >= 0 && offset <= j - i + 1) {
+          continue;
+        }
+      }
+      if (S2EdgeUtil.robustCrossing(a, b, index.edgeFrom(e), index.edgeTo(e)) >= 0) {
+        return false;
+      }
+    }
+
+    // Whatever lies between the section and the chord is within about
+    // maxDistance of the chord; the edges between the vertices bulge out only
+    // slightly, and the factor of two covers that.
+    double limit = 2 * maxDistance + MARGIN;
+    S2Point aCrossB = S2.robustCrossProd(a, b);
+    S2Point mid = S2Point.normalize(S2Point.add(a, b));
+    double cosRadius = Math.cos(Math.min(0.5 * a.angle(b) + limit, S2.M_PI));
+    for (int d = 0; d < chains.length; ++d) {
+      if (d != c && chains[d].length > 0 && chains[d][0].dotProd(mid) >= cosRadius
+          && isBetween(chains[d][0], c, i, j, aCrossB, limit)) {
+        return false;
+      }
+    }
+    if (!closed) {
+      // The rest of a polyline could end between the section and the chord.
+      if ((i > 0 && isBetween(v[0], c, i, j, aCrossB, limit))
+          || (j < n - 1 && isBetween(v[n - 1], c, i, j, aCrossB, limit))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns true if p may lie between the section of chain "c" from vertex i
+   * to vertex j and its chord, given that everything between them is within
+   * "limit" of the chord.
+   */
+  private boolean isBetween(S2Point p, int c, int i, int j, S2Point aCrossB, double limit) {
+    S2Point[] v = chains[c];
+    int n = v.length;
+    S2Point a = v[i % n];
+    S2Point b = v[j % n];
+    if (S2EdgeUtil.getDistance(p, a, b, aCrossB).radians() > limit) {
+      return false;
+    }
+    double side = p.dotProd(aCrossB);
+    if (side == 0 || limit >= S2.M_PI_4) {
+      return true;
+    }
+
+    // Move p away from the chord until it is certainly outside the region, and
+    // count the crossings of the region's boundary on the way.
+    S2Point offset = S2Point.mul(S2Point.normalize(aCrossB), Math.tan(2 * limit));
+    S2Point q = S2Point.normalize(side > 0 ? S2Point.add(p, offset) : S2Point.sub(p, offset));
+    S2EdgeUtil.EdgeCrosser crosser = new S2EdgeUtil.EdgeCrosser(p, q, a);
+    boolean inside = false;
+    for (int k = i + 1; k <= j; ++k) {
+      inside ^= crosser.edgeOrVertexCrossing(v[k % n]);
+    }
+    inside ^= crosser.edgeOrVertexCrossing(a);
+    return inside;
+  }
+
+  /** Indexes the edges of all the chains. */
+  private final class ChainIndex extends S2EdgeIndex {
+    @Override
+    protected int getNumEdges() {
+      return edgeChain.length;
+    }
+
+    @Override
+    protected S2Point edgeFrom(int index) {
+      int c = edgeChain[index];
+      return chains[c][index - chainStart[c]];
+    }
+
+    @Override
+    protected S2Point edgeTo(int index) {
+      int c = edgeChain[index];
+      S2Point[] v = chains[c];
+      int k = index - chainStart[c] + 1;
+      return v[k == v.length ? 0 : k];
+    }
+  }
+}
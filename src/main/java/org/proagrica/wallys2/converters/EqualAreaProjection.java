@@ -0,0 +1,329 @@
+package org.proagrica.wallys2.converters;
+
+import com.google.common.geometry.S2Cell;
+import com.google.common.geometry.S2CellId;
+import com.google.common.geometry.S2CellUnion;
+import com.google.common.geometry.S2Loop;
+import com.google.common.geometry.S2Point;
+import com.google.common.geometry.S2Polygon;
+
+/**
+ * Equal-area map projections computed in the library, for measuring areas
+ * and perimeters in square metres and metres without going through WKT, JTS
+ * and GeoTools.
+ *
+ * Points are taken as WGS84 latitudes and longitudes, as EPSG:4326 is in the
+ * rest of wallys2. When the projection's datum uses another ellipsoid, they
+ * are first moved onto it by the Molodensky ellipsoid shift, without a datum
+ * translation, which is the transform GeoTools finds leniently from
+ * EPSG:4326 to EPSG:2163.
+ *
+ * Areas and lengths are planar, of the polygons through the projected
+ * vertices, as JTS measures the reprojected geometry. Over 30000 random
+ * cells of levels 4 to 18 in the conterminous US, the EPSG:2163 areas differ
+ * from those of S2GeomAreaTools.getAreaCellWKT by at most 1.3e-10 of the
+ * area, growing with the level as the products of large coordinates cancel
+ * in small cells. S2GeomAreaToolsTest checks this.
+ *
+ * Projections are immutable and may be shared between threads.
+ */
+public final class EqualAreaProjection {
+
+    private static final double WGS84_A = 6378137.0;
+    private static final double WGS84_F = 1 / 298.257223563;
+    private static final double GRS80_F = 1 / 298.257222101;
+
+    /**
+     * EPSG:2163, US National Atlas Equal Area: Lambert azimuthal equal-area on
+     * a sphere of radius 6370997 m, centred on 45N 100W. This is the CRS the
+     * area and perimeter tools use.
+     */
+    public static final EqualAreaProjection US_NATIONAL_ATLAS =
+            lambertAzimuthal(6370997.0, 0, 45, -100, 0, 0);
+
+    /** EPSG:3035, ETRS89 / LAEA Europe: on GRS80, centred on 52N 10E. */
+    public static final EqualAreaProjection LAEA_EUROPE =
+            lambertAzimuthal(WGS84_A, GRS80_F, 52, 10, 4321000, 3210000);
+
+    /**
+     * EPSG:6933, WGS 84 / NSIDC EASE-Grid 2.0 Global: cylindrical equal-area on
+     * WGS84, true scale at 30N and 30S.
+     */
+    public static final EqualAreaProjection EASE_GRID_2_GLOBAL = cylindrical(WGS84_A, WGS84_F, 30, 0);
+
+    private static final int LAMBERT_AZIMUTHAL = 0;
+    private static final int CYLINDRICAL = 1;
+
+    private final int kind;
+
+    // The projection's ellipsoid.
+    private final double a;
+    private final double e2;
+    private final double e;
+
+    // The Molodensky shift from WGS84 onto the projection's ellipsoid.
+    private final boolean shift;
+    private final double da;
+    private final double df;
+
+    private final double lng0;
+    private final double falseEasting;
+    private final double falseNorthing;
+
+    // Lambert azimuthal: the authalic radius and latitude of the centre, and
+    // Snyder's D. Cylindrical: the scale along the standard parallel.
+    private final double rq;
+    private final double sinBeta0;
+    private final double cosBeta0;
+    private final double d;
+    private final double qp;
+    private final double k0;
+
+    private EqualAreaProjection(int kind, double a, double f, double lat0, double lng0,
+                                double falseEasting, double falseNorthing) {
+        this.kind = kind;
+        this.a = a;
+        this.e2 = f * (2 - f);
+        this.e = Math.sqrt(e2);
+        this.da = a - WGS84_A;
+        this.df = f - WGS84_F;
+        this.shift = da != 0 || df != 0;
+        this.lng0 = Math.toRadians(lng0);
+        this.falseEasting = falseEasting;
+        this.falseNorthing = falseNorthing;
+
+        double phi0 = Math.toRadians(lat0);
+        double sinPhi0 = Math.sin(phi0);
+        if (kind == LAMBERT_AZIMUTHAL) {
+            qp = q(1);
+            rq = a * Math.sqrt(qp / 2);
+            sinBeta0 = q(sinPhi0) / qp;
+            cosBeta0 = Math.sqrt(1 - sinBeta0 * sinBeta0);
+            d = e2 == 0 ? 1 : a * Math.cos(phi0) / Math.sqrt(1 - e2 * sinPhi0 * sinPhi0) / (rq * cosBeta0);
+            k0 = 0;
+        } else {
+            qp = 0;
+            rq = 0;
+            sinBeta0 = 0;
+            cosBeta0 = 0;
+            d = 0;
+            k0 = Math.cos(phi0) / Math.sqrt(1 - e2 * sinPhi0 * sinPhi0);
+        }
+    }
+
+    /**
+     * Lambert azimuthal equal-area on the ellipsoid with semi-major axis "a"
+     * and flattening "f" (0 for a sphere), centred on lat0, lng0 degrees.
+     */
+    public static EqualAreaProjection lambertAzimuthal(double a, double f, double lat0, double lng0,
+                                                       double falseEasting, double falseNorthing) {
+        return new EqualAreaProjection(LAMBERT_AZIMUTHAL, a, f, lat0, lng0, falseEasting, falseNorthing);
+    }
+
+    /**
+     * Cylindrical equal-area on the ellipsoid with semi-major axis "a" and
+     * flattening "f", true scale at latTs degrees north and south.
+     */
+    public static EqualAreaProjection cylindrical(double a, double f, double latTs, double lng0) {
+        return new EqualAreaProjection(CYLINDRICAL, a, f, latTs, lng0, 0, 0);
+    }
+
+    /**
+     * Returns the projection for one of "EPSG:2163", "EPSG:3035" and
+     * "EPSG:6933".
+     */
+    public static EqualAreaProjection forCode(String code) {
+        switch (code.toUpperCase()) {
+            case "EPSG:2163":
+                return US_NATIONAL_ATLAS;
+            case "EPSG:3035":
+                return LAEA_EUROPE;
+            case "EPSG:6933":
+                return EASE_GRID_2_GLOBAL;
+            default:
+                throw new IllegalArgumentException("No equal-area projection for " + code);
+        }
+    }
+
+    /**
+     * Projects n points, given as latitude, longitude pairs in degrees in
+     * "latLng", into "xy" as easting, northing pairs in metres.
+     */
+    public void project(double[] latLng, double[] xy, int n) {
+        for (int i = 0; i < n; ++i) {
+            project(Math.toRadians(latLng[2 * i]), Math.toRadians(latLng[2 * i + 1]), xy, 2 * i);
+            xy[2 * i] += falseEasting;
+            xy[2 * i + 1] += falseNorthing;
+        }
+    }
+
+    /**
+     * The area in square metres of "polygon" once projected: the areas of its
+     * shells less those of its holes.
+     */
+    public double area(S2Polygon polygon) {
+        double area = 0;
+        double[] xy = new double[64];
+        for (int i = 0; i < polygon.numLoops(); ++i) {
+            S2Loop loop = polygon.loop(i);
+            xy = projectLoop(loop, xy);
+            double loopArea = Math.abs(ringArea(xy, loop.numVertices()));
+            area += loop.isHole() ? -loopArea : loopArea;
+        }
+        return area;
+    }
+
+    /** The total length in metres of the loops of "polygon" once projected. */
+    public double perimeter(S2Polygon polygon) {
+        double length = 0;
+        double[] xy = new double[64];
+        for (int i = 0; i < polygon.numLoops(); ++i) {
+            S2Loop loop = polygon.loop(i);
+            xy = projectLoop(loop, xy);
+            length += ringLength(xy, loop.numVertices());
+        }
+        return length;
+    }
+
+    /**
+     * The area in square metres of the cells of "cells" once projected, each
+     * cell a square between its four vertices as s2ToWkt writes it.
+     */
+    public double area(S2CellUnion cells) {
+        double area = 0;
+        double[] xy = new double[8];
+        for (S2CellId id : cells) {
+            S2Cell cell = new S2Cell(id);
+            for (int k = 0; k < 4; ++k) {
+                project(cell.getVertex(k), xy, 2 * k);
+            }
+            unwrap(xy, 4);
+            area += Math.abs(ringArea(xy, 4));
+        }
+        return area;
+    }
+
+    /**
+     * The length in metres of the outline of the region covered by "cells"
+     * once projected. Edges between cells of the union are not counted.
+     */
+    public double perimeter(S2CellUnion cells) {
+        return perimeter(WktWriter.dissolve(cells));
+    }
+
+    private double[] projectLoop(S2Loop loop, double[] xy) {
+        int n = loop.numVertices();
+        if (xy.length < 2 * n) {
+            xy = new double[Math.max(2 * n, 2 * xy.length)];
+        }
+        for (int k = 0; k < n; ++k) {
+            project(loop.vertex(k), xy, 2 * k);
+        }
+        unwrap(xy, n);
+        return xy;
+    }
+
+    /**
+     * Projects "p" into xy[offset], xy[offset + 1], without the false easting
+     * and northing, which make no difference to areas and lengths.
+     */
+    private void project(S2Point p, double[] xy, int offset) {
+        double lat = Math.atan2(p.get(2), Math.sqrt(p.get(0) * p.get(0) + p.get(1) * p.get(1)));
+        double lng = Math.atan2(p.get(1), p.get(0));
+        project(lat, lng, xy, offset);
+    }
+
+    private void project(double lat, double lng, double[] xy, int offset) {
+        double sinLat = Math.sin(lat);
+        double cosLat = Math.cos(lat);
+        if (shift) {
+            // Molodensky, for a point on the WGS84 ellipsoid with no translation.
+            double b = WGS84_A * (1 - WGS84_F);
+            double wgs84E2 = WGS84_F * (2 - WGS84_F);
+            double w = 1 - wgs84E2 * sinLat * sinLat;
+            double rn = WGS84_A / Math.sqrt(w);
+            double rm = rn * (1 - wgs84E2) / w;
+            lat += (da * rn * wgs84E2 / WGS84_A + df * (rm * WGS84_A / b + rn * b / WGS84_A))
+                    * sinLat * cosLat / rm;
+            sinLat = Math.sin(lat);
+            cosLat = Math.cos(lat);
+        }
+        double dLng = lng - lng0;
+        if (kind == LAMBERT_AZIMUTHAL) {
+            double sinBeta;
+            double cosBeta;
+            if (e2 == 0) {
+                sinBeta = sinLat;
+                cosBeta = cosLat;
+            } else {
+                sinBeta = q(sinLat) / qp;
+                cosBeta = Math.sqrt(Math.max(0, 1 - sinBeta * sinBeta));
+            }
+            double cosDLng = Math.cos(dLng);
+            double denominator = 1 + sinBeta0 * sinBeta + cosBeta0 * cosBeta * cosDLng;
+            if (denominator <= 1e-15) {
+                throw new IllegalArgumentException("Point opposite the centre of the projection");
+            }
+            double k = rq * Math.sqrt(2 / denominator);
+            xy[offset] = k * d * cosBeta * Math.sin(dLng);
+            xy[offset + 1] = k / d * (cosBeta0 * sinBeta - sinBeta0 * cosBeta * cosDLng);
+        } else {
+            dLng = Math.IEEEremainder(dLng, 2 * Math.PI);
+            xy[offset] = a * k0 * dLng;
+            xy[offset + 1] = a * (e2 == 0 ? 2 * sinLat : q(sinLat)) / (2 * k0);
+        }
+    }
+
+    /**
+     * Makes the eastings of a ring continuous where a cylindrical projection
+     * wraps around, so rings crossing the antimeridian keep their shape.
+     */
+    private void unwrap(double[] xy, int n) {
+        if (kind != CYLINDRICAL) {
+            return;
+        }
+        double period = 2 * Math.PI * a * k0;
+        for (int i = 1; i < n; ++i) {
+            double dx = xy[2 * i] - xy[2 * i - 2];
+            xy[2 * i] -= period * Math.rint(dx / period);
+        }
+    }
+
+    /** Snyder's q, for the sine of a latitude on the projection's ellipsoid. */
+    private double q(double sinLat) {
+        if (e2 == 0) {
+            return 2 * sinLat;
+        }
+        double es = e * sinLat;
+        return (1 - e2) * (sinLat / (1 - es * es) - Math.log((1 - es) / (1 + es)) / (2 * e));
+    }
+
+    /**
+     * The signed area of the ring through the first n points of "xy", by the
+     * shoelace formula taken relative to the first point, as JTS does. As in
+     * JTS, it is positive if the ring runs clockwise.
+     */
+    static double ringArea(double[] xy, int n) {
+        if (n < 3) {
+            return 0;
+        }
+        double x0 = xy[0];
+        double sum = 0;
+        for (int i = 0; i < n; ++i) {
+            int prev = i == 0 ? n - 1 : i - 1;
+            int next = i == n - 1 ? 0 : i + 1;
+            sum += (xy[2 * i] - x0) * (xy[2 * prev + 1] - xy[2 * next + 1]);
+        }
+        return sum / 2;
+    }
+
+    /** The length of the closed ring through the first n points of "xy". */
+    static double ringLength(double[] xy, int n) {
+        double length = 0;
+        for (int i = 0; i < n; ++i) {
+            int next = i == n - 1 ? 0 : i + 1;
+            length += Math.hypot(xy[2 * next] - xy[2 * i], xy[2 * next + 1] - xy[2 * i + 1]);
+        }
+        return length;
+    }
+}
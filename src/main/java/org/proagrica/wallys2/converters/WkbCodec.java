@@ -0,0 +1,329 @@
+package org.proagrica.wallys2.converters;
+
+import com.google.common.collect.Lists;
+import com.google.common.geometry.S2Cell;
+import com.google.common.geometry.S2CellId;
+import com.google.common.geometry.S2CellUnion;
+import com.google.common.geometry.S2LatLng;
+import com.google.common.geometry.S2Loop;
+import com.google.common.geometry.S2Point;
+import com.google.common.geometry.S2Polygon;
+import com.google.common.geometry.S2Polyline;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+/**
+ * Reads and writes WKB straight from and to ByteBuffers, so geometry stored
+ * as WKB (Parquet columns, PostGIS dumps, mapped files) can be turned into S2
+ * geometry without going through WKT or JTS.
+ *
+ * Readers start at the buffer's position and leave it just after the
+ * geometry, so consecutive geometries can be read one after the other. Each
+ * geometry carries its own byte order, so the buffer's order does not matter
+ * and is left as it was. Both ISO and PostGIS extended WKB are understood: an
+ * SRID is skipped, as are Z and M ordinates. Coordinates are x = longitude and
+ * y = latitude in degrees, and rings become loops as in WktParser, so holes
+ * and islands nest by containment whichever way the rings are wound.
+ *
+ * Writers write at the buffer's position in the buffer's byte order, which
+ * must have room for the number of bytes given by the matching size method.
+ * Polygons and cell unions are written as a MULTIPOLYGON, as s2ToWkt does for
+ * cell unions; outer rings are counterclockwise and holes clockwise.
+ *
+ * Malformed or truncated input throws IllegalArgumentException.
+ */
+public final class WkbCodec {
+
+    private static final int POINT = 1;
+    private static final int LINESTRING = 2;
+    private static final int POLYGON = 3;
+    private static final int MULTIPOLYGON = 6;
+
+    // PostGIS extended WKB flags.
+    private static final int EWKB_Z = 0x80000000;
+    private static final int EWKB_M = 0x40000000;
+    private static final int EWKB_SRID = 0x20000000;
+
+    private WkbCodec() {
+    }
+
+    /** Reads a POLYGON or MULTIPOLYGON. */
+    public static S2Polygon readPolygon(ByteBuffer buf) {
+        ByteOrder order = buf.order();
+        try {
+            List<S2Loop> loops = Lists.newArrayList();
+            int dims = readHeader(buf);
+            int type = dims >>> 8;
+            dims &= 0xff;
+            if (type == POLYGON) {
+                readRings(buf, dims, loops);
+            } else if (type == MULTIPOLYGON) {
+                int numPolygons = readCount(buf, 9);
+                for (int i = 0; i < numPolygons; ++i) {
+                    int partDims = readHeader(buf);
+                    if (partDims >>> 8 != POLYGON) {
+                        throw new IllegalArgumentException(
+                                "Expected a POLYGON in a MULTIPOLYGON but found WKB type " + (partDims >>> 8));
+                    }
+                    readRings(buf, partDims & 0xff, loops);
+                }
+            } else {
+                throw new IllegalArgumentException("Expected a POLYGON or MULTIPOLYGON but found WKB type " + type);
+            }
+            return new S2Polygon(loops);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated WKB", e);
+        } finally {
+            buf.order(order);
+        }
+    }
+
+    /** Reads a LINESTRING. */
+    public static S2Polyline readPolyline(ByteBuffer buf) {
+        ByteOrder order = buf.order();
+        try {
+            int dims = readHeader(buf);
+            if (dims >>> 8 != LINESTRING) {
+                throw new IllegalArgumentException("Expected a LINESTRING but found WKB type " + (dims >>> 8));
+            }
+            return new S2Polyline(readPoints(buf, dims & 0xff));
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated WKB", e);
+        } finally {
+            buf.order(order);
+        }
+    }
+
+    /** Reads a POINT. */
+    public static S2Point readPoint(ByteBuffer buf) {
+        ByteOrder order = buf.order();
+        try {
+            int dims = readHeader(buf);
+            if (dims >>> 8 != POINT) {
+                throw new IllegalArgumentException("Expected a POINT but found WKB type " + (dims >>> 8));
+            }
+            double lng = buf.getDouble();
+            double lat = buf.getDouble();
+            skipOrdinates(buf, dims & 0xff);
+            if (Double.isNaN(lng) || Double.isNaN(lat)) {
+                throw new IllegalArgumentException("POINT EMPTY has no coordinates");
+            }
+            return S2LatLng.fromDegrees(lat, lng).toPoint();
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated WKB", e);
+        } finally {
+            buf.order(order);
+        }
+    }
+
+    /**
+     * Reads a geometry header, setting the buffer's order to the geometry's.
+     * Returns the base geometry type shifted left by 8, or'ed with the number
+     * of ordinates per point.
+     */
+    private static int readHeader(ByteBuffer buf) {
+        byte byteOrder = buf.get();
+        if (byteOrder == 0) {
+            buf.order(ByteOrder.BIG_ENDIAN);
+        } else if (byteOrder == 1) {
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+        } else {
+            throw new IllegalArgumentException("Bad WKB byte order " + byteOrder);
+        }
+        int type = buf.getInt();
+        int dims = 2;
+        if ((type & EWKB_Z) != 0) {
+            ++dims;
+        }
+        if ((type & EWKB_M) != 0) {
+            ++dims;
+        }
+        if ((type & EWKB_SRID) != 0) {
+            buf.getInt();
+        }
+        type &= 0x0fffffff;
+        // ISO WKB adds 1000 for Z, 2000 for M and 3000 for both.
+        int iso = type / 1000;
+        if (iso > 3) {
+            throw new IllegalArgumentException("Bad WKB geometry type " + type);
+        }
+        dims += iso == 3 ? 2 : iso > 0 ? 1 : 0;
+        return (type % 1000) << 8 | dims;
+    }
+
+    /**
+     * Reads a count of items of at least "minBytes" each, checking that the
+     * buffer could hold that many.
+     */
+    private static int readCount(ByteBuffer buf, int minBytes) {
+        int count = buf.getInt();
+        if (count < 0 || (long) count * minBytes > buf.remaining()) {
+            throw new IllegalArgumentException("WKB count " + (count & 0xffffffffL)
+                    + " does not fit in the remaining " + buf.remaining() + " bytes");
+        }
+        return count;
+    }
+
+    /** Reads the rings of a polygon, adding a loop for each. */
+    private static void readRings(ByteBuffer buf, int dims, List<S2Loop> loops) {
+        int numRings = readCount(buf, 4);
+        for (int i = 0; i < numRings; ++i) {
+            WktParser.addRing(readPoints(buf, dims), loops);
+        }
+    }
+
+    /** Reads a point count and the points, without repeated consecutive points. */
+    private static List<S2Point> readPoints(ByteBuffer buf, int dims) {
+        int numPoints = readCount(buf, 8 * dims);
+        List<S2Point> vertices = Lists.newArrayListWithCapacity(numPoints);
+        double lastLng = Double.NaN;
+        double lastLat = Double.NaN;
+        for (int i = 0; i < numPoints; ++i) {
+            double lng = buf.getDouble();
+            double lat = buf.getDouble();
+            skipOrdinates(buf, dims);
+            if (lng != lastLng || lat != lastLat) {
+                vertices.add(S2LatLng.fromDegrees(lat, lng).toPoint());
+                lastLng = lng;
+                lastLat = lat;
+            }
+        }
+        return vertices;
+    }
+
+    private static void skipOrdinates(ByteBuffer buf, int dims) {
+        if (dims > 2) {
+            buf.position(buf.position() + 8 * (dims - 2));
+        }
+    }
+
+    /** The number of bytes writePolygon writes for "polygon". */
+    public static int polygonSize(S2Polygon polygon) {
+        int size = 9;
+        for (int i = 0; i < polygon.numLoops(); ++i) {
+            S2Loop loop = polygon.loop(i);
+            if (loop.depth() % 2 == 0) {
+                size += 9;
+            }
+            size += 4 + 16 * (loop.numVertices() + 1);
+        }
+        return size;
+    }
+
+    /**
+     * Writes "polygon" as a MULTIPOLYGON with one part for each outer loop,
+     * holding the loop and the holes directly inside it. Islands in holes
+     * become parts of their own.
+     */
+    public static void writePolygon(S2Polygon polygon, ByteBuffer buf) {
+        int numShells = 0;
+        for (int i = 0; i < polygon.numLoops(); ++i) {
+            numShells += polygon.loop(i).depth() % 2 == 0 ? 1 : 0;
+        }
+        writeHeader(buf, MULTIPOLYGON);
+        buf.putInt(numShells);
+        for (int i = 0; i < polygon.numLoops(); ++i) {
+            S2Loop shell = polygon.loop(i);
+            if (shell.depth() % 2 != 0) {
+                continue;
+            }
+            int last = polygon.getLastDescendant(i);
+            int numHoles = 0;
+            for (int j = i + 1; j <= last; ++j) {
+                numHoles += polygon.loop(j).depth() == shell.depth() + 1 ? 1 : 0;
+            }
+            writeHeader(buf, POLYGON);
+            buf.putInt(1 + numHoles);
+            writeRing(shell, false, buf);
+            for (int j = i + 1; j <= last; ++j) {
+                if (polygon.loop(j).depth() == shell.depth() + 1) {
+                    writeRing(polygon.loop(j), true, buf);
+                }
+            }
+        }
+    }
+
+    /** The number of bytes writePolyline writes for "polyline". */
+    public static int polylineSize(S2Polyline polyline) {
+        return 9 + 16 * polyline.numVertices();
+    }
+
+    /** Writes "polyline" as a LINESTRING. */
+    public static void writePolyline(S2Polyline polyline, ByteBuffer buf) {
+        writeHeader(buf, LINESTRING);
+        buf.putInt(polyline.numVertices());
+        for (int i = 0; i < polyline.numVertices(); ++i) {
+            writePoint(polyline.vertex(i), buf);
+        }
+    }
+
+    /** The number of bytes writeCellUnion writes for "cells". */
+    public static int cellUnionSize(S2CellUnion cells) {
+        return 9 + cells.size() * (5 + 4 + 4 + 16 * 5);
+    }
+
+    /** Writes the outlines of the cells of "cells" as a MULTIPOLYGON. */
+    public static void writeCellUnion(S2CellUnion cells, ByteBuffer buf) {
+        writeHeader(buf, MULTIPOLYGON);
+        buf.putInt(cells.size());
+        for (S2CellId id : cells) {
+            S2Cell cell = new S2Cell(id);
+            writeHeader(buf, POLYGON);
+            buf.putInt(1);
+            buf.putInt(5);
+            for (int k = 0; k < 4; ++k) {
+                writePoint(cell.getVertex(k), buf);
+            }
+            writePoint(cell.getVertex(0), buf);
+        }
+    }
+
+    /** Returns "polygon" as little-endian WKB. */
+    public static byte[] toWkb(S2Polygon polygon) {
+        ByteBuffer buf = ByteBuffer.allocate(polygonSize(polygon)).order(ByteOrder.LITTLE_ENDIAN);
+        writePolygon(polygon, buf);
+        return buf.array();
+    }
+
+    /** Returns "polyline" as little-endian WKB. */
+    public static byte[] toWkb(S2Polyline polyline) {
+        ByteBuffer buf = ByteBuffer.allocate(polylineSize(polyline)).order(ByteOrder.LITTLE_ENDIAN);
+        writePolyline(polyline, buf);
+        return buf.array();
+    }
+
+    /** Returns the outlines of the cells of "cells" as little-endian WKB. */
+    public static byte[] toWkb(S2CellUnion cells) {
+        ByteBuffer buf = ByteBuffer.allocate(cellUnionSize(cells)).order(ByteOrder.LITTLE_ENDIAN);
+        writeCellUnion(cells, buf);
+        return buf.array();
+    }
+
+    private static void writeHeader(ByteBuffer buf, int type) {
+        buf.put(buf.order() == ByteOrder.LITTLE_ENDIAN ? (byte) 1 : (byte) 0);
+        buf.putInt(type);
+    }
+
+    /**
+     * Writes a loop as a closed ring. S2 loops run counterclockwise around
+     * what they enclose, so holes are reversed to run clockwise.
+     */
+    private static void writeRing(S2Loop loop, boolean reverse, ByteBuffer buf) {
+        int n = loop.numVertices();
+        buf.putInt(n + 1);
+        writePoint(loop.vertex(0), buf);
+        for (int i = 1; i < n; ++i) {
+            writePoint(loop.vertex(reverse ? n - i : i), buf);
+        }
+        writePoint(loop.vertex(0), buf);
+    }
+
+    private static void writePoint(S2Point p, ByteBuffer buf) {
+        S2LatLng ll = new S2LatLng(p);
+        buf.putDouble(ll.lngDegrees());
+        buf.putDouble(ll.latDegrees());
+    }
+}
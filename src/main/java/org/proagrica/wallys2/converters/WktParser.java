@@ -0,0 +1,331 @@
+package org.proagrica.wallys2.converters;
+
+import com.google.common.collect.Lists;
+import com.google.common.geometry.S2LatLng;
+import com.google.common.geometry.S2Loop;
+import com.google.common.geometry.S2Point;
+import com.google.common.geometry.S2Polygon;
+import com.google.common.geometry.S2Polyline;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads WKT straight into S2 geometry in a single pass over the characters,
+ * without regexes, splitting or substrings.
+ *
+ * Coordinates are "lng lat" pairs in degrees, as everywhere else in wallys2;
+ * any further ordinates (Z, M) are skipped. Keywords are case insensitive and
+ * whitespace may appear between any two tokens.
+ *
+ * Every ring of a POLYGON or MULTIPOLYGON becomes one S2Loop. The closing
+ * vertex that repeats the first one is dropped, as are repeated consecutive
+ * vertices, and each loop is normalized to enclose at most half the sphere.
+ * S2Polygon then nests the loops by containment, so holes come out as holes
+ * whichever way the rings are wound, and a polygon lying in the hole of
+ * another polygon of a MULTIPOLYGON comes out as an island. Rings with fewer
+ * than three distinct vertices enclose nothing and are dropped.
+ *
+ * Malformed input throws IllegalArgumentException, naming the position.
+ */
+public final class WktParser {
+
+    // Powers of ten that are exact as doubles.
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    private final String wkt;
+    private int pos;
+
+    // The coordinates of the ring being read, as lng, lat pairs.
+    private double[] coords = new double[64];
+    private int numCoords;
+
+    private WktParser(String wkt) {
+        this.wkt = wkt;
+    }
+
+    /** Reads a POLYGON or MULTIPOLYGON. */
+    public static S2Polygon parsePolygon(String wkt) {
+        WktParser parser = new WktParser(wkt);
+        List<S2Loop> loops = Lists.newArrayList();
+        String type = parser.readType();
+        if (type.equals("POLYGON")) {
+            if (!parser.readEmpty()) {
+                parser.readPolygon(loops);
+            }
+        } else if (type.equals("MULTIPOLYGON")) {
+            if (!parser.readEmpty()) {
+                parser.expect('(');
+                do {
+                    parser.readPolygon(loops);
+                } while (parser.readComma());
+                parser.expect(')');
+            }
+        } else {
+            throw parser.error("Expected POLYGON or MULTIPOLYGON but found " + type);
+        }
+        parser.expectEnd();
+        return new S2Polygon(loops);
+    }
+
+    /** Reads a LINESTRING. */
+    public static S2Polyline parsePolyline(String wkt) {
+        WktParser parser = new WktParser(wkt);
+        String type = parser.readType();
+        if (!type.equals("LINESTRING")) {
+            throw parser.error("Expected LINESTRING but found " + type);
+        }
+        parser.numCoords = 0;
+        if (!parser.readEmpty()) {
+            parser.readCoordinates();
+        }
+        parser.expectEnd();
+        return new S2Polyline(parser.vertices());
+    }
+
+    /** Reads a POINT. */
+    public static S2Point parsePoint(String wkt) {
+        WktParser parser = new WktParser(wkt);
+        String type = parser.readType();
+        if (!type.equals("POINT")) {
+            throw parser.error("Expected POINT but found " + type);
+        }
+        if (parser.readEmpty()) {
+            throw parser.error("POINT EMPTY has no coordinates");
+        }
+        parser.expect('(');
+        parser.numCoords = 0;
+        parser.readCoordinate();
+        parser.expect(')');
+        parser.expectEnd();
+        return S2LatLng.fromDegrees(parser.coords[1], parser.coords[0]).toPoint();
+    }
+
+    /** Reads a single number, as in a coordinate. Used by tests. */
+    static double parseNumber(String text) {
+        WktParser parser = new WktParser(text);
+        double value = parser.readNumber();
+        parser.expectEnd();
+        return value;
+    }
+
+    /** Reads "(ring, ring, ...)", adding a loop for each ring. */
+    private void readPolygon(List<S2Loop> loops) {
+        expect('(');
+        do {
+            numCoords = 0;
+            readCoordinates();
+            addRing(vertices(), loops);
+        } while (readComma());
+        expect(')');
+    }
+
+    /**
+     * Turns a ring, without repeated consecutive vertices, into a normalized
+     * loop and adds it to "loops", unless it has fewer than three distinct
+     * vertices. The closing vertex is removed from "vertices" if present.
+     */
+    static void addRing(List<S2Point> vertices, List<S2Loop> loops) {
+        int n = vertices.size();
+        if (n > 1 && vertices.get(0).equals(vertices.get(n - 1))) {
+            vertices.remove(--n);
+        }
+        if (n >= 3) {
+            S2Loop loop = new S2Loop(vertices);
+            loop.normalize();
+            loops.add(loop);
+        }
+    }
+
+    /** Reads "(x y, x y, ...)" into the coordinate buffer. */
+    private void readCoordinates() {
+        expect('(');
+        do {
+            readCoordinate();
+        } while (readComma());
+        expect(')');
+    }
+
+    private void readCoordinate() {
+        if (2 * numCoords + 2 > coords.length) {
+            coords = Arrays.copyOf(coords, 2 * coords.length);
+        }
+        coords[2 * numCoords] = readNumber();
+        coords[2 * numCoords + 1] = readNumber();
+        ++numCoords;
+        // Skip Z and M ordinates.
+        while (startsNumber(peek())) {
+            readNumber();
+        }
+    }
+
+    /** The points in the coordinate buffer, without repeated consecutive points. */
+    private List<S2Point> vertices() {
+        List<S2Point> vertices = Lists.newArrayListWithCapacity(numCoords);
+        double lastLng = Double.NaN;
+        double lastLat = Double.NaN;
+        for (int i = 0; i < numCoords; ++i) {
+            double lng = coords[2 * i];
+            double lat = coords[2 * i + 1];
+            if (lng != lastLng || lat != lastLat) {
+                vertices.add(S2LatLng.fromDegrees(lat, lng).toPoint());
+                lastLng = lng;
+                lastLat = lat;
+            }
+        }
+        return vertices;
+    }
+
+    /**
+     * Reads a decimal number. Numbers with at most 15 significant digits and a
+     * small exponent, which covers almost all coordinates, are converted with a
+     * single correctly rounded multiplication or division, so the result is
+     * the same as Double.parseDouble's; anything else goes to parseDouble.
+     */
+    private double readNumber() {
+        skipWhitespace();
+        int start = pos;
+        int length = wkt.length();
+        boolean negative = false;
+        if (pos < length && (wkt.charAt(pos) == '-' || wkt.charAt(pos) == '+')) {
+            negative = wkt.charAt(pos++) == '-';
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean anyDigits = false;
+        boolean exact = true;
+        char c;
+        while (pos < length && (c = wkt.charAt(pos)) >= '0' && c <= '9') {
+            anyDigits = true;
+            if (mantissa != 0 || c != '0') {
+                if (++digits > 15) {
+                    exact = false;
+                }
+                mantissa = 10 * mantissa + (c - '0');
+            }
+            ++pos;
+        }
+        if (pos < length && wkt.charAt(pos) == '.') {
+            ++pos;
+            while (pos < length && (c = wkt.charAt(pos)) >= '0' && c <= '9') {
+                anyDigits = true;
+                if (mantissa != 0 || c != '0') {
+                    if (++digits > 15) {
+                        exact = false;
+                    }
+                    mantissa = 10 * mantissa + (c - '0');
+                }
+                --scale;
+                ++pos;
+            }
+        }
+        if (!anyDigits) {
+            pos = start;
+            throw error("Expected a number");
+        }
+        if (pos < length && (wkt.charAt(pos) == 'e' || wkt.charAt(pos) == 'E')) {
+            ++pos;
+            boolean negativeExponent = false;
+            if (pos < length && (wkt.charAt(pos) == '-' || wkt.charAt(pos) == '+')) {
+                negativeExponent = wkt.charAt(pos++) == '-';
+            }
+            int exponent = 0;
+            int exponentStart = pos;
+            while (pos < length && (c = wkt.charAt(pos)) >= '0' && c <= '9') {
+                exponent = Math.min(10 * exponent + (c - '0'), 100000);
+                ++pos;
+            }
+            if (pos == exponentStart) {
+                throw error("Expected an exponent");
+            }
+            scale += negativeExponent ? -exponent : exponent;
+        }
+
+        if (!exact || scale < -22 || scale > 22) {
+            return Double.parseDouble(wkt.substring(start, pos));
+        }
+        double value = scale < 0
+                ? mantissa / POWERS_OF_TEN[-scale]
+                : mantissa * POWERS_OF_TEN[scale];
+        return negative ? -value : value;
+    }
+
+    private static boolean startsNumber(int c) {
+        return (c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.';
+    }
+
+    /** Reads the geometry type and any dimension keyword after it (Z, M, ZM). */
+    private String readType() {
+        String type = readWord();
+        if (type.isEmpty()) {
+            throw error("Expected a geometry type");
+        }
+        int mark = pos;
+        String dimension = readWord();
+        if (!dimension.equals("Z") && !dimension.equals("M") && !dimension.equals("ZM")) {
+            pos = mark;
+        }
+        return type;
+    }
+
+    /** Reads "EMPTY" if it comes next. */
+    private boolean readEmpty() {
+        int mark = pos;
+        if (readWord().equals("EMPTY")) {
+            return true;
+        }
+        pos = mark;
+        return false;
+    }
+
+    /** Reads a run of letters, in upper case. */
+    private String readWord() {
+        skipWhitespace();
+        int start = pos;
+        while (pos < wkt.length() && Character.isLetter(wkt.charAt(pos))) {
+            ++pos;
+        }
+        return wkt.substring(start, pos).toUpperCase();
+    }
+
+    private boolean readComma() {
+        if (peek() == ',') {
+            ++pos;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(char c) {
+        if (peek() != c) {
+            throw error("Expected '" + c + "'");
+        }
+        ++pos;
+    }
+
+    private void expectEnd() {
+        if (peek() != -1) {
+            throw error("Unexpected trailing text");
+        }
+    }
+
+    /** The next character that is not whitespace, or -1 at the end. */
+    private int peek() {
+        skipWhitespace();
+        return pos < wkt.length() ? wkt.charAt(pos) : -1;
+    }
+
+    private void skipWhitespace() {
+        while (pos < wkt.length() && Character.isWhitespace(wkt.charAt(pos))) {
+            ++pos;
+        }
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at position " + pos + " of WKT: "
+                + (wkt.length() > 80 ? wkt.substring(0, 80) + "..." : wkt));
+    }
+}
@@ -0,0 +1,396 @@
+package org.proagrica.wallys2.converters;
+
+import com.google.common.geometry.S2Cell;
+import com.google.common.geometry.S2CellId;
+import com.google.common.geometry.S2CellUnion;
+import com.google.common.geometry.S2LatLng;
+import com.google.common.geometry.S2Loop;
+import com.google.common.geometry.S2Point;
+import com.google.common.geometry.S2Polygon;
+import com.google.common.geometry.S2PolygonBuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.CharBuffer;
+
+/**
+ * Writes cell unions and polygons as WKT MULTIPOLYGONs, formatting the
+ * coordinates straight into a small buffer that is flushed to an Appendable
+ * (such as a Writer or StringBuilder) or an OutputStream as it fills, so large
+ * unions never have to exist as one String.
+ *
+ * The output looks like s2ToWkt's: "MULTIPOLYGON(((x y,x y,...)),...)". A
+ * writer is immutable and may be shared; the with* methods return a copy with
+ * one setting changed:
+ *
+ * - precision: the number of decimal places coordinates are rounded to, with
+ *   trailing zeros dropped. Fixed precision is formatted with integer
+ *   arithmetic and is much cheaper than the default of -1, which writes the
+ *   shortest string that reads back as the same double (Double.toString).
+ *
+ * - latLngOrder: write "lat lng" instead of "lng lat". s2ToWkt writes
+ *   "lat lng", the axis order of EPSG:4326 as GeoTools decodes it, and the
+ *   area code in utils depends on that.
+ *
+ * - dissolve: write a cell union as the outline of the region it covers
+ *   rather than one square per cell. The outline is assembled by an
+ *   S2PolygonBuilder, so like any S2Polygon it cannot cover more than half
+ *   the sphere. The union must be normalized, as unions from the coverer
+ *   and from initFromCellIds are.
+ *
+ * Polygons are written with one part for each outer loop, holding the holes
+ * directly inside it. Outer rings run counterclockwise and holes clockwise.
+ */
+public final class WktWriter {
+
+    /** Full precision, "lng lat" order and one square per cell. */
+    public static final WktWriter DEFAULT = new WktWriter(-1, false, false);
+
+    /** The most decimal places that can be asked for. */
+    public static final int MAX_PRECISION = 17;
+
+    private static final long[] POWERS_OF_TEN = new long[MAX_PRECISION + 1];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i <= MAX_PRECISION; ++i) {
+            POWERS_OF_TEN[i] = 10 * POWERS_OF_TEN[i - 1];
+        }
+    }
+
+    // Scaled coordinates below this are integers and exact as doubles.
+    private static final double MAX_EXACT = 9007199254740992.0;
+
+    private final int precision;
+    private final boolean latLngOrder;
+    private final boolean dissolve;
+
+    private WktWriter(int precision, boolean latLngOrder, boolean dissolve) {
+        this.precision = precision;
+        this.latLngOrder = latLngOrder;
+        this.dissolve = dissolve;
+    }
+
+    public int precision() {
+        return precision;
+    }
+
+    public boolean latLngOrder() {
+        return latLngOrder;
+    }
+
+    public boolean dissolve() {
+        return dissolve;
+    }
+
+    /**
+     * Rounds coordinates to "precision" decimal places, from 0 to
+     * MAX_PRECISION, or writes them in full if it is -1.
+     */
+    public WktWriter withPrecision(int precision) {
+        if (precision < -1 || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException("Precision must be from -1 to " + MAX_PRECISION + ": " + precision);
+        }
+        return new WktWriter(precision, latLngOrder, dissolve);
+    }
+
+    public WktWriter withLatLngOrder(boolean latLngOrder) {
+        return new WktWriter(precision, latLngOrder, dissolve);
+    }
+
+    public WktWriter withDissolve(boolean dissolve) {
+        return new WktWriter(precision, latLngOrder, dissolve);
+    }
+
+    public String toWkt(S2CellUnion cells) {
+        StringBuilder sb = new StringBuilder();
+        try {
+            write(cells, sb);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return sb.toString();
+    }
+
+    public String toWkt(S2Polygon polygon) {
+        StringBuilder sb = new StringBuilder();
+        try {
+            write(polygon, sb);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return sb.toString();
+    }
+
+    /** Formats a single coordinate as it would be written. Used by tests. */
+    String formatNumber(double x) {
+        StringBuilder sb = new StringBuilder();
+        try {
+            Output out = new Output(sb, null);
+            writeNumber(x, out);
+            out.flush();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return sb.toString();
+    }
+
+    public void write(S2CellUnion cells, Appendable out) throws IOException {
+        write(cells, new Output(out, null));
+    }
+
+    /** Writes ASCII to "out", without flushing or closing it. */
+    public void write(S2CellUnion cells, OutputStream out) throws IOException {
+        write(cells, new Output(null, out));
+    }
+
+    public void write(S2Polygon polygon, Appendable out) throws IOException {
+        write(polygon, new Output(out, null));
+    }
+
+    /** Writes ASCII to "out", without flushing or closing it. */
+    public void write(S2Polygon polygon, OutputStream out) throws IOException {
+        write(polygon, new Output(null, out));
+    }
+
+    private void write(S2CellUnion cells, Output out) throws IOException {
+        if (dissolve) {
+            write(dissolve(cells), out);
+            return;
+        }
+        if (cells.size() == 0) {
+            out.append("MULTIPOLYGON EMPTY");
+            out.flush();
+            return;
+        }
+        out.append("MULTIPOLYGON(");
+        boolean first = true;
+        for (S2CellId id : cells) {
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+            S2Cell cell = new S2Cell(id);
+            S2LatLng vertex0 = new S2LatLng(cell.getVertex(0));
+            out.append("((");
+            writeLatLng(vertex0, out);
+            for (int k = 1; k < 4; ++k) {
+                out.append(',');
+                writeLatLng(new S2LatLng(cell.getVertex(k)), out);
+            }
+            out.append(',');
+            writeLatLng(vertex0, out);
+            out.append("))");
+        }
+        out.append(')');
+        out.flush();
+    }
+
+    private void write(S2Polygon polygon, Output out) throws IOException {
+        if (polygon.numLoops() == 0) {
+            out.append("MULTIPOLYGON EMPTY");
+            out.flush();
+            return;
+        }
+        out.append("MULTIPOLYGON(");
+        boolean first = true;
+        for (int i = 0; i < polygon.numLoops(); ++i) {
+            S2Loop shell = polygon.loop(i);
+            if (shell.depth() % 2 != 0) {
+                continue;
+            }
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+            out.append('(');
+            writeRing(shell, false, out);
+            int last = polygon.getLastDescendant(i);
+            for (int j = i + 1; j <= last; ++j) {
+                if (polygon.loop(j).depth() == shell.depth() + 1) {
+                    out.append(',');
+                    writeRing(polygon.loop(j), true, out);
+                }
+            }
+            out.append(')');
+        }
+        out.append(')');
+        out.flush();
+    }
+
+    /** Writes a loop as a closed ring, reversed if it is a hole. */
+    private void writeRing(S2Loop loop, boolean reverse, Output out) throws IOException {
+        int n = loop.numVertices();
+        out.append('(');
+        writePoint(loop.vertex(0), out);
+        for (int i = 1; i < n; ++i) {
+            out.append(',');
+            writePoint(loop.vertex(reverse ? n - i : i), out);
+        }
+        out.append(',');
+        writePoint(loop.vertex(0), out);
+        out.append(')');
+    }
+
+    private void writePoint(S2Point p, Output out) throws IOException {
+        writeLatLng(new S2LatLng(p), out);
+    }
+
+    private void writeLatLng(S2LatLng ll, Output out) throws IOException {
+        if (latLngOrder) {
+            writeNumber(ll.latDegrees(), out);
+            out.append(' ');
+            writeNumber(ll.lngDegrees(), out);
+        } else {
+            writeNumber(ll.lngDegrees(), out);
+            out.append(' ');
+            writeNumber(ll.latDegrees(), out);
+        }
+    }
+
+    private void writeNumber(double x, Output out) throws IOException {
+        if (precision < 0 || Double.isNaN(x) || Double.isInfinite(x)) {
+            out.append(Double.toString(x));
+            return;
+        }
+        // Both paths round halves away from zero, and a negative number that
+        // rounds to zero is written as "0".
+        double scaled = Math.abs(x) * POWERS_OF_TEN[precision];
+        if (scaled >= MAX_EXACT) {
+            out.append(new BigDecimal(x).setScale(precision, RoundingMode.HALF_UP)
+                    .stripTrailingZeros().toPlainString());
+            return;
+        }
+        long m = Math.round(scaled);
+        if (m != 0 && x < 0) {
+            out.append('-');
+        }
+        long unit = POWERS_OF_TEN[precision];
+        out.appendDigits(m / unit, 1);
+        long fraction = m % unit;
+        if (fraction != 0) {
+            int digits = precision;
+            while (fraction % 10 == 0) {
+                fraction /= 10;
+                --digits;
+            }
+            out.append('.');
+            out.appendDigits(fraction, digits);
+        }
+    }
+
+    /**
+     * Returns the region covered by "cells" as a polygon. Only the parts of
+     * cell edges that do not face another cell of the union are kept; where a
+     * cell meets smaller cells, its edge is split along theirs. Like the
+     * S2CellUnion methods it relies on, this needs "cells" to be normalized.
+     */
+    static S2Polygon dissolve(S2CellUnion cells) {
+        S2PolygonBuilder builder = new S2PolygonBuilder(S2PolygonBuilder.Options.DIRECTED_XOR);
+        S2CellId[] neighbors = new S2CellId[4];
+        for (S2CellId id : cells) {
+            id.getEdgeNeighbors(neighbors);
+            for (int k = 0; k < 4; ++k) {
+                addBoundary(cells, id, k, neighbors[k], builder);
+            }
+        }
+        return builder.assemblePolygon();
+    }
+
+    /**
+     * Adds the parts of edge k of "id" that lie on the boundary of "cells",
+     * given the neighbor of "id" across that edge.
+     */
+    private static void addBoundary(S2CellUnion cells, S2CellId id, int k, S2CellId neighbor,
+                                    S2PolygonBuilder builder) {
+        if (cells.contains(neighbor)) {
+            return;
+        }
+        if (!cells.intersects(neighbor) || id.isLeaf()) {
+            S2Cell cell = new S2Cell(id);
+            builder.addEdge(cell.getVertex(k), cell.getVertex((k + 1) & 3));
+            return;
+        }
+        // Some of the cells beyond this edge are in the union, so split the
+        // edge between the two children along it.
+        S2CellId[] neighbors = new S2CellId[4];
+        for (S2CellId child = id.childBegin(); !child.equals(id.childEnd()); child = child.next()) {
+            child.getEdgeNeighbors(neighbors);
+            if (!id.contains(neighbors[k])) {
+                addBoundary(cells, child, k, neighbors[k], builder);
+            }
+        }
+    }
+
+    /** A buffer in front of the Appendable or OutputStream being written to. */
+    private static final class Output {
+        private final Appendable appendable;
+        private final OutputStream stream;
+        private final char[] chars = new char[8192];
+        private byte[] bytes;
+        private int size;
+
+        Output(Appendable appendable, OutputStream stream) {
+            this.appendable = appendable;
+            this.stream = stream;
+        }
+
+        void append(char c) throws IOException {
+            if (size == chars.length) {
+                flush();
+            }
+            chars[size++] = c;
+        }
+
+        void append(String s) throws IOException {
+            for (int start = 0; start < s.length(); ) {
+                if (size == chars.length) {
+                    flush();
+                }
+                int end = Math.min(s.length(), start + chars.length - size);
+                s.getChars(start, end, chars, size);
+                size += end - start;
+                start = end;
+            }
+        }
+
+        /** Appends "value", zero-padded to at least "minDigits" digits. */
+        void appendDigits(long value, int minDigits) throws IOException {
+            if (size + 20 > chars.length) {
+                flush();
+            }
+            int digits = 1;
+            for (long v = value / 10; v != 0; v /= 10) {
+                ++digits;
+            }
+            digits = Math.max(digits, minDigits);
+            for (int i = size + digits - 1; i >= size; --i) {
+                chars[i] = (char) ('0' + value % 10);
+                value /= 10;
+            }
+            size += digits;
+        }
+
+        void flush() throws IOException {
+            if (stream != null) {
+                if (bytes == null) {
+                    bytes = new byte[chars.length];
+                }
+                for (int i = 0; i < size; ++i) {
+                    bytes[i] = (byte) chars[i];
+                }
+                stream.write(bytes, 0, size);
+            } else if (appendable instanceof StringBuilder) {
+                ((StringBuilder) appendable).append(chars, 0, size);
+            } else if (appendable instanceof Writer) {
+                ((Writer) appendable).write(chars, 0, size);
+            } else {
+                appendable.append(CharBuffer.wrap(chars, 0, size));
+            }
+            size = 0;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package org.proagrica.wallys2.converters;
 
+import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.io.ParseException;
@@ -12,21 +13,96 @@ import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.opengis.referencing.operation.MathTransform;
 import org.opengis.referencing.operation.TransformException;
 
+import java.util.concurrent.ConcurrentHashMap;
+
 
 // TODO: We shouldn't have to go from WKT, can we just go straight from an S2, or simply hack the S2 from WKT?
 public class coordConverter {
+    public static final String WGS84 = "EPSG:4326";
+    public static final String US_NATIONAL_ATLAS_EQUAL_AREA = "EPSG:2163";
+
+    // Decoding a CRS and finding the transform between two CRSs cost far more
+    // than transforming a geometry, so both are done once and shared by every
+    // thread. CRSs and transforms are immutable, as are converters.
+    private static final ConcurrentHashMap<String, CoordinateReferenceSystem> CRSS = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Key, MathTransform> TRANSFORMS = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Key, coordConverter> CONVERTERS = new ConcurrentHashMap<>();
+    private static final GeometryFactory GEOMETRY_FACTORY = JTSFactoryFinder.getGeometryFactory();
+
     /** The CellIds that form the Union */
-    CoordinateReferenceSystem sourceCRS;
-    CoordinateReferenceSystem targetCRS;
-    GeometryFactory geometryFactory = JTSFactoryFinder.getGeometryFactory();
-    boolean lenient;
+    final CoordinateReferenceSystem sourceCRS;
+    final CoordinateReferenceSystem targetCRS;
+    final GeometryFactory geometryFactory = GEOMETRY_FACTORY;
+    final boolean lenient;
+    final MathTransform transform;
 
+    /**
+     * Prefer get(), which shares converters; this constructor still shares the
+     * decoded CRSs and the transform.
+     */
     public coordConverter(String fromCRS, String toCRS, boolean leniency) throws FactoryException {
 //        "EPSG:4326"
 //        "EPSG:2163"
-        sourceCRS = CRS.decode(fromCRS);
-        targetCRS = CRS.decode(toCRS);
+        sourceCRS = decode(fromCRS);
+        targetCRS = decode(toCRS);
         lenient = leniency;
+        transform = getTransform(fromCRS, toCRS, leniency);
+    }
+
+    /** Returns the shared converter from fromCRS to toCRS. */
+    public static coordConverter get(String fromCRS, String toCRS, boolean lenient) throws FactoryException {
+        Key key = new Key(fromCRS, toCRS, lenient);
+        coordConverter converter = CONVERTERS.get(key);
+        if (converter == null) {
+            converter = new coordConverter(fromCRS, toCRS, lenient);
+            coordConverter existing = CONVERTERS.putIfAbsent(key, converter);
+            if (existing != null) {
+                converter = existing;
+            }
+        }
+        return converter;
+    }
+
+    /** Returns the CRS with the given code, decoding it only the first time. */
+    public static CoordinateReferenceSystem decode(String code) throws FactoryException {
+        CoordinateReferenceSystem crs = CRSS.get(code);
+        if (crs == null) {
+            crs = CRS.decode(code);
+            CoordinateReferenceSystem existing = CRSS.putIfAbsent(code, crs);
+            if (existing != null) {
+                crs = existing;
+            }
+        }
+        return crs;
+    }
+
+    /** Returns the transform from fromCRS to toCRS, finding it only the first time. */
+    public static MathTransform getTransform(String fromCRS, String toCRS, boolean lenient) throws FactoryException {
+        Key key = new Key(fromCRS, toCRS, lenient);
+        MathTransform transform = TRANSFORMS.get(key);
+        if (transform == null) {
+            transform = CRS.findMathTransform(decode(fromCRS), decode(toCRS), lenient);
+            MathTransform existing = TRANSFORMS.putIfAbsent(key, transform);
+            if (existing != null) {
+                transform = existing;
+            }
+        }
+        return transform;
+    }
+
+    /**
+     * Decodes the CRSs and finds the transform between them, and runs one
+     * point through it, so that the EPSG database and GeoTools' lazily
+     * loaded classes are set up before the first real request.
+     */
+    public static void warmUp(String fromCRS, String toCRS, boolean lenient) throws FactoryException, TransformException {
+        coordConverter converter = get(fromCRS, toCRS, lenient);
+        converter.convertCoords(GEOMETRY_FACTORY.createPoint(new Coordinate(45, -93)));
+    }
+
+    /** Warms up the conversion the area and perimeter tools use. */
+    public static void warmUp() throws FactoryException, TransformException {
+        warmUp(WGS84, US_NATIONAL_ATLAS_EQUAL_AREA, true);
     }
 
     public String doConvert(String inWKT) throws ParseException, FactoryException, TransformException {
@@ -62,12 +138,37 @@ public class coordConverter {
     }
 
     Geometry convertCoords(Geometry geom) throws FactoryException, TransformException {
-        MathTransform transform = CRS.findMathTransform(sourceCRS, targetCRS, lenient);
         return JTS.transform(geom, transform);
     }
 
+    private static final class Key {
+        private final String fromCRS;
+        private final String toCRS;
+        private final boolean lenient;
+
+        Key(String fromCRS, String toCRS, boolean lenient) {
+            this.fromCRS = fromCRS;
+            this.toCRS = toCRS;
+            this.lenient = lenient;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return lenient == other.lenient && fromCRS.equals(other.fromCRS) && toCRS.equals(other.toCRS);
+        }
+
+        @Override
+        public int hashCode() {
+            return fromCRS.hashCode() * 31 + toCRS.hashCode() ^ (lenient ? 1 : 0);
+        }
+    }
+
     public static void main(String[] args) throws FactoryException, ParseException, TransformException {
-        coordConverter c = new coordConverter("EPSG:4326", "EPSG:2163", true);
+        coordConverter c = get(WGS84, US_NATIONAL_ATLAS_EQUAL_AREA, true);
         String out = c.doConvert("POINT (1 1)");
         System.out.println(out);
 
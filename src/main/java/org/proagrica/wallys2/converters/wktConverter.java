@@ -3,11 +3,12 @@ package org.proagrica.wallys2.converters;
 import com.google.common.base.Splitter;
 import com.google.common.collect.Lists;
 import com.google.common.geometry.*;
+import org.proagrica.wallys2.utils.CoveringCache;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import static org.proagrica.wallys2.utils.CellUnionTools.S2IdsToUnion;
 
@@ -23,48 +24,21 @@ public class wktConverter {
         return convertToUnion(poly, max_cells, maxResolution, minResolution, 0);
     }
 
+    /**
+     * Reads a WKT POLYGON or MULTIPOLYGON into an S2Polygon. See WktParser for
+     * how the rings are turned into loops.
+     */
     public static S2Polygon makePolygon(String wkt){
-        Pattern p = Pattern.compile("\\(([0-9 ,-.]+)\\)");
-        Matcher m = p.matcher(wkt);
-        List<S2Loop> loops = Lists.newArrayList();
-
-        while (m.find()) {
-            String lp = m.group(1);
-            S2Loop loop = makeLoop(lp);
-            loop.normalize();
-            loops.add(loop);
-        }
-        return new S2Polygon(loops);
+        return WktParser.parsePolygon(wkt);
     }
 
     public static S2Polygon WktToS2Polygon(String wkt) {
-        Pattern p = Pattern.compile("\\(([0-9 ,-.]+)\\)");
-        Matcher m = p.matcher(wkt);
-        List<S2Loop> loops = Lists.newArrayList();
-
-        while (m.find()) {
-            String lp = m.group(1);
-            S2Loop loop = makeLoop(lp);
-            loop.normalize();
-            loops.add(loop);
-        }
-        S2Polygon poly = new S2Polygon(loops);
-        return poly;
+        return WktParser.parsePolygon(wkt);
     }
 
 
     public static S2CellUnion WktToS2(String wkt, int maxPossCells) {
-        Pattern p = Pattern.compile("\\(([0-9 ,-.]+)\\)");
-        Matcher m = p.matcher(wkt);
-        List<S2Loop> loops = Lists.newArrayList();
-
-        while (m.find()) {
-            String lp = m.group(1);
-            S2Loop loop = makeLoop(lp);
-            loop.normalize();
-            loops.add(loop);
-        }
-        S2Polygon poly = new S2Polygon(loops);
+        S2Polygon poly = makePolygon(wkt);
         return convertToUnion(poly, maxPossCells, 0, 30, 0);
     }
 
@@ -107,20 +81,49 @@ public class wktConverter {
     }
 
 
+    // Options are passed per call, so one coverer serves every thread.
+    private static final S2RegionCoverer COVERER = new S2RegionCoverer();
+
+    // Coverings made by convertToUnion go through this cache when it is set.
+    private static volatile CoveringCache coveringCache;
+
+    /**
+     * Makes convertToUnion look coverings up in the given cache, so covering
+     * the same polygon with the same settings again is cheap. Null turns the
+     * cache off again. The cache that was set before is closed.
+     */
+    public static synchronized void setCoveringCache(CoveringCache cache) {
+        CoveringCache previous = coveringCache;
+        coveringCache = cache;
+        if (previous != null && previous != cache) {
+            try {
+                previous.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    public static CoveringCache getCoveringCache() {
+        return coveringCache;
+    }
+
     public static S2CellUnion convertToUnion(S2Polygon poly, int maxNoCells, int maxResolution, int minResolution, int levelMod) {
-        S2RegionCoverer coverer = new S2RegionCoverer();
+        S2RegionCoverer.Options options = S2RegionCoverer.Options.DEFAULT;
 
         if (maxNoCells != 0){
-            coverer.setMaxCells(maxNoCells);
+            options = options.withMaxCells(maxNoCells);
         }
 
         if (levelMod != 0){
-            coverer.setLevelMod(levelMod);
+            options = options.withLevelMod(levelMod);
         }
-        coverer.setMaxLevel(maxResolution);
-        coverer.setMinLevel(minResolution);
+        options = options.withMaxLevel(maxResolution).withMinLevel(minResolution);
 
-        S2CellUnion polyCells = coverer.getCovering(poly);
+        CoveringCache cache = coveringCache;
+        S2CellUnion polyCells = cache != null
+                ? cache.getCovering(COVERER, poly, options)
+                : COVERER.getCovering(poly, options);
         polyCells.pack();
 
         return polyCells;
@@ -164,6 +167,13 @@ public class wktConverter {
         return aPolygon;
     }
 
+    /**
+     * The writer s2ToWkt uses: full precision, "lat lng" order and one square
+     * per cell. Use its with* methods for other settings, and its write
+     * methods to stream large unions rather than build one String.
+     */
+    public static final WktWriter CELL_WKT_WRITER = WktWriter.DEFAULT.withLatLngOrder(true);
+
     /**
      * Convert an S2 region (ie collection of polygons) to a
      * WKT multipolygon. Note that even if there's one cell it'll
@@ -173,19 +183,7 @@ public class wktConverter {
      * @return WKT multipolygon sting
      */
     public static String s2ToWkt(S2CellUnion region) {
-        ArrayList<S2CellId> regionCells = region.cellIds();
-        StringBuilder multipoly = new StringBuilder();
-        for (S2CellId cell : regionCells) {
-            if (multipoly.length() != 0) {
-                multipoly.append(",");
-            } else {
-                multipoly.append("MULTIPOLYGON(");
-            }
-            S2Cell c = new S2Cell(cell);
-            multipoly.append(getCellPolygon(c));
-        }
-        multipoly.append(")");
-        return multipoly.toString();
+        return CELL_WKT_WRITER.toWkt(region);
     }
 //
 //    public static S2Polygon s2CellToPolygon(S2Cell c) {
@@ -1,5 +1,6 @@
 package org.proagrica.wallys2.gateways;
 
+import org.proagrica.wallys2.converters.coordConverter;
 import py4j.GatewayServer;
 
 public class CellEntryPoint {
@@ -9,6 +10,13 @@ public class CellEntryPoint {
     }
 
     public static void main(String[] args) {
+        // Set up the CRS conversion used for areas now rather than on the
+        // first request.
+        try {
+            coordConverter.warmUp();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
         GatewayServer gatewayServer = new GatewayServer(new CellEntryPoint());
         gatewayServer.start();
         System.out.println("Gateway Server Started");
@@ -3,15 +3,24 @@ package org.proagrica.wallys2.gateways;
 import com.google.common.geometry.S2Cell;
 import com.google.common.geometry.S2CellId;
 import com.google.common.geometry.S2CellUnion;
+import com.google.common.geometry.S2CellUnionCodec;
 import com.google.common.geometry.S2Polygon;
 import com.vividsolutions.jts.geom.Geometry;
+import org.proagrica.wallys2.utils.CellUnionStore;
+import org.proagrica.wallys2.utils.CoveringCache;
 import org.proagrica.wallys2.utils.s2RegionTermIndexer;
 
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 
 import static org.proagrica.wallys2.converters.wktConverter.*;
 import static org.proagrica.wallys2.utils.CellIdTools.getCentroidWKT;
+import static org.proagrica.wallys2.utils.CellIdTools.packTokens;
 import static org.proagrica.wallys2.utils.GeometryTools.getAreaWKT;
 import static org.proagrica.wallys2.utils.GeometryTools.readWKT;
 import static org.proagrica.wallys2.utils.S2CellAreaTools.getAreaS2;
@@ -46,6 +55,47 @@ public class CellProcessor {
         return false;
     }
 
+    /**
+     * Caches the coverings made by addWKT (across all CellProcessors), keeping
+     * at most maxEntries coverings or maxBytes of them in memory.
+     */
+    public static void enableCoveringCache(int maxEntries, long maxBytes){
+        setCoveringCache(new CoveringCache(maxEntries, maxBytes));
+    }
+
+    /**
+     * As above, writing evicted coverings to a CellUnionStore at spillPath
+     * until its file reaches maxSpillBytes.
+     */
+    public static void enableCoveringCache(int maxEntries, long maxBytes, String spillPath,
+                                           long maxSpillBytes) throws Exception {
+        CellUnionStore spill = CellUnionStore.open(Paths.get(spillPath));
+        CoveringCache cache;
+        try {
+            cache = new CoveringCache(maxEntries, maxBytes, spill, maxSpillBytes);
+        } catch (RuntimeException e) {
+            spill.close();
+            throw e;
+        }
+        setCoveringCache(cache);
+    }
+
+    /** As above, with no limit on the size of the spill file. */
+    public static void enableCoveringCache(int maxEntries, long maxBytes, String spillPath) throws Exception {
+        enableCoveringCache(maxEntries, maxBytes, spillPath, Long.MAX_VALUE);
+    }
+
+    /** Turns the covering cache off, closing its spill file if it has one. */
+    public static void disableCoveringCache(){
+        setCoveringCache(null);
+    }
+
+    /** Sizes and hit/miss counts of the covering cache, or null if it is off. */
+    public static String getCoveringCacheStats(){
+        CoveringCache cache = getCoveringCache();
+        return cache == null ? null : cache.toString();
+    }
+
     public List<String>  getQueryTerms(){
         //Set maxCells to 0 to use default (at time of writing, 25)
         return indexer.GetQueryTermsForCanonicalCovering(union);
@@ -78,6 +128,20 @@ public class CellProcessor {
         return unionList;
     };
 
+    /** As getS2CellHexes but packed into one comma separated ASCII array. */
+    public byte[] getS2CellHexesPacked(){
+        long[] ids = new long[UnionCellIDs.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = UnionCellIDs.get(i).id();
+        }
+        return packTokens(ids);
+    };
+
+    /** The union in the compact binary format, see S2CellUnionCodec. */
+    public byte[] getS2CellsEncoded(){
+        return S2CellUnionCodec.encode(union);
+    };
+
     public List<String> getS2CellIds(){
         List<String> unionList = new ArrayList<>();
         for (S2CellId c : UnionCellIDs) {
@@ -133,14 +197,25 @@ public class CellProcessor {
         return s2ToWkt(union);
     };
 
+    /**
+     * Like getS2WKT, with coordinates rounded to the given number of decimal
+     * places (-1 for full precision), and optionally with neighbouring cells
+     * merged into one outline.
+     */
+    public String getS2WKT(int precision, boolean dissolve){
+        return CELL_WKT_WRITER.withPrecision(precision).withDissolve(dissolve).toWkt(union);
+    };
+
+    /** Streams the WKT of getS2WKT(precision, dissolve) to a file. */
+    public void writeS2WKT(String path, int precision, boolean dissolve) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(Paths.get(path)))) {
+            CELL_WKT_WRITER.withPrecision(precision).withDissolve(dissolve).write(union, out);
+        }
+    };
+
     public List<Long> getSingleResCellList(int res){
-        ArrayList<S2CellId> singleResIds = new ArrayList<>();
-        List<Long> unionList = new ArrayList<>();
-        union.denormalize(res, 0, singleResIds);
-        for (S2CellId c : singleResIds) {
-//            if c.level() != res) System.out.println(c.level());
-            unionList.add(c.id());
-        };
+        ArrayList<Long> unionList = new ArrayList<>();
+        union.denormalizeIds(res, 0, unionList);
         return unionList;
     };
 
@@ -155,6 +230,11 @@ public class CellProcessor {
         return unionList;
     };
 
+    /** As getSingleResCellListHex but packed into one comma separated ASCII array. */
+    public byte[] getSingleResCellListHexPacked(int res){
+        return packTokens(getSingleResCellList(res));
+    };
+
     public static void main(String[] args) throws Exception {
         String a_wkt = "POLYGON ((-92.88112331857228 44.86480346533368, -92.88112331857228 44.86479433882711, -92.88111357300382 44.86479458405908, -92.88111357300382 44.86480371056565, -92.88112331857228 44.86480346533368))";
         CellProcessor x = new CellProcessor();
@@ -84,6 +84,7 @@
 
 package org.proagrica.wallys2.utils;
 import com.google.common.geometry.S2CellId;
+import com.google.common.geometry.S2CellIdTokens;
 import com.google.common.geometry.S2CellUnion;
 import com.google.common.geometry.S2Polygon;
 import com.google.common.geometry.S2RegionCoverer;
@@ -107,6 +108,8 @@ public class s2RegionTermIndexer {
     int defaultMaxCellsQuery = 25;
     int trueMaxLevel;
 
+    // The coverer is never mutated after initIndexers(); each call passes its own
+    // options, so one indexer can be shared between threads.
     S2RegionCoverer coverer = new S2RegionCoverer();
 
     public s2RegionTermIndexer(){
@@ -121,21 +124,30 @@ public class s2RegionTermIndexer {
     }
 
     void initIndexers(){
-        coverer.setMaxCells(defaultMaxCellsIdx);
-        coverer.setMaxLevel(maxLevel);
-        coverer.setMinLevel(minLevel);
-        coverer.setLevelMod(levelMod);
+        coverer.setOptions(S2RegionCoverer.Options.DEFAULT
+                .withMaxCells(defaultMaxCellsIdx)
+                .withMaxLevel(maxLevel)
+                .withMinLevel(minLevel)
+                .withLevelMod(levelMod));
+        if (levelMod == 1) {
+            trueMaxLevel = maxLevel;
+        } else {
+            trueMaxLevel = maxLevel - (maxLevel - minLevel) % levelMod;
+        }
     }
 
     public String GetTerm(boolean ancestorType, S2CellId id) {
         // There are generally more ancestor terms than covering terms, so we add       
         // the extra "marker" character to the covering terms to distinguish them.
         //TODO: I've added level here, not sure why
-        if (ancestorType) {
-            return (id.toToken()); //id.level() + "-" +
-        } else { //is covering type
-            return ("$" + id.toToken()); // + id.level() + "-"
+        // Write straight into one buffer so each term costs a single String.
+        char[] term = new char[S2CellIdTokens.MAX_TOKEN_LENGTH + 1];
+        int length = 0;
+        if (!ancestorType) { //is covering type
+            term[length++] = '$';
         }
+        length += S2CellIdTokens.encode(id.id(), term, length);
+        return new String(term, 0, length);
     }
 
 //TODO: You could use this as a cell union is a region
@@ -153,12 +165,9 @@ public class s2RegionTermIndexer {
         }
 
         public ArrayList<String> GetIndexTermsForCanonicalCovering(S2Polygon poly, int maxCells) {
-            if (maxCells != 0) {
-                coverer.setMaxLevel(maxCells);
-            } else {
-                coverer.setMaxLevel(defaultMaxCellsIdx);
-            }
-            S2CellUnion union = coverer.getCovering(poly);
+            S2RegionCoverer.Options options =
+                    coverer.options().withMaxCells(maxCells != 0 ? maxCells : defaultMaxCellsIdx);
+            S2CellUnion union = coverer.getCovering(poly, options);
             union.pack();
             return GetIndexTermsForCanonicalCovering(union);
         }
@@ -172,11 +181,6 @@ public class s2RegionTermIndexer {
         // query).  Finally, as an optimization we always index true_max_level()
         // cells as ancestor cells only, since these cells have the special property
         // that query regions will never contain a descendant of these cell
-        if (levelMod == 1) {
-            trueMaxLevel = maxLevel;
-        } else {
-            trueMaxLevel = maxLevel - (maxLevel - minLevel) % levelMod;
-        }
         ArrayList<String> terms = new ArrayList<String>();
         S2CellId prev_id = null;
         for (S2CellId id : covering) {
@@ -219,23 +223,15 @@ public class s2RegionTermIndexer {
     }
 
     public ArrayList<String> GetQueryTermsForCanonicalCovering(S2Polygon poly, int maxCells) {
-        if (maxCells != 0) {
-            coverer.setMaxLevel(maxCells);
-        } else {
-            coverer.setMaxLevel(defaultMaxCellsQuery);
-        }
-        S2CellUnion union = coverer.getCovering(poly);
+        S2RegionCoverer.Options options =
+                coverer.options().withMaxCells(maxCells != 0 ? maxCells : defaultMaxCellsQuery);
+        S2CellUnion union = coverer.getCovering(poly, options);
         union.pack();
         return GetQueryTermsForCanonicalCovering(union);
     }
 
     public ArrayList<String> GetQueryTermsForCanonicalCovering(S2CellUnion covering) {
         // See the top of this file for an overview of the indexing strategy.
-        if (levelMod == 1) {
-            trueMaxLevel = maxLevel;
-        } else {
-            trueMaxLevel = maxLevel - (maxLevel - minLevel) % levelMod;
-        }
         ArrayList<String> terms = new ArrayList<String>();
         S2CellId prev_id = null;
         for (S2CellId id : covering) {
@@ -268,12 +264,12 @@ public class s2RegionTermIndexer {
 //        System.out.println(x.cellIds());
 //        System.out.println(x.cellIds().size());
 
-        ArrayList<String> q_terms = indxer.GetQueryTermsForCanonicalCovering(wkt, 0);
+        ArrayList<String> q_terms = indxer.GetQueryTermsForCanonicalCovering(a_wkt, 0);
         System.out.println("Query");
         System.out.println(q_terms);
         System.out.println(q_terms.size());
 
-        ArrayList<String> i_terms = indxer.GetIndexTermsForCanonicalCovering(wkt, 0);
+        ArrayList<String> i_terms = indxer.GetIndexTermsForCanonicalCovering(a_wkt, 0);
         System.out.println("Index");
         System.out.println(i_terms);
         System.out.println(i_terms.size());
@@ -2,10 +2,17 @@ package org.proagrica.wallys2.utils;
 
 import com.google.common.geometry.S2Cell;
 import com.google.common.geometry.S2CellId;
+import com.google.common.geometry.S2CellIdTokens;
 import com.google.common.geometry.S2Point;
 
+import java.util.Arrays;
+import java.util.List;
+
 public class CellIdTools {
 
+    private static final int PARALLEL_BATCH_SIZE = 100000;
+    private static final byte TOKEN_SEPARATOR = ',';
+
     public static Boolean checkIntersect(S2CellId region1, S2CellId region2){
         return region1.intersects(region2);
     }
@@ -45,6 +52,44 @@ public class CellIdTools {
         return intersection.id();
     }
 
+    /**
+     * Converts GPS fixes (in degrees) to the ids of the cells that contain them at
+     * the given level. Big batches are split across cores.
+     */
+    public static long[] getCellIds(double[] lats, double[] lngs, int level){
+        long[] ids = new long[lats.length];
+        if (lats.length > PARALLEL_BATCH_SIZE){
+            S2CellId.fromDegreesParallel(lats, lngs, level, ids);
+        } else {
+            S2CellId.fromDegrees(lats, lngs, level, ids);
+        }
+        return ids;
+    }
+
+    /**
+     * Packs the hex tokens of the given ids into one comma separated ASCII
+     * array. Much cheaper to build (and to send over py4j) than a list of Strings.
+     */
+    public static byte[] packTokens(long[] ids){
+        byte[] packed = new byte[S2CellIdTokens.maxPackedLength(ids.length)];
+        int length = S2CellIdTokens.encodeAll(ids, 0, ids.length, packed, 0, TOKEN_SEPARATOR);
+        return Arrays.copyOf(packed, length);
+    }
+
+    public static byte[] packTokens(List<Long> ids){
+        long[] raw = new long[ids.size()];
+        for (int i = 0; i < raw.length; i++) {
+            raw[i] = ids.get(i);
+        }
+        return packTokens(raw);
+    }
+
+    public static long[] unpackTokens(byte[] packed){
+        long[] ids = new long[S2CellIdTokens.countTokens(packed, 0, packed.length, TOKEN_SEPARATOR)];
+        S2CellIdTokens.decodeAll(packed, 0, packed.length, TOKEN_SEPARATOR, ids, 0);
+        return ids;
+    }
+
     public static String getCentroidWKT(S2CellId cellId) {
         S2Cell cell = new S2Cell(cellId);
         S2Point s2Centre = cell.getCenter();
@@ -0,0 +1,388 @@
+package org.proagrica.wallys2.utils;
+
+import com.google.common.geometry.S2CellUnion;
+import com.google.common.geometry.S2CellUnionCodec;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An append-only file of encoded S2CellUnions (see S2CellUnionCodec), keyed by
+ * a long or a String region id. The file is memory mapped, so reopening it on
+ * startup only costs one scan of the record headers and get() hands back a view
+ * of the mapped bytes rather than a copy.
+ *
+ * Putting an existing key again appends a new record; the latest one wins.
+ *
+ * File layout: an 8 byte header (MAGIC, VERSION) followed by records of
+ *   byte   type (LONG_KEY, STRING_KEY, or PADDING to the end of the segment)
+ *   key    8 byte long, or unsigned short length + UTF-8 bytes
+ *   int    length of the encoded union
+ *   bytes  the encoded union
+ * The file is mapped in segments of SEGMENT_SIZE bytes (a single mapping is
+ * limited to 2GB) and records are padded so that none crosses a segment
+ * boundary. A store must always be reopened with the segment size it was
+ * written with.
+ */
+public class CellUnionStore implements Closeable {
+
+    private static final int MAGIC = 0x53325553; // "S2US"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+
+    private static final byte PADDING = 0;
+    private static final byte LONG_KEY = 1;
+    private static final byte STRING_KEY = 2;
+
+    static final long SEGMENT_SIZE = 1L << 30;
+
+    private final FileChannel channel;
+    private final long segmentSize;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private final LongOffsetMap longKeys = new LongOffsetMap();
+    private final Map<String, Long> stringKeys = new HashMap<>();
+    private long end;
+    private long mappedEnd;
+
+    /**
+     * Opens the store at the given path with segments of "segmentSize" bytes.
+     * Only tests use a size other than SEGMENT_SIZE, to get records that meet
+     * segment boundaries without writing gigabytes.
+     */
+    CellUnionStore(Path path, long segmentSize) throws IOException {
+        this.segmentSize = segmentSize;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            load();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the store at the given path, creating it if it doesn't exist. A
+     * partly written record at the end of the file (e.g. after a crash) is
+     * dropped.
+     */
+    public static CellUnionStore open(Path path) throws IOException {
+        return new CellUnionStore(path, SEGMENT_SIZE);
+    }
+
+    private void load() throws IOException {
+        long size = channel.size();
+        if (size == 0) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            writeFully(header, 0);
+            end = HEADER_SIZE;
+            return;
+        }
+        if (size < HEADER_SIZE) {
+            throw new IOException("Not a cell union store: file too short");
+        }
+        end = size;
+        remap();
+        ByteBuffer first = segments.get(0);
+        if (first.getInt(0) != MAGIC || first.getInt(4) != VERSION) {
+            throw new IOException("Not a cell union store, or unsupported version");
+        }
+
+        long offset = HEADER_SIZE;
+        while (offset < size) {
+            long next = scanRecord(offset, size);
+            if (next < 0) {
+                break;
+            }
+            offset = next;
+        }
+        if (offset < size) {
+            // Drop the incomplete trailing record.
+            segments.clear();
+            mappedEnd = 0;
+            channel.truncate(offset);
+            end = offset;
+            remap();
+        }
+    }
+
+    /**
+     * Indexes the record at "offset" and returns the offset of the next one, or
+     * -1 if the record runs past "size".
+     */
+    private long scanRecord(long offset, long size) {
+        ByteBuffer segment = segments.get((int) (offset / segmentSize));
+        int pos = (int) (offset % segmentSize);
+        int limit = (int) Math.min(segmentSize, size - (offset - pos));
+        byte type = segment.get(pos);
+        if (type == PADDING) {
+            long next = offset - pos + segmentSize;
+            return next <= size ? next : -1;
+        }
+        int keyStart = pos + 1;
+        int lengthPos;
+        if (type == LONG_KEY) {
+            lengthPos = keyStart + 8;
+        } else if (type == STRING_KEY) {
+            if (keyStart + 2 > limit) {
+                return -1;
+            }
+            lengthPos = keyStart + 2 + (segment.getShort(keyStart) & 0xffff);
+        } else {
+            return -1;
+        }
+        if (lengthPos + 4 > limit) {
+            return -1;
+        }
+        int length = segment.getInt(lengthPos);
+        long recordEnd = lengthPos + 4L + length;
+        if (length < 0 || recordEnd > limit) {
+            return -1;
+        }
+        long unionOffset = offset - pos + lengthPos;
+        if (type == LONG_KEY) {
+            longKeys.put(segment.getLong(keyStart), unionOffset);
+        } else {
+            byte[] key = new byte[lengthPos - keyStart - 2];
+            for (int i = 0; i < key.length; i++) {
+                key[i] = segment.get(keyStart + 2 + i);
+            }
+            stringKeys.put(new String(key, StandardCharsets.UTF_8), unionOffset);
+        }
+        return offset - pos + recordEnd;
+    }
+
+    public synchronized void put(long key, S2CellUnion union) throws IOException {
+        byte[] encoded = S2CellUnionCodec.encode(union);
+        ByteBuffer record = ByteBuffer.allocate(1 + 8 + 4 + encoded.length);
+        record.put(LONG_KEY).putLong(key);
+        longKeys.put(key, append(record, encoded));
+    }
+
+    public void put(String key, S2CellUnion union) throws IOException {
+        putEncoded(key, S2CellUnionCodec.encode(union));
+    }
+
+    /** As put(), for a union already encoded with S2CellUnionCodec. */
+    public synchronized void putEncoded(String key, byte[] encoded) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        if (keyBytes.length > 0xffff) {
+            throw new IllegalArgumentException("Key too long: " + keyBytes.length + " bytes");
+        }
+        ByteBuffer record = ByteBuffer.allocate(1 + 2 + keyBytes.length + 4 + encoded.length);
+        record.put(STRING_KEY).putShort((short) keyBytes.length).put(keyBytes);
+        stringKeys.put(key, append(record, encoded));
+    }
+
+    public void put(long key, List<Long> regionIds) throws IOException {
+        put(key, CellUnionTools.S2IdsToUnion(regionIds));
+    }
+
+    public void put(String key, List<Long> regionIds) throws IOException {
+        put(key, CellUnionTools.S2IdsToUnion(regionIds));
+    }
+
+    /**
+     * Finishes the record (key already in "record") with the encoded union,
+     * writes it at the end of the file and returns the offset of the union's
+     * length field.
+     */
+    private long append(ByteBuffer record, byte[] encoded) throws IOException {
+        int lengthPos = record.position();
+        record.putInt(encoded.length).put(encoded).flip();
+        if (record.remaining() > segmentSize) {
+            throw new IllegalArgumentException("Cell union too large to store");
+        }
+        long segmentEnd = (end / segmentSize + 1) * segmentSize;
+        if (end + record.remaining() > segmentEnd) {
+            ByteBuffer padding = ByteBuffer.allocate(1);
+            padding.put(PADDING).flip();
+            writeFully(padding, end);
+            end = segmentEnd;
+        }
+        long offset = end;
+        writeFully(record, offset);
+        end += record.limit();
+        return offset + lengthPos;
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Returns a read-only view of the encoded union stored under the key, or
+     * null if there is none. Decode it with S2CellUnionCodec, or use
+     * getUnion()/getIds().
+     */
+    public synchronized ByteBuffer get(long key) throws IOException {
+        long offset = longKeys.get(key);
+        return offset == 0 ? null : view(offset);
+    }
+
+    public synchronized ByteBuffer get(String key) throws IOException {
+        Long offset = stringKeys.get(key);
+        return offset == null ? null : view(offset);
+    }
+
+    private ByteBuffer view(long offset) throws IOException {
+        if (offset >= mappedEnd) {
+            remap();
+        }
+        ByteBuffer view = segments.get((int) (offset / segmentSize)).duplicate();
+        int pos = (int) (offset % segmentSize);
+        int length = view.getInt(pos);
+        view.limit(pos + 4 + length).position(pos + 4);
+        return view.slice().asReadOnlyBuffer();
+    }
+
+    /** Maps any part of the file written since the last call. */
+    private void remap() throws IOException {
+        if (!segments.isEmpty() && mappedEnd % segmentSize != 0) {
+            // The last segment was only partly mapped.
+            segments.remove(segments.size() - 1);
+            mappedEnd = (long) segments.size() * segmentSize;
+        }
+        while (mappedEnd < end) {
+            long length = Math.min(segmentSize, end - mappedEnd);
+            segments.add(channel.map(FileChannel.MapMode.READ_ONLY, mappedEnd, length));
+            mappedEnd += length;
+        }
+    }
+
+    public S2CellUnion getUnion(long key) throws IOException {
+        ByteBuffer view = get(key);
+        return view == null ? null : S2CellUnionCodec.decodeCellUnion(view);
+    }
+
+    public S2CellUnion getUnion(String key) throws IOException {
+        ByteBuffer view = get(key);
+        return view == null ? null : S2CellUnionCodec.decodeCellUnion(view);
+    }
+
+    /** The stored cell ids, as returned by CellUnionTools.UnionToS2Ids. */
+    public List<Long> getIds(long key) throws IOException {
+        ByteBuffer view = get(key);
+        return view == null ? null : idList(view);
+    }
+
+    public List<Long> getIds(String key) throws IOException {
+        ByteBuffer view = get(key);
+        return view == null ? null : idList(view);
+    }
+
+    private static List<Long> idList(ByteBuffer view) {
+        S2CellUnionCodec.IdIterator it = S2CellUnionCodec.iterator(view, 0);
+        List<Long> ids = new ArrayList<>(it.size());
+        while (it.hasNext()) {
+            ids.add(it.next());
+        }
+        return ids;
+    }
+
+    public synchronized boolean contains(long key) {
+        return longKeys.get(key) != 0;
+    }
+
+    public synchronized boolean contains(String key) {
+        return stringKeys.containsKey(key);
+    }
+
+    /** Number of distinct keys in the store. */
+    public synchronized int size() {
+        return longKeys.size() + stringKeys.size();
+    }
+
+    /** The length of the file in bytes. */
+    public synchronized long fileLength() {
+        return end;
+    }
+
+    /** Forces everything written so far to disk. */
+    public synchronized void flush() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        segments.clear();
+        channel.close();
+    }
+
+    /**
+     * Open addressing map from long keys to file offsets, so a few million keys
+     * don't cost a few million boxed Longs. Offsets are never 0 (that's the file
+     * header), so 0 marks an empty slot.
+     */
+    private static final class LongOffsetMap {
+        private long[] keys = new long[16];
+        private long[] offsets = new long[16];
+        private int size;
+
+        long get(long key) {
+            int mask = keys.length - 1;
+            for (int i = slot(key, mask); offsets[i] != 0; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return offsets[i];
+                }
+            }
+            return 0;
+        }
+
+        void put(long key, long offset) {
+            if (2 * (size + 1) > keys.length) {
+                grow();
+            }
+            int mask = keys.length - 1;
+            int i = slot(key, mask);
+            while (offsets[i] != 0 && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            if (offsets[i] == 0) {
+                size++;
+            }
+            keys[i] = key;
+            offsets[i] = offset;
+        }
+
+        int size() {
+            return size;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            long[] oldOffsets = offsets;
+            keys = new long[oldKeys.length * 2];
+            offsets = new long[oldOffsets.length * 2];
+            int mask = keys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldOffsets[j] != 0) {
+                    int i = slot(oldKeys[j], mask);
+                    while (offsets[i] != 0) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    offsets[i] = oldOffsets[j];
+                }
+            }
+        }
+
+        private static int slot(long key, int mask) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+    }
+}
@@ -2,8 +2,10 @@ package org.proagrica.wallys2.utils;
 
 import com.google.common.geometry.S2CellId;
 import com.google.common.geometry.S2CellUnion;
+import com.google.common.geometry.S2CellUnionCodec;
 import com.google.common.geometry.S2Point;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -36,6 +38,39 @@ public class CellUnionTools {
         return UnionToS2Ids(intersection);
     }
 
+    /**
+     * Everything in region1 that isn't in region2, e.g. a field minus an
+     * exclusion zone. Cells of region1 are only split where they overlap region2.
+     */
+    public static S2CellUnion getDifference(S2CellUnion region1, S2CellUnion region2){
+        S2CellUnion difference = new S2CellUnion();
+        difference.getDifference(region1, region2);
+        difference.pack();
+        return difference;
+    }
+
+    public static List<Long> getDifference(List<Long> regionIds1, List<Long> regionIds2){
+        S2CellUnion r1 = S2IdsToUnion(regionIds1);
+        S2CellUnion r2 = S2IdsToUnion(regionIds2);
+        S2CellUnion difference = getDifference(r1, r2);
+        return UnionToS2Ids(difference);
+    }
+
+    /** Everything that is in exactly one of the two regions. */
+    public static S2CellUnion getSymmetricDifference(S2CellUnion region1, S2CellUnion region2){
+        S2CellUnion difference = new S2CellUnion();
+        difference.getSymmetricDifference(region1, region2);
+        difference.pack();
+        return difference;
+    }
+
+    public static List<Long> getSymmetricDifference(List<Long> regionIds1, List<Long> regionIds2){
+        S2CellUnion r1 = S2IdsToUnion(regionIds1);
+        S2CellUnion r2 = S2IdsToUnion(regionIds2);
+        S2CellUnion difference = getSymmetricDifference(r1, r2);
+        return UnionToS2Ids(difference);
+    }
+
     //get area
     /**
      * so S2 assumes the earth is a perfect sphere when it does areas.
@@ -109,15 +144,35 @@ public class CellUnionTools {
         return ids;
     }
 
+    /**
+     * Delta/varint encoding of a union, usually a few bytes per cell rather
+     * than 8 per id or ~17 per hex token. See S2CellUnionCodec for the format.
+     */
+    public static byte[] encode(S2CellUnion region){
+        return S2CellUnionCodec.encode(region);
+    }
+
+    public static byte[] encode(List<Long> regionIds){
+        return encode(S2IdsToUnion(regionIds));
+    }
+
+    public static S2CellUnion decode(byte[] encoded){
+        return S2CellUnionCodec.decodeCellUnion(ByteBuffer.wrap(encoded));
+    }
+
+    public static List<Long> decodeIds(byte[] encoded){
+        S2CellUnionCodec.IdIterator it = S2CellUnionCodec.iterator(ByteBuffer.wrap(encoded), 0);
+        List<Long> ids = new ArrayList<>(it.size());
+        while (it.hasNext()){
+            ids.add(it.next());
+        }
+        return ids;
+    }
+
     public static List<Long> denormalise(List<Long> cellTokensIn, int level){
-        ArrayList<S2CellId> S2ids = new ArrayList<>();
         ArrayList<Long> ids = new ArrayList<>();
         S2CellUnion region1 = S2IdsToUnion(cellTokensIn);
-        region1.denormalize(level,1, S2ids);
-
-        for (S2CellId cellId : S2ids){
-            ids.add(cellId.id());
-        }
+        region1.denormalizeIds(level,1, ids);
         return ids;
     }
 
@@ -0,0 +1,309 @@
+package org.proagrica.wallys2.utils;
+
+import com.google.common.geometry.S2CellUnion;
+import com.google.common.geometry.S2CellUnionCodec;
+import com.google.common.geometry.S2Loop;
+import com.google.common.geometry.S2Point;
+import com.google.common.geometry.S2Polygon;
+import com.google.common.geometry.S2RegionCoverer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the coverings of polygons, so covering the same field boundary
+ * again with the same options is a lookup instead of a run of the coverer.
+ *
+ * Entries are keyed by a fingerprint of the polygon's vertices together with
+ * the coverer options and whether the covering is an interior one. They are
+ * held in the S2CellUnionCodec encoding and evicted least recently used first
+ * once there are more than maxEntries of them or their total weight (encoded
+ * bytes plus a fixed per-entry overhead) goes over maxWeight.
+ *
+ * If a CellUnionStore is given, evicted entries are written to it and found
+ * there again on a later miss, so a cache can outlive the process. Each
+ * distinct covering is written at most once, but the store is append-only, so
+ * it grows for as long as new coverings are evicted. Once it reaches
+ * maxSpillBytes, evicted entries are dropped instead. close() closes the
+ * store.
+ *
+ * Safe to share between threads. Two threads missing on the same key at the
+ * same time both compute the covering; the result is the same either way.
+ */
+public class CoveringCache implements Closeable {
+
+    // Rough size of a map entry, its key and the byte[] header.
+    static final int ENTRY_OVERHEAD = 128;
+
+    private final int maxEntries;
+    private final long maxWeight;
+    private final long maxSpillBytes;
+    // Null once closed.
+    private CellUnionStore spill;
+    private final LinkedHashMap<Key, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long weight;
+    private long hits;
+    private long spillHits;
+    private long misses;
+    private long evictions;
+
+    public CoveringCache(int maxEntries, long maxWeight) {
+        this(maxEntries, maxWeight, null);
+    }
+
+    /** As below, with no limit on the size of the spill store. */
+    public CoveringCache(int maxEntries, long maxWeight, CellUnionStore spill) {
+        this(maxEntries, maxWeight, spill, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param maxEntries    the most coverings to keep in memory
+     * @param maxWeight     the most bytes of coverings to keep in memory
+     * @param spill         where evicted coverings go, or null to drop them. The
+     *                      cache takes ownership of it and closes it in close().
+     * @param maxSpillBytes the size of the spill store's file past which no
+     *                      more coverings are written to it
+     */
+    public CoveringCache(int maxEntries, long maxWeight, CellUnionStore spill, long maxSpillBytes) {
+        if (maxEntries < 0 || maxWeight < 0 || maxSpillBytes < 0) {
+            throw new IllegalArgumentException("Cache bounds must not be negative");
+        }
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        this.spill = spill;
+        this.maxSpillBytes = maxSpillBytes;
+    }
+
+    /** As coverer.getCovering(poly, options), but cached. */
+    public S2CellUnion getCovering(S2RegionCoverer coverer, S2Polygon poly,
+                                   S2RegionCoverer.Options options) {
+        return lookup(coverer, poly, options, false);
+    }
+
+    /** As coverer.getInteriorCovering(poly, options), but cached. */
+    public S2CellUnion getInteriorCovering(S2RegionCoverer coverer, S2Polygon poly,
+                                           S2RegionCoverer.Options options) {
+        return lookup(coverer, poly, options, true);
+    }
+
+    private S2CellUnion lookup(S2RegionCoverer coverer, S2Polygon poly,
+                               S2RegionCoverer.Options options, boolean interior) {
+        long[] fingerprint = fingerprint(poly);
+        Key key = new Key(fingerprint[0], fingerprint[1], options, interior);
+        byte[] encoded = get(key);
+        if (encoded != null) {
+            return S2CellUnionCodec.decodeCellUnion(ByteBuffer.wrap(encoded));
+        }
+        // The caller owns the returned union, the cache keeps its own encoding.
+        S2CellUnion covering = interior
+                ? coverer.getInteriorCovering(poly, options)
+                : coverer.getCovering(poly, options);
+        put(key, S2CellUnionCodec.encode(covering));
+        return covering;
+    }
+
+    private synchronized byte[] get(Key key) {
+        byte[] encoded = entries.get(key);
+        if (encoded != null) {
+            hits++;
+            return encoded;
+        }
+        if (spill != null) {
+            try {
+                ByteBuffer view = spill.get(key.toString());
+                if (view != null) {
+                    encoded = new byte[view.remaining()];
+                    view.get(encoded);
+                    spillHits++;
+                    insert(key, encoded);
+                    return encoded;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        misses++;
+        return null;
+    }
+
+    private synchronized void put(Key key, byte[] encoded) {
+        insert(key, encoded);
+    }
+
+    private void insert(Key key, byte[] encoded) {
+        byte[] previous = entries.put(key, encoded);
+        if (previous != null) {
+            weight -= weigh(previous);
+        }
+        weight += weigh(encoded);
+        Iterator<Map.Entry<Key, byte[]>> eldest = entries.entrySet().iterator();
+        while (entries.size() > maxEntries || weight > maxWeight) {
+            Map.Entry<Key, byte[]> entry = eldest.next();
+            eldest.remove();
+            weight -= weigh(entry.getValue());
+            evictions++;
+            spill(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void spill(Key key, byte[] encoded) {
+        if (spill == null) {
+            return;
+        }
+        String spillKey = key.toString();
+        try {
+            // An entry that came back from the spill is already there.
+            if (!spill.contains(spillKey) && spill.fileLength() < maxSpillBytes) {
+                spill.putEncoded(spillKey, encoded);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static long weigh(byte[] encoded) {
+        return encoded.length + ENTRY_OVERHEAD;
+    }
+
+    /**
+     * Closes the spill store, if there is one. The cache keeps working from
+     * memory alone afterwards, so lookups still running on other threads are
+     * not disturbed.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (spill != null) {
+            CellUnionStore store = spill;
+            spill = null;
+            store.close();
+        }
+    }
+
+    /** Drops every entry held in memory; the spill store is left alone. */
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    /** Number of coverings held in memory. */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** Total weight of the coverings held in memory. */
+    public synchronized long weight() {
+        return weight;
+    }
+
+    /** Lookups answered from memory. */
+    public synchronized long hits() {
+        return hits;
+    }
+
+    /** Lookups answered from the spill store. */
+    public synchronized long spillHits() {
+        return spillHits;
+    }
+
+    /** Lookups that had to run the coverer. */
+    public synchronized long misses() {
+        return misses;
+    }
+
+    /** Coverings pushed out of memory by the size or weight bound. */
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CoveringCache[size=" + entries.size() + ", weight=" + weight + ", hits=" + hits
+                + ", spillHits=" + spillHits + ", misses=" + misses + ", evictions=" + evictions + "]";
+    }
+
+    /**
+     * A 128 bit hash of the polygon's loops and vertices, returned as two longs.
+     * It only depends on the vertex coordinates, so it is the same from one run
+     * to the next and can key the spill store.
+     */
+    public static long[] fingerprint(S2Polygon poly) {
+        long h1 = 0x243F6A8885A308D3L;
+        long h2 = 0x13198A2E03707344L;
+        h1 = mix1(h1, poly.numLoops());
+        h2 = mix2(h2, poly.numLoops());
+        for (int k = 0; k < poly.numLoops(); k++) {
+            S2Loop loop = poly.loop(k);
+            h1 = mix1(h1, loop.numVertices());
+            h2 = mix2(h2, loop.numVertices());
+            for (int i = 0; i < loop.numVertices(); i++) {
+                S2Point p = loop.vertex(i);
+                long x = Double.doubleToLongBits(p.get(0));
+                long y = Double.doubleToLongBits(p.get(1));
+                long z = Double.doubleToLongBits(p.get(2));
+                h1 = mix1(mix1(mix1(h1, x), y), z);
+                h2 = mix2(mix2(mix2(h2, x), y), z);
+            }
+        }
+        return new long[] {finish(h1), finish(h2)};
+    }
+
+    private static long mix1(long h, long v) {
+        h ^= v * 0x87C37B91114253D5L;
+        return Long.rotateLeft(h, 31) * 0x4CF5AD432745937FL;
+    }
+
+    private static long mix2(long h, long v) {
+        h ^= v * 0x9E3779B97F4A7C15L;
+        return Long.rotateLeft(h, 27) * 0xC2B2AE3D27D4EB4FL;
+    }
+
+    private static long finish(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+
+    private static final class Key {
+        private final long hash1;
+        private final long hash2;
+        private final S2RegionCoverer.Options options;
+        private final boolean interior;
+
+        Key(long hash1, long hash2, S2RegionCoverer.Options options, boolean interior) {
+            this.hash1 = hash1;
+            this.hash2 = hash2;
+            this.options = options;
+            this.interior = interior;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash1 == other.hash1 && hash2 == other.hash2
+                    && interior == other.interior && options.equals(other.options);
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) hash1 ^ 31 * options.hashCode() ^ (interior ? 1 : 0);
+        }
+
+        /** The key in the spill store. */
+        @Override
+        public String toString() {
+            return String.format("%016x%016x/%d/%d/%d/%d/%s", hash1, hash2, options.minLevel(),
+                    options.maxLevel(), options.levelMod(), options.maxCells(), interior ? "i" : "c");
+        }
+    }
+}
@@ -102,7 +102,7 @@ public class GeometryTools {
     public static double getAreaWKT(String wkt) throws Exception {
         try {
             coordConverter conv;
-            conv = new coordConverter("EPSG:4326", "EPSG:2163", true); //TODO: Generalise
+            conv = coordConverter.get("EPSG:4326", "EPSG:2163", true); //TODO: Generalise
             return conv.getConvertedArea(wkt);
         } catch (FactoryException e) {
             e.printStackTrace();
@@ -113,7 +113,7 @@ public class GeometryTools {
     public static double getAreaWKT(String wkt, String target_crs) throws Exception {
         try {
             coordConverter conv;
-            conv = new coordConverter("EPSG:4326", target_crs, true); //TODO: Generalise
+            conv = coordConverter.get("EPSG:4326", target_crs, true); //TODO: Generalise
             return conv.getConvertedArea(wkt);
         } catch (FactoryException e) {
             e.printStackTrace();
@@ -124,7 +124,7 @@ public class GeometryTools {
     public static double getAreaGeom(Geometry geom, String target_crs) throws Exception {
         try {
             coordConverter conv;
-            conv = new coordConverter("EPSG:4326", target_crs, true); //TODO: Generalise
+            conv = coordConverter.get("EPSG:4326", target_crs, true); //TODO: Generalise
             return conv.getConvertedArea(geom);
         } catch (FactoryException e) {
             e.printStackTrace();
@@ -155,7 +155,7 @@ public class GeometryTools {
     public static double getPerimeterWKT(String wkt) throws Exception {
         try {
             coordConverter conv;
-            conv = new coordConverter("EPSG:4326", "EPSG:2163", true); //TODO: Generalise
+            conv = coordConverter.get("EPSG:4326", "EPSG:2163", true); //TODO: Generalise
             return conv.getConvertedPerimeter(wkt);
         } catch (FactoryException e) {
             e.printStackTrace();
@@ -2,6 +2,8 @@ package org.proagrica.wallys2.utils;
 
 import com.google.common.geometry.S2CellId;
 import com.google.common.geometry.S2CellUnion;
+import com.google.common.geometry.S2Polygon;
+import org.proagrica.wallys2.converters.EqualAreaProjection;
 import org.proagrica.wallys2.converters.coordConverter;
 import org.opengis.referencing.FactoryException;
 
@@ -35,7 +37,7 @@ public class S2GeomAreaTools {
         try {
             String wkt = s2ToWkt(cellRegion);
             coordConverter conv;
-            conv = new coordConverter("EPSG:4326", "EPSG:2163", true); //TODO: Generalise
+            conv = coordConverter.get("EPSG:4326", "EPSG:2163", true); //TODO: Generalise
             return conv.getConvertedArea(wkt);
         } catch (FactoryException e) {
             e.printStackTrace();
@@ -43,4 +45,37 @@ public class S2GeomAreaTools {
         }
     }
 
+    /**
+     * The same area as getAreaCellWKT, in m^2 in EPSG:2163, but projected in
+     * the library instead of going through WKT, JTS and GeoTools. See
+     * EqualAreaProjection for how closely the two agree.
+     */
+    public static double getAreaCell(S2CellUnion cellRegion) {
+        return EqualAreaProjection.US_NATIONAL_ATLAS.area(cellRegion);
+    }
+
+    public static double getAreaCell(S2CellId cellId) {
+        S2CellUnion cellUnion = new S2CellUnion();
+        cellUnion.initRawCellIds(new ArrayList<>(Collections.singletonList(cellId)));
+        return getAreaCell(cellUnion);
+    }
+
+    /** The area in m^2 in one of the CRSs EqualAreaProjection.forCode knows. */
+    public static double getAreaCell(S2CellUnion cellRegion, String targetCRS) {
+        return EqualAreaProjection.forCode(targetCRS).area(cellRegion);
+    }
+
+    /** The length in m in EPSG:2163 of the outline of the cells. */
+    public static double getPerimeterCell(S2CellUnion cellRegion) {
+        return EqualAreaProjection.US_NATIONAL_ATLAS.perimeter(cellRegion);
+    }
+
+    public static double getAreaPolygon(S2Polygon poly) {
+        return EqualAreaProjection.US_NATIONAL_ATLAS.area(poly);
+    }
+
+    public static double getPerimeterPolygon(S2Polygon poly) {
+        return EqualAreaProjection.US_NATIONAL_ATLAS.perimeter(poly);
+    }
+
 }
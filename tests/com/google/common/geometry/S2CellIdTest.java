@@ -98,6 +98,34 @@ public strictfp class S2CellIdTest extends GeometryTestCase {
   }
 
 
+  public void testFromDegrees() {
+    final int kNumPoints = 20000;
+    double[] lat = new double[kNumPoints];
+    double[] lng = new double[kNumPoints];
+    for (int i = 0; i < kNumPoints; ++i) {
+      lat[i] = 180 * rand.nextDouble() - 90;
+      lng[i] = 360 * rand.nextDouble() - 180;
+    }
+    // Include the poles and the antimeridian.
+    lat[0] = 90;
+    lat[1] = -90;
+    lng[2] = 180;
+    lng[3] = -180;
+
+    for (int level : new int[] {0, 13, S2CellId.MAX_LEVEL}) {
+      long[] serial = new long[kNumPoints];
+      long[] parallel = new long[kNumPoints];
+      S2CellId.fromDegrees(lat, lng, level, serial);
+      S2CellId.fromDegreesParallel(lat, lng, level, parallel);
+      for (int i = 0; i < kNumPoints; ++i) {
+        S2CellId expected =
+            S2CellId.fromLatLng(S2LatLng.fromDegrees(lat[i], lng[i])).parent(level);
+        assertEquals(expected.id(), serial[i]);
+        assertEquals(expected.id(), parallel[i]);
+      }
+    }
+  }
+
   public void testToToken() {
     assertEquals("000000000000010a", new S2CellId(266).toToken());
     assertEquals("80855c", new S2CellId(-9185834709882503168L).toToken());
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2005 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.common.geometry;
+
+import java.nio.ByteBuffer;
+
+/**
+ */
+public strictfp class S2CellIdTokensTest extends GeometryTestCase {
+
+  public void testMatchesToToken() {
+    char[] chars = new char[S2CellIdTokens.MAX_TOKEN_LENGTH + 2];
+    byte[] bytes = new byte[S2CellIdTokens.MAX_TOKEN_LENGTH + 2];
+    ByteBuffer buffer = ByteBuffer.allocateDirect(S2CellIdTokens.MAX_TOKEN_LENGTH);
+    for (int i = 0; i < 10000; ++i) {
+      S2CellId id = (i == 0) ? S2CellId.none() : getRandomCellId();
+      String token = id.toToken();
+      assertEquals(token.length(), S2CellIdTokens.tokenLength(id.id()));
+
+      int len = S2CellIdTokens.encode(id.id(), chars, 2);
+      assertEquals(token, new String(chars, 2, len));
+      assertEquals(id.id(), S2CellIdTokens.decode(chars, 2, len));
+      assertEquals(id.id(), S2CellIdTokens.decode(token, 0, len));
+
+      len = S2CellIdTokens.encode(id.id(), bytes, 1);
+      assertEquals(token.length(), len);
+      assertEquals(id.id(), S2CellIdTokens.decode(bytes, 1, len));
+
+      buffer.clear();
+      len = S2CellIdTokens.encode(id.id(), buffer);
+      assertEquals(len, buffer.position());
+      assertEquals(id.id(), S2CellIdTokens.decode(buffer, 0, len));
+    }
+    assertEquals("80855c", new S2CellId(-9185834709882503168L).toToken());
+  }
+
+  public void testDecodeErrors() {
+    assertEquals(0, S2CellIdTokens.decode("X", 0, 1));
+    assertEquals(0, S2CellIdTokens.decode("00000000000000001", 0, 17));
+    assertEquals(S2CellId.fromToken("89C259").id(), S2CellIdTokens.decode("89c259", 0, 6));
+    try {
+      S2CellIdTokens.decode("89c2g9", 0, 6);
+      fail();
+    } catch (NumberFormatException expected) {
+    }
+    try {
+      S2CellIdTokens.decode(new byte[0], 0, 0);
+      fail();
+    } catch (NumberFormatException expected) {
+    }
+  }
+
+  public void testPacked() {
+    final int kNumIds = 1000;
+    long[] ids = new long[kNumIds];
+    for (int i = 0; i < kNumIds; ++i) {
+      ids[i] = getRandomCellId().id();
+    }
+    byte[] packed = new byte[S2CellIdTokens.maxPackedLength(kNumIds)];
+    int len = S2CellIdTokens.encodeAll(ids, 0, kNumIds, packed, 0, (byte) ',');
+    assertEquals(ids.length, S2CellIdTokens.countTokens(packed, 0, len, (byte) ','));
+
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < kNumIds; ++i) {
+      expected.append(i == 0 ? "" : ",").append(new S2CellId(ids[i]).toToken());
+    }
+    assertEquals(expected.toString(), new String(packed, 0, len));
+
+    long[] decoded = new long[kNumIds];
+    assertEquals(kNumIds,
+        S2CellIdTokens.decodeAll(packed, 0, len, (byte) ',', decoded, 0));
+    for (int i = 0; i < kNumIds; ++i) {
+      assertEquals(ids[i], decoded[i]);
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(S2CellIdTokens.maxPackedLength(kNumIds));
+    assertEquals(len, S2CellIdTokens.encodeAll(ids, 0, kNumIds, buffer, (byte) '\n'));
+    buffer.flip();
+    decoded = new long[kNumIds];
+    assertEquals(kNumIds, S2CellIdTokens.decodeAll(buffer, (byte) '\n', decoded, 0));
+    assertEquals(buffer.limit(), buffer.position());
+    for (int i = 0; i < kNumIds; ++i) {
+      assertEquals(ids[i], decoded[i]);
+    }
+    assertEquals(0, S2CellIdTokens.decodeAll(packed, 0, 0, (byte) ',', decoded, 0));
+  }
+}
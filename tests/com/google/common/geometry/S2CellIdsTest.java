@@ -0,0 +1,78 @@
+/*
+ * Copyright 2005 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.common.geometry;
+
+/**
+ */
+public strictfp class S2CellIdsTest extends GeometryTestCase {
+
+  public void testMatchesS2CellId() {
+    for (int iter = 0; iter < 1000; ++iter) {
+      S2CellId cell = getRandomCellId();
+      long id = cell.id();
+      int level = cell.level();
+
+      assertEquals(cell.face(), S2CellIds.face(id));
+      assertEquals(cell.pos(), S2CellIds.pos(id));
+      assertEquals(level, S2CellIds.level(id));
+      assertEquals(cell.isLeaf(), S2CellIds.isLeaf(id));
+      assertEquals(cell.isFace(), S2CellIds.isFace(id));
+      assertTrue(S2CellIds.isValid(id));
+      assertEquals(cell.rangeMin().id(), S2CellIds.rangeMin(id));
+      assertEquals(cell.rangeMax().id(), S2CellIds.rangeMax(id));
+      assertEquals(cell.next().id(), S2CellIds.next(id));
+      assertEquals(cell.prev().id(), S2CellIds.prev(id));
+      assertEquals(cell.nextWrap().id(), S2CellIds.nextWrap(id));
+      assertEquals(cell.prevWrap().id(), S2CellIds.prevWrap(id));
+
+      if (level > 0) {
+        int parentLevel = random(level);
+        long parent = S2CellIds.parent(id, parentLevel);
+        assertEquals(cell.parent(parentLevel).id(), parent);
+        assertEquals(cell.parent().id(), S2CellIds.parent(id));
+        assertEquals(parentLevel, S2CellIds.level(parent));
+        assertTrue(S2CellIds.contains(parent, id));
+        assertFalse(S2CellIds.contains(id, parent));
+        assertTrue(S2CellIds.intersects(id, parent));
+      }
+      if (level < S2CellId.MAX_LEVEL) {
+        long child = S2CellIds.childBegin(id);
+        assertEquals(cell.childBegin().id(), child);
+        assertEquals(cell.childEnd().id(), S2CellIds.childEnd(id));
+        assertEquals(id, S2CellIds.parent(child));
+        assertTrue(S2CellIds.contains(id, child));
+        assertEquals(cell.childBegin(S2CellId.MAX_LEVEL).id(),
+            S2CellIds.childBegin(id, S2CellId.MAX_LEVEL));
+        assertEquals(cell.childEnd(S2CellId.MAX_LEVEL).id(),
+            S2CellIds.childEnd(id, S2CellId.MAX_LEVEL));
+      }
+      assertFalse(S2CellIds.intersects(id, S2CellIds.next(id)));
+    }
+  }
+
+  public void testUnsignedComparison() {
+    long face5 = S2CellId.fromFacePosLevel(5, 0, 0).id();
+    long face0 = S2CellId.fromFacePosLevel(0, 0, 0).id();
+    assertTrue(face5 < 0);
+    assertTrue(S2CellIds.lessThan(face0, face5));
+    assertTrue(S2CellIds.greaterThan(face5, face0));
+    assertTrue(S2CellIds.lessOrEquals(face5, face5));
+    assertTrue(S2CellIds.greaterOrEquals(face5, face5));
+    assertEquals(-1, S2CellIds.compare(face0, face5));
+    assertEquals(0, S2CellIds.compare(face5, face5));
+    assertEquals(1, S2CellIds.compare(face5, face0));
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2005 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.common.geometry;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Compares S2CellUnionCodec with the other ways a covering is stored or sent
+ * around: raw 64-bit ids, packed hex tokens (S2CellIdTokens) and an
+ * S2CellUnion built from either. Prints the size of each encoding and the
+ * time to encode and decode it. Run with:
+ *
+ * <pre>
+ *   java -cp ... com.google.common.geometry.S2CellUnionCodecBenchmark [cells]
+ * </pre>
+ *
+ * This is not a test and is not run by the build.
+ */
+public strictfp class S2CellUnionCodecBenchmark {
+
+  private static final int ROUNDS = 5;
+
+  public static void main(String[] args) {
+    int maxCells = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    long[] ids = getCovering(maxCells);
+    System.out.println(ids.length + " cells");
+
+    final int size = ids.length;
+    final long[] out = new long[size];
+    final byte[] codec = new byte[S2CellUnionCodec.encodedLength(ids, size)];
+    final byte[] raw = new byte[8 * size];
+    final byte[] tokens = new byte[S2CellIdTokens.maxPackedLength(size)];
+    final int tokensLength = S2CellIdTokens.encodeAll(ids, 0, size, tokens, 0, (byte) ',');
+
+    report("S2CellUnionCodec", codec.length, size, new Runnable() {
+      @Override
+      public void run() {
+        S2CellUnionCodec.encode(ids, size, ByteBuffer.wrap(codec));
+      }
+    }, new Runnable() {
+      @Override
+      public void run() {
+        S2CellUnionCodec.IdIterator it = S2CellUnionCodec.iterator(ByteBuffer.wrap(codec), 0);
+        for (int i = 0; it.hasNext(); ++i) {
+          out[i] = it.next();
+        }
+      }
+    });
+    report("raw ids", raw.length, size, new Runnable() {
+      @Override
+      public void run() {
+        ByteBuffer.wrap(raw).asLongBuffer().put(ids, 0, size);
+      }
+    }, new Runnable() {
+      @Override
+      public void run() {
+        ByteBuffer.wrap(raw).asLongBuffer().get(out, 0, size);
+      }
+    });
+    report("hex tokens", tokensLength, size, new Runnable() {
+      @Override
+      public void run() {
+        S2CellIdTokens.encodeAll(ids, 0, size, tokens, 0, (byte) ',');
+      }
+    }, new Runnable() {
+      @Override
+      public void run() {
+        S2CellIdTokens.decodeAll(tokens, 0, tokensLength, (byte) ',', out, 0);
+      }
+    });
+    report("S2CellUnion from codec", codec.length, size, null, new Runnable() {
+      @Override
+      public void run() {
+        S2CellUnionCodec.decodeCellUnion(ByteBuffer.wrap(codec));
+      }
+    });
+    report("S2CellUnion from raw ids", raw.length, size, null, new Runnable() {
+      @Override
+      public void run() {
+        ByteBuffer.wrap(raw).asLongBuffer().get(out, 0, size);
+        ArrayList<S2CellId> cellIds = new ArrayList<S2CellId>(size);
+        for (int i = 0; i < size; ++i) {
+          cellIds.add(new S2CellId(out[i]));
+        }
+        new S2CellUnion().initRawCellIds(cellIds);
+      }
+    });
+  }
+
+  /** A covering of a random cap, as it would come out of S2RegionCoverer. */
+  private static long[] getCovering(int maxCells) {
+    Random rand = new Random(123456);
+    S2Point center = S2Point.normalize(
+        new S2Point(rand.nextDouble() - 0.5, rand.nextDouble() - 0.5, rand.nextDouble() - 0.5));
+    S2Cap cap = S2Cap.fromAxisArea(center, S2Cell.averageArea(6));
+    S2RegionCoverer coverer = new S2RegionCoverer();
+    coverer.setMaxCells(maxCells);
+    coverer.setMaxLevel(S2CellId.MAX_LEVEL);
+    S2CompactCellUnion union = new S2CompactCellUnion();
+    union.initFromCellUnion(coverer.getCovering(cap));
+    return union.toArray();
+  }
+
+  private static void report(String name, int bytes, int cells, Runnable encode,
+      Runnable decode) {
+    System.out.println(String.format("%-26s %10d bytes (%5.2f per cell)  encode %s  decode %s",
+        name, bytes, (double) bytes / cells, time(encode, cells), time(decode, cells)));
+  }
+
+  /** The best of several rounds, in nanoseconds per cell. */
+  private static String time(Runnable task, int cells) {
+    if (task == null) {
+      return "       -    ";
+    }
+    long best = Long.MAX_VALUE;
+    for (int round = 0; round < ROUNDS; ++round) {
+      long start = System.nanoTime();
+      long elapsed;
+      int iterations = 0;
+      do {
+        task.run();
+        ++iterations;
+        elapsed = System.nanoTime() - start;
+      } while (elapsed < 200000000L);
+      best = Math.min(best, elapsed / iterations);
+    }
+    return String.format("%7.1f ns/cell", (double) best / cells);
+  }
+}
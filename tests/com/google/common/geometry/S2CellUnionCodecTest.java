@@ -0,0 +1,206 @@
+/*
+ * Copyright 2005 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.common.geometry;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.logging.Logger;
+
+public strictfp class S2CellUnionCodecTest extends GeometryTestCase {
+  public static Logger logger = Logger.getLogger(S2CellUnionCodecTest.class.getName());
+
+  private S2CompactCellUnion getRandomUnion(int maxCells) {
+    long[] ids = new long[rand.nextInt(maxCells + 1)];
+    for (int i = 0; i < ids.length; ++i) {
+      ids[i] = getRandomCellId().id();
+    }
+    S2CompactCellUnion union = new S2CompactCellUnion();
+    union.initFromIds(ids);
+    return union;
+  }
+
+  public void testRoundTrip() {
+    logger.info("TestRoundTrip");
+    for (int iter = 0; iter < 200; ++iter) {
+      S2CompactCellUnion union = getRandomUnion(100);
+      byte[] bytes = S2CellUnionCodec.encode(union);
+      assertEquals(S2CellUnionCodec.encodedLength(union.toArray(), union.size()), bytes.length);
+      assertTrue(bytes.length <= S2CellUnionCodec.maxEncodedLength(union.size()));
+      assertEquals(union, S2CellUnionCodec.decode(bytes));
+      assertEquals(union.toCellUnion(),
+          S2CellUnionCodec.decodeCellUnion(ByteBuffer.wrap(bytes)));
+      assertTrue(Arrays.equals(bytes, S2CellUnionCodec.encode(union.toCellUnion())));
+    }
+  }
+
+  public void testExtremeCells() {
+    // The first and last leaf cells, and all six faces.
+    long[] ids = {S2CellId.begin(S2CellId.MAX_LEVEL).id(),
+        S2CellId.end(S2CellId.MAX_LEVEL).prev().id()};
+    S2CompactCellUnion union = new S2CompactCellUnion();
+    union.initFromIds(ids);
+    assertEquals(union, S2CellUnionCodec.decode(S2CellUnionCodec.encode(union)));
+
+    long[] faces = new long[6];
+    for (int face = 0; face < 6; ++face) {
+      faces[face] = S2CellId.fromFacePosLevel(face, 0, 0).id();
+    }
+    union.initRawIds(faces, faces.length);
+    byte[] bytes = S2CellUnionCodec.encode(union);
+    assertEquals(union, S2CellUnionCodec.decode(bytes));
+  }
+
+  public void testSequentialAndDirectBuffers() {
+    S2CompactCellUnion a = getRandomUnion(50);
+    S2CompactCellUnion b = getRandomUnion(50);
+    ByteBuffer buffer = ByteBuffer.allocateDirect(
+        S2CellUnionCodec.maxEncodedLength(a.size() + b.size()) + 1);
+    int aLength = S2CellUnionCodec.encode(a, buffer);
+    S2CellUnionCodec.encode(b, buffer);
+    buffer.flip();
+
+    // The iterator uses absolute indices and leaves the position alone.
+    S2CellUnionCodec.IdIterator it = S2CellUnionCodec.iterator(buffer, aLength);
+    assertEquals(b.size(), it.size());
+    for (int i = 0; i < b.size(); ++i) {
+      assertTrue(it.hasNext());
+      assertEquals(b.id(i), it.next());
+    }
+    assertFalse(it.hasNext());
+    assertEquals(buffer.limit(), it.position());
+    assertEquals(0, buffer.position());
+    try {
+      it.next();
+      fail();
+    } catch (NoSuchElementException e) {
+      // Expected.
+    }
+
+    assertEquals(a, S2CellUnionCodec.decode(buffer));
+    assertEquals(aLength, buffer.position());
+    assertEquals(b, S2CellUnionCodec.decode(buffer));
+    assertFalse(buffer.hasRemaining());
+  }
+
+  public void testInvalidInput() {
+    S2CompactCellUnion union = getRandomUnion(20);
+    while (union.size() == 0) {
+      union = getRandomUnion(20);
+    }
+    byte[] bytes = S2CellUnionCodec.encode(union);
+    for (int length = 0; length < bytes.length; ++length) {
+      try {
+        S2CellUnionCodec.decode(ByteBuffer.wrap(bytes, 0, length));
+        fail("Decoded truncated input of length " + length);
+      } catch (IllegalArgumentException e) {
+        // Expected.
+      }
+    }
+    bytes[0] = 99;
+    try {
+      S2CellUnionCodec.decode(bytes);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+  }
+
+  private static void assertInvalid(byte[] bytes) {
+    try {
+      S2CellUnionCodec.decode(bytes);
+      fail("Decoded " + Arrays.toString(bytes));
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+  }
+
+  public void testOversizedCount() {
+    // A count of 2^31 - 1 cells with nothing after it must be rejected before
+    // anything is allocated for it.
+    assertInvalid(new byte[] {S2CellUnionCodec.VERSION, (byte) 0xff, (byte) 0xff, (byte) 0xff,
+        (byte) 0xff, 0x07});
+    // Three cells need at least six bytes.
+    assertInvalid(new byte[] {S2CellUnionCodec.VERSION, 3, 0, 0, 0, 0, 0});
+    // A count that does not fit in an int at all.
+    assertInvalid(new byte[] {S2CellUnionCodec.VERSION, (byte) 0x80, (byte) 0x80, (byte) 0x80,
+        (byte) 0x80, (byte) 0x80, 0x01, 0, 0});
+  }
+
+  public void testBadVarint() {
+    // A varint longer than ten bytes.
+    byte[] bytes = new byte[14];
+    bytes[0] = S2CellUnionCodec.VERSION;
+    bytes[1] = 1;
+    bytes[2] = S2CellId.MAX_LEVEL;
+    Arrays.fill(bytes, 3, bytes.length, (byte) 0xff);
+    assertInvalid(bytes);
+
+    // A gap that would run past the last face, and one that would wrap
+    // around to a smaller id.
+    byte[] past = {S2CellUnionCodec.VERSION, 1, 0, (byte) 0x80, (byte) 0x80, (byte) 0x80,
+        (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0xe0, 0x00};
+    assertInvalid(past);
+    byte[] wrap = {S2CellUnionCodec.VERSION, 1, 0, (byte) 0xff, (byte) 0xff, (byte) 0xff,
+        (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x01};
+    assertInvalid(wrap);
+
+    // The first cell of face 5 decodes, but a second cell after it does not.
+    long face5 = S2CellId.fromFacePosLevel(5, 0, 0).id();
+    byte[] last = S2CellUnionCodec.encode(compact(face5));
+    assertEquals(compact(face5), S2CellUnionCodec.decode(last));
+    byte[] extra = Arrays.copyOf(last, last.length + 2);
+    extra[1] = 2;
+    extra[last.length] = S2CellId.MAX_LEVEL;
+    assertInvalid(extra);
+
+    // A face cell must start at the beginning of a face.
+    assertInvalid(new byte[] {S2CellUnionCodec.VERSION, 1, 0, 1});
+  }
+
+  public void testIdsIncrease() {
+    S2CompactCellUnion union = getRandomUnion(100);
+    S2CellUnionCodec.IdIterator it = S2CellUnionCodec.iterator(
+        ByteBuffer.wrap(S2CellUnionCodec.encode(union)), 0);
+    long previousMax = 0;
+    while (it.hasNext()) {
+      long id = it.next();
+      assertTrue(S2CellIds.isValid(id));
+      assertTrue(S2CellIds.greaterThan(S2CellIds.rangeMin(id), previousMax));
+      previousMax = S2CellIds.rangeMax(id);
+    }
+  }
+
+  private static S2CompactCellUnion compact(long... ids) {
+    S2CompactCellUnion union = new S2CompactCellUnion();
+    union.initFromIds(ids);
+    return union;
+  }
+
+  public void testCompactness() {
+    // A typical covering: many small cells, mostly adjacent to each other.
+    S2RegionCoverer coverer = new S2RegionCoverer();
+    coverer.setMaxCells(1000);
+    coverer.setMaxLevel(20);
+    S2Cap cap = getRandomCap(S2Cell.averageArea(12), S2Cell.averageArea(10));
+    S2CompactCellUnion union = new S2CompactCellUnion();
+    union.initFromCellUnion(coverer.getCovering(cap));
+    byte[] bytes = S2CellUnionCodec.encode(union);
+    logger.info(union.size() + " cells encoded in " + bytes.length + " bytes");
+    assertTrue(bytes.length < 4 * union.size());
+    assertEquals(union, S2CellUnionCodec.decode(bytes));
+  }
+}
@@ -305,6 +305,101 @@ public strictfp class S2CellUnionTest extends GeometryTestCase {
     return maxAngle;
   }
 
+  /**
+   * Reference implementation of x - y that splits every cell of "x" that
+   * intersects "y" recursively.
+   */
+  private void addDifference(S2CellId id, S2CellUnion y, ArrayList<S2CellId> output) {
+    if (!y.intersects(id)) {
+      output.add(id);
+    } else if (!y.contains(id)) {
+      S2CellId end = id.childEnd();
+      for (S2CellId child = id.childBegin(); !child.equals(end); child = child.next()) {
+        addDifference(child, y, output);
+      }
+    }
+  }
+
+  public void testDifference() {
+    for (int iter = 0; iter < 500; ++iter) {
+      ArrayList<S2CellId> xInput = Lists.newArrayList();
+      ArrayList<S2CellId> yInput = Lists.newArrayList();
+      addCells(S2CellId.none(), false, xInput, Lists.<S2CellId>newArrayList());
+      addCells(S2CellId.none(), false, yInput, Lists.<S2CellId>newArrayList());
+      S2CellUnion x = new S2CellUnion();
+      S2CellUnion y = new S2CellUnion();
+      x.initFromCellIds(xInput);
+      y.initFromCellIds(yInput);
+
+      S2CellUnion xMinusY = new S2CellUnion();
+      xMinusY.getDifference(x, y);
+      ArrayList<S2CellId> expected = Lists.newArrayList();
+      for (S2CellId id : x) {
+        addDifference(id, y, expected);
+      }
+      S2CellUnion expectedUnion = new S2CellUnion();
+      expectedUnion.initFromCellIds(expected);
+      assertEquals(expectedUnion, xMinusY);
+
+      // The output is already normalized.
+      S2CellUnion copy = (S2CellUnion) xMinusY.clone();
+      assertFalse(copy.normalize());
+
+      // (x - y) is disjoint from y, and together with (x intersect y) gives x.
+      assertFalse(xMinusY.intersects(y));
+      S2CellUnion xAndY = new S2CellUnion();
+      xAndY.getIntersection(x, y);
+      S2CellUnion rebuilt = new S2CellUnion();
+      rebuilt.getUnion(xMinusY, xAndY);
+      assertEquals(x, rebuilt);
+
+      // Symmetric difference is (x - y) + (y - x), and symmetric.
+      S2CellUnion yMinusX = new S2CellUnion();
+      yMinusX.getDifference(y, x);
+      S2CellUnion expectedSym = new S2CellUnion();
+      expectedSym.getUnion(xMinusY, yMinusX);
+      S2CellUnion sym = new S2CellUnion();
+      sym.getSymmetricDifference(x, y);
+      assertEquals(expectedSym, sym);
+      S2CellUnion symReversed = new S2CellUnion();
+      symReversed.getSymmetricDifference(y, x);
+      assertEquals(sym, symReversed);
+    }
+
+    // A leaf cell removed from a face cell.
+    S2CellUnion face = new S2CellUnion();
+    face.initFromCellIds(Lists.newArrayList(S2CellId.fromFacePosLevel(5, 0, 0)));
+    S2CellId leaf = S2CellId.fromFacePosLevel(5, 12345, S2CellId.MAX_LEVEL);
+    S2CellUnion hole = new S2CellUnion();
+    hole.initFromCellIds(Lists.newArrayList(leaf));
+    S2CellUnion diff = new S2CellUnion();
+    diff.getDifference(face, hole);
+    assertEquals(3 * S2CellId.MAX_LEVEL, diff.size());
+    assertFalse(diff.contains(leaf));
+    assertEquals(face.leafCellsCovered() - 1, diff.leafCellsCovered());
+    diff.getDifference(hole, face);
+    assertEquals(0, diff.size());
+  }
+
+  public void testDenormalizeIds() {
+    S2CellUnion cellUnion = new S2CellUnion();
+    ArrayList<S2CellId> ids = Lists.newArrayList();
+    ids.add(S2CellId.fromFacePosLevel(1, 0, 10));
+    ids.add(S2CellId.fromFacePosLevel(3, 0, 13));
+    ids.add(S2CellId.fromFacePosLevel(4, 0, 16));
+    cellUnion.initFromCellIds(ids);
+
+    ArrayList<S2CellId> expected = Lists.newArrayList();
+    ArrayList<Long> actual = Lists.newArrayList();
+    cellUnion.denormalize(12, 2, expected);
+    cellUnion.denormalizeIds(12, 2, actual);
+    assertEquals(16 + 4 + 1, actual.size());
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); ++i) {
+      assertEquals(expected.get(i).id(), actual.get(i).longValue());
+    }
+  }
+
   public void testExpand() {
     logger.info("TestExpand");
 
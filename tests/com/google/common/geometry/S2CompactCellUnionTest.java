@@ -0,0 +1,206 @@
+/*
+ * Copyright 2005 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.common.geometry;
+
+import java.util.ArrayList;
+import java.util.logging.Logger;
+
+public strictfp class S2CompactCellUnionTest extends GeometryTestCase {
+  public static Logger logger = Logger.getLogger(S2CompactCellUnionTest.class.getName());
+
+  /**
+   * Return random cell ids, including complete groups of siblings and cells
+   * that contain each other so that normalize() has work to do.
+   */
+  private long[] getRandomIds(int count) {
+    long[] ids = new long[count];
+    int n = 0;
+    while (n < count) {
+      S2CellId id = getRandomCellId();
+      if (rand.nextInt(4) == 0 && !id.isFace() && n + 4 <= count) {
+        S2CellId parent = id.parent();
+        for (S2CellId child = parent.childBegin(); !child.equals(parent.childEnd());
+            child = child.next()) {
+          ids[n++] = child.id();
+        }
+      } else if (rand.nextInt(4) == 0 && id.level() < S2CellId.MAX_LEVEL && n + 2 <= count) {
+        ids[n++] = id.id();
+        ids[n++] = id.childBegin(S2CellId.MAX_LEVEL).id();
+      } else {
+        ids[n++] = id.id();
+      }
+    }
+    return ids;
+  }
+
+  private static S2CellUnion toCellUnion(long[] ids) {
+    ArrayList<Long> list = new ArrayList<Long>();
+    for (long id : ids) {
+      list.add(id);
+    }
+    S2CellUnion union = new S2CellUnion();
+    union.initFromIds(list);
+    return union;
+  }
+
+  private static void assertSameCells(S2CellUnion expected, S2CompactCellUnion actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); ++i) {
+      assertEquals(expected.cellId(i).id(), actual.id(i));
+    }
+    assertEquals(expected.hashCode(), actual.hashCode());
+  }
+
+  public void testEmpty() {
+    S2CompactCellUnion empty = new S2CompactCellUnion();
+    empty.initFromIds(new long[0]);
+    assertEquals(0, empty.size());
+    assertFalse(empty.contains(S2CellId.fromFacePosLevel(0, 0, 0)));
+    assertFalse(empty.intersects(S2CellId.fromFacePosLevel(0, 0, 0)));
+    assertTrue(empty.getCapBound().isEmpty());
+    assertTrue(empty.getRectBound().isEmpty());
+    assertEquals(0, empty.denormalize(0, 1).length);
+  }
+
+  public void testNormalize() {
+    logger.info("TestNormalize");
+    for (int iter = 0; iter < 200; ++iter) {
+      long[] ids = getRandomIds(1 + rand.nextInt(50));
+      S2CellUnion expected = toCellUnion(ids);
+
+      S2CompactCellUnion union = new S2CompactCellUnion();
+      union.initFromIds(ids);
+      assertSameCells(expected, union);
+      assertFalse(union.normalize());
+      assertEquals(expected, union.toCellUnion());
+
+      S2CompactCellUnion copy = new S2CompactCellUnion();
+      copy.initFromCellUnion(expected);
+      assertEquals(union, copy);
+      assertEquals(union, union.clone());
+      assertEquals(expected.leafCellsCovered(), union.leafCellsCovered());
+    }
+  }
+
+  public void testNormalizeCollapsesToFace() {
+    S2CellId face = S2CellId.fromFacePosLevel(3, 0, 0);
+    long[] ids = new long[16];
+    int n = 0;
+    for (S2CellId child = face.childBegin(2); !child.equals(face.childEnd(2));
+        child = child.next()) {
+      ids[n++] = child.id();
+    }
+    S2CompactCellUnion union = new S2CompactCellUnion();
+    union.initRawIds(ids, n);
+    assertTrue(union.normalize());
+    assertEquals(1, union.size());
+    assertEquals(face.id(), union.id(0));
+  }
+
+  public void testContainsAndIntersects() {
+    logger.info("TestContainsAndIntersects");
+    for (int iter = 0; iter < 100; ++iter) {
+      long[] ids = getRandomIds(1 + rand.nextInt(50));
+      S2CellUnion expected = toCellUnion(ids);
+      S2CompactCellUnion union = new S2CompactCellUnion();
+      union.initFromIds(ids);
+
+      for (int k = 0; k < 50; ++k) {
+        S2CellId id;
+        if (rand.nextInt(2) == 0) {
+          // Probe near a cell of the union so that hits are common.
+          S2CellId base = expected.cellId(rand.nextInt(expected.size()));
+          int level = rand.nextInt(S2CellId.MAX_LEVEL + 1);
+          id = level < base.level() ? base.parent(level) : base.childBegin(level);
+        } else {
+          id = getRandomCellId();
+        }
+        assertEquals(expected.contains(id), union.contains(id));
+        assertEquals(expected.intersects(id), union.intersects(id));
+        S2Cell cell = new S2Cell(id);
+        assertEquals(expected.contains(cell), union.contains(cell));
+        assertEquals(expected.mayIntersect(cell), union.mayIntersect(cell));
+        S2Point p = id.toPoint();
+        assertEquals(expected.contains(p), union.contains(p));
+      }
+    }
+  }
+
+  public void testUnionAndIntersection() {
+    logger.info("TestUnionAndIntersection");
+    for (int iter = 0; iter < 200; ++iter) {
+      long[] xIds = getRandomIds(1 + rand.nextInt(40));
+      long[] yIds = getRandomIds(1 + rand.nextInt(40));
+      S2CellUnion x = toCellUnion(xIds);
+      S2CellUnion y = toCellUnion(yIds);
+      S2CompactCellUnion cx = new S2CompactCellUnion();
+      cx.initFromIds(xIds);
+      S2CompactCellUnion cy = new S2CompactCellUnion();
+      cy.initFromIds(yIds);
+
+      S2CellUnion union = new S2CellUnion();
+      union.getUnion(x, y);
+      S2CompactCellUnion cUnion = new S2CompactCellUnion();
+      cUnion.getUnion(cx, cy);
+      assertSameCells(union, cUnion);
+
+      S2CellUnion intersection = new S2CellUnion();
+      intersection.getIntersection(x, y);
+      S2CompactCellUnion cIntersection = new S2CompactCellUnion();
+      cIntersection.getIntersection(cx, cy);
+      assertSameCells(intersection, cIntersection);
+
+      assertTrue(cUnion.contains(cx));
+      assertTrue(cUnion.contains(cy));
+      assertEquals(x.contains(y), cx.contains(cy));
+      assertEquals(x.intersects(y), cx.intersects(cy));
+      assertEquals(cIntersection.size() > 0, cx.intersects(cy));
+    }
+  }
+
+  public void testDenormalize() {
+    logger.info("TestDenormalize");
+    for (int iter = 0; iter < 100; ++iter) {
+      // Keep the cells fine enough that the output stays small.
+      long[] ids = new long[1 + rand.nextInt(20)];
+      for (int i = 0; i < ids.length; ++i) {
+        ids[i] = getRandomCellId(20 + rand.nextInt(S2CellId.MAX_LEVEL - 19)).id();
+      }
+      S2CompactCellUnion union = new S2CompactCellUnion();
+      union.initFromIds(ids);
+      int minLevel = 20 + rand.nextInt(5);
+      int levelMod = 1 + rand.nextInt(3);
+
+      ArrayList<S2CellId> expected = new ArrayList<S2CellId>();
+      union.toCellUnion().denormalize(minLevel, levelMod, expected);
+      long[] actual = union.denormalize(minLevel, levelMod);
+      assertEquals(expected.size(), actual.length);
+      for (int i = 0; i < actual.length; ++i) {
+        assertEquals(expected.get(i).id(), actual[i]);
+      }
+    }
+  }
+
+  public void testBounds() {
+    long[] ids = getRandomIds(20);
+    S2CellUnion expected = toCellUnion(ids);
+    S2CompactCellUnion union = new S2CompactCellUnion();
+    union.initFromIds(ids);
+    assertEquals(expected.getCapBound(), union.getCapBound());
+    assertEquals(expected.getRectBound(), union.getRectBound());
+    assertDoubleNear(expected.exactArea(), union.exactArea());
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.common.geometry;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Times S2EdgeIndex.computeIndex() on county-like loops: a ring of vertices
+ * about 60 km across with a 10% random wobble in the radius, as a digitized
+ * boundary has. Prints the best build time of the serial path and of the
+ * parallel path in the common pool for each number of edges. Run with:
+ *
+ * <pre>
+ *   java -cp ... com.google.common.geometry.S2EdgeIndexBenchmark [edges ...]
+ * </pre>
+ *
+ * This is not a test and is not run by the build.
+ */
+public strictfp class S2EdgeIndexBenchmark {
+
+  private static final int ROUNDS = 15;
+
+  public static void main(String[] args) {
+    int[] sizes = {1000, 50000, 200000};
+    if (args.length > 0) {
+      sizes = new int[args.length];
+      for (int i = 0; i < args.length; ++i) {
+        sizes[i] = Integer.parseInt(args[i]);
+      }
+    }
+    System.out.println(ForkJoinPool.commonPool().getParallelism() + " threads in the common pool");
+    Random rand = new Random(5);
+    for (int numEdges : sizes) {
+      S2Point[] vertices = getCountyLoop(numEdges, rand);
+      // Small loops build too fast to time one at a time.
+      int repeats = Math.max(1, 50000 / numEdges);
+      long serial = Long.MAX_VALUE;
+      long parallel = Long.MAX_VALUE;
+      for (int round = 0; round < ROUNDS; ++round) {
+        long start = System.nanoTime();
+        for (int i = 0; i < repeats; ++i) {
+          newIndex(vertices).computeIndex();
+        }
+        serial = Math.min(serial, (System.nanoTime() - start) / repeats);
+        start = System.nanoTime();
+        for (int i = 0; i < repeats; ++i) {
+          newIndex(vertices).computeIndex(ForkJoinPool.commonPool());
+        }
+        parallel = Math.min(parallel, (System.nanoTime() - start) / repeats);
+      }
+      System.out.println(String.format("%7d edges  serial %8.2f ms  parallel %8.2f ms",
+          numEdges, serial / 1e6, parallel / 1e6));
+    }
+  }
+
+  /** The vertices of a county-like loop around Red Wing, Minnesota. */
+  private static S2Point[] getCountyLoop(int numVertices, Random rand) {
+    S2Point center = S2LatLng.fromDegrees(44.86, -92.88).toPoint();
+    S2Point x = S2Point.normalize(S2.ortho(center));
+    S2Point y = S2Point.crossProd(center, x);
+    S2Point[] vertices = new S2Point[numVertices];
+    for (int i = 0; i < numVertices; ++i) {
+      double angle = 2 * S2.M_PI * i / numVertices;
+      double radius = 0.01 * (0.9 + 0.1 * rand.nextDouble());
+      S2Point dir = S2Point.add(S2Point.mul(x, Math.cos(angle)), S2Point.mul(y, Math.sin(angle)));
+      vertices[i] = S2Point.normalize(S2Point.add(center, S2Point.mul(dir, Math.tan(radius))));
+    }
+    return vertices;
+  }
+
+  /** An index of the edges of the loop through the given vertices. */
+  private static S2EdgeIndex newIndex(final S2Point[] vertices) {
+    return new S2EdgeIndex() {
+      @Override
+      protected int getNumEdges() {
+        return vertices.length;
+      }
+
+      @Override
+      protected S2Point edgeFrom(int index) {
+        return vertices[index];
+      }
+
+      @Override
+      protected S2Point edgeTo(int index) {
+        return vertices[(index + 1) % vertices.length];
+      }
+    };
+  }
+}
@@ -19,8 +19,12 @@ package com.google.common.geometry;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Logger;
 
 /**
@@ -187,4 +191,125 @@ public strictfp class S2EdgeIndexTest extends GeometryTestCase {
       tryCrossingsRandomInCap(2000, 300, 50000, 1000, 10);
     }
   }
+
+  public void testParallelIndex() {
+    List<S2Edge> allEdges = Lists.newArrayList();
+    generateRandomEarthEdges(100, 50000, S2EdgeIndex.PARALLEL_THRESHOLD + 5000, allEdges);
+    EdgeVectorIndex serial = new EdgeVectorIndex(allEdges);
+    serial.computeIndex();
+    EdgeVectorIndex parallel = new EdgeVectorIndex(allEdges);
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      parallel.computeIndex(pool);
+    } finally {
+      pool.shutdown();
+    }
+    assertTrue(parallel.isIndexComputed());
+
+    EdgeVectorIndex.DataEdgeIterator serialIt = new EdgeVectorIndex.DataEdgeIterator(serial);
+    EdgeVectorIndex.DataEdgeIterator parallelIt = new EdgeVectorIndex.DataEdgeIterator(parallel);
+    for (int i = 0; i < 500; ++i) {
+      S2Edge e = allEdges.get(random(allEdges.size()));
+      HashSet<Integer> expected = Sets.newHashSet();
+      for (serialIt.getCandidates(e.getStart(), e.getEnd()); serialIt.hasNext(); serialIt.next()) {
+        expected.add(serialIt.index());
+      }
+      HashSet<Integer> actual = Sets.newHashSet();
+      for (parallelIt.getCandidates(e.getStart(), e.getEnd()); parallelIt.hasNext();
+          parallelIt.next()) {
+        actual.add(parallelIt.index());
+      }
+      assertEquals(expected, actual);
+    }
+  }
+
+  /**
+   * Checks that the index arrays are in the order given by compare(), by
+   * sorting a shuffled copy of the (cell, edge) pairs with it, and returns the
+   * number of entries that have the same cell as the one before them.
+   */
+  private int checkIndexOrder(S2EdgeIndex index) {
+    index.computeIndex();
+    List<long[]> pairs = Lists.newArrayList();
+    for (int i = 0; i < index.cells.length; ++i) {
+      pairs.add(new long[] {index.cells[i], index.edges[i]});
+    }
+    Collections.shuffle(pairs, rand);
+    Collections.sort(pairs, new Comparator<long[]>() {
+      @Override
+      public int compare(long[] a, long[] b) {
+        return S2EdgeIndex.compare(a[0], (int) a[1], b[0], (int) b[1]);
+      }
+    });
+    int sameCell = 0;
+    for (int i = 0; i < pairs.size(); ++i) {
+      assertEquals(pairs.get(i)[0], index.cells[i]);
+      assertEquals(pairs.get(i)[1], index.edges[i]);
+      if (i > 0 && index.cells[i] == index.cells[i - 1]) {
+        assertTrue(index.edges[i] > index.edges[i - 1]);
+        ++sameCell;
+      }
+    }
+    return sameCell;
+  }
+
+  public void testIndexOrder() {
+    // Short edges in a small cap, many of which share a cell, and long ones
+    // that each take several cells.
+    List<S2Edge> allEdges = Lists.newArrayList();
+    generateRandomEarthEdges(5, 500, 3000, allEdges);
+    generateRandomEarthEdges(50000, 100000, 1000, allEdges);
+    assertTrue(checkIndexOrder(new EdgeVectorIndex(allEdges)) > 1000);
+
+    // Enough edges for the radix sort's skipped passes and for the parallel
+    // path, which must give the same arrays.
+    allEdges = Lists.newArrayList();
+    generateRandomEarthEdges(100, 50000, S2EdgeIndex.PARALLEL_THRESHOLD + 5000, allEdges);
+    S2EdgeIndex serial = new EdgeVectorIndex(allEdges);
+    assertTrue(checkIndexOrder(serial) > 0);
+    S2EdgeIndex parallel = new EdgeVectorIndex(allEdges);
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      parallel.computeIndex(pool);
+    } finally {
+      pool.shutdown();
+    }
+    assertTrue(Arrays.equals(serial.cells, parallel.cells));
+    assertTrue(Arrays.equals(serial.edges, parallel.edges));
+  }
+
+  public void testSortByCellIsStable() {
+    // Few distinct cells, on every face, so most entries are in runs of equal
+    // cells, and negative as well as positive ids. The edges are in no
+    // particular order, so only a stable sort keeps each run as it was.
+    long[] distinct = new long[40];
+    for (int i = 0; i < distinct.length; ++i) {
+      distinct[i] = getRandomCellId().id();
+    }
+    for (int n : new int[] {0, 1, 2, 31, 32, 33, 1000, 50000}) {
+      long[] cells = new long[n];
+      int[] edges = new int[n];
+      final Long[] cellOf = new Long[n];
+      Integer[] order = new Integer[n];
+      for (int i = 0; i < n; ++i) {
+        cells[i] = distinct[random(n < 100 ? 3 : distinct.length)];
+        edges[i] = rand.nextInt();
+        cellOf[i] = cells[i];
+        order[i] = i;
+      }
+      // Arrays.sort on objects is a stable merge sort.
+      Arrays.sort(order, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a, Integer b) {
+          return cellOf[a].compareTo(cellOf[b]);
+        }
+      });
+      int[] originalEdges = edges.clone();
+      S2EdgeIndex.sortByCell(cells, edges, 0, n, new long[n], new int[n]);
+      for (int i = 0; i < n; ++i) {
+        assertEquals(cellOf[order[i]].longValue(), cells[i]);
+        assertEquals(originalEdges[order[i]], edges[i]);
+      }
+    }
+  }
 }
@@ -423,6 +423,60 @@ public strictfp class S2LoopTest extends GeometryTestCase {
   /**
    * Tests that nearly colinear points pass S2Loop.isValid()
    */
+  /** A loop with n vertices on a circle of the given radius around center. */
+  private S2Loop makeRegularLoop(S2Point center, double radius, int n) {
+    S2Point x = S2Point.normalize(S2.ortho(center));
+    S2Point y = S2Point.crossProd(center, x);
+    List<S2Point> vertices = Lists.newArrayList();
+    for (int i = 0; i < n; ++i) {
+      double angle = 2 * S2.M_PI * i / n;
+      S2Point offset = S2Point.add(S2Point.mul(x, Math.cos(angle)), S2Point.mul(y, Math.sin(angle)));
+      vertices.add(S2Point.normalize(S2Point.add(center, S2Point.mul(offset, Math.tan(radius)))));
+    }
+    return new S2Loop(vertices);
+  }
+
+  private void checkCellPredicates(S2Loop loop, S2Cell cell) {
+    S2Loop cellLoop = new S2Loop(cell);
+    assertEquals(loop.contains(cellLoop), loop.contains(cell));
+    assertEquals(cellLoop.intersects(loop), loop.mayIntersect(cell));
+  }
+
+  public void testCellPredicates() {
+    // contains(S2Cell) and mayIntersect(S2Cell) must agree with the same tests
+    // against a loop made from the cell, for cells near the loop boundary.
+    List<S2Loop> loops = Lists.newArrayList(candyCane, smallNeCw, arctic80, antarctic80,
+        northHemi, southHemi, westHemi, eastHemi, farHemi, loopA, loopB, aMinusB,
+        makeRegularLoop(S2LatLng.fromDegrees(44.8, -92.9).toPoint(), 1e-4, 100),
+        makeRegularLoop(S2LatLng.fromDegrees(-10, 30).toPoint(), 0.01, 3000));
+    for (S2Loop loop : loops) {
+      for (int iter = 0; iter < 200; ++iter) {
+        S2Point p = loop.vertex(random(loop.numVertices()));
+        if (random(2) == 0) {
+          p = S2Point.normalize(S2Point.add(p, loop.vertex(random(loop.numVertices()))));
+        }
+        S2CellId id = S2CellId.fromPoint(p).parent(random(S2CellId.MAX_LEVEL + 1));
+        checkCellPredicates(loop, new S2Cell(id));
+        checkCellPredicates(loop, new S2Cell(getRandomCellId()));
+      }
+    }
+
+    // Loops that share vertices and edges with the cells.
+    for (int iter = 0; iter < 50; ++iter) {
+      S2CellId id = getRandomCellId(1 + random(S2CellId.MAX_LEVEL - 1));
+      S2Loop cellLoop = new S2Loop(new S2Cell(id));
+      checkCellPredicates(cellLoop, new S2Cell(id));
+      checkCellPredicates(cellLoop, new S2Cell(id.parent()));
+      checkCellPredicates(cellLoop, new S2Cell(id.childBegin()));
+      checkCellPredicates(cellLoop, new S2Cell(id.next()));
+      S2CellId begin = id.childBegin(Math.min(S2CellId.MAX_LEVEL, id.level() + 2));
+      S2Loop cellRange = makeCellLoop(begin, begin.next().next().next().next().next());
+      checkCellPredicates(cellRange, new S2Cell(id));
+      checkCellPredicates(cellRange, new S2Cell(begin.next()));
+      checkCellPredicates(cellRange, new S2Cell(begin.next().next().next().next().next()));
+    }
+  }
+
   public void testRoundingError() {
     S2Point a = new S2Point(-0.9190364081111774, 0.17231932652084575, 0.35451111445694833);
     S2Point b = new S2Point(-0.92130667053206, 0.17274500072476123, 0.3483578383756171);
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.common.geometry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Times S2PolygonBuilder on a grid of squares whose shared corners are each
+ * moved by about 1e-9 degrees, so that merging vertices glues them back
+ * together, as when a region cut into pieces is reassembled. The edges are
+ * added as UNDIRECTED_XOR with a merge distance of 1e-7 degrees. Prints the
+ * best time to add the edges and to assemble the loops, which includes
+ * merging the vertices, for each grid size. Run with:
+ *
+ * <pre>
+ *   java -cp ... com.google.common.geometry.S2PolygonBuilderBenchmark [squares per side ...]
+ * </pre>
+ *
+ * This is not a test and is not run by the build.
+ */
+public strictfp class S2PolygonBuilderBenchmark {
+
+  private static final int ROUNDS = 5;
+
+  public static void main(String[] args) {
+    int[] sizes = {100, 250};
+    if (args.length > 0) {
+      sizes = new int[args.length];
+      for (int i = 0; i < args.length; ++i) {
+        sizes[i] = Integer.parseInt(args[i]);
+      }
+    }
+    for (int size : sizes) {
+      S2Point[] corners = getJitteredSquares(size);
+      long add = Long.MAX_VALUE;
+      long assemble = Long.MAX_VALUE;
+      int numLoops = 0;
+      int numUnused = 0;
+      // The first round warms up.
+      for (int round = 0; round <= ROUNDS; ++round) {
+        long start = System.nanoTime();
+        S2PolygonBuilder builder =
+            new S2PolygonBuilder(S2PolygonBuilder.Options.UNDIRECTED_XOR, S1Angle.degrees(1e-7));
+        for (int i = 0; i < corners.length; i += 4) {
+          for (int k = 0; k < 4; ++k) {
+            builder.addEdge(corners[i + k], corners[i + (k + 1) % 4]);
+          }
+        }
+        long added = System.nanoTime();
+        List<S2Loop> loops = new ArrayList<S2Loop>();
+        List<S2Edge> unusedEdges = new ArrayList<S2Edge>();
+        builder.assembleLoops(loops, unusedEdges);
+        long assembled = System.nanoTime();
+        if (round > 0) {
+          add = Math.min(add, added - start);
+          assemble = Math.min(assemble, assembled - added);
+        }
+        numLoops = loops.size();
+        numUnused = unusedEdges.size();
+      }
+      System.out.println(String.format(
+          "%7d edges  add %8.1f ms  assemble %8.1f ms  (%d loops, %d unused edges)",
+          corners.length, add / 1e6, assemble / 1e6, numLoops, numUnused));
+    }
+  }
+
+  /** The corners of size x size squares, four to a square, in CCW order. */
+  private static S2Point[] getJitteredSquares(int size) {
+    Random rand = new Random(7);
+    double step = 1e-3;
+    double jitter = 1e-9;
+    S2Point[] corners = new S2Point[4 * size * size];
+    int n = 0;
+    for (int i = 0; i < size; ++i) {
+      for (int j = 0; j < size; ++j) {
+        int[][] grid = {{i, j}, {i, j + 1}, {i + 1, j + 1}, {i + 1, j}};
+        for (int[] corner : grid) {
+          corners[n++] = S2LatLng.fromDegrees(corner[0] * step + jitter * rand.nextGaussian(),
+              corner[1] * step + jitter * rand.nextGaussian()).toPoint();
+        }
+      }
+    }
+    return corners;
+  }
+}
@@ -17,8 +17,10 @@
 package com.google.common.geometry;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 
 import java.util.List;
+import java.util.Set;
 import java.util.logging.Logger;
 
 /**
@@ -438,4 +440,47 @@ public strictfp class S2PolygonBuilderTest extends GeometryTestCase {
     }
     assertTrue(success);
   }
+
+  public void testMergeGrid() {
+    // A grid of squares whose shared corners are each perturbed by much less
+    // than the merge distance. Merging glues the corners back together, and
+    // the interior edges cancel out, leaving the outline of the grid.
+    int n = 30;
+    double step = 1e-3;
+    S2PolygonBuilder builder =
+        new S2PolygonBuilder(S2PolygonBuilder.Options.UNDIRECTED_XOR, S1Angle.degrees(1e-7));
+    Set<S2Point> inputs = Sets.newHashSet();
+    for (int i = 0; i < n; ++i) {
+      for (int j = 0; j < n; ++j) {
+        int[][] corners = {{i, j}, {i, j + 1}, {i + 1, j + 1}, {i + 1, j}};
+        S2Point[] v = new S2Point[4];
+        for (int k = 0; k < 4; ++k) {
+          v[k] = S2LatLng.fromDegrees(corners[k][0] * step + 1e-9 * rand.nextGaussian(),
+              corners[k][1] * step + 1e-9 * rand.nextGaussian()).toPoint();
+          inputs.add(v[k]);
+        }
+        for (int k = 0; k < 4; ++k) {
+          builder.addEdge(v[k], v[(k + 1) % 4]);
+        }
+      }
+    }
+    List<S2Loop> loops = Lists.newArrayList();
+    List<S2Edge> unusedEdges = Lists.newArrayList();
+    assertTrue(builder.assembleLoops(loops, unusedEdges));
+    assertEquals(1, loops.size());
+    assertEquals(4 * n, loops.get(0).numVertices());
+    for (int i = 0; i < loops.get(0).numVertices(); ++i) {
+      assertTrue(inputs.contains(loops.get(0).vertex(i)));
+    }
+  }
+
+  @Override
+  protected void tearDown() {
+    // testBuilder() changes the shared DIRECTED_XOR options; put them back.
+    S2PolygonBuilder.Options options = S2PolygonBuilder.Options.DIRECTED_XOR;
+    options.setUndirectedEdges(false);
+    options.setXorEdges(true);
+    options.setValidate(false);
+    options.setMergeDistance(S1Angle.radians(0));
+  }
 }
@@ -17,8 +17,17 @@
 package com.google.common.geometry;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * Tests for {@link S2Polygon}.
@@ -99,6 +108,114 @@ public strictfp class S2PolygonTest extends GeometryTestCase {
     assertContains(NEAR_FAR2, FAR3);
   }
 
+  private static S2Loop makeSquare(double lat, double lng, double half) {
+    return makeLoop((lat - half) + ":" + (lng - half) + ", " + (lat - half) + ":" + (lng + half)
+        + ", " + (lat + half) + ":" + (lng + half) + ", " + (lat + half) + ":" + (lng - half));
+  }
+
+  public void testInitManyLoops() {
+    // A box around a grid of fields, each with a hole that has an island in
+    // it, given in random order.
+    List<S2Loop> loops = Lists.newArrayList(makeSquare(0, 0, 8));
+    for (int i = -2; i <= 2; ++i) {
+      for (int j = -2; j <= 2; ++j) {
+        loops.add(makeSquare(3 * i, 3 * j, 1.2));
+        loops.add(makeSquare(3 * i, 3 * j, 0.8));
+        loops.add(makeSquare(3 * i, 3 * j, 0.4));
+      }
+    }
+    assertTrue(loops.size() >= S2Polygon.NESTING_INDEX_THRESHOLD);
+    Collections.shuffle(loops, rand);
+    S2Polygon polygon = new S2Polygon(Lists.newArrayList(loops));
+    assertEquals(loops.size(), polygon.numLoops());
+
+    for (int i = 0; i < polygon.numLoops(); ++i) {
+      // The parent is the container that has the most containers itself.
+      int parent = -1;
+      int parentDepth = -1;
+      int depth = 0;
+      for (int j = 0; j < polygon.numLoops(); ++j) {
+        if (j != i && polygon.loop(j).containsNested(polygon.loop(i))) {
+          ++depth;
+          if (polygon.loop(j).depth() > parentDepth) {
+            parent = j;
+            parentDepth = polygon.loop(j).depth();
+          }
+        }
+      }
+      assertEquals(depth, polygon.loop(i).depth());
+      assertEquals(parent, polygon.getParent(i));
+    }
+    // The fields are holes in the box.
+    assertTrue(polygon.contains(makePoint("1.5:0")));
+    assertFalse(polygon.contains(makePoint("0:1")));
+    assertTrue(polygon.contains(makePoint("0:0.6")));
+    assertFalse(polygon.contains(makePoint("0:0")));
+  }
+
+  /**
+   * Checks that init() gives the same loops in the same order, with the same
+   * depths, whether it finds their nesting through the index or by inserting
+   * them one at a time.
+   */
+  private void checkSameNesting(List<S2Loop> loops) {
+    List<S2Loop> copies = Lists.newArrayList();
+    for (S2Loop loop : loops) {
+      copies.add(new S2Loop(loop));
+    }
+    S2Polygon indexed = new S2Polygon();
+    indexed.init(copies, true);
+    copies.clear();
+    for (S2Loop loop : loops) {
+      copies.add(new S2Loop(loop));
+    }
+    S2Polygon inserted = new S2Polygon();
+    inserted.init(copies, false);
+
+    assertEquals(inserted.numLoops(), indexed.numLoops());
+    for (int i = 0; i < inserted.numLoops(); ++i) {
+      assertEquals(0, inserted.loop(i).compareTo(indexed.loop(i)));
+      assertEquals(inserted.loop(i).depth(), indexed.loop(i).depth());
+      assertEquals(inserted.getParent(i), indexed.getParent(i));
+    }
+    assertEquals(0, inserted.compareTo(indexed));
+  }
+
+  public void testIndexedNestingMatchesInsertLoop() {
+    // The grid of testInitManyLoops(), in several orders.
+    List<S2Loop> loops = Lists.newArrayList(makeSquare(0, 0, 8));
+    for (int i = -2; i <= 2; ++i) {
+      for (int j = -2; j <= 2; ++j) {
+        loops.add(makeSquare(3 * i, 3 * j, 1.2));
+        loops.add(makeSquare(3 * i, 3 * j, 0.8));
+        loops.add(makeSquare(3 * i, 3 * j, 0.4));
+      }
+    }
+    for (int i = 0; i < 5; ++i) {
+      Collections.shuffle(loops, rand);
+      checkSameNesting(loops);
+    }
+
+    // Nested squares of random sizes around random centers, some of which
+    // straddle cell boundaries of several levels, and a few loops below the
+    // threshold.
+    for (int iter = 0; iter < 20; ++iter) {
+      loops.clear();
+      int numCenters = 1 + random(6);
+      for (int c = 0; c < numCenters; ++c) {
+        double lat = -50 + 20 * c + rand.nextDouble();
+        double lng = -60 + 10 * iter + rand.nextDouble();
+        double half = 4;
+        for (int depth = random(8); depth >= 0; --depth) {
+          loops.add(makeSquare(lat, lng, half));
+          half *= 0.3 + 0.6 * rand.nextDouble();
+        }
+      }
+      Collections.shuffle(loops, rand);
+      checkSameNesting(loops);
+    }
+  }
+
   S2Polygon near10 = makePolygon(NEAR0 + NEAR1);
   S2Polygon near30 = makePolygon(NEAR3 + NEAR0);
   S2Polygon near32 = makePolygon(NEAR2 + NEAR3);
@@ -250,14 +367,19 @@ public strictfp class S2PolygonTest extends GeometryTestCase {
     if (s2Loop.numVertices() != 8) {
       return;
     }
-    assertPointApproximatelyEquals(s2Loop, 0, 2.0, 0.0, 0.01);
-    assertPointApproximatelyEquals(s2Loop, 1, 1.0, 0.0, 0.01);
-    assertPointApproximatelyEquals(s2Loop, 2, 0.0, 0.0, 0.01);
-    assertPointApproximatelyEquals(s2Loop, 3, 0.0, 1.0, 0.01);
-    assertPointApproximatelyEquals(s2Loop, 4, 0.0, 2.0, 0.01);
-    assertPointApproximatelyEquals(s2Loop, 5, 1.0, 2.0, 0.01);
-    assertPointApproximatelyEquals(s2Loop, 6, 2.0, 2.0, 0.01);
-    assertPointApproximatelyEquals(s2Loop, 7, 2.0, 1.0, 0.01);
+    // The loop may start at any of its vertices.
+    int start = 0;
+    while (start < 8 && !s2Loop.vertex(start).aequal(makePoint("2:0"), 1e-10)) {
+      ++start;
+    }
+    assertPointApproximatelyEquals(s2Loop, start, 2.0, 0.0, 0.01);
+    assertPointApproximatelyEquals(s2Loop, start + 1, 1.0, 0.0, 0.01);
+    assertPointApproximatelyEquals(s2Loop, start + 2, 0.0, 0.0, 0.01);
+    assertPointApproximatelyEquals(s2Loop, start + 3, 0.0, 1.0, 0.01);
+    assertPointApproximatelyEquals(s2Loop, start + 4, 0.0, 2.0, 0.01);
+    assertPointApproximatelyEquals(s2Loop, start + 5, 1.0, 2.0, 0.01);
+    assertPointApproximatelyEquals(s2Loop, start + 6, 2.0, 2.0, 0.01);
+    assertPointApproximatelyEquals(s2Loop, start + 7, 2.0, 1.0, 0.01);
   }
 
   public void testUnionSloppyFailure() {
@@ -271,6 +393,251 @@ public strictfp class S2PolygonTest extends GeometryTestCase {
     assertEquals(2, union.numLoops());
   }
 
+  public void testParallelUnion() {
+    // A grid of fields, some overlapping their neighbors and some apart, in
+    // random order.
+    List<S2Polygon> fields = Lists.newArrayList();
+    for (int i = 0; i < 12; ++i) {
+      for (int j = 0; j < 12; ++j) {
+        if (random(5) == 0) {
+          continue;
+        }
+        double lat = 0.01 * i + 0.001 * rand.nextDouble();
+        double lng = 0.01 * j + 0.001 * rand.nextDouble();
+        double size = 0.008 + 0.004 * rand.nextDouble();
+        fields.add(makePolygon(lat + ":" + lng + ", " + lat + ":" + (lng + size) + ", "
+            + (lat + size) + ":" + (lng + size) + ", " + (lat + size) + ":" + lng + ";"));
+      }
+    }
+    Collections.shuffle(fields, rand);
+
+    List<S2Polygon> serialInput = Lists.newArrayList();
+    List<S2Polygon> parallelInput = Lists.newArrayList();
+    for (S2Polygon field : fields) {
+      serialInput.add(new S2Polygon(field));
+      parallelInput.add(new S2Polygon(field));
+    }
+    S2Polygon serial = S2Polygon.destructiveUnion(serialInput);
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      S2Polygon parallel = S2Polygon.destructiveUnionSloppyParallel(
+          parallelInput, S2EdgeUtil.DEFAULT_INTERSECTION_TOLERANCE, pool);
+      assertTrue(parallelInput.isEmpty());
+      // Intersection points come from different pairs of edges, so they may
+      // differ by rounding error.
+      assertEquals(serial.numLoops(), parallel.numLoops());
+      assertEquals(serial.getNumVertices(), parallel.getNumVertices());
+      assertTrue(serial.boundaryApproxEquals(parallel, 1e-15));
+    } finally {
+      pool.shutdown();
+    }
+
+    assertEquals(0, S2Polygon.destructiveUnionParallel(Lists.<S2Polygon>newArrayList())
+        .numLoops());
+  }
+
+  public void testParallelUnionWithMergeRadius() {
+    // A grid of diamonds, each touching its four neighbors at a corner. Every
+    // corner is moved by a few times 1e-7 degrees, so neighbors overlap or
+    // leave a gap there, and the merge radius joins them up.
+    S1Angle mergeRadius = S1Angle.degrees(1e-6);
+    double jitter = 1e-7;
+    for (int iter = 0; iter < 5; ++iter) {
+      List<S2Polygon> fields = Lists.newArrayList();
+      for (int i = 0; i < 12; ++i) {
+        for (int j = 0; j < 12; ++j) {
+          if (random(5) == 0) {
+            continue;
+          }
+          double lat = 0.01 * i;
+          double lng = 0.01 * j;
+          List<S2Point> vertices = Lists.newArrayList();
+          vertices.add(S2LatLng.fromDegrees(lat - 0.005 + jitter * rand.nextGaussian(),
+              lng + jitter * rand.nextGaussian()).toPoint());
+          vertices.add(S2LatLng.fromDegrees(lat + jitter * rand.nextGaussian(),
+              lng + 0.005 + jitter * rand.nextGaussian()).toPoint());
+          vertices.add(S2LatLng.fromDegrees(lat + 0.005 + jitter * rand.nextGaussian(),
+              lng + jitter * rand.nextGaussian()).toPoint());
+          vertices.add(S2LatLng.fromDegrees(lat + jitter * rand.nextGaussian(),
+              lng - 0.005 + jitter * rand.nextGaussian()).toPoint());
+          fields.add(new S2Polygon(new S2Loop(vertices)));
+        }
+      }
+      Collections.shuffle(fields, rand);
+
+      List<S2Polygon> serialInput = Lists.newArrayList();
+      List<S2Polygon> parallelInput = Lists.newArrayList();
+      for (S2Polygon field : fields) {
+        serialInput.add(new S2Polygon(field));
+        parallelInput.add(new S2Polygon(field));
+      }
+      S2Polygon serial = S2Polygon.destructiveUnionSloppy(serialInput, mergeRadius);
+      ForkJoinPool pool = new ForkJoinPool(4);
+      try {
+        S2Polygon parallel =
+            S2Polygon.destructiveUnionSloppyParallel(parallelInput, mergeRadius, pool);
+        // The touching corners are merged into one vertex.
+        Set<S2Point> distinct = Sets.newHashSet();
+        for (int i = 0; i < serial.numLoops(); ++i) {
+          for (int k = 0; k < serial.loop(i).numVertices(); ++k) {
+            distinct.add(serial.loop(i).vertex(k));
+          }
+        }
+        assertTrue(distinct.size() < 3 * fields.size());
+        // The same vertices are kept, but crossings near the merged corners
+        // are computed from short pieces of edges and differ by rounding
+        // error, up to about 1e-12 here.
+        assertEquals(serial.numLoops(), parallel.numLoops());
+        assertEquals(serial.getNumVertices(), parallel.getNumVertices());
+        assertTrue(serial.boundaryApproxEquals(parallel, 1e-10));
+      } finally {
+        pool.shutdown();
+      }
+    }
+  }
+
+  private void checkOperations(S2Polygon a, S2Polygon b) {
+    S2Polygon difference = new S2Polygon();
+    difference.initToDifference(a, b);
+    S2Polygon symmetricDifference = new S2Polygon();
+    symmetricDifference.initToSymmetricDifference(a, b);
+    S2Polygon intersection = new S2Polygon();
+    intersection.initToIntersection(a, b);
+    assertTrue(S2Polygon.isValid(loops(difference)));
+    assertTrue(S2Polygon.isValid(loops(symmetricDifference)));
+
+    // Random points, half of them near the two polygons.
+    S2Cap cap = a.getRectBound().union(b.getRectBound()).getCapBound();
+    for (int iter = 0; iter < 500; ++iter) {
+      S2Point p = randomPoint();
+      if (iter % 2 == 0 && !cap.isFull()) {
+        p = S2Point.normalize(S2Point.add(cap.axis(),
+            S2Point.mul(p, Math.sin(Math.min(cap.angle().radians(), S2.M_PI_2)))));
+      }
+      boolean inA = a.contains(p);
+      boolean inB = b.contains(p);
+      assertEquals(inA && !inB, difference.contains(p));
+      assertEquals(inA ^ inB, symmetricDifference.contains(p));
+    }
+    assertDoubleNear(a.getArea() - intersection.getArea(), difference.getArea(), 1e-10);
+  }
+
+  private static List<S2Loop> loops(S2Polygon polygon) {
+    List<S2Loop> loops = Lists.newArrayList();
+    for (int i = 0; i < polygon.numLoops(); ++i) {
+      loops.add(polygon.loop(i));
+    }
+    return loops;
+  }
+
+  public void testDifference() {
+    S2Polygon[] polygons = {near10, near30, near32, near3210, far10, far21, far321, south0ab,
+        south2, south210b, f32n0, n32s0b, adj0, adj1, unAdj,
+        makePolygon("-3:-3, -3:3, 3:3, 3:-3;"), makePolygon("0:0, 0:10, 10:10, 10:0;")};
+    for (S2Polygon a : polygons) {
+      for (S2Polygon b : polygons) {
+        checkOperations(a, b);
+      }
+    }
+
+    // Nothing is left of a polygon minus itself, and nothing is taken away by
+    // a polygon it doesn't meet.
+    S2Polygon empty = new S2Polygon();
+    empty.initToDifference(near30, near30);
+    assertEquals(0, empty.numLoops());
+    S2Polygon same = new S2Polygon();
+    same.initToDifference(adj0, unAdj);
+    checkEqual(adj0, same);
+
+    // Cutting a hole leaves a shell and a hole.
+    S2Polygon field = makePolygon("0:0, 0:3, 3:3, 3:0;");
+    S2Polygon zone = makePolygon("1:1, 1:2, 2:2, 2:1;");
+    S2Polygon withHole = new S2Polygon();
+    withHole.initToDifference(field, zone);
+    assertEquals(2, withHole.numLoops());
+    assertTrue(withHole.contains(makePoint("0.5:0.5")));
+    assertFalse(withHole.contains(makePoint("1.5:1.5")));
+    S2Polygon xor = new S2Polygon();
+    xor.initToSymmetricDifference(field, zone);
+    checkEqual(withHole, xor);
+  }
+
+  private static S2Point point(double lat, double lng) {
+    return S2LatLng.fromDegrees(lat, lng).toPoint();
+  }
+
+  /** The distance from p to the nearest edge of the polygon. */
+  private static double boundaryDistance(S2Polygon polygon, S2Point p) {
+    double distance = Double.MAX_VALUE;
+    for (int k = 0; k < polygon.numLoops(); ++k) {
+      S2Loop loop = polygon.loop(k);
+      for (int i = 0; i < loop.numVertices(); ++i) {
+        distance = Math.min(distance,
+            S2EdgeUtil.getDistance(p, loop.vertex(i), loop.vertex(i + 1)).radians());
+      }
+    }
+    return distance;
+  }
+
+  private void checkSimplified(S2Polygon a, S1Angle tolerance, S2Polygon simplified) {
+    assertTrue(S2Polygon.isValid(loops(simplified)));
+    assertEquals(a.numLoops(), simplified.numLoops());
+    for (int k = 0; k < a.numLoops(); ++k) {
+      assertEquals(a.loop(k).isHole(), simplified.loop(k).isHole());
+      assertTrue(simplified.loop(k).numVertices() >= 3);
+      for (int i = 0; i < a.loop(k).numVertices(); ++i) {
+        assertTrue(boundaryDistance(simplified, a.loop(k).vertex(i))
+            <= tolerance.radians() + 1e-15);
+      }
+    }
+  }
+
+  public void testSimplify() {
+    // A square whose sides are noisy and nearly straight, with an outward
+    // bump in the south side that is smaller than the tolerance. A hole sits
+    // inside the bump, so the bump has to stay.
+    List<S2Point> shell = Lists.newArrayList();
+    int n = 500;
+    for (int i = 0; i < n; ++i) {
+      double t = (double) i / n;
+      double noise = 1e-6 * (rand.nextDouble() - 0.5);
+      double bump = Math.max(0, 5e-5 - Math.abs(t - 0.5) * 1e-3);
+      shell.add(point(noise - bump, t));
+    }
+    for (int i = 0; i < n; ++i) {
+      shell.add(point((double) i / n, 1 + 1e-6 * (rand.nextDouble() - 0.5)));
+    }
+    for (int i = 0; i < n; ++i) {
+      shell.add(point(1 + 1e-6 * (rand.nextDouble() - 0.5), 1 - (double) i / n));
+    }
+    for (int i = 0; i < n; ++i) {
+      shell.add(point(1 - (double) i / n, 1e-6 * (rand.nextDouble() - 0.5)));
+    }
+    S2Loop hole = new S2Loop(Lists.newArrayList(
+        point(-3e-5, 0.5), point(-2e-5, 0.50001), point(-2e-5, 0.49999)));
+    S2Polygon a = new S2Polygon(Lists.newArrayList(new S2Loop(shell), hole));
+    assertTrue(S2Polygon.isValid(loops(a)));
+
+    S1Angle tolerance = S1Angle.degrees(1e-4);
+    S2Polygon simplified = new S2Polygon();
+    simplified.initToSimplified(a, tolerance);
+    checkSimplified(a, tolerance, simplified);
+    assertTrue(simplified.getNumVertices() < a.getNumVertices() / 20);
+    assertTrue(simplified.contains(point(-1e-5, 0.5)));
+    assertFalse(simplified.contains(point(-2.5e-5, 0.5)));
+
+    // Polygons with holes, several shells and loops that share vertices.
+    S2Polygon[] polygons = {near10, near30, near3210, far10, far21, far321, south0ab,
+        south210b, f32n0, n32s0b, adj0, unAdj};
+    for (S2Polygon polygon : polygons) {
+      for (double degrees : new double[] {0, 0.1, 1, 10}) {
+        S2Polygon result = new S2Polygon();
+        result.initToSimplified(polygon, S1Angle.degrees(degrees));
+        checkSimplified(polygon, S1Angle.degrees(degrees), result);
+      }
+    }
+  }
+
   public void testCompareTo() {
     // Polygons with same loops, but in different order:
     S2Polygon p1 = makePolygon(RECTANGLE1 + RECTANGLE2);
@@ -301,6 +668,125 @@ public strictfp class S2PolygonTest extends GeometryTestCase {
     assertTrue(0 > p10.compareTo(p9));
   }
 
+  private void checkCellPredicates(S2Polygon polygon, S2Cell cell) {
+    S2Polygon cellPolygon = new S2Polygon(new S2Loop(cell));
+    assertEquals(polygon.contains(cellPolygon), polygon.contains(cell));
+    assertEquals(polygon.intersects(cellPolygon), polygon.mayIntersect(cell));
+  }
+
+  public void testCellPredicates() {
+    // contains(S2Cell) and mayIntersect(S2Cell) must agree with the same tests
+    // against a polygon made from the cell, for cells near the boundary.
+    String[] polygons = {NEAR0 + NEAR1 + NEAR2 + NEAR3, NEAR0 + NEAR2,
+        "3:1, 3:-1, -3:-1, -3:1;4:2, 4:-2, -4:-2, -4:2;", FAR0 + FAR1 + FAR2 + FAR3,
+        SOUTH0a + SOUTH0b + SOUTH0c + SOUTH1 + SOUTH2, RECTANGLE1 + RECTANGLE2 + TRIANGLE};
+    for (String str : polygons) {
+      S2Polygon polygon = makePolygon(str);
+      for (int iter = 0; iter < 300; ++iter) {
+        S2Loop loop = polygon.loop(random(polygon.numLoops()));
+        S2Point p = loop.vertex(random(loop.numVertices()));
+        if (random(2) == 0) {
+          p = S2Point.normalize(S2Point.add(p, loop.vertex(random(loop.numVertices()))));
+        }
+        checkCellPredicates(
+            polygon, new S2Cell(S2CellId.fromPoint(p).parent(random(S2CellId.MAX_LEVEL + 1))));
+      }
+    }
+
+    // A polygon whose loops are made of cells shares vertices with them. The
+    // hole must not touch the shell, so pick one whose neighbors all lie in
+    // the same ancestor.
+    for (int iter = 0; iter < 50; ++iter) {
+      S2CellId id;
+      S2CellId parent;
+      List<S2CellId> neighbors = Lists.newArrayList();
+      boolean interior;
+      do {
+        id = getRandomCellId(3 + random(S2CellId.MAX_LEVEL - 3));
+        parent = id.parent(id.level() - 3);
+        neighbors.clear();
+        id.getAllNeighbors(id.level(), neighbors);
+        interior = true;
+        for (S2CellId neighbor : neighbors) {
+          interior &= neighbor.parent(parent.level()).equals(parent);
+        }
+      } while (!interior);
+      List<S2Loop> loops = Lists.newArrayList(
+          new S2Loop(new S2Cell(parent)), new S2Loop(new S2Cell(id)));
+      S2Polygon polygon = new S2Polygon(loops);
+      checkCellPredicates(polygon, new S2Cell(id));
+      checkCellPredicates(polygon, new S2Cell(id.parent()));
+      checkCellPredicates(polygon, new S2Cell(parent));
+      checkCellPredicates(polygon, new S2Cell(parent.childBegin()));
+      checkCellPredicates(polygon, new S2Cell(id.childBegin()));
+      for (S2CellId neighbor : neighbors) {
+        checkCellPredicates(polygon, new S2Cell(neighbor));
+      }
+    }
+  }
+
+  public void testConcurrentQueries() throws Exception {
+    // One polygon shared by several threads must answer like a private copy,
+    // including while the first queries build the loops' edge indexes.
+    S2Point center = randomPoint();
+    S2Point x = S2Point.normalize(S2.ortho(center));
+    S2Point y = S2Point.crossProd(center, x);
+    List<S2Loop> loops = Lists.newArrayList();
+    for (double radius : new double[] {1e-3, 4e-4}) {
+      List<S2Point> vertices = Lists.newArrayList();
+      for (int i = 0; i < 3000; ++i) {
+        double angle = 2 * S2.M_PI * i / 3000;
+        double r = radius * (i % 2 == 0 ? 1 : 0.8);
+        S2Point offset =
+            S2Point.add(S2Point.mul(x, Math.cos(angle)), S2Point.mul(y, Math.sin(angle)));
+        vertices.add(S2Point.normalize(S2Point.add(center, S2Point.mul(offset, r))));
+      }
+      loops.add(new S2Loop(vertices));
+    }
+    final List<S2Cell> cells = Lists.newArrayList();
+    final List<S2Polygon> others = Lists.newArrayList();
+    for (int i = 0; i < 200; ++i) {
+      S2Loop loop = loops.get(random(2));
+      S2Point p = loop.vertex(random(loop.numVertices()));
+      cells.add(new S2Cell(S2CellId.fromPoint(p).parent(10 + random(10))));
+      others.add(new S2Polygon(new S2Loop(new S2Cell(S2CellId.fromPoint(p).parent(12)))));
+    }
+    final S2Polygon shared = new S2Polygon(Lists.newArrayList(loops));
+    String expected = relations(new S2Polygon(shared), cells, others);
+
+    int numThreads = 4;
+    final CyclicBarrier barrier = new CyclicBarrier(numThreads);
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      List<Future<String>> results = Lists.newArrayList();
+      for (int t = 0; t < numThreads; ++t) {
+        results.add(executor.submit(new Callable<String>() {
+          @Override
+          public String call() throws Exception {
+            barrier.await();
+            return relations(shared, cells, others);
+          }
+        }));
+      }
+      for (Future<String> result : results) {
+        assertEquals(expected, result.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private static String relations(S2Polygon polygon, List<S2Cell> cells, List<S2Polygon> others) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < cells.size(); ++i) {
+      sb.append(polygon.contains(cells.get(i)) ? 'c' : '-')
+          .append(polygon.mayIntersect(cells.get(i)) ? 'i' : '-')
+          .append(polygon.contains(others.get(i)) ? 'C' : '-')
+          .append(polygon.intersects(others.get(i)) ? 'I' : '-');
+    }
+    return sb.toString();
+  }
+
   public void testGetDistance() {
     // Error margin since we're doing numerical computations
     double epsilon = 1e-15;
@@ -160,6 +160,36 @@ public strictfp class S2PolylineTest extends GeometryTestCase {
     assertEquals(2, edgeIndex);
   }
 
+  public void testSimplify() {
+    // A noisy line along the equator.
+    List<S2Point> vertices = Lists.newArrayList();
+    for (int i = 0; i <= 1000; ++i) {
+      vertices.add(S2LatLng.fromDegrees(1e-6 * (rand.nextDouble() - 0.5), 1e-3 * i).toPoint());
+    }
+    S2Polyline line = new S2Polyline(vertices);
+    S1Angle tolerance = S1Angle.degrees(1e-5);
+    S2Polyline simplified = line.simplify(tolerance);
+    assertTrue(simplified.numVertices() < 10);
+    assertEquals(line.vertex(0), simplified.vertex(0));
+    assertEquals(line.vertex(1000), simplified.vertex(simplified.numVertices() - 1));
+    for (int i = 0; i < line.numVertices(); ++i) {
+      S2Point p = line.vertex(i);
+      S2Point closest = simplified.projectToEdge(p, simplified.getNearestEdgeIndex(p));
+      assertTrue(p.angle(closest) <= tolerance.radians() + 1e-15);
+    }
+
+    // The bump at 0:5 is within the tolerance, but the end of the line lies
+    // between the bump and the straight edge that would replace it.
+    S2Polyline hook = makePolyline("0:0, 0.005:5, 0:10, -1:10, 0.002:4, 0.002:6");
+    assertEquals(hook, hook.simplify(S1Angle.degrees(0.01)));
+    S2Polyline open = makePolyline("0:0, 0.005:5, 0:10, -1:10, -0.002:4, -0.002:6");
+    assertEquals(5, open.simplify(S1Angle.degrees(0.01)).numVertices());
+
+    // Nothing to remove.
+    S2Polyline two = makePolyline("0:0, 0:1");
+    assertEquals(two, two.simplify(S1Angle.degrees(10)));
+  }
+
   /**
    * Utility for testing equals() and hashCode() results at once.
    * Tests that lhs.equals(rhs) matches expectedResult, as well as
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2005 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.common.geometry;
+
+import com.google.common.collect.Lists;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+public strictfp class S2PreparedPolygonTest extends GeometryTestCase {
+  public static Logger logger = Logger.getLogger(S2PreparedPolygonTest.class.getName());
+
+  private static final String[] POLYGONS = {
+      "-1:0, 0:1, 1:0, 0:-1;",
+      // A shell with a hole.
+      "3:1, 3:-1, -3:-1, -3:1;4:2, 4:-2, -4:-2, -4:2;",
+      // Nested loops, and loops across the 180 degree meridian.
+      "-1:0, 0:1, 1:0, 0:-1;-1:-1, -1:0, -1:1, 0:1, 1:1, 1:0, 1:-1, 0:-1;"
+          + "5:-2, -2:5, -1:-2;6:-3, -3:6, -2:-2;",
+      "0:179, 1:180, 0:-179, 2:-180;-1:-179, -1:179, 3:178, 3:-178;",
+      // Loops sharing the south pole.
+      "-90:0, -89.99:0, -89.99:0.01;-90:0, -89.99:0.02, -89.99:0.03;",
+      // More than a hemisphere.
+      "0:-180, 0:60, 0:-60;",
+      "0:1, 1:1, 2:1, 2:0, 1:0, 0:0;5:1, 6:1, 7:1, 7:0, 6:0, 5:0;15:0, 17:0, 16:2;"};
+
+  /** A loop with n vertices at varying distances around center. */
+  private S2Loop makeStarLoop(S2Point center, double radius, int n) {
+    S2Point x = S2Point.normalize(S2.ortho(center));
+    S2Point y = S2Point.crossProd(center, x);
+    List<S2Point> vertices = Lists.newArrayList();
+    for (int i = 0; i < n; ++i) {
+      double angle = 2 * S2.M_PI * i / n;
+      double r = radius * (i % 2 == 0 ? 1 : 0.5 + 0.4 * rand.nextDouble());
+      S2Point offset =
+          S2Point.add(S2Point.mul(x, Math.cos(angle)), S2Point.mul(y, Math.sin(angle)));
+      vertices.add(S2Point.normalize(S2Point.add(center, S2Point.mul(offset, Math.tan(r)))));
+    }
+    return new S2Loop(vertices);
+  }
+
+  private void checkPoints(S2Polygon polygon) {
+    S2PreparedPolygon prepared = new S2PreparedPolygon(polygon);
+    S2Cap cap = polygon.getCapBound();
+    for (int iter = 0; iter < 2000; ++iter) {
+      S2Point p = randomPoint();
+      if (iter % 2 == 1 && !cap.isFull()) {
+        // Somewhere near the polygon.
+        p = S2Point.normalize(S2Point.add(cap.axis(),
+            S2Point.mul(randomPoint(), 2 * Math.sin(cap.angle().radians()))));
+      }
+      assertEquals(polygon.contains(p), prepared.contains(p));
+    }
+    for (int k = 0; k < polygon.numLoops(); ++k) {
+      S2Loop loop = polygon.loop(k);
+      for (int i = 0; i < loop.numVertices(); ++i) {
+        // Vertices must follow the same rules. (Points on the interior of an
+        // edge are only on it up to rounding error, and may differ.)
+        S2Point v = loop.vertex(i);
+        assertEquals(polygon.contains(v), prepared.contains(v));
+        S2Point near = S2Point.normalize(S2Point.add(v, S2Point.mul(randomPoint(), 1e-9)));
+        assertEquals(polygon.contains(near), prepared.contains(near));
+      }
+    }
+  }
+
+  public void testContainsPoint() {
+    logger.info("TestContainsPoint");
+    for (String str : POLYGONS) {
+      checkPoints(makePolygon(str));
+    }
+  }
+
+  public void testLargeLoops() {
+    logger.info("TestLargeLoops");
+    for (int n : new int[] {100, 3000}) {
+      S2Point center = randomPoint();
+      List<S2Loop> loops = Lists.newArrayList(makeStarLoop(center, 1e-4, n),
+          makeStarLoop(center, 2e-5, n / 10));
+      S2Polygon polygon = new S2Polygon(loops);
+      S2PreparedPolygon prepared = new S2PreparedPolygon(polygon);
+      checkPoints(polygon);
+      assertTrue(prepared.numCells() > n / S2PreparedPolygon.MAX_EDGES_PER_CELL);
+    }
+  }
+
+  public void testEmptyAndCellPolygons() {
+    S2PreparedPolygon empty = new S2PreparedPolygon(new S2Polygon());
+    assertEquals(0, empty.numCells());
+    assertFalse(empty.contains(randomPoint()));
+
+    for (int iter = 0; iter < 20; ++iter) {
+      S2Cell cell = new S2Cell(getRandomCellId(random(S2CellId.MAX_LEVEL)));
+      checkPoints(new S2Polygon(new S2Loop(cell)));
+    }
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2005 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.common.geometry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Times getCovering() against getCoveringParallel() for a large covering of an
+ * S2Polygon with many vertices, and counts the region tests each one makes
+ * (the parallel mode also tests the children of candidates that end up not
+ * being subdivided). Run with:
+ *
+ * <pre>
+ *   java -cp ... com.google.common.geometry.S2RegionCovererBenchmark
+ *       [vertices] [maxCells] [threads]
+ * </pre>
+ *
+ * This is not a test and is not run by the build.
+ */
+public strictfp class S2RegionCovererBenchmark {
+
+  private static final int ROUNDS = 5;
+
+  public static void main(String[] args) {
+    int numVertices = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    int maxCells = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+    int threads = args.length > 2
+        ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+    S2Polygon polygon = getStarPolygon(numVertices, new Random(123456));
+    S2RegionCoverer coverer = new S2RegionCoverer(
+        S2RegionCoverer.Options.DEFAULT.withMaxCells(maxCells).withMaxLevel(24));
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    try {
+      CountingRegion counting = new CountingRegion(polygon);
+      S2CellUnion serial = coverer.getCovering(counting);
+      long serialTests = counting.tests.getAndSet(0);
+      S2CellUnion parallel = coverer.getCoveringParallel(counting, coverer.options(), pool);
+      long parallelTests = counting.tests.get();
+      if (!serial.equals(parallel)) {
+        throw new AssertionError("Parallel covering differs from the serial one");
+      }
+      System.out.println(numVertices + " vertices, " + serial.size() + " cells, "
+          + threads + " threads on " + Runtime.getRuntime().availableProcessors() + " cores");
+      System.out.println(String.format("region tests: serial %d, parallel %d (+%.1f%%)",
+          serialTests, parallelTests, 100.0 * (parallelTests - serialTests) / serialTests));
+
+      long serialNanos = Long.MAX_VALUE;
+      long parallelNanos = Long.MAX_VALUE;
+      for (int round = 0; round < ROUNDS; ++round) {
+        long start = System.nanoTime();
+        coverer.getCovering(polygon);
+        serialNanos = Math.min(serialNanos, System.nanoTime() - start);
+        start = System.nanoTime();
+        coverer.getCoveringParallel(polygon, coverer.options(), pool);
+        parallelNanos = Math.min(parallelNanos, System.nanoTime() - start);
+      }
+      System.out.println(String.format("serial %.1f ms, parallel %.1f ms, speedup %.2fx",
+          serialNanos / 1e6, parallelNanos / 1e6, (double) serialNanos / parallelNanos));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * A polygon of "numVertices" vertices at random distances from a center, in
+   * order of angle, so that it is simple but has a very irregular outline.
+   */
+  static S2Polygon getStarPolygon(int numVertices, Random rand) {
+    S2Point center = S2LatLng.fromDegrees(45, 10).toPoint();
+    S2Point x = S2Point.normalize(S2.ortho(center));
+    S2Point y = S2Point.normalize(S2Point.crossProd(center, x));
+    List<S2Point> vertices = new ArrayList<S2Point>(numVertices);
+    for (int i = 0; i < numVertices; ++i) {
+      double angle = 2 * S2.M_PI * i / numVertices;
+      double radius = 0.02 + 0.03 * rand.nextDouble();
+      vertices.add(S2Point.normalize(S2Point.add(center, S2Point.add(
+          S2Point.mul(x, radius * Math.cos(angle)), S2Point.mul(y, radius * Math.sin(angle))))));
+    }
+    List<S2Loop> loops = new ArrayList<S2Loop>();
+    loops.add(new S2Loop(vertices));
+    return new S2Polygon(loops);
+  }
+
+  /** Counts the mayIntersect() and contains() calls made on a region. */
+  private static final class CountingRegion implements S2Region {
+    private final S2Region region;
+    private final AtomicLong tests = new AtomicLong();
+
+    CountingRegion(S2Region region) {
+      this.region = region;
+    }
+
+    @Override
+    public S2Cap getCapBound() {
+      return region.getCapBound();
+    }
+
+    @Override
+    public S2LatLngRect getRectBound() {
+      return region.getRectBound();
+    }
+
+    @Override
+    public boolean contains(S2Cell cell) {
+      tests.incrementAndGet();
+      return region.contains(cell);
+    }
+
+    @Override
+    public boolean mayIntersect(S2Cell cell) {
+      tests.incrementAndGet();
+      return region.mayIntersect(cell);
+    }
+  }
+}
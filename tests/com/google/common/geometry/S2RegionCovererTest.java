@@ -17,6 +17,7 @@ package com.google.common.geometry;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Logger;
 
 public strictfp class S2RegionCovererTest extends GeometryTestCase {
@@ -116,6 +117,155 @@ public strictfp class S2RegionCovererTest extends GeometryTestCase {
     }
   }
 
+  public void testRecycleCandidates() {
+    logger.info("TestRecycleCandidates");
+
+    final int kMaxLevel = S2CellId.MAX_LEVEL;
+    S2RegionCoverer coverer = new S2RegionCoverer();
+    S2RegionCoverer recycling = new S2RegionCoverer();
+    recycling.setRecycleCandidates(true);
+    for (int i = 0; i < 500; ++i) {
+      do {
+        coverer.setMinLevel(random(kMaxLevel + 1));
+        coverer.setMaxLevel(random(kMaxLevel + 1));
+      } while (coverer.minLevel() > coverer.maxLevel());
+      coverer.setMaxCells(skewed(10));
+      coverer.setLevelMod(1 + random(3));
+      recycling.setMinLevel(coverer.minLevel());
+      recycling.setMaxLevel(coverer.maxLevel());
+      recycling.setMaxCells(coverer.maxCells());
+      recycling.setLevelMod(coverer.levelMod());
+      double maxArea = Math.min(
+          4 * S2.M_PI, (3 * coverer.maxCells() + 1) * S2Cell.averageArea(coverer.minLevel()));
+      S2Cap cap = getRandomCap(0.1 * S2Cell.averageArea(kMaxLevel), maxArea);
+
+      // The results (and the work done) must not depend on recycling.
+      assertEquals(coverer.getCovering(cap), recycling.getCovering(cap));
+      assertEquals(coverer.candidatesCreatedCounter(), recycling.candidatesCreatedCounter());
+      assertEquals(coverer.getInteriorCovering(cap), recycling.getInteriorCovering(cap));
+      assertEquals(coverer.candidatesCreatedCounter(), recycling.candidatesCreatedCounter());
+    }
+  }
+
+  public void testOptions() {
+    S2RegionCoverer.Options options = S2RegionCoverer.Options.DEFAULT
+        .withMinLevel(-1).withMaxLevel(99).withLevelMod(5).withMaxCells(20);
+    assertEquals(0, options.minLevel());
+    assertEquals(S2CellId.MAX_LEVEL, options.maxLevel());
+    assertEquals(3, options.levelMod());
+    assertEquals(20, options.maxCells());
+    assertEquals(S2RegionCoverer.DEFAULT_MAX_CELLS, S2RegionCoverer.Options.DEFAULT.maxCells());
+
+    S2RegionCoverer coverer = new S2RegionCoverer(options);
+    coverer.setMaxCells(30);
+    assertEquals(options.withMaxCells(30), coverer.options());
+    assertEquals(20, options.maxCells());
+
+    // Per-call options leave the coverer's own options alone.
+    S2Cap cap = getRandomCap(S2Cell.averageArea(10), S2Cell.averageArea(8));
+    S2RegionCoverer other = new S2RegionCoverer(options);
+    assertEquals(other.getCovering(cap), coverer.getCovering(cap, options));
+    assertEquals(30, coverer.maxCells());
+  }
+
+  public void testConcurrentCoverings() throws Exception {
+    logger.info("TestConcurrentCoverings");
+
+    final S2RegionCoverer coverer = new S2RegionCoverer();
+    coverer.setMaxCells(50);
+    coverer.setRecycleCandidates(true);
+    final ArrayList<S2Cap> caps = new ArrayList<S2Cap>();
+    final ArrayList<S2CellUnion> expected = new ArrayList<S2CellUnion>();
+    for (int i = 0; i < 200; ++i) {
+      S2Cap cap = getRandomCap(0.1 * S2Cell.averageArea(S2CellId.MAX_LEVEL), 4 * S2.M_PI);
+      caps.add(cap);
+      expected.add(new S2RegionCoverer(coverer.options()).getCovering(cap));
+    }
+
+    final ArrayList<Throwable> failures = new ArrayList<Throwable>();
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; ++t) {
+      final int offset = t;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < caps.size(); ++i) {
+              int k = (i + offset * 50) % caps.size();
+              assertEquals(expected.get(k), coverer.getCovering(caps.get(k)));
+            }
+          } catch (Throwable e) {
+            synchronized (failures) {
+              failures.add(e);
+            }
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertTrue(failures.toString(), failures.isEmpty());
+  }
+
+  public void testParallelCoverings() {
+    logger.info("TestParallelCoverings");
+
+    final int kMaxLevel = S2CellId.MAX_LEVEL;
+    S2RegionCoverer coverer = new S2RegionCoverer();
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      for (int i = 0; i < 200; ++i) {
+        do {
+          coverer.setMinLevel(random(kMaxLevel + 1));
+          coverer.setMaxLevel(random(kMaxLevel + 1));
+        } while (coverer.minLevel() > coverer.maxLevel());
+        coverer.setMaxCells(skewed(10));
+        coverer.setLevelMod(1 + random(3));
+        S2RegionCoverer.Options options = coverer.options();
+        double maxArea = Math.min(
+            4 * S2.M_PI, (3 * options.maxCells() + 1) * S2Cell.averageArea(options.minLevel()));
+        S2Region region = getRandomCap(0.1 * S2Cell.averageArea(kMaxLevel), maxArea);
+        if (i % 2 == 1) {
+          // A cell union makes the initial candidates the six faces.
+          region = coverer.getCovering(region, options.withMaxCells(100));
+        }
+
+        S2CellUnion covering = coverer.getCovering(region);
+        int candidates = coverer.candidatesCreatedCounter();
+        assertEquals(covering, coverer.getCoveringParallel(region, options, pool));
+        assertEquals(candidates, coverer.candidatesCreatedCounter());
+        assertEquals(coverer.getInteriorCovering(region),
+            coverer.getInteriorCoveringParallel(region, options, pool));
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  public void testParallelPolygonCoverings() {
+    logger.info("TestParallelPolygonCoverings");
+
+    // Polygons with many vertices and coverings large enough that candidates
+    // are expanded ahead of time in several batches.
+    S2RegionCoverer coverer = new S2RegionCoverer();
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      for (int i = 0; i < 4; ++i) {
+        S2Polygon polygon = S2RegionCovererBenchmark.getStarPolygon(200, rand);
+        S2RegionCoverer.Options options = S2RegionCoverer.Options.DEFAULT
+            .withMaxCells(50 + random(500)).withMaxLevel(16 + random(8)).withLevelMod(1 + i % 3);
+        S2CellUnion covering = coverer.getCovering(polygon, options);
+        assertEquals(covering, coverer.getCoveringParallel(polygon, options, pool));
+        assertEquals(coverer.getInteriorCovering(polygon, options),
+            coverer.getInteriorCoveringParallel(polygon, options, pool));
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
   public void testSimpleCoverings() {
     logger.info("TestSimpleCoverings");
 
@@ -0,0 +1,109 @@
+package org.proagrica.wallys2.converters;
+
+import com.google.common.geometry.S2LatLng;
+import com.google.common.geometry.S2Loop;
+import com.google.common.geometry.S2Point;
+import com.google.common.geometry.S2Polygon;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class EqualAreaProjectionTest extends TestCase {
+
+    private static double[] project(EqualAreaProjection projection, double lat, double lng) {
+        double[] xy = new double[2];
+        projection.project(new double[] {lat, lng}, xy, 1);
+        return xy;
+    }
+
+    /** An ellipse of "n" vertices around lat, lng, counterclockwise. */
+    private static S2Loop ellipse(double lat, double lng, double dLat, double dLng, int n) {
+        List<S2Point> vertices = new ArrayList<S2Point>();
+        for (int i = 0; i < n; i++) {
+            double t = 2 * Math.PI * i / n;
+            vertices.add(S2LatLng.fromDegrees(lat + dLat * Math.sin(t), lng + dLng * Math.cos(t)).toPoint());
+        }
+        return new S2Loop(vertices);
+    }
+
+    private static S2Polygon polygon(S2Loop... loops) {
+        List<S2Loop> list = new ArrayList<S2Loop>();
+        for (S2Loop loop : loops) {
+            list.add(loop);
+        }
+        return new S2Polygon(list);
+    }
+
+    public void testLaeaEuropeGuidanceExample() {
+        // The worked example for EPSG:3035 in IOGP Guidance Note 7-2. The
+        // shift from WGS84 to GRS80 moves points by well under a millimetre.
+        double[] xy = project(EqualAreaProjection.LAEA_EUROPE, 50, 5);
+        assertEquals(3962799.45, xy[0], 0.01);
+        assertEquals(2999718.85, xy[1], 0.01);
+
+        // The centre goes to the false easting and northing.
+        xy = project(EqualAreaProjection.LAEA_EUROPE, 52, 10);
+        assertEquals(4321000, xy[0], 0.001);
+        assertEquals(3210000, xy[1], 0.001);
+    }
+
+    public void testEaseGrid2Extents() {
+        // The published extent of EPSG:6933: +-17367530.45 east and west, and
+        // +-7314540.83 north and south at the grid's edge, 85.0445664 degrees.
+        EqualAreaProjection projection = EqualAreaProjection.EASE_GRID_2_GLOBAL;
+        assertEquals(17367530.45, project(projection, 0, 180)[0], 0.01);
+        assertEquals(-17367530.45, project(projection, 0, -180 + 1e-12)[0], 0.01);
+        assertEquals(7314540.83, project(projection, 85.0445664, 0)[1], 0.01);
+        assertEquals(-7314540.83, project(projection, -85.0445664, 0)[1], 0.01);
+        assertEquals(0, project(projection, 0, 0)[1], 0);
+    }
+
+    public void testLaeaAndCylindricalAreasAgree() {
+        // Both are equal-area on almost the same ellipsoid, so once the
+        // vertices are dense enough for the straight edges between them not
+        // to matter, they give the same area. The differences measured for
+        // these ellipses are 1.2e-10 to 2.1e-10 of the area.
+        for (double lat : new double[] {35, 50, 65}) {
+            S2Polygon polygon = polygon(ellipse(lat, 5, 0.5, 0.8, 2000));
+            double laea = EqualAreaProjection.LAEA_EUROPE.area(polygon);
+            double cylindrical = EqualAreaProjection.EASE_GRID_2_GLOBAL.area(polygon);
+            assertEquals(laea, cylindrical, 1e-9 * laea);
+            // Roughly pi * 56 km * 38 to 73 km, depending on latitude.
+            assertTrue(laea > 5e9 && laea < 1.5e10);
+        }
+    }
+
+    public void testHolesAreSubtracted() {
+        S2Loop shell = ellipse(50, 5, 0.5, 0.8, 200);
+        S2Loop hole = ellipse(50, 5, 0.2, 0.3, 100);
+        EqualAreaProjection projection = EqualAreaProjection.LAEA_EUROPE;
+        double expected = projection.area(polygon(shell)) - projection.area(polygon(hole));
+        S2Polygon polygon = polygon(ellipse(50, 5, 0.5, 0.8, 200), ellipse(50, 5, 0.2, 0.3, 100));
+        assertEquals(2, polygon.numLoops());
+        assertEquals(expected, projection.area(polygon), 1e-6 * expected);
+    }
+
+    public void testRings() {
+        // Positive when clockwise, as in JTS.
+        double[] square = {0, 0, 2, 0, 2, 2, 0, 2};
+        assertEquals(-4.0, EqualAreaProjection.ringArea(square, 4), 0);
+        double[] clockwise = {0, 0, 0, 2, 2, 2, 2, 0};
+        assertEquals(4.0, EqualAreaProjection.ringArea(clockwise, 4), 0);
+        assertEquals(0.0, EqualAreaProjection.ringArea(square, 2), 0);
+        assertEquals(8.0, EqualAreaProjection.ringLength(square, 4), 0);
+    }
+
+    public void testForCode() {
+        assertSame(EqualAreaProjection.US_NATIONAL_ATLAS, EqualAreaProjection.forCode("EPSG:2163"));
+        assertSame(EqualAreaProjection.LAEA_EUROPE, EqualAreaProjection.forCode("epsg:3035"));
+        assertSame(EqualAreaProjection.EASE_GRID_2_GLOBAL, EqualAreaProjection.forCode("EPSG:6933"));
+        try {
+            EqualAreaProjection.forCode("EPSG:4326");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+}
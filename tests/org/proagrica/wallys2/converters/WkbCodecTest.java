@@ -0,0 +1,382 @@
+package org.proagrica.wallys2.converters;
+
+import com.google.common.geometry.S2Cell;
+import com.google.common.geometry.S2CellId;
+import com.google.common.geometry.S2CellUnion;
+import com.google.common.geometry.S2LatLng;
+import com.google.common.geometry.S2Point;
+import com.google.common.geometry.S2Polygon;
+import com.google.common.geometry.S2Polyline;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Random;
+
+public class WkbCodecTest extends TestCase {
+
+    private static final int POINT = 1;
+    private static final int LINESTRING = 2;
+    private static final int POLYGON = 3;
+    private static final int MULTIPOLYGON = 6;
+
+    private static final double[] OUTER = {0, 0, 10, 0, 10, 10, 0, 10, 0, 0};
+    private static final double[] HOLE = {2, 2, 8, 2, 8, 8, 2, 8, 2, 2};
+    private static final double[] ISLAND = {4, 4, 6, 4, 6, 6, 4, 6, 4, 4};
+    private static final String WKT = "MULTIPOLYGON(((0 0, 10 0, 10 10, 0 10, 0 0),"
+            + "(2 2, 8 2, 8 8, 2 8, 2 2)),((4 4, 6 4, 6 6, 4 6, 4 4)))";
+
+    private static ByteBuffer allocate() {
+        return ByteBuffer.allocate(4096);
+    }
+
+    private static void header(ByteBuffer buf, ByteOrder order, int type) {
+        buf.order(order);
+        buf.put(order == ByteOrder.LITTLE_ENDIAN ? (byte) 1 : (byte) 0);
+        buf.putInt(type);
+    }
+
+    /** Writes a point count and the points, giving each "dims - 2" extra ordinates. */
+    private static void points(ByteBuffer buf, int dims, double[] lngLat) {
+        buf.putInt(lngLat.length / 2);
+        for (int i = 0; i < lngLat.length; i += 2) {
+            buf.putDouble(lngLat[i]);
+            buf.putDouble(lngLat[i + 1]);
+            for (int k = 2; k < dims; k++) {
+                buf.putDouble(100 * k);
+            }
+        }
+    }
+
+    private static void polygon(ByteBuffer buf, ByteOrder order, int type, int dims, double[]... rings) {
+        header(buf, order, type);
+        buf.putInt(rings.length);
+        for (double[] ring : rings) {
+            points(buf, dims, ring);
+        }
+    }
+
+    /** The bytes written so far, ready to be read. */
+    private static ByteBuffer flip(ByteBuffer buf) {
+        buf.flip();
+        return buf;
+    }
+
+    private static void assertSamePolygon(S2Polygon expected, S2Polygon actual) {
+        assertEquals(expected.numLoops(), actual.numLoops());
+        assertTrue(expected.contains(actual));
+        assertTrue(actual.contains(expected));
+    }
+
+    /**
+     * Checks a polygon that went through WKB, whose vertices may have moved
+     * by a rounding error in the conversion to degrees and back.
+     */
+    private static void assertRoundTrip(S2Polygon expected, S2Polygon actual) {
+        assertEquals(expected.numLoops(), actual.numLoops());
+        assertEquals(expected.getArea(), actual.getArea(), 1e-14);
+        for (int i = 0; i < expected.numLoops(); i++) {
+            assertEquals(expected.loop(i).depth(), actual.loop(i).depth());
+            assertEquals(expected.loop(i).numVertices(), actual.loop(i).numVertices());
+            S2Point centroid = expected.loop(i).getCentroid();
+            assertEquals(expected.contains(centroid), actual.contains(centroid));
+        }
+    }
+
+    private static void assertMalformed(ByteBuffer buf) {
+        try {
+            WkbCodec.readPolygon(buf);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    /** Twice the signed area of a ring in the lng, lat plane; positive if counterclockwise. */
+    private static double signedArea(ByteBuffer buf, int numPoints) {
+        double[] lngLat = new double[2 * numPoints];
+        for (int i = 0; i < lngLat.length; i++) {
+            lngLat[i] = buf.getDouble();
+        }
+        double area = 0;
+        for (int i = 0; i + 3 < lngLat.length; i += 2) {
+            area += lngLat[i] * lngLat[i + 3] - lngLat[i + 2] * lngLat[i + 1];
+        }
+        return area;
+    }
+
+    public void testByteOrders() {
+        S2Polygon expected = WktParser.parsePolygon("POLYGON((0 0, 10 0, 10 10, 0 10, 0 0),(2 2, 8 2, 8 8, 2 8, 2 2))");
+        for (ByteOrder order : new ByteOrder[] {ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN}) {
+            ByteBuffer buf = allocate();
+            polygon(buf, order, POLYGON, 2, OUTER, HOLE);
+            assertSamePolygon(expected, WkbCodec.readPolygon(flip(buf)));
+
+            buf = allocate();
+            header(buf, order, POINT);
+            buf.putDouble(1.5);
+            buf.putDouble(-2);
+            assertEquals(WktParser.parsePoint("POINT(1.5 -2)"), WkbCodec.readPoint(flip(buf)));
+
+            buf = allocate();
+            header(buf, order, LINESTRING);
+            points(buf, 2, new double[] {0, 0, 1, 1, 1, 1, 2, 0});
+            S2Polyline line = WkbCodec.readPolyline(flip(buf));
+            // The repeated point is dropped.
+            assertEquals(3, line.numVertices());
+            assertEquals(WktParser.parsePoint("POINT(2 0)"), line.vertex(2));
+        }
+    }
+
+    public void testDimensionsAndSrid() {
+        S2Polygon expected = WktParser.parsePolygon("POLYGON((0 0, 10 0, 10 10, 0 10, 0 0))");
+        int ewkbZ = 0x80000000;
+        int ewkbM = 0x40000000;
+        int ewkbSrid = 0x20000000;
+        int[] types = {POLYGON, POLYGON | ewkbZ, POLYGON | ewkbM, POLYGON | ewkbZ | ewkbM,
+                1000 + POLYGON, 2000 + POLYGON, 3000 + POLYGON};
+        int[] dims = {2, 3, 3, 4, 3, 3, 4};
+        for (int i = 0; i < types.length; i++) {
+            for (boolean srid : new boolean[] {false, true}) {
+                for (ByteOrder order : new ByteOrder[] {ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN}) {
+                    if (srid && types[i] > 1000) {
+                        // An SRID only comes with the extended flags.
+                        continue;
+                    }
+                    ByteBuffer buf = allocate();
+                    header(buf, order, srid ? types[i] | ewkbSrid : types[i]);
+                    if (srid) {
+                        buf.putInt(4326);
+                    }
+                    buf.putInt(1);
+                    points(buf, dims[i], OUTER);
+                    flip(buf);
+                    assertSamePolygon(expected, WkbCodec.readPolygon(buf));
+                    assertEquals(buf.limit(), buf.position());
+                }
+            }
+        }
+
+        ByteBuffer buf = allocate();
+        header(buf, ByteOrder.BIG_ENDIAN, 3000 + POINT);
+        buf.putDouble(1).putDouble(2).putDouble(3).putDouble(4);
+        header(buf, ByteOrder.LITTLE_ENDIAN, POINT | ewkbZ | ewkbSrid);
+        buf.putInt(4326);
+        buf.putDouble(5).putDouble(6).putDouble(7);
+        flip(buf);
+        assertEquals(WktParser.parsePoint("POINT(1 2)"), WkbCodec.readPoint(buf));
+        assertEquals(WktParser.parsePoint("POINT(5 6)"), WkbCodec.readPoint(buf));
+        assertEquals(buf.limit(), buf.position());
+    }
+
+    public void testMixedByteOrdersInMultiPolygon() {
+        ByteBuffer buf = allocate();
+        header(buf, ByteOrder.LITTLE_ENDIAN, MULTIPOLYGON);
+        buf.putInt(2);
+        polygon(buf, ByteOrder.BIG_ENDIAN, POLYGON, 2, OUTER, HOLE);
+        polygon(buf, ByteOrder.LITTLE_ENDIAN, 1000 + POLYGON, 3, ISLAND);
+        S2Polygon polygon = WkbCodec.readPolygon(flip(buf));
+        assertSamePolygon(WktParser.parsePolygon(WKT), polygon);
+        assertEquals(buf.limit(), buf.position());
+
+        // And the other way round.
+        buf = allocate();
+        header(buf, ByteOrder.BIG_ENDIAN, MULTIPOLYGON);
+        buf.putInt(2);
+        polygon(buf, ByteOrder.LITTLE_ENDIAN, POLYGON, 2, OUTER, HOLE);
+        polygon(buf, ByteOrder.BIG_ENDIAN, POLYGON, 2, ISLAND);
+        assertSamePolygon(polygon, WkbCodec.readPolygon(flip(buf)));
+    }
+
+    public void testTruncatedInput() {
+        byte[] wkb = WkbCodec.toWkb(WktParser.parsePolygon(WKT));
+        for (int length = 0; length < wkb.length; length++) {
+            assertMalformed(ByteBuffer.wrap(wkb, 0, length));
+        }
+        assertRoundTrip(WktParser.parsePolygon(WKT), WkbCodec.readPolygon(ByteBuffer.wrap(wkb)));
+
+        byte[] line = WkbCodec.toWkb(WktParser.parsePolyline("LINESTRING(0 0, 1 1, 2 0)"));
+        for (int length = 0; length < line.length; length++) {
+            try {
+                WkbCodec.readPolyline(ByteBuffer.wrap(line, 0, length));
+                fail();
+            } catch (IllegalArgumentException e) {
+                // Expected.
+            }
+        }
+    }
+
+    public void testOversizedCounts() {
+        int[] counts = {Integer.MAX_VALUE, -1, Integer.MIN_VALUE, 6};
+        for (int count : counts) {
+            // Too many rings.
+            ByteBuffer buf = allocate();
+            header(buf, ByteOrder.LITTLE_ENDIAN, POLYGON);
+            buf.putInt(count);
+            points(buf, 2, OUTER);
+            assertMalformed(flip(buf));
+
+            // Too many points.
+            buf = allocate();
+            header(buf, ByteOrder.BIG_ENDIAN, POLYGON);
+            buf.putInt(1);
+            buf.putInt(count);
+            for (int i = 0; i < 5; i++) {
+                buf.putDouble(i).putDouble(i);
+            }
+            try {
+                WkbCodec.readPolygon(flip(buf));
+                fail();
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("does not fit"));
+            }
+
+            // Too many parts.
+            buf = allocate();
+            header(buf, ByteOrder.LITTLE_ENDIAN, MULTIPOLYGON);
+            buf.putInt(count);
+            polygon(buf, ByteOrder.LITTLE_ENDIAN, POLYGON, 2, ISLAND);
+            assertMalformed(flip(buf));
+        }
+
+        // Ordinates that would not fit only with the Z and M of each point.
+        ByteBuffer buf = allocate();
+        header(buf, ByteOrder.LITTLE_ENDIAN, 3000 + POLYGON);
+        buf.putInt(1);
+        points(buf, 2, OUTER);
+        assertMalformed(flip(buf));
+    }
+
+    public void testBadHeaders() {
+        ByteBuffer buf = allocate();
+        buf.put((byte) 2).putInt(POLYGON);
+        assertMalformed(flip(buf));
+
+        buf = allocate();
+        polygon(buf, ByteOrder.LITTLE_ENDIAN, 4000 + POLYGON, 2, OUTER);
+        assertMalformed(flip(buf));
+
+        buf = allocate();
+        header(buf, ByteOrder.LITTLE_ENDIAN, LINESTRING);
+        points(buf, 2, OUTER);
+        assertMalformed(flip(buf));
+
+        // A MULTIPOLYGON may hold only polygons.
+        buf = allocate();
+        header(buf, ByteOrder.LITTLE_ENDIAN, MULTIPOLYGON);
+        buf.putInt(1);
+        header(buf, ByteOrder.LITTLE_ENDIAN, LINESTRING);
+        points(buf, 2, OUTER);
+        assertMalformed(flip(buf));
+
+        buf = allocate();
+        header(buf, ByteOrder.LITTLE_ENDIAN, POINT);
+        buf.putDouble(Double.NaN).putDouble(Double.NaN);
+        try {
+            WkbCodec.readPoint(flip(buf));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    public void testPositionAndOrderAfterRead() {
+        ByteBuffer buf = allocate();
+        buf.putInt(0xdeadbeef);
+        polygon(buf, ByteOrder.LITTLE_ENDIAN, POLYGON, 2, OUTER);
+        int firstEnd = buf.position();
+        polygon(buf, ByteOrder.BIG_ENDIAN, POLYGON, 2, ISLAND);
+        int secondEnd = buf.position();
+        buf.putInt(0xdeadbeef);
+        flip(buf);
+
+        buf.order(ByteOrder.BIG_ENDIAN).position(4);
+        WkbCodec.readPolygon(buf);
+        assertEquals(firstEnd, buf.position());
+        assertEquals(ByteOrder.BIG_ENDIAN, buf.order());
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        WkbCodec.readPolygon(buf);
+        assertEquals(secondEnd, buf.position());
+        assertEquals(ByteOrder.LITTLE_ENDIAN, buf.order());
+        assertEquals(0xdeadbeef, buf.order(ByteOrder.BIG_ENDIAN).getInt());
+
+        // The order is restored when reading fails too.
+        byte[] wkb = WkbCodec.toWkb(WktParser.parsePolygon(WKT));
+        buf = ByteBuffer.wrap(wkb, 0, wkb.length - 1).order(ByteOrder.BIG_ENDIAN);
+        assertMalformed(buf);
+        assertEquals(ByteOrder.BIG_ENDIAN, buf.order());
+    }
+
+    public void testPolygonRoundTrip() {
+        S2Polygon polygon = WktParser.parsePolygon(WKT);
+        int size = WkbCodec.polygonSize(polygon);
+        for (ByteOrder order : new ByteOrder[] {ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN}) {
+            ByteBuffer buf = allocate().order(order);
+            buf.position(3);
+            WkbCodec.writePolygon(polygon, buf);
+            assertEquals(3 + size, buf.position());
+            assertEquals(order, buf.order());
+
+            buf.flip().position(3);
+            assertRoundTrip(polygon, WkbCodec.readPolygon(buf));
+            assertEquals(3 + size, buf.position());
+
+            // The island is a part of its own, after the shell and its hole,
+            // and the hole runs clockwise.
+            buf.position(3 + 5);
+            assertEquals(2, buf.getInt());
+            buf.position(buf.position() + 5);
+            assertEquals(2, buf.getInt());
+            assertTrue(signedArea(buf, buf.getInt()) > 0);
+            assertTrue(signedArea(buf, buf.getInt()) < 0);
+            buf.position(buf.position() + 5);
+            assertEquals(1, buf.getInt());
+            assertTrue(signedArea(buf, buf.getInt()) > 0);
+            assertEquals(3 + size, buf.position());
+        }
+
+        assertEquals(9, WkbCodec.polygonSize(new S2Polygon()));
+        byte[] empty = WkbCodec.toWkb(new S2Polygon());
+        assertEquals(9, empty.length);
+        assertEquals(0, WkbCodec.readPolygon(ByteBuffer.wrap(empty)).numLoops());
+
+        S2Polyline line = WktParser.parsePolyline("LINESTRING(0 0, 1 1, 2 0)");
+        byte[] wkb = WkbCodec.toWkb(line);
+        assertEquals(WkbCodec.polylineSize(line), wkb.length);
+        S2Polyline read = WkbCodec.readPolyline(ByteBuffer.wrap(wkb));
+        assertEquals(line.numVertices(), read.numVertices());
+        for (int i = 0; i < line.numVertices(); i++) {
+            assertTrue(line.vertex(i).angle(read.vertex(i)) < 1e-15);
+        }
+    }
+
+    public void testCellUnionRoundTrip() {
+        Random rand = new Random(123456);
+        ArrayList<S2CellId> ids = new ArrayList<S2CellId>();
+        for (int i = 0; i < 20; i++) {
+            ids.add(S2CellId.fromLatLng(S2LatLng.fromDegrees(
+                    180 * rand.nextDouble() - 90, 360 * rand.nextDouble() - 180)).parent(3 + rand.nextInt(20)));
+        }
+        S2CellUnion cells = new S2CellUnion();
+        cells.initFromCellIds(ids);
+        int size = WkbCodec.cellUnionSize(cells);
+        ByteBuffer buf = allocate().order(ByteOrder.BIG_ENDIAN);
+        WkbCodec.writeCellUnion(cells, buf);
+        assertEquals(size, buf.position());
+        assertEquals(size, WkbCodec.toWkb(cells).length);
+
+        S2Polygon polygon = WkbCodec.readPolygon(flip(buf));
+        assertEquals(size, buf.position());
+        assertEquals(cells.size(), polygon.numLoops());
+        double area = 0;
+        for (S2CellId id : cells) {
+            S2Cell cell = new S2Cell(id);
+            area += cell.exactArea();
+            S2Point center = cell.getCenter();
+            assertTrue(polygon.contains(center));
+        }
+        assertEquals(area, polygon.getArea(), 1e-9 * area);
+    }
+}
@@ -0,0 +1,194 @@
+package org.proagrica.wallys2.converters;
+
+import com.google.common.geometry.S2LatLng;
+import com.google.common.geometry.S2Point;
+import com.google.common.geometry.S2Polygon;
+import com.google.common.geometry.S2Polyline;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class WktParserTest extends TestCase {
+
+    private static final String OUTER = "(0 0, 10 0, 10 10, 0 10, 0 0)";
+    private static final String HOLE = "(2 2, 8 2, 8 8, 2 8, 2 2)";
+    private static final String ISLAND = "(4 4, 6 4, 6 6, 4 6, 4 4)";
+
+    private static S2Point point(double lng, double lat) {
+        return S2LatLng.fromDegrees(lat, lng).toPoint();
+    }
+
+    private static double ringArea(String ring) {
+        return WktParser.parsePolygon("POLYGON(" + ring + ")").getArea();
+    }
+
+    private static void assertSamePolygon(S2Polygon expected, S2Polygon actual) {
+        assertEquals(expected.numLoops(), actual.numLoops());
+        assertTrue(expected.contains(actual));
+        assertTrue(actual.contains(expected));
+    }
+
+    private static void assertSameDouble(String text) {
+        double expected = Double.parseDouble(text);
+        double actual = WktParser.parseNumber(text);
+        assertEquals(text, Double.doubleToRawLongBits(expected), Double.doubleToRawLongBits(actual));
+    }
+
+    private static void assertMalformed(String wkt, int position) {
+        try {
+            WktParser.parsePolygon(wkt);
+            fail("Parsed " + wkt);
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(" at position " + position + " of WKT"));
+        }
+    }
+
+    public void testHole() {
+        S2Polygon polygon = WktParser.parsePolygon("POLYGON(" + OUTER + "," + HOLE + ")");
+        assertEquals(2, polygon.numLoops());
+        assertFalse(polygon.loop(0).isHole());
+        assertTrue(polygon.loop(1).isHole());
+        assertTrue(polygon.contains(point(1, 1)));
+        assertFalse(polygon.contains(point(5, 5)));
+        assertEquals(ringArea(OUTER) - ringArea(HOLE), polygon.getArea(), 1e-15);
+
+        // The hole comes out the same whichever way its ring is wound.
+        S2Polygon reversed = WktParser.parsePolygon(
+                "POLYGON(" + OUTER + ",(2 2, 2 8, 8 8, 8 2, 2 2))");
+        assertSamePolygon(polygon, reversed);
+    }
+
+    public void testIslandInHoleOfAnotherPart() {
+        S2Polygon polygon = WktParser.parsePolygon(
+                "MULTIPOLYGON((" + OUTER + "," + HOLE + "),(" + ISLAND + "))");
+        assertEquals(3, polygon.numLoops());
+        int[] loopsAtDepth = new int[3];
+        for (int i = 0; i < polygon.numLoops(); i++) {
+            ++loopsAtDepth[polygon.loop(i).depth()];
+        }
+        assertEquals(1, loopsAtDepth[0]);
+        assertEquals(1, loopsAtDepth[1]);
+        assertEquals(1, loopsAtDepth[2]);
+        assertTrue(polygon.contains(point(1, 1)));
+        assertFalse(polygon.contains(point(3, 3)));
+        assertTrue(polygon.contains(point(5, 5)));
+        assertEquals(ringArea(OUTER) - ringArea(HOLE) + ringArea(ISLAND), polygon.getArea(), 1e-15);
+
+        // Separate parts side by side stay separate shells.
+        S2Polygon apart = WktParser.parsePolygon(
+                "MULTIPOLYGON(((20 0, 21 0, 21 1, 20 0)),(" + ISLAND + "))");
+        assertEquals(2, apart.numLoops());
+        assertEquals(0, apart.loop(0).depth());
+        assertEquals(0, apart.loop(1).depth());
+    }
+
+    public void testDegenerateRingsAreDropped() {
+        // Repeated vertices collapse, leaving a ring of two distinct vertices.
+        S2Polygon polygon = WktParser.parsePolygon(
+                "MULTIPOLYGON(((0 0, 1 1, 1 1, 0 0)),(" + ISLAND + "))");
+        assertEquals(1, polygon.numLoops());
+        assertEquals(ringArea(ISLAND), polygon.getArea(), 0);
+    }
+
+    public void testKeywordsAndWhitespace() {
+        S2Polygon expected = WktParser.parsePolygon("POLYGON(" + OUTER + ")");
+        assertSamePolygon(expected, WktParser.parsePolygon("polygon(" + OUTER + ")"));
+        assertSamePolygon(expected, WktParser.parsePolygon("Polygon (" + OUTER + ")"));
+        assertSamePolygon(expected, WktParser.parsePolygon("multipolygon((" + OUTER + "))"));
+        assertSamePolygon(expected, WktParser.parsePolygon(
+                "  POLYGON\n(\t( 0  0 ,10 0,10 10 , 0 10,0 0 ) )  "));
+        assertEquals(point(1.5, -2), WktParser.parsePoint("point(1.5 -2)"));
+        assertEquals(2, WktParser.parsePolyline("linestring(0 0, 1 1)").numVertices());
+    }
+
+    public void testEmpty() {
+        assertEquals(0, WktParser.parsePolygon("POLYGON EMPTY").numLoops());
+        assertEquals(0, WktParser.parsePolygon("MULTIPOLYGON EMPTY").numLoops());
+        assertEquals(0, WktParser.parsePolygon("multipolygon empty").numLoops());
+        assertEquals(0, WktParser.parsePolygon("POLYGON Z EMPTY").numLoops());
+        assertEquals(0, WktParser.parsePolyline("LINESTRING EMPTY").numVertices());
+        try {
+            WktParser.parsePoint("POINT EMPTY");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    public void testExtraOrdinatesAreSkipped() {
+        S2Polygon expected = WktParser.parsePolygon("POLYGON(" + OUTER + ")");
+        assertSamePolygon(expected, WktParser.parsePolygon(
+                "POLYGON Z ((0 0 5, 10 0 5, 10 10 5, 0 10 5, 0 0 5))"));
+        assertSamePolygon(expected, WktParser.parsePolygon(
+                "POLYGON M ((0 0 1, 10 0 2, 10 10 3, 0 10 4, 0 0 5))"));
+        assertSamePolygon(expected, WktParser.parsePolygon(
+                "POLYGON ZM ((0 0 5 1, 10 0 5 2, 10 10 5 3, 0 10 5 4, 0 0 5 5))"));
+        // Some writers give the ordinates without the dimension keyword.
+        assertSamePolygon(expected, WktParser.parsePolygon(
+                "POLYGON((0 0 -1.5, 10 0 .5, 10 10 +2, 0 10 1e3, 0 0 0))"));
+        assertEquals(point(1, 2), WktParser.parsePoint("POINT ZM (1 2 3 4)"));
+        S2Polyline line = WktParser.parsePolyline("LINESTRING Z (0 0 1, 1 1 2)");
+        assertEquals(point(1, 1), line.vertex(1));
+    }
+
+    public void testNumbersMatchParseDouble() {
+        String[] numbers = {
+                "0", "-0", "+0", "-0.0", "0.000", "1", "-1", "+1", ".5", "-.5", "5.", "007",
+                "0.1", "0.2", "0.3", "-179.99999999999", "89.123456789012",
+                // 15 significant digits take the fast path, 16 do not.
+                "123456789012345", "1234567890123456", "9007199254740993",
+                "0.123456789012345", "0.1234567890123456", "12345.6789012345",
+                "12345.67890123456", "-98765.4321098765", "-98765.43210987654",
+                "1000000000000000", "100000000000000.0", "0.00000000000000000001",
+                // Exponents either side of the exact powers of ten.
+                "1e22", "1e23", "1e-22", "1e-23", "1E22", "1E+23", "-1e-22", "-1e-23",
+                "123456789012345e22", "123456789012345e-22", "123456789012345e23",
+                "123456789012345e-23", "0.5e23", "5e-23", "1.5e-21", "1e0", "1e-0",
+                "1e308", "1e309", "-1e309", "1e-324", "4.9e-324", "2.2250738585072014e-308",
+                "1e100000000000", "0e500"};
+        for (String number : numbers) {
+            assertSameDouble(number);
+        }
+
+        Random rand = new Random(123456);
+        for (int i = 0; i < 10000; i++) {
+            double value = (rand.nextDouble() - 0.5) * Math.pow(10, rand.nextInt(50) - 25);
+            assertSameDouble(Double.toString(value));
+            assertSameDouble(String.format("%.8f", 360 * rand.nextDouble() - 180));
+            assertSameDouble(String.format("%." + rand.nextInt(17) + "e", value));
+            assertSameDouble(Long.toString(rand.nextLong() >> rand.nextInt(64)));
+        }
+    }
+
+    public void testMalformedInputGivesPosition() {
+        assertMalformed("", 0);
+        assertMalformed("CIRCLE((0 0, 1 0, 1 1))", 6);
+        assertMalformed("POLYGON", 7);
+        assertMalformed("POLYGON((0 0, 1 0, 1 1, 0 0)", 28);
+        assertMalformed("POLYGON((0 0, 1 x, 1 1, 0 0))", 16);
+        assertMalformed("POLYGON((0 0, 1 0, 1 1, 0 0)) x", 30);
+        assertMalformed("POLYGON((0 0, 1 0, 1e, 0 0))", 21);
+        assertMalformed("POLYGON((0 0; 1 0, 1 1, 0 0))", 12);
+        assertMalformed("POLYGON((0 0, 1 0, 1 1, 0 0),)", 29);
+        assertMalformed("MULTIPOLYGON(((0 0, 1 0, 1 1, 0 0))", 35);
+        try {
+            WktParser.parsePolyline("POLYGON((0 0, 1 0, 1 1, 0 0))");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(" at position 7 of WKT"));
+        }
+        try {
+            WktParser.parsePoint("POINT(1)");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(" at position 7 of WKT"));
+        }
+        try {
+            WktParser.parseNumber("1.5.5");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(" at position 3 of WKT"));
+        }
+    }
+}
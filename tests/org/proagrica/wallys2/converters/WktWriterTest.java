@@ -0,0 +1,217 @@
+package org.proagrica.wallys2.converters;
+
+import com.google.common.geometry.S2Cap;
+import com.google.common.geometry.S2Cell;
+import com.google.common.geometry.S2CellId;
+import com.google.common.geometry.S2CellUnion;
+import com.google.common.geometry.S2LatLng;
+import com.google.common.geometry.S2Point;
+import com.google.common.geometry.S2Polygon;
+import com.google.common.geometry.S2RegionCoverer;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class WktWriterTest extends TestCase {
+
+    private static S2CellUnion union(List<S2CellId> ids) {
+        S2CellUnion union = new S2CellUnion();
+        union.initFromCellIds(new ArrayList<S2CellId>(ids));
+        return union;
+    }
+
+    private static String latLng(S2Point p) {
+        S2LatLng ll = new S2LatLng(p);
+        return ll.latDegrees() + " " + ll.lngDegrees();
+    }
+
+    /**
+     * Checks that the outline covers every cell and has the union's area, to
+     * within the rounding error of S2Loop.getArea() on small loops (up to a
+     * few parts in 1e8 here). A missing or extra cell would be far larger.
+     */
+    private static void assertDissolvedArea(S2CellUnion cells) {
+        S2Polygon polygon = WktWriter.dissolve(cells);
+        double area = cells.exactArea();
+        assertEquals(area, polygon.getArea(), 1e-6 * area);
+        for (S2CellId id : cells) {
+            assertTrue(polygon.contains(id.toPoint()));
+        }
+        // The written outline reads back as the same region.
+        String wkt = WktWriter.DEFAULT.withDissolve(true).toWkt(cells);
+        assertEquals(area, WktParser.parsePolygon(wkt).getArea(), 1e-6 * area);
+    }
+
+    public void testS2ToWktFormat() {
+        assertEquals("MULTIPOLYGON EMPTY", wktConverter.s2ToWkt(new S2CellUnion()));
+
+        List<S2CellId> ids = new ArrayList<S2CellId>();
+        ids.add(S2CellId.fromLatLng(S2LatLng.fromDegrees(52.2, 0.1)).parent(12));
+        ids.add(S2CellId.fromLatLng(S2LatLng.fromDegrees(-33.9, 151.2)).parent(8));
+        S2CellUnion cells = union(ids);
+        StringBuilder expected = new StringBuilder("MULTIPOLYGON(");
+        for (S2CellId id : cells) {
+            S2Cell cell = new S2Cell(id);
+            if (expected.length() > "MULTIPOLYGON(".length()) {
+                expected.append(',');
+            }
+            expected.append("((");
+            for (int k = 0; k < 4; k++) {
+                expected.append(latLng(cell.getVertex(k))).append(',');
+            }
+            expected.append(latLng(cell.getVertex(0))).append("))");
+        }
+        expected.append(')');
+        assertEquals(expected.toString(), wktConverter.s2ToWkt(cells));
+        // One space between the numbers of a point and none anywhere else.
+        assertFalse(wktConverter.s2ToWkt(cells).contains("  "));
+        assertFalse(wktConverter.s2ToWkt(cells).contains(", "));
+    }
+
+    public void testStreamsMatchString() throws IOException {
+        S2RegionCoverer coverer = new S2RegionCoverer();
+        coverer.setMaxCells(1000);
+        S2CellUnion cells = coverer.getCovering(S2Cap.fromAxisHeight(S2LatLng.fromDegrees(52, 0).toPoint(), 1e-4));
+        // Long enough to fill the output buffer several times.
+        assertTrue(cells.size() > 100);
+        String wkt = WktWriter.DEFAULT.toWkt(cells);
+        StringWriter writer = new StringWriter();
+        WktWriter.DEFAULT.write(cells, writer);
+        assertEquals(wkt, writer.toString());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        WktWriter.DEFAULT.write(cells, bytes);
+        assertEquals(wkt, bytes.toString("US-ASCII"));
+    }
+
+    public void testPrecision() {
+        WktWriter writer = WktWriter.DEFAULT.withPrecision(3);
+        assertEquals("1.5", writer.formatNumber(1.5));
+        assertEquals("2", writer.formatNumber(2.0));
+        assertEquals("100", writer.formatNumber(100));
+        assertEquals("0.001", writer.formatNumber(0.001));
+        assertEquals("0.001", writer.formatNumber(0.0012));
+        assertEquals("12", writer.formatNumber(12.00004));
+        assertEquals("-179.999", writer.formatNumber(-179.999));
+        assertEquals("-180", writer.formatNumber(-179.9999));
+        assertEquals("0", writer.formatNumber(0));
+
+        // Negative numbers that round to zero have no sign.
+        assertEquals("0", writer.formatNumber(-0.0));
+        assertEquals("0", writer.formatNumber(-0.0001));
+        assertEquals("0", writer.formatNumber(-0.0004999));
+        assertEquals("-0.001", writer.formatNumber(-0.0006));
+        assertEquals("0", WktWriter.DEFAULT.withPrecision(0).formatNumber(-0.4));
+
+        // Halves round away from zero, on both sides of zero.
+        assertEquals("0.13", WktWriter.DEFAULT.withPrecision(2).formatNumber(0.125));
+        assertEquals("-0.13", WktWriter.DEFAULT.withPrecision(2).formatNumber(-0.125));
+        assertEquals("3", WktWriter.DEFAULT.withPrecision(0).formatNumber(2.5));
+        assertEquals("-3", WktWriter.DEFAULT.withPrecision(0).formatNumber(-2.5));
+        assertEquals("0.3", WktWriter.DEFAULT.withPrecision(1).formatNumber(0.25));
+
+        // Numbers too large to scale exactly take the BigDecimal path, which
+        // rounds the same way.
+        WktWriter one = WktWriter.DEFAULT.withPrecision(1);
+        assertEquals("900719925474099.3", one.formatNumber(900719925474099.25));
+        assertEquals("-900719925474099.3", one.formatNumber(-900719925474099.25));
+        assertEquals("900719925474099.1", one.formatNumber(900719925474099.125));
+        assertEquals("100000000000000000000", one.formatNumber(1e20));
+        WktWriter full = WktWriter.DEFAULT.withPrecision(WktWriter.MAX_PRECISION);
+        assertEquals("0.10000000000000001", full.formatNumber(0.1));
+        assertEquals("-0.10000000000000001", full.formatNumber(-0.1));
+        assertEquals("100", full.formatNumber(100));
+        assertEquals("0.5", full.formatNumber(0.5));
+
+        assertEquals("0.1", WktWriter.DEFAULT.formatNumber(0.1));
+        assertEquals("-0.0", WktWriter.DEFAULT.formatNumber(-0.0));
+        assertEquals("NaN", writer.formatNumber(Double.NaN));
+
+        for (int precision : new int[] {-2, WktWriter.MAX_PRECISION + 1}) {
+            try {
+                WktWriter.DEFAULT.withPrecision(precision);
+                fail();
+            } catch (IllegalArgumentException e) {
+                // Expected.
+            }
+        }
+    }
+
+    public void testPrecisionInOutput() {
+        List<S2CellId> ids = new ArrayList<S2CellId>();
+        ids.add(S2CellId.fromFacePosLevel(0, 0, 0));
+        // Face 0 is centered on lat 0, lng 0 and reaches about 35.26 degrees
+        // from it at the corners.
+        assertEquals("MULTIPOLYGON(((-45 -35.26,45 -35.26,45 35.26,-45 35.26,-45 -35.26)))",
+                WktWriter.DEFAULT.withPrecision(2).toWkt(union(ids)));
+        assertEquals("MULTIPOLYGON(((-35.26 -45,-35.26 45,35.26 45,35.26 -45,-35.26 -45)))",
+                WktWriter.DEFAULT.withPrecision(2).withLatLngOrder(true).toWkt(union(ids)));
+    }
+
+    public void testDissolveAcrossCubeCorner() {
+        // A cap around the corner where faces 0, 1 and 2 meet.
+        S2Point corner = S2Point.normalize(new S2Point(1, 1, 1));
+        S2RegionCoverer coverer = new S2RegionCoverer();
+        coverer.setMaxCells(60);
+        S2CellUnion cells = coverer.getCovering(S2Cap.fromAxisHeight(corner, 1e-4));
+        int faces = 0;
+        for (int face = 0; face < 6; face++) {
+            for (S2CellId id : cells) {
+                if (id.face() == face) {
+                    ++faces;
+                    break;
+                }
+            }
+        }
+        assertEquals(3, faces);
+        assertDissolvedArea(cells);
+        assertEquals(1, WktWriter.dissolve(cells).numLoops());
+    }
+
+    public void testDissolveWithHole() {
+        // The eight neighbors of a cell surround it, leaving a hole.
+        S2CellId center = S2CellId.fromLatLng(S2LatLng.fromDegrees(52, 0)).parent(10);
+        List<S2CellId> ids = new ArrayList<S2CellId>();
+        center.getAllNeighbors(10, ids);
+        S2CellUnion cells = union(ids);
+        assertEquals(8, cells.size());
+        assertDissolvedArea(cells);
+        S2Polygon polygon = WktWriter.dissolve(cells);
+        assertEquals(2, polygon.numLoops());
+        assertFalse(polygon.contains(center.toPoint()));
+
+        // Splitting one neighbor into its children, and one of those into
+        // its own less one, gives edges that meet cells of other sizes.
+        S2CellId split = cells.cellId(0);
+        ids = new ArrayList<S2CellId>(cells.cellIds());
+        ids.remove(split);
+        S2CellId first = split.childBegin();
+        for (S2CellId child = first.next(); !child.equals(split.childEnd()); child = child.next()) {
+            ids.add(child);
+        }
+        for (S2CellId c = first.childBegin().next(); !c.equals(first.childEnd()); c = c.next()) {
+            ids.add(c);
+        }
+        S2CellUnion mixed = union(ids);
+        assertEquals(8 - 1 + 3 + 3, mixed.size());
+        assertDissolvedArea(mixed);
+        assertEquals(2, WktWriter.dissolve(mixed).numLoops());
+    }
+
+    public void testDissolveRandomCoverings() {
+        S2RegionCoverer coverer = new S2RegionCoverer();
+        Random rand = new Random(123456);
+        for (int i = 0; i < 50; i++) {
+            S2Point axis = S2LatLng.fromDegrees(180 * rand.nextDouble() - 90, 360 * rand.nextDouble() - 180)
+                    .toPoint();
+            coverer.setMaxCells(4 + rand.nextInt(50));
+            assertDissolvedArea(coverer.getCovering(S2Cap.fromAxisHeight(axis, 1e-6 + 1e-3 * rand.nextDouble())));
+        }
+        assertEquals("MULTIPOLYGON EMPTY", WktWriter.DEFAULT.withDissolve(true).toWkt(new S2CellUnion()));
+    }
+}
@@ -0,0 +1,124 @@
+package org.proagrica.wallys2.converters;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKTReader;
+import org.geotools.geometry.jts.JTS;
+import org.geotools.referencing.CRS;
+import org.opengis.referencing.operation.MathTransform;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Checks the sharing of CRSs, transforms and converters. This needs the
+ * GeoTools EPSG database.
+ */
+public class coordConverterTest extends TestCase {
+
+    private static final String WEB_MERCATOR = "EPSG:3857";
+    private static final String WORLD_MERCATOR = "EPSG:3395";
+    private static final String LAEA_EUROPE = "EPSG:3035";
+
+    private static final String WKT =
+            "POLYGON((45 -93,45.01 -93,45.01 -92.99,45 -92.99,45 -93))";
+
+    public void testGetSharesConverters() throws Exception {
+        coordConverter converter = coordConverter.get(
+                coordConverter.WGS84, coordConverter.US_NATIONAL_ATLAS_EQUAL_AREA, true);
+        assertSame(converter, coordConverter.get(
+                coordConverter.WGS84, coordConverter.US_NATIONAL_ATLAS_EQUAL_AREA, true));
+        // Equal codes in other strings are the same key.
+        assertSame(converter, coordConverter.get(
+                new String(coordConverter.WGS84), new String(coordConverter.US_NATIONAL_ATLAS_EQUAL_AREA), true));
+
+        // A strict transform to EPSG:2163 needs a datum shift EPSG does not
+        // give, so lenient and strict converters are compared on EPSG:3857,
+        // which is on the WGS84 datum.
+        coordConverter lenient = coordConverter.get(coordConverter.WGS84, WEB_MERCATOR, true);
+        coordConverter strict = coordConverter.get(coordConverter.WGS84, WEB_MERCATOR, false);
+        assertNotSame(lenient, strict);
+        assertTrue(lenient.lenient);
+        assertFalse(strict.lenient);
+        assertSame(strict, coordConverter.get(coordConverter.WGS84, WEB_MERCATOR, false));
+        assertSame(lenient, coordConverter.get(coordConverter.WGS84, WEB_MERCATOR, true));
+        assertNotSame(converter, coordConverter.get(
+                coordConverter.US_NATIONAL_ATLAS_EQUAL_AREA, coordConverter.WGS84, true));
+    }
+
+    public void testDecodeAndTransformAreShared() throws Exception {
+        assertSame(coordConverter.decode(coordConverter.WGS84), coordConverter.decode(coordConverter.WGS84));
+        MathTransform transform = coordConverter.getTransform(
+                coordConverter.WGS84, coordConverter.US_NATIONAL_ATLAS_EQUAL_AREA, true);
+        assertSame(transform, coordConverter.getTransform(
+                coordConverter.WGS84, coordConverter.US_NATIONAL_ATLAS_EQUAL_AREA, true));
+
+        // Converters made with get() or directly use the shared CRSs and transform.
+        coordConverter shared = coordConverter.get(
+                coordConverter.WGS84, coordConverter.US_NATIONAL_ATLAS_EQUAL_AREA, true);
+        coordConverter made = new coordConverter(
+                coordConverter.WGS84, coordConverter.US_NATIONAL_ATLAS_EQUAL_AREA, true);
+        assertNotSame(shared, made);
+        assertSame(transform, shared.transform);
+        assertSame(transform, made.transform);
+        assertSame(coordConverter.decode(coordConverter.WGS84), made.sourceCRS);
+        assertSame(coordConverter.decode(coordConverter.US_NATIONAL_ATLAS_EQUAL_AREA), made.targetCRS);
+    }
+
+    public void testWarmUp() throws Exception {
+        coordConverter.warmUp();
+        coordConverter.warmUp(coordConverter.WGS84, LAEA_EUROPE, true);
+        assertSame(coordConverter.getTransform(coordConverter.WGS84, LAEA_EUROPE, true),
+                coordConverter.get(coordConverter.WGS84, LAEA_EUROPE, true).transform);
+    }
+
+    public void testConcurrentGet() throws Exception {
+        // A key no other test asks for, so the threads race to make it.
+        final CountDownLatch start = new CountDownLatch(1);
+        final coordConverter[] converters = new coordConverter[8];
+        final MathTransform[] transforms = new MathTransform[converters.length];
+        final Throwable[] failures = new Throwable[converters.length];
+        Thread[] threads = new Thread[converters.length];
+        for (int t = 0; t < threads.length; t++) {
+            final int index = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        converters[index] = coordConverter.get(coordConverter.WGS84, WORLD_MERCATOR, false);
+                        transforms[index] = coordConverter.getTransform(coordConverter.WGS84, WORLD_MERCATOR, false);
+                    } catch (Throwable e) {
+                        failures[index] = e;
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int t = 0; t < threads.length; t++) {
+            assertNull(String.valueOf(failures[t]), failures[t]);
+            assertSame(converters[0], converters[t]);
+            assertSame(converters[0].transform, transforms[t]);
+        }
+        assertSame(converters[0], coordConverter.get(coordConverter.WGS84, WORLD_MERCATOR, false));
+    }
+
+    public void testCachedTransformMatchesFresh() throws Exception {
+        String[] targets = {coordConverter.US_NATIONAL_ATLAS_EQUAL_AREA, LAEA_EUROPE};
+        for (String target : targets) {
+            coordConverter converter = coordConverter.get(coordConverter.WGS84, target, true);
+            MathTransform fresh = CRS.findMathTransform(
+                    CRS.decode(coordConverter.WGS84), CRS.decode(target), true);
+            Geometry geom = new WKTReader().read(WKT);
+            Geometry expected = JTS.transform(geom, fresh);
+            assertTrue(expected.equalsExact(converter.convertCoords(geom)));
+            assertEquals(expected.toString(), converter.doConvert(WKT));
+            assertEquals(expected.getArea(), converter.getConvertedArea(WKT), 0);
+            assertEquals(expected.getLength(), converter.getConvertedPerimeter(WKT), 0);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package org.proagrica.wallys2.utils;
+
+import com.google.common.geometry.S2CellId;
+import com.google.common.geometry.S2CellUnion;
+import com.google.common.geometry.S2CellUnionCodec;
+import com.google.common.geometry.S2LatLng;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Random;
+
+public class CellUnionStoreTest extends TestCase {
+
+    private Random rand;
+    private Path path;
+
+    @Override
+    protected void setUp() throws IOException {
+        rand = new Random(123456);
+        path = Files.createTempFile("cell-union-store", ".s2us");
+        Files.delete(path);
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+    /** A union of "numCells" cells of a random level near a random point. */
+    private S2CellUnion getUnion(int numCells) {
+        S2CellId cell = S2CellId.fromLatLng(S2LatLng.fromDegrees(
+                180 * rand.nextDouble() - 90, 360 * rand.nextDouble() - 180))
+                .parent(10 + rand.nextInt(10));
+        ArrayList<S2CellId> ids = new ArrayList<S2CellId>();
+        for (int i = 0; i < numCells; i++) {
+            ids.add(cell);
+            // Skip a cell so that no four siblings are merged into their parent.
+            cell = cell.next().next();
+        }
+        S2CellUnion union = new S2CellUnion();
+        union.initFromCellIds(ids);
+        return union;
+    }
+
+    private S2CellUnion getRandomUnion(int maxCells) {
+        return getUnion(1 + rand.nextInt(maxCells));
+    }
+
+    public void testRoundTripAfterReopen() throws IOException {
+        S2CellUnion[] unions = new S2CellUnion[50];
+        try (CellUnionStore store = CellUnionStore.open(path)) {
+            for (int i = 0; i < unions.length; i++) {
+                unions[i] = getRandomUnion(20);
+                store.put(i, unions[i]);
+                store.put("region-" + i, unions[i]);
+            }
+            // The latest record for a key wins.
+            unions[7] = getRandomUnion(20);
+            store.put(7, unions[7]);
+            store.put("region-7", unions[7]);
+            assertEquals(2 * unions.length, store.size());
+        }
+        try (CellUnionStore store = CellUnionStore.open(path)) {
+            assertEquals(2 * unions.length, store.size());
+            for (int i = 0; i < unions.length; i++) {
+                assertEquals(unions[i], store.getUnion(i));
+                assertEquals(unions[i], store.getUnion("region-" + i));
+                assertEquals(CellUnionTools.UnionToS2Ids(unions[i]), store.getIds(i));
+            }
+            // Appending after a reopen works too.
+            S2CellUnion union = getRandomUnion(20);
+            store.put(1000, union);
+            assertEquals(union, store.getUnion(1000));
+        }
+    }
+
+    public void testRecordsAcrossSegmentBoundaries() throws IOException {
+        // Segments of 128 bytes hold only a few records each, so many records
+        // would cross a boundary if they were not padded to the next segment.
+        long segmentSize = 128;
+        S2CellUnion[] unions = new S2CellUnion[100];
+        try (CellUnionStore store = new CellUnionStore(path, segmentSize)) {
+            for (int i = 0; i < unions.length; i++) {
+                unions[i] = getRandomUnion(6);
+                store.put(i, unions[i]);
+                assertEquals(unions[i], store.getUnion(i));
+            }
+            for (int i = 0; i < unions.length; i++) {
+                assertEquals(unions[i], store.getUnion(i));
+            }
+        }
+        assertTrue(Files.size(path) > 10 * segmentSize);
+        try (CellUnionStore store = new CellUnionStore(path, segmentSize)) {
+            assertEquals(unions.length, store.size());
+            for (int i = 0; i < unions.length; i++) {
+                assertEquals(unions[i], store.getUnion(i));
+            }
+        }
+
+        // A record that does not fit in a segment at all is rejected.
+        try (CellUnionStore store = new CellUnionStore(path, segmentSize)) {
+            store.put(-1, getUnion(200));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    public void testTruncatedRecordIsDropped() throws IOException {
+        S2CellUnion first = getRandomUnion(20);
+        S2CellUnion second = getRandomUnion(20);
+        long firstEnd;
+        try (CellUnionStore store = CellUnionStore.open(path)) {
+            store.put("first", first);
+            store.flush();
+            firstEnd = Files.size(path);
+            store.put("second", second);
+        }
+        long fullSize = Files.size(path);
+
+        // Cut the second record short at every possible point, as a crash
+        // while appending it would.
+        byte[] full = Files.readAllBytes(path);
+        for (long size = firstEnd; size < fullSize; size++) {
+            Files.write(path, full);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(size);
+            }
+            try (CellUnionStore store = CellUnionStore.open(path)) {
+                assertEquals(1, store.size());
+                assertEquals(first, store.getUnion("first"));
+                assertFalse(store.contains("second"));
+                // The torn bytes were cut off, so the next record goes where
+                // the torn one started.
+                assertEquals(firstEnd, Files.size(path));
+                store.put("second", second);
+            }
+            try (CellUnionStore store = CellUnionStore.open(path)) {
+                assertEquals(second, store.getUnion("second"));
+            }
+        }
+    }
+
+    public void testMissingKeys() throws IOException {
+        try (CellUnionStore store = CellUnionStore.open(path)) {
+            assertFalse(store.contains(42));
+            assertFalse(store.contains("42"));
+            assertNull(store.get(42));
+            assertNull(store.get("42"));
+            assertNull(store.getUnion(42));
+            assertNull(store.getIds("42"));
+
+            store.put(42, getRandomUnion(5));
+            assertTrue(store.contains(42));
+            assertFalse(store.contains("42"));
+            assertFalse(store.contains(43));
+            assertNull(store.get(43));
+            // Key 0 is not special, although offset 0 marks an empty slot.
+            assertFalse(store.contains(0));
+            store.put(0, getRandomUnion(5));
+            assertTrue(store.contains(0));
+            assertEquals(2, store.size());
+        }
+    }
+
+    public void testGetReturnsEncodedView() throws IOException {
+        S2CellUnion union = getRandomUnion(20);
+        try (CellUnionStore store = CellUnionStore.open(path)) {
+            store.put(1, union);
+            assertEquals(union, S2CellUnionCodec.decodeCellUnion(store.get(1)));
+            assertTrue(store.get(1).isReadOnly());
+        }
+    }
+}
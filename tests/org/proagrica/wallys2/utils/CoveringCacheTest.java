@@ -0,0 +1,195 @@
+package org.proagrica.wallys2.utils;
+
+import com.google.common.geometry.S2CellUnion;
+import com.google.common.geometry.S2LatLng;
+import com.google.common.geometry.S2Loop;
+import com.google.common.geometry.S2Point;
+import com.google.common.geometry.S2Polygon;
+import com.google.common.geometry.S2RegionCoverer;
+
+import junit.framework.TestCase;
+import org.proagrica.wallys2.converters.wktConverter;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+public class CoveringCacheTest extends TestCase {
+
+    private static final S2RegionCoverer.Options OPTIONS =
+            S2RegionCoverer.Options.DEFAULT.withMaxCells(20);
+
+    private final S2RegionCoverer coverer = new S2RegionCoverer();
+    private Path path;
+
+    @Override
+    protected void setUp() throws IOException {
+        path = Files.createTempFile("covering-cache", ".s2us");
+        Files.delete(path);
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+    /** A small square field whose corner is at the given position. */
+    private static S2Polygon field(double lat, double lng) {
+        List<S2Point> vertices = new ArrayList<S2Point>();
+        vertices.add(S2LatLng.fromDegrees(lat, lng).toPoint());
+        vertices.add(S2LatLng.fromDegrees(lat, lng + 0.01).toPoint());
+        vertices.add(S2LatLng.fromDegrees(lat + 0.01, lng + 0.01).toPoint());
+        vertices.add(S2LatLng.fromDegrees(lat + 0.01, lng).toPoint());
+        List<S2Loop> loops = new ArrayList<S2Loop>();
+        loops.add(new S2Loop(vertices));
+        return new S2Polygon(loops);
+    }
+
+    private S2CellUnion cover(CoveringCache cache, S2Polygon poly) {
+        S2CellUnion covering = cache.getCovering(coverer, poly, OPTIONS);
+        assertEquals(coverer.getCovering(poly, OPTIONS), covering);
+        return covering;
+    }
+
+    public void testHitsAndMisses() {
+        CoveringCache cache = new CoveringCache(10, Long.MAX_VALUE);
+        S2Polygon a = field(52, 0);
+        cover(cache, a);
+        cover(cache, a);
+        // Equal polygons built separately share an entry.
+        cover(cache, field(52, 0));
+        assertEquals(1, cache.misses());
+        assertEquals(2, cache.hits());
+
+        // Other options, and the interior covering, get entries of their own.
+        cache.getCovering(coverer, a, OPTIONS.withMaxCells(8));
+        cache.getInteriorCovering(coverer, a, OPTIONS);
+        assertEquals(3, cache.misses());
+        assertEquals(3, cache.size());
+    }
+
+    public void testLeastRecentlyUsedIsEvictedFirst() {
+        CoveringCache cache = new CoveringCache(2, Long.MAX_VALUE);
+        S2Polygon a = field(52, 0);
+        S2Polygon b = field(53, 0);
+        S2Polygon c = field(54, 0);
+        cover(cache, a);
+        cover(cache, b);
+        // Using a makes b the least recently used, so c pushes b out.
+        cover(cache, a);
+        cover(cache, c);
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.evictions());
+
+        long misses = cache.misses();
+        cover(cache, a);
+        cover(cache, c);
+        assertEquals(misses, cache.misses());
+        cover(cache, b);
+        assertEquals(misses + 1, cache.misses());
+    }
+
+    public void testWeightEviction() {
+        CoveringCache unbounded = new CoveringCache(100, Long.MAX_VALUE);
+        cover(unbounded, field(52, 0));
+        long weight = unbounded.weight();
+        assertTrue(weight > CoveringCache.ENTRY_OVERHEAD);
+
+        // Room for about two and a half entries of this size.
+        CoveringCache cache = new CoveringCache(100, 5 * weight / 2);
+        for (int i = 0; i < 10; i++) {
+            cover(cache, field(52, 0.1 * i));
+            assertTrue(cache.weight() <= 5 * weight / 2);
+        }
+        assertTrue(cache.size() >= 1 && cache.size() < 10);
+        assertEquals(10 - cache.size(), cache.evictions());
+
+        // An entry heavier than the whole cache is not kept at all.
+        CoveringCache tiny = new CoveringCache(100, CoveringCache.ENTRY_OVERHEAD);
+        cover(tiny, field(52, 0));
+        assertEquals(0, tiny.size());
+        assertEquals(0, tiny.weight());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.weight());
+    }
+
+    public void testSpillRoundTrip() throws IOException {
+        S2Polygon a = field(52, 0);
+        S2Polygon b = field(53, 0);
+        S2CellUnion coveringA;
+        try (CoveringCache cache = new CoveringCache(1, Long.MAX_VALUE, CellUnionStore.open(path))) {
+            coveringA = cover(cache, a);
+            // b pushes a out to the spill store, where it is found again.
+            cover(cache, b);
+            assertEquals(1, cache.evictions());
+            assertEquals(coveringA, cover(cache, a));
+            assertEquals(1, cache.spillHits());
+            assertEquals(2, cache.misses());
+        }
+
+        // The spill file outlives the cache, as it would the process.
+        try (CoveringCache cache = new CoveringCache(1, Long.MAX_VALUE, CellUnionStore.open(path))) {
+            assertEquals(coveringA, cover(cache, a));
+            assertEquals(1, cache.spillHits());
+            assertEquals(0, cache.misses());
+            // b went to the spill store when a came back from it.
+            cover(cache, b);
+            assertEquals(2, cache.spillHits());
+            assertEquals(0, cache.misses());
+        }
+    }
+
+    public void testSpillSizeLimit() throws IOException {
+        try (CoveringCache cache = new CoveringCache(1, Long.MAX_VALUE, CellUnionStore.open(path), 1)) {
+            // The empty store's header already fills the allowance.
+            for (int i = 0; i < 5; i++) {
+                cover(cache, field(52, 0.1 * i));
+            }
+            assertEquals(4, cache.evictions());
+        }
+        try (CellUnionStore store = CellUnionStore.open(path)) {
+            assertEquals(0, store.size());
+        }
+    }
+
+    public void testCloseClosesSpill() throws IOException {
+        CellUnionStore store = CellUnionStore.open(path);
+        CoveringCache cache = new CoveringCache(1, Long.MAX_VALUE, store);
+        cover(cache, field(52, 0));
+        cache.close();
+        try {
+            store.flush();
+            fail("The spill store is still open");
+        } catch (IOException e) {
+            // Expected.
+        }
+        // The cache keeps working from memory, and closing twice is harmless.
+        cover(cache, field(52, 0));
+        cover(cache, field(53, 0));
+        assertEquals(1, cache.hits());
+        cache.close();
+    }
+
+    public void testReplacingTheConverterCacheClosesIt() throws IOException {
+        CellUnionStore store = CellUnionStore.open(path);
+        CoveringCache cache = new CoveringCache(1, Long.MAX_VALUE, store);
+        try {
+            wktConverter.setCoveringCache(cache);
+            // Setting the same cache again leaves it open.
+            wktConverter.setCoveringCache(cache);
+            store.flush();
+        } finally {
+            wktConverter.setCoveringCache(null);
+        }
+        try {
+            store.flush();
+            fail("The spill store is still open");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+}
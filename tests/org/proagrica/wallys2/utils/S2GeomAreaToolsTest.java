@@ -0,0 +1,53 @@
+package org.proagrica.wallys2.utils;
+
+import com.google.common.geometry.S2CellId;
+import com.google.common.geometry.S2CellUnion;
+import com.google.common.geometry.S2LatLng;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Compares the areas projected in the library with those of the WKT, JTS and
+ * GeoTools path, so this needs the GeoTools EPSG database.
+ */
+public class S2GeomAreaToolsTest extends TestCase {
+
+    // GeoTools makes the same Molodensky shift as EqualAreaProjection, so
+    // the areas differ only by rounding, at most 1.3e-10 of the area for
+    // level 18 cells.
+    private static final double MAX_ERROR = 2e-10;
+
+    private Random rand;
+
+    @Override
+    protected void setUp() {
+        rand = new Random(123456);
+    }
+
+    /** A random cell of the given level in the conterminous US. */
+    private S2CellId getRandomCell(int level) {
+        return S2CellId.fromLatLng(S2LatLng.fromDegrees(
+                25 + 24 * rand.nextDouble(), -125 + 58 * rand.nextDouble())).parent(level);
+    }
+
+    public void testAreaCellMatchesWkt() throws Exception {
+        for (int level = 4; level <= 18; level++) {
+            S2CellId cell = getRandomCell(level);
+            double expected = S2GeomAreaTools.getAreaCellWKT(cell);
+            assertEquals(expected, S2GeomAreaTools.getAreaCell(cell), MAX_ERROR * expected);
+        }
+
+        ArrayList<S2CellId> ids = new ArrayList<S2CellId>();
+        for (int i = 0; i < 50; i++) {
+            ids.add(getRandomCell(8 + rand.nextInt(8)));
+        }
+        S2CellUnion cells = new S2CellUnion();
+        cells.initFromCellIds(ids);
+        double expected = S2GeomAreaTools.getAreaCellWKT(cells);
+        assertEquals(expected, S2GeomAreaTools.getAreaCell(cells), MAX_ERROR * expected);
+        assertEquals(expected, S2GeomAreaTools.getAreaCell(cells, "EPSG:2163"), MAX_ERROR * expected);
+    }
+}